@@ -0,0 +1,34 @@
+package com.ms.silverking.cloud.dht.client;
+
+import java.util.List;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+
+/**
+ * An asynchronous scan of the keys stored in a namespace.
+ * 
+ * Keys are returned as DHTKeys (the digests of user keys) since user keys are not stored.
+ * Keys are returned in ring order, in batches that are assembled by the servers. At most
+ * one batch is retrieved ahead of the caller; the rate at which the caller consumes batches
+ * therefore controls the rate of the scan.
+ * 
+ * A scan is not a snapshot of the namespace. Keys stored or removed during the scan 
+ * may or may not be returned.
+ */
+public interface AsyncKeyScan {
+    /**
+     * Return the next batch of keys, waiting for it to be retrieved if necessary.
+     * @return the next non-empty batch of keys, or null if the scan is complete
+     * @throws ScanException
+     */
+    public List<DHTKey> nextBatch() throws ScanException;
+    /**
+     * Query whether the next page of this scan has been retrieved.
+     * @return true if the scan is complete or its next page has been retrieved
+     */
+    public boolean batchReady();
+    /**
+     * Stop this scan. No further batches will be retrieved.
+     */
+    public void close();
+}
@@ -99,4 +99,18 @@ public interface AsynchronousReadableNamespacePerspective<K,V> extends BaseNames
 	 * @throws RetrievalException
 	 */
 	public AsyncSingleValueRetrieval<K,V> waitFor(K key) throws RetrievalException;
+	
+	
+	// scan - enumerate stored keys
+	/**
+     * Scan the keys stored in this namespace.
+     * @param batchSize maximum number of keys in each batch returned by the scan
+     * @return an AsyncKeyScan object representing the scan
+	 */
+	public AsyncKeyScan scanKeys(int batchSize);
+	/**
+     * Scan the keys stored in this namespace using the default batch size.
+     * @return an AsyncKeyScan object representing the scan
+	 */
+	public AsyncKeyScan scanKeys();
 }
@@ -3,7 +3,12 @@ package com.ms.silverking.cloud.dht.client;
 /**
  * Specifies which compression method to use.
  * 
+ * ZIP_DICTIONARY compresses values using the namespace's compression dictionary. Dictionaries are
+ * stored in the meta namespace (see NamespaceOptionsClient.storeCompressionDictionary()) and are
+ * loaded when a namespace with ZIP_DICTIONARY default put compression is opened, or when a value
+ * compressed with a dictionary that has not been loaded is retrieved. Without a dictionary,
+ * ZIP_DICTIONARY behaves as ZIP.
  */
 public enum Compression {
-    NONE, ZIP, BZIP2, SNAPPY, LZ4;
+    NONE, ZIP, BZIP2, SNAPPY, LZ4, ZIP_DICTIONARY;
 }
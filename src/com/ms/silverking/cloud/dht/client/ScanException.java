@@ -0,0 +1,24 @@
+package com.ms.silverking.cloud.dht.client;
+
+import com.ms.silverking.cloud.dht.client.gen.NonVirtual;
+
+@NonVirtual
+public abstract class ScanException extends OperationException {
+    private static final long serialVersionUID = -5379866710566077711L;
+
+    public ScanException() {
+        super();
+    }
+
+    public ScanException(String message) {
+        super(message);
+    }
+
+    public ScanException(Throwable cause) {
+        super(cause);
+    }
+
+    public ScanException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
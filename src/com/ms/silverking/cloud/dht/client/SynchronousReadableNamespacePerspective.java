@@ -1,5 +1,8 @@
 package com.ms.silverking.cloud.dht.client;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 import java.util.Set;
 
@@ -72,6 +75,50 @@ public interface SynchronousReadableNamespacePerspective<K,V> extends BaseNamesp
 	 * @throws RetrievalException
 	 */
 	public V get(K key) throws RetrievalException;
+	/**
+	 * Streaming Get operation. The serialized value associated with the key is written to dest. Memory use
+	 * is bounded by the number of value segments in flight rather than by the size of the value. Not supported
+	 * for perspectives that encrypt values.
+	 * @param key key to retrieve
+	 * @param dest a blocking channel to write the serialized value to
+	 * @param getOptions options for the Get operation
+	 * @return the number of bytes written if the key has an associated value. -1 otherwise unless the retrieval 
+	 * options are set to throw an exception for non-existence.
+	 * @throws RetrievalException
+	 * @throws IOException if dest cannot be written
+	 */
+	public long get(K key, WritableByteChannel dest, GetOptions getOptions) throws RetrievalException, IOException;
+	/**
+	 * Streaming Get operation using default GetOptions.
+	 * @param key key to retrieve
+	 * @param dest a blocking channel to write the serialized value to
+	 * @return the number of bytes written if the key has an associated value. -1 otherwise unless the default 
+	 * GetOptions are set to throw an exception for non-existence.
+	 * @throws RetrievalException
+	 * @throws IOException if dest cannot be written
+	 */
+	public long get(K key, WritableByteChannel dest) throws RetrievalException, IOException;
+	/**
+	 * Streaming Get operation. See get(K, WritableByteChannel, GetOptions).
+	 * @param key key to retrieve
+	 * @param out stream to write the serialized value to
+	 * @param getOptions options for the Get operation
+	 * @return the number of bytes written if the key has an associated value. -1 otherwise unless the retrieval 
+	 * options are set to throw an exception for non-existence.
+	 * @throws RetrievalException
+	 * @throws IOException if out cannot be written
+	 */
+	public long get(K key, OutputStream out, GetOptions getOptions) throws RetrievalException, IOException;
+	/**
+	 * Streaming Get operation using default GetOptions.
+	 * @param key key to retrieve
+	 * @param out stream to write the serialized value to
+	 * @return the number of bytes written if the key has an associated value. -1 otherwise unless the default 
+	 * GetOptions are set to throw an exception for non-existence.
+	 * @throws RetrievalException
+	 * @throws IOException if out cannot be written
+	 */
+	public long get(K key, OutputStream out) throws RetrievalException, IOException;
 		
 	// waitFor - wait on non-existent key-value pairs
 	/**
@@ -1,5 +1,8 @@
 package com.ms.silverking.cloud.dht.client;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Map;
 import java.util.Set;
 
@@ -42,6 +45,47 @@ public interface SynchronousWritableNamespacePerspective<K,V> extends BaseNamesp
 	 */
 	public void put(K key, V value) throws PutException;
 	
+	/**
+     * Streaming Put operation. src is read until end of stream, and its contents are stored as the
+     * serialized value of key. Memory use is bounded by the number of value segments in flight rather 
+     * than by the size of the value. Not supported for perspectives that encrypt values.
+	 * @param key key to associate the value with
+	 * @param src a blocking channel containing the serialized value
+     * @param putOptions options for the Put operation
+	 * @return the number of bytes stored
+	 * @throws PutException
+	 * @throws IOException if src cannot be read
+	 */
+	public long put(K key, ReadableByteChannel src, PutOptions putOptions) throws PutException, IOException;
+	/**
+     * Streaming Put operation using default PutOptions.
+	 * @param key key to associate the value with
+	 * @param src a blocking channel containing the serialized value
+	 * @return the number of bytes stored
+	 * @throws PutException
+	 * @throws IOException if src cannot be read
+	 */
+	public long put(K key, ReadableByteChannel src) throws PutException, IOException;
+	/**
+     * Streaming Put operation. See put(K, ReadableByteChannel, PutOptions).
+	 * @param key key to associate the value with
+	 * @param in stream containing the serialized value
+     * @param putOptions options for the Put operation
+	 * @return the number of bytes stored
+	 * @throws PutException
+	 * @throws IOException if in cannot be read
+	 */
+	public long put(K key, InputStream in, PutOptions putOptions) throws PutException, IOException;
+	/**
+     * Streaming Put operation using default PutOptions.
+	 * @param key key to associate the value with
+	 * @param in stream containing the serialized value
+	 * @return the number of bytes stored
+	 * @throws PutException
+	 * @throws IOException if in cannot be read
+	 */
+	public long put(K key, InputStream in) throws PutException, IOException;
+	
 
     /**
      * Multi-value Invalidation operation
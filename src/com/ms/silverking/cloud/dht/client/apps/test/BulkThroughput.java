@@ -17,6 +17,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.ms.silverking.cloud.dht.NamespaceOptions;
 import com.ms.silverking.cloud.dht.SessionOptions;
+import com.ms.silverking.cloud.dht.client.AsyncPut;
 import com.ms.silverking.cloud.dht.client.AsyncValueRetrieval;
 import com.ms.silverking.cloud.dht.client.AsynchronousNamespacePerspective;
 import com.ms.silverking.cloud.dht.client.ClientException;
@@ -64,7 +65,7 @@ public class BulkThroughput {
         this.err = err;
         this.options = options;
         dhtClient = new DHTClient();
-        values = createValues(options.batchSize, options.valueSize);
+        values = createValues(options.batchSize, options.valueSize, options.compressibleValues);
         
         DHTSession	session;
         Namespace	ns;
@@ -232,7 +233,8 @@ public class BulkThroughput {
             double		iops;
             
             switch (test) {
-            case Write: valueSize = values[0].length; break;
+            case Write: 
+            case WriteAsync: valueSize = values[0].length; break;
             default: valueSize = -1; 
             }
             
@@ -242,6 +244,7 @@ public class BulkThroughput {
             for (int i = 0; i < p.repetitions; i++) {
                 switch (test) {
                 case Write: write(p, batchTimes, context, syncNSP); break;
+                case WriteAsync: writeAsync(p, context, asyncNSP); break;
                 case Read: valueSize = read(p, batchTimes, context, syncNSP); break;
                 case ReadAsync: valueSize = readAsync(p, context, asyncNSP); break;
                 default: throw new RuntimeException("Panic");
@@ -292,16 +295,39 @@ public class BulkThroughput {
         return (long)p.repetitions * (long)p.numKeys * (long)valueSize;
     }
 
-    private static byte[][] createValues(int numValues, int valueSize) {
+    private static byte[][] createValues(int numValues, int valueSize, boolean compressible) {
         byte[][]    v;
         
         v = new byte[numValues][valueSize];
         for (int i = 0; i < v.length; i++) {
-            ThreadLocalRandom.current().nextBytes(v[i]);
+            if (compressible) {
+                fillCompressible(v[i]);
+            } else {
+                ThreadLocalRandom.current().nextBytes(v[i]);
+            }
         }
         return v;
     }
     
+    private static final int    compressibleWords = 64;
+    private static final int    compressibleWordSize = 8;
+    
+    /**
+     * Fill with words drawn at random from a small vocabulary; compressible by all supported codecs 
+     */
+    private static void fillCompressible(byte[] v) {
+        byte[][]    words;
+        
+        words = new byte[compressibleWords][compressibleWordSize];
+        for (byte[] word : words) {
+            ThreadLocalRandom.current().nextBytes(word);
+        }
+        for (int i = 0; i < v.length; i += compressibleWordSize) {
+            System.arraycopy(words[ThreadLocalRandom.current().nextInt(compressibleWords)], 0, v, i, 
+                             Math.min(compressibleWordSize, v.length - i));
+        }
+    }
+    
     public void write(TestParameters p, List<Double> batchTimes, String context, SynchronousNamespacePerspective<String,byte[]> syncNSP) throws PutException {
         int k;
         int lastDisplay;
@@ -333,6 +359,35 @@ public class BulkThroughput {
         }
     }
     
+    /**
+     * Write using the asynchronous perspective, issuing each batch before waiting for the previous
+     * batch to complete. With compression enabled, compare runs with and without
+     * -Dcom.ms.silverking.cloud.dht.client.impl.ValuePreparationThreads=<n> to measure
+     * parallel value preparation.
+     */
+    public void writeAsync(TestParameters p, String context, AsynchronousNamespacePerspective<String,byte[]> asyncNSP) throws PutException {
+        int k;
+        AsyncPut<String>    prevAsyncPut;
+        
+        prevAsyncPut = null;
+        k = p.minKey;
+        while (k <= p.maxKey - p.batchSize) {
+            int batchSize;
+            AsyncPut<String>    asyncPut;
+            
+            batchSize = Math.min(p.batchSize, p.maxKey - k + 1);
+            asyncPut = asyncNSP.put(createMap(context, k, batchSize));
+            if (prevAsyncPut != null) {
+                prevAsyncPut.waitForCompletion();
+            }
+            prevAsyncPut = asyncPut;
+            k += batchSize;
+        }
+        if (prevAsyncPut != null) {
+            prevAsyncPut.waitForCompletion();
+        }
+    }
+    
     private Map<String,byte[]> createMap(String context, int minKey, int batchSize) {
         ImmutableMap.Builder<String,byte[]>   mb;
         
@@ -456,7 +511,7 @@ public class BulkThroughput {
     }
     
     private static void checkOptions(BulkThroughputOptions options) throws CmdLineException {
-        if (options.test == BulkThroughputTest.Write) {
+        if (options.test == BulkThroughputTest.Write || options.test == BulkThroughputTest.WriteAsync) {
             if (options.valueSize == -1) {
                 throw new CmdLineException("valueSize must be specified for Write");
             }
@@ -76,6 +76,9 @@ class BulkThroughputOptions {
     @Option(name="-verify", usage="verifyValues")
     boolean verifyValues = false;
     
+    @Option(name="-compressible", usage="compressibleValues")
+    boolean compressibleValues = false;
+    
     //@Option(name="-o", usage="namespaceOptions")
     //String  nsOptions;
     
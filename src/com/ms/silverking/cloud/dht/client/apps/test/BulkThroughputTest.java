@@ -1,5 +1,5 @@
 package com.ms.silverking.cloud.dht.client.apps.test;
 
 public enum BulkThroughputTest {
-    Write, Read, ReadAsync
+    Write, WriteAsync, Read, ReadAsync
 }
@@ -21,6 +21,7 @@ public class ActiveClientOperationTable {
     private final ActivePutListeners                activePutListeners;
     private final ActiveRetrievalListeners          activeRetrievalListeners;
     private final ActiveVersionedBasicOperations    activeVersionedBasicOperations;
+    private final ActiveScanOperations              activeScanOperations;
     private final LWTPool                           lwtPool;
     private final Stopwatch                         finalizationSW;
     
@@ -33,6 +34,7 @@ public class ActiveClientOperationTable {
         activePutListeners = new ActivePutListeners();
         activeRetrievalListeners = new ActiveRetrievalListeners();
         activeVersionedBasicOperations = new ActiveVersionedBasicOperations();
+        activeScanOperations = new ActiveScanOperations();
         lwtPool = LWTPoolProvider.defaultConcurrentWorkPool;
         finalizationSW = new SimpleStopwatch();
     }
@@ -49,6 +51,10 @@ public class ActiveClientOperationTable {
         return activeVersionedBasicOperations;
     }
     
+    public ActiveScanOperations getActiveScanOperations() {
+        return activeScanOperations;
+    }
+    
     public List<AsyncOperationImpl> getActiveAsyncOperations() {
         List<AsyncOperationImpl>    activeOps;
         
@@ -115,6 +121,11 @@ public class ActiveClientOperationTable {
             finalizationSW.reset();
         }
         
+        if (OpTimeoutWheel.getInstance() != null) {
+            // retrieval and put timeouts are fired by the wheel
+            return;
+        }
+        
         Set<AsyncRetrievalOperationImpl>   crs;
         
         crs = activeRetrievalListeners.currentRetrievalSet();
@@ -137,7 +148,7 @@ public class ActiveClientOperationTable {
         }
     }
     
-    private void checkOpForTimeouts(long curTimeMillis, AsyncOperationImpl op, OpSender opSender) {
+    static void checkOpForTimeouts(long curTimeMillis, AsyncOperationImpl op, OpSender opSender) {
         if (op.attemptHasTimedOut(curTimeMillis)) {
             if (op.getState() == OperationState.INCOMPLETE) {
                 if (debugTimeouts) {
@@ -1,15 +1,13 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
-import java.lang.ref.WeakReference;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
-import org.hibernate.validator.internal.util.ConcurrentReferenceHashMap;
-
 import com.google.common.collect.ImmutableSet;
 import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.common.EnumValues;
@@ -19,33 +17,26 @@ import com.ms.silverking.cloud.dht.net.MessageGroup;
 import com.ms.silverking.cloud.dht.net.MessageGroupKeyOrdinalEntry;
 import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.log.Log;
-import com.ms.silverking.util.Libraries;
 
 /**
  * Maps UUIDs from active messages back to active operations.
- * The typing of the mapping is complex enough that we hide 
- * it in this class.
  * 
- * The strategy of this implemention is to allow GC and weak references
- * to handle the removal of entries from the map. This removes the need to
- * perform any manual deletion.
+ * Listeners are held in a MessageListenerRegistry. Entries are removed explicitly: each operation
+ * releases the messages that it added listeners to when it completes (see releaseOpUUIDs() in
+ * AsyncPutOperationImpl). Dispatch of put responses does not allocate.
  */
 class ActivePutListeners {
     private static final boolean    enableMultipleOpsPerMessage = OpSender.opGroupingEnabled;
     
     private final ConcurrentMap<UUIDBase,ActiveKeyedOperationResultListener<OpResult>>    activeOpListeners;
     
-    private final Map<UUIDBase,ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>>>   activePutListeners;
+    private final MessageListenerRegistry   activePutListeners;
     
     private static final boolean    debug = false;
 
     ActivePutListeners() {
         if (enableMultipleOpsPerMessage) {
-        	if (Libraries.useCustomGuava) {
-                activePutListeners = new ConcurrentReferenceHashMap<>();      
-        	} else {
-                activePutListeners = Collections.synchronizedMap(new WeakHashMap<UUIDBase,ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>>>());        
-        	}
+            activePutListeners = new MessageListenerRegistry();
             this.activeOpListeners = null;
         } else {
             this.activePutListeners = null;
@@ -54,13 +45,7 @@ class ActivePutListeners {
     }
     
     OperationUUID newOpUUIDAndMap() {
-        OperationUUID   opUUID;
-        
-        opUUID = new OperationUUID();
-        if (enableMultipleOpsPerMessage) {
-        	activePutListeners.put(opUUID, new ConcurrentHashMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>>());
-        }
-        return opUUID;
+        return new OperationUUID();
     }
 
     /**
@@ -68,11 +53,14 @@ class ActivePutListeners {
      * @param opUUID
      * @param dhtKey
      * @param listener
-     * @return
+     * @param owner the operation that will release opUUID
+     * @return true if the listener was added, false if the message already has a listener for this key
      */
-    boolean addListener(UUIDBase opUUID, DHTKey dhtKey, ActiveKeyedOperationResultListener<OpResult> listener) {
+    boolean addListener(UUIDBase opUUID, DHTKey dhtKey, ActiveKeyedOperationResultListener<OpResult> listener,
+                        AsyncOperationImpl owner) {
         if (enableMultipleOpsPerMessage) {
-        	return activePutListeners.get(opUUID).putIfAbsent(dhtKey, new WeakReference<>(listener)) == null;
+        	return activePutListeners.addListener(opUUID, dhtKey, listener, false, owner) 
+        	            == MessageListenerTable.ADDED_NEW_KEY;
         } else {
             Object  prev;
             
@@ -87,24 +75,36 @@ class ActivePutListeners {
         }
     }
     
+    /**
+     * Release the given owner's listeners for the given message.
+     * @param opUUID
+     * @param owner
+     */
+    void release(UUIDBase opUUID, AsyncOperationImpl owner) {
+        if (enableMultipleOpsPerMessage) {
+            activePutListeners.release(opUUID, owner);
+        } else {
+            activeOpListeners.remove(opUUID);
+        }
+    }
+    
     Set<AsyncPutOperationImpl> currentPutSet() {
         ImmutableSet.Builder<AsyncPutOperationImpl>   ops;
 
         Log.fine("currentPutSet()");
         ops = ImmutableSet.builder();
         if (enableMultipleOpsPerMessage) {
-	        for (ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>> map : activePutListeners.values()) {
-	            Log.fine("maps: ", map);
-	            for (WeakReference<ActiveKeyedOperationResultListener<OpResult>> listenerRef : map.values()) {
-	                ActiveKeyedOperationResultListener<OpResult> listener;
-	                
-	                listener = listenerRef.get();
-	                Log.fine("listener: ", listener);
-	                if (listener instanceof AsyncPutOperationImpl) {
-	                    ops.add((AsyncPutOperationImpl)listener);
-	                }
-	            }
-	        }
+            List<AsyncOperationImpl>    owners;
+            
+            owners = new ArrayList<>();
+            for (MessageListenerTable table : activePutListeners.getTables()) {
+                table.getOwners(owners);
+            }
+            for (AsyncOperationImpl owner : owners) {
+                if (owner instanceof AsyncPutOperationImpl) {
+                    ops.add((AsyncPutOperationImpl)owner);
+                }
+            }
         } else {
             for (ActiveKeyedOperationResultListener<OpResult> listener : activeOpListeners.values()) {
                 if (listener instanceof AsyncPutOperationImpl) {
@@ -115,35 +115,39 @@ class ActivePutListeners {
         return ops.build();
     }
     
+    @SuppressWarnings("unchecked")
     public <K,V> void receivedPutResponse(MessageGroup message) {
         if (enableMultipleOpsPerMessage) {
-	        long    version;
-	        ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>> listenerMap;
-	        
-	        version = message.getBuffers()[0].getLong(0);
-	        //Log.warning("receivedPutResponse version ", version);
+            MessageListenerTable    listenerTable;
 	        
-	        listenerMap = activePutListeners.get(message.getUUID());
-	        if (listenerMap != null) {
-	            for (MessageGroupKeyOrdinalEntry entry : message.getKeyOrdinalIterator()) {
-	                WeakReference<ActiveKeyedOperationResultListener<OpResult>> listenerRef;
+	        listenerTable = activePutListeners.get(message.getUUID().getMostSignificantBits(), 
+	                                               message.getUUID().getLeastSignificantBits());
+	        if (listenerTable != null) {
+	            int numEntries;
+	            
+	            numEntries = message.getNumKeyOrdinalEntries();
+	            for (int i = 0; i < numEntries; i++) {
 	                ActiveKeyedOperationResultListener<OpResult> listener;
+	                long    msl;
+	                long    lsl;
 	                
+	                msl = message.getKeyOrdinalEntryMSL(i);
+	                lsl = message.getKeyOrdinalEntryLSL(i);
 	                if (debug) {
-	                    System.out.println(new SimpleKey(entry.getKey()));
+	                    System.out.println(new SimpleKey(msl, lsl));
 	                }
-	                listenerRef = listenerMap.get(entry.getKey());
-	                listener = listenerRef.get();
+	                listener = (ActiveKeyedOperationResultListener<OpResult>)listenerTable.getListener(msl, lsl);
 	                if (listener != null) {
-	                    listener.resultReceived(entry.getKey(), EnumValues.opResult[entry.getOrdinal()]);
+	                    // pass the registered key so that no key need be created here
+	                    listener.resultReceived(listenerTable.getKey(msl, lsl), 
+	                                            EnumValues.opResult[message.getKeyOrdinalEntryOrdinal(i)]);
 	                } else {
-	                    Log.info("receivedPutResponse. null listener ref for: ", message.getUUID() +"\t"+ entry.getKey());
+	                    Log.info("receivedPutResponse. null listener for: ", message.getUUID() +"\t"+ new SimpleKey(msl, lsl));
 	                }
 	            }
 	        } else {
-	            // If we're receiving the error, then it's possible that we lost the
-	            // reference that was stored in the weak map.
-	            Log.warning("receivedPutResponse. No listenerMap for: ", message.getUUID());
+	            // All operations that were waiting on this message have completed
+	            Log.info("receivedPutResponse. No listenerMap for: ", message.getUUID());
 	        }
         } else {
             ActiveKeyedOperationResultListener<OpResult>	listener;
@@ -160,11 +164,24 @@ class ActivePutListeners {
         }
     }
 
-    public ConcurrentMap<DHTKey, WeakReference<ActiveKeyedOperationResultListener<OpResult>>> getKeyMap(OperationUUID opUUID) {
+    /**
+     * For debugging only.
+     */
+    @SuppressWarnings("unchecked")
+    Map<DHTKey,ActiveKeyedOperationResultListener<OpResult>> getKeyMap(OperationUUID opUUID) {
+        Map<DHTKey,ActiveKeyedOperationResultListener<OpResult>>    keyMap;
+        
+        keyMap = new HashMap<>();
         if (enableMultipleOpsPerMessage) {
-        	return activePutListeners.get(opUUID);
-        } else {
-        	return new ConcurrentHashMap<>();
+            MessageListenerTable    listenerTable;
+            
+            listenerTable = activePutListeners.get(opUUID.getMostSignificantBits(), opUUID.getLeastSignificantBits());
+            if (listenerTable != null) {
+                for (Map.Entry<DHTKey,Object> entry : listenerTable.toMap().entrySet()) {
+                    keyMap.put(entry.getKey(), (ActiveKeyedOperationResultListener<OpResult>)entry.getValue());
+                }
+            }
         }
+    	return keyMap;
     }
 }
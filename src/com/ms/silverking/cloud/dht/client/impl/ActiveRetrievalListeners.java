@@ -1,37 +1,26 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
-import java.lang.ref.WeakReference;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.logging.Level;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.MapMaker;
 import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.net.MessageGroup;
 import com.ms.silverking.cloud.dht.net.MessageGroupRetrievalResponseEntry;
 import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.log.Log;
-import com.ms.silverking.util.Libraries;
-
-import org.hibernate.validator.internal.util.ConcurrentReferenceHashMap;
 
 
 /**
  * Maps UUIDs from active messages back to active operations. This is necessary since we allow multiple
  * operations to be combined in a single message to improve performance.
  * 
- * The typing of the mapping is complex enough that we hide it in this class.
- * 
- * The strategy of this implementation is to allow GC and weak references
- * to handle the removal of entries from the map. This removes the need to
- * perform any manual deletion.
+ * Listeners are held in a MessageListenerRegistry. Entries are removed explicitly: each operation
+ * releases the messages that it added listeners to when it completes (see releaseOpUUIDs() in
+ * AsyncRetrievalOperationImpl).
  */
 class ActiveRetrievalListeners {
     
@@ -39,21 +28,11 @@ class ActiveRetrievalListeners {
 
     private final ConcurrentMap<UUIDBase,ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>    activeOpListeners;
     
-    // UUIDBase-->
-    //            DHTKey-->
-    //                     List<ActiveKeyedOperationResultListener...>
-    private final Map<UUIDBase,ConcurrentMap<DHTKey,List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>>>> activeRetrievalListeners;
+    private final MessageListenerRegistry   activeRetrievalListeners;
 
-    private static final int    mapCapacity = 8; // FUTURE - use something non-static
-    private static final int    keyMapConcurrencyLevel = 2;
-    
     ActiveRetrievalListeners() {
         if (enableMultipleOpsPerMessage) {
-        	if (Libraries.useCustomGuava) {
-        		this.activeRetrievalListeners = new ConcurrentReferenceHashMap<>();
-        	} else {
-        		this.activeRetrievalListeners = Collections.synchronizedMap(new WeakHashMap<UUIDBase,ConcurrentMap<DHTKey,List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>>>>());
-        	}
+            this.activeRetrievalListeners = new MessageListenerRegistry();
             this.activeOpListeners = null;
         } else {
             this.activeRetrievalListeners = null;
@@ -62,13 +41,7 @@ class ActiveRetrievalListeners {
     }
     
     OperationUUID newOpUUID() {
-        OperationUUID   opUUID;
-        
-        opUUID = new OperationUUID();
-        if (enableMultipleOpsPerMessage) {
-            activeRetrievalListeners.put(opUUID, new ConcurrentHashMap<DHTKey,List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>>>(mapCapacity, keyMapConcurrencyLevel));
-        }
-        return opUUID;
+        return new OperationUUID();
     }
     
     /**
@@ -76,26 +49,16 @@ class ActiveRetrievalListeners {
      * @param opUUID
      * @param dhtKey
      * @param listener
-     * @return true if a new list was created for this key, false if a list already existed for this key
+     * @param owner the operation that will release opUUID
+     * @return true if this is the first listener for this key, false if a listener already existed for this key
      */
     boolean addListener(UUIDBase opUUID, DHTKey dhtKey, 
-            ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry> listener) {
+            ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry> listener, 
+            AsyncOperationImpl owner) {
         if (enableMultipleOpsPerMessage) {
-            List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>> listenerList;
-            List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>> existingList;
-            boolean newListCreated;
-            
-            listenerList = new LinkedList<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>>();
-            existingList = activeRetrievalListeners.get(opUUID).putIfAbsent(dhtKey, listenerList);
-            if (existingList != null) {
-                listenerList = existingList;
-                newListCreated = false;
-            } else {
-                newListCreated = true;
-            }
-            listenerList.add(new WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>(listener));
-            // caller should call protoMG.addKey(dhtKey) newListCreated is true
-            return newListCreated;
+            // caller should call protoMG.addKey(dhtKey) if this returns true
+            return activeRetrievalListeners.addListener(opUUID, dhtKey, listener, true, owner) 
+                        == MessageListenerTable.ADDED_NEW_KEY;
         } else {
             Object  prev;
             
@@ -110,35 +73,34 @@ class ActiveRetrievalListeners {
         }
     }
     
+    /**
+     * Release the given owner's listeners for the given message.
+     * @param opUUID
+     * @param owner
+     */
+    void release(UUIDBase opUUID, AsyncOperationImpl owner) {
+        if (enableMultipleOpsPerMessage) {
+            activeRetrievalListeners.release(opUUID, owner);
+        } else {
+            activeOpListeners.remove(opUUID);
+        }
+    }
+    
     Set<AsyncRetrievalOperationImpl> currentRetrievalSet() {
         ImmutableSet.Builder<AsyncRetrievalOperationImpl>   ops;
 
         Log.fine("currentRetrievalSet()");
         ops = ImmutableSet.builder();
         if (enableMultipleOpsPerMessage) {
-            for (ConcurrentMap<DHTKey,List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>>> map : activeRetrievalListeners.values()) {
-                Log.fine("maps: ", map);
-                // FUTURE - we can encounter concurrent modifications here
-                // think about tolerating vs. preventing
-                try {
-                    for (List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>> list : map.values()) {
-                        for (WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>> listenerRef : list) {
-                            ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>   listener;
-                            
-                            listener = listenerRef.get();
-                            Log.fine("listener: ", listener);
-                            if (listener instanceof AsyncRetrievalOperationImpl) {
-                                ops.add((AsyncRetrievalOperationImpl)listener);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    // Currently, we tolerate concurrent modification-induced exceptions
-                    // Not critical if we skip a retry. In the future, however, we should probably prevent this.
-                    if (Log.levelMet(Level.INFO)) {
-                        e.printStackTrace();
-                        Log.info("Ignoring exception during currentRetrievalSet()");
-                    }
+            List<AsyncOperationImpl>    owners;
+            
+            owners = new ArrayList<>();
+            for (MessageListenerTable table : activeRetrievalListeners.getTables()) {
+                table.getOwners(owners);
+            }
+            for (AsyncOperationImpl owner : owners) {
+                if (owner instanceof AsyncRetrievalOperationImpl) {
+                    ops.add((AsyncRetrievalOperationImpl)owner);
                 }
             }
         } else {
@@ -151,40 +113,30 @@ class ActiveRetrievalListeners {
         return ops.build();
     }
     
+    @SuppressWarnings("unchecked")
     void receivedRetrievalResponse(MessageGroup message) {
         if (enableMultipleOpsPerMessage) {
-            //long    version;
-            ConcurrentMap<DHTKey,List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>>> listenerMap;
-            
-            //version = message.getBuffers()[0].getLong(0);
-            //System.out.println("receivedRetrievalResponse version "+ version);
+            MessageListenerTable    listenerTable;
             
-            listenerMap = activeRetrievalListeners.get(message.getUUID());
-            if (listenerMap != null) {            
-                //System.out.println("listenerMap "+ listenerMap);
+            listenerTable = activeRetrievalListeners.get(message.getUUID().getMostSignificantBits(), 
+                                                         message.getUUID().getLeastSignificantBits());
+            if (listenerTable != null) {            
                 for (MessageGroupRetrievalResponseEntry entry : message.getRetrievalResponseValueKeyIterator()) {
-                    List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>> listenerList;
+                    Object  listener;
                     
-                    //System.out.println("entry:\t"+ entry);
-                    listenerList = listenerMap.get(entry);
-                    if (listenerList != null) {
-                        for (WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>> listenerRef : listenerList) {
-                            ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>   listener;
-                            
-                            listener = listenerRef.get();
-                            if (listener != null) {
-                                listener.resultReceived(entry, entry);
-                            } else {
-                                Log.info("receivedRetrievalResponse. null listenerRef.get() for entry: ", entry);
-                            }
+                    listener = listenerTable.getListener(entry.getMSL(), entry.getLSL());
+                    if (listener instanceof Object[]) {
+                        for (Object _listener : (Object[])listener) {
+                            ((ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>)_listener).resultReceived(entry, entry);
                         }
+                    } else if (listener != null) {
+                        ((ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>)listener).resultReceived(entry, entry);
                     } else {
                         Log.warning("receivedRetrievalResponse. No listener for entry: ", entry);
                     }
                 }
             } else {
-                // If we're receiving the error, then it's possible that we lost the
-                // reference that was stored in the weak map.
+                // All operations that were waiting on this message have completed
                 // FUTURE - was WARNING, think about level
                 Log.info("receivedRetrievalResponse. No listenerMap for: ", message.getUUID());
             }
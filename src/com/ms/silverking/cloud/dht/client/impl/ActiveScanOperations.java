@@ -0,0 +1,42 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ms.silverking.cloud.dht.net.MessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoScanResponseMessageGroup;
+import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.log.Log;
+
+import org.hibernate.validator.internal.util.ConcurrentReferenceHashMap;
+
+/**
+ * Tracks scan pages that are awaiting a response
+ */
+class ActiveScanOperations {
+    private final ConcurrentMap<UUIDBase,WeakReference<AsyncScanOperationImpl>>   activeOps;
+
+    ActiveScanOperations() {
+        activeOps = new ConcurrentReferenceHashMap<>();      
+    }
+    
+    public void addOp(AsyncScanOperationImpl op) {
+        activeOps.put(op.getUUID(), new WeakReference<>(op));
+    }
+    
+    public void receivedScanResponse(MessageGroup message) {
+        WeakReference<AsyncScanOperationImpl>   ref;
+        AsyncScanOperationImpl  op;
+        UUIDBase    uuid;
+        
+        uuid = new UUIDBase(ProtoScanResponseMessageGroup.getUUIDMSL(message), 
+                            ProtoScanResponseMessageGroup.getUUIDLSL(message));
+        ref = activeOps.remove(uuid);
+        op = ref != null ? ref.get() : null;
+        if (op != null) {
+            op.receivedScanResponse(message);
+        } else {
+            Log.warning("No scan for response: ", uuid);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.ms.silverking.cloud.dht.client.AsyncKeyScan;
+import com.ms.silverking.cloud.dht.client.OperationException;
+import com.ms.silverking.cloud.dht.client.ScanException;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.KeyUtil;
+import com.ms.silverking.cloud.dht.common.OpResult;
+import com.ms.silverking.cloud.dht.net.ProtoScanMessageGroup;
+
+/**
+ * Scans a namespace one page at a time. Each page covers part of a single ring region.
+ * Once a page has been consumed, the next page is requested: either the remainder of
+ * the current region, or the following region.
+ */
+class AsyncKeyScanImpl implements AsyncKeyScan {
+    private final ClientNamespace   clientNamespace;
+    private final int               batchSize;
+    private AsyncScanOperationImpl  pendingPage; // null once the scan is complete or closed
+    
+    static final int    defaultBatchSize = 1000;
+    
+    AsyncKeyScanImpl(ClientNamespace clientNamespace, int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        this.clientNamespace = clientNamespace;
+        this.batchSize = batchSize;
+        pendingPage = startPage(ProtoScanMessageGroup.minScanCoordinate, null);
+    }
+    
+    private AsyncScanOperationImpl startPage(long minCoordinate, DHTKey afterKey) {
+        ScanOperation           scanOperation;
+        AsyncScanOperationImpl  page;
+        
+        scanOperation = new ScanOperation(clientNamespace, minCoordinate, afterKey, batchSize);
+        page = new AsyncScanOperationImpl(scanOperation, clientNamespace.getContext(), 
+                clientNamespace.getAbsMillisTimeSource().absTimeMillis(), clientNamespace.getOriginator());
+        clientNamespace.getActiveScanOperations().addOp(page);
+        clientNamespace.startOperation(page, ClientNamespace.OpLWTMode.DisallowUserThreadUsage);
+        return page;
+    }
+
+    @Override
+    public synchronized List<DHTKey> nextBatch() throws ScanException {
+        while (pendingPage != null) {
+            AsyncScanOperationImpl  page;
+            List<DHTKey>            keys;
+            
+            page = pendingPage;
+            waitForPage(page);
+            keys = page.getKeys();
+            if (keys.size() >= batchSize) {
+                DHTKey  lastKey;
+                
+                // more keys may remain in this region
+                lastKey = keys.get(keys.size() - 1);
+                pendingPage = startPage(KeyUtil.keyToCoordinate(lastKey), lastKey);
+            } else if (page.getMaxCoordinate() < ProtoScanMessageGroup.maxScanCoordinate) {
+                pendingPage = startPage(page.getMaxCoordinate() + 1, null);
+            } else {
+                pendingPage = null;
+            }
+            if (!keys.isEmpty()) {
+                return keys;
+            }
+        }
+        return null;
+    }
+    
+    private void waitForPage(AsyncScanOperationImpl page) throws ScanException {
+        boolean complete;
+        
+        try {
+            complete = page.waitForCompletion(page.getScanOperation().getTimeoutController().getMaxRelativeTimeoutMillis(page), 
+                                              TimeUnit.MILLISECONDS);
+        } catch (ScanException se) {
+            pendingPage = null;
+            throw se;
+        } catch (OperationException oe) {
+            pendingPage = null;
+            throw new ScanExceptionImpl(oe);
+        }
+        if (!complete) {
+            pendingPage = null;
+            page.setResult(OpResult.TIMEOUT);
+            throw new ScanExceptionImpl("Scan timed out");
+        }
+    }
+
+    @Override
+    public synchronized boolean batchReady() {
+        return pendingPage == null || pendingPage.poll();
+    }
+
+    @Override
+    public synchronized void close() {
+        pendingPage = null;
+    }
+}
@@ -46,6 +46,7 @@ abstract class AsyncOperationImpl implements AsyncOperation {
     private volatile boolean   sent;    // a hint as to whether or not this operation has been sent before
                                         // used to optimize the first message creation
     protected OpTimeoutState  timeoutState;
+    private volatile OpTimeoutWheel.Timeout attemptTimeout; // only used when the OpTimeoutWheel is enabled
     
 	public AsyncOperationImpl(Operation operation, long curTimeMillis, byte[] originator) {
         OpTimeoutController   timeoutController;
@@ -84,6 +85,14 @@ abstract class AsyncOperationImpl implements AsyncOperation {
         timeoutState.newAttempt(curTimeMillis);
     }
     
+    long getAttemptDeadlineMillis() {
+        return timeoutState.getAttemptDeadlineMillis();
+    }
+    
+    void setAttemptTimeout(OpTimeoutWheel.Timeout attemptTimeout) {
+        this.attemptTimeout = attemptTimeout;
+    }
+    
 	public ClientOpType getType() {
 		return operation.getOpType();
 	}
@@ -174,6 +183,9 @@ abstract class AsyncOperationImpl implements AsyncOperation {
             if (_listeners != null) {
             	notificationWorker.fiterForUpdates(this, _listeners, getState());
             }
+            if (attemptTimeout != null) {
+                attemptTimeout.cancel();
+            }
             cleanup();
         }
     }       
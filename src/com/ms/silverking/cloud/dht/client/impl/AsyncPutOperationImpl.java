@@ -1,13 +1,16 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.ms.silverking.cloud.dht.NonExistenceResponse;
@@ -31,9 +34,12 @@ import com.ms.silverking.cloud.dht.net.MessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoPutMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoPutMessageGroup.ValueAdditionResult;
+import com.ms.silverking.cloud.dht.net.PutValuePreparer;
+import com.ms.silverking.cloud.dht.net.PutValuePreparer.PreparedValue;
 import com.ms.silverking.compression.Compressor;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.util.ArrayUtil;
+import com.ms.silverking.util.PropertiesHelper;
 
 /**
  * An active PutOperation
@@ -47,25 +53,73 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
 	private final long                 version;
     private final AtomicLong           resolvedVersion;
     private final VersionProvider		versionProvider;
+    private final byte[]                creator;
 	// FUTURE - think about whether we want the double map
 	// is the overhead worth the savings in crypto op reduction?
     //protected final ConcurrentMap<K,OpResult>  results; 
     private final ConcurrentMap<DHTKey,OpResult>   opResults;
     private final ActivePutListeners    activePutListeners;
     
-    private final List<OperationUUID>   opUUIDs; // holds references to ops to prevent GC
+    private final List<OperationUUID>   opUUIDs; // messages this operation has added listeners to
+    private boolean opUUIDsReleased; // protected by opUUIDs
     private List<SegmentedPutValue>     segmentedPutValues; // hold references to prevent GC
+    // values prepared in valuePreparationPool; null if none, and after the first send
+    private Map<K,ForkJoinTask<PreparedValue>>	preparedValues;
     	
 	private static final boolean   debug = false;
     private static final boolean   verboseToString = true;
+    
+    /*
+     * Values at least valuePreparationMinBytes in size may be serialized, compressed, encrypted, and
+     * checksummed in a dedicated ForkJoinPool rather than by the sending thread. Preparation starts
+     * when the operation is created so that it overlaps with the sending of preceding operations.
+     * Prepared values are added to message groups in key order, so message contents are unchanged.
+     * Disabled when valuePreparationThreads is 0.
+     */
+    static final String	valuePreparationThreadsProperty = AsyncPutOperationImpl.class.getPackage().getName() + ".ValuePreparationThreads";
+    static final int	defaultValuePreparationThreads = 0;
+    static final String	valuePreparationMinBytesProperty = AsyncPutOperationImpl.class.getPackage().getName() + ".ValuePreparationMinBytes";
+    static final int	defaultValuePreparationMinBytes = 64 * 1024;
+    private static final ForkJoinPool	valuePreparationPool;
+    private static final int	valuePreparationMinBytes;
+    
+    static {
+    	int	valuePreparationThreads;
+    	
+    	valuePreparationThreads = PropertiesHelper.systemHelper.getInt(valuePreparationThreadsProperty, defaultValuePreparationThreads);
+    	valuePreparationMinBytes = PropertiesHelper.systemHelper.getInt(valuePreparationMinBytesProperty, defaultValuePreparationMinBytes);
+    	if (valuePreparationThreads > 0) {
+    		valuePreparationPool = new ForkJoinPool(valuePreparationThreads);
+    		Log.warningf("%s %d %s %d", valuePreparationThreadsProperty, valuePreparationThreads, 
+    		             valuePreparationMinBytesProperty, valuePreparationMinBytes);
+    	} else {
+    		valuePreparationPool = null;
+    	}
+    }
 	
 	AsyncPutOperationImpl(PutOperation<K,V> putOperation, 
 	                          ClientNamespace namespace,
 	                          NamespacePerspectiveOptionsImpl<K,V> nspoImpl,
 							  long curTimeMillis,
 							  byte[] originator,
-							  VersionProvider versionProvider) { 
+							  VersionProvider versionProvider) {
+		this(putOperation, namespace, nspoImpl, curTimeMillis, originator, versionProvider, 
+		     DHTClient.getValueCreator().getBytes());
+	}
+	
+	/**
+	 * @param creator the creator stored with all values. MetaDataConstants.segmentationBytes 
+	 * indicates that the values are segmented value indexes.
+	 */
+	AsyncPutOperationImpl(PutOperation<K,V> putOperation, 
+	                          ClientNamespace namespace,
+	                          NamespacePerspectiveOptionsImpl<K,V> nspoImpl,
+							  long curTimeMillis,
+							  byte[] originator,
+							  VersionProvider versionProvider,
+							  byte[] creator) { 
 		super(putOperation, namespace, nspoImpl, curTimeMillis, originator);
+		this.creator = creator;
 		this.putOperation = putOperation;
 		if (putOperation.size() == 0) {
             setResult(OpResult.SUCCEEDED);
@@ -75,7 +129,10 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
 		this.versionProvider = versionProvider;
 		this.opResults = new ConcurrentHashMap<>();
 		this.activePutListeners = namespace.getActivePutListeners();
-		opUUIDs = new LinkedList<>();
+		opUUIDs = new ArrayList<>();
+		if (valuePreparationPool != null) {
+			preparedValues = prepareValues();
+		}
 		
 		//Log.warning(namespace.getOptions().getVersionMode() +" "+ versionProvider 
 		//		+" "+ (versionProvider != null ? versionProvider.getVersion() : ""));
@@ -93,7 +150,7 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
 	
 	@Override
     ProtoMessageGroup createProtoMG(MessageEstimate estimate) {
-        return createProtoPutMG((PutMessageEstimate)estimate, DHTClient.getValueCreator().getBytes());
+        return createProtoPutMG((PutMessageEstimate)estimate, creator);
     }
 	
 	PutOptions putOptions() {
@@ -131,7 +188,7 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
 	}
     
     ProtoPutMessageGroup<V> createProtoPutMG(PutMessageEstimate estimate) {
-        return createProtoPutMG(estimate, DHTClient.getValueCreator().getBytes());
+        return createProtoPutMG(estimate, creator);
     }
     
 	ProtoPutMessageGroup<V> createProtoPutMG(PutMessageEstimate estimate, byte[] creator) {
@@ -159,6 +216,49 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
 	
 	//private PutMessageEstimate initialEstimate;
 	
+    /**
+     * Submit preparation of all sufficiently large values to the valuePreparationPool.
+     * @return a map of prepared values, or null if no values are prepared
+     */
+    private Map<K,ForkJoinTask<PreparedValue>> prepareValues() {
+    	PutValuePreparer<V>	valuePreparer;
+    	Map<K,ForkJoinTask<PreparedValue>>	_preparedValues;
+    	
+    	valuePreparer = new PutValuePreparer<>(nspoImpl.getValueSerializer(), 
+    	                                       context.contextAsLong(),
+    	                                       putOperation.putOptions().getCompression(), 
+    	                                       putOperation.putOptions().getChecksumType(), 
+    	                                       putOperation.putOptions().getChecksumCompressedValues(), 
+    	                                       nspoImpl.getNSPOptions().getEncrypterDecrypter());
+    	if (!valuePreparer.preparationRequired()) {
+    		return null;
+    	}
+    	_preparedValues = null;
+    	for (K key : getKeys()) {
+    		V	value;
+    		int	estimatedValueSize;
+    		
+    		value = putOperation.getValue(key);
+    		estimatedValueSize = nspoImpl.getValueSerializer().estimateSerializedSize(value);
+    		// values that will be segmented are prepared by segment()
+    		if (estimatedValueSize >= valuePreparationMinBytes 
+    				&& estimatedValueSize <= SegmentationUtil.maxValueSegmentSize) {
+    			if (_preparedValues == null) {
+    				_preparedValues = new HashMap<>();
+    			}
+    			_preparedValues.put(key, valuePreparationPool.submit(() -> valuePreparer.prepare(value, true)));
+    		}
+    	}
+    	return _preparedValues;
+    }
+    
+    private PreparedValue takePreparedValue(Map<K,ForkJoinTask<PreparedValue>> _preparedValues, K key) {
+    	ForkJoinTask<PreparedValue>	preparedValue;
+    	
+    	preparedValue = _preparedValues.remove(key);
+    	return preparedValue != null ? preparedValue.join() : null;
+    }
+	
 	@Override
     public void addToEstimate(MessageEstimate estimate) {
 	    PutMessageEstimate putMessageEstimate;
@@ -191,6 +291,7 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
     private ProtoPutMessageGroup<V> createMessagesForIncomplete(ProtoPutMessageGroup<V> protoPutMG, List<MessageGroup> messageGroups, 
             PutMessageEstimate estimate) {
         int oldSegmentsCreated;
+        Map<K,ForkJoinTask<PreparedValue>>	_preparedValues;
         // FUTURE - MAKE SURE THAT THERE IS SOME WORK TO BE DONE
         // now fill in keys and values
         
@@ -210,6 +311,9 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         if (debug) {
             System.out.printf("createMessagesForIncomplete() %d\n", getKeys().size());
         }
+        // prepared values are only used for the first send; retries prepare values inline
+        _preparedValues = preparedValues;
+        preparedValues = null;
         
         for (K key : getKeys()) {            
             if (debug) {
@@ -219,20 +323,24 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
             if (!getSent() || OpResult.isIncompleteOrNull(opResults.get(keyToDHTKey.get(key)))) {
                 DHTKey  dhtKey;
                 V       value;
+                PreparedValue   preparedValue;
                 ValueAdditionResult additionResult;
                 boolean listenerInserted;
                 
                 dhtKey = keyToDHTKey.get(key);
                 value = putOperation.getValue(key);
+                preparedValue = _preparedValues != null ? takePreparedValue(_preparedValues, key) : null;
                 
-                listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, this);
+                listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, this, this);
                 if (listenerInserted) {
                     if (debug) {
                         Log.warning(String.format("add1\t"+ dhtKey +"\t"+ resolvedVersion +"\t"+ protoPutMG.getVersion() 
                                 +"\tuuid "+ protoPutMG.getUUID()));
                     }
-                    additionResult = protoPutMG.addValue(dhtKey, value);
+                    additionResult = protoPutMG.addValue(dhtKey, value, preparedValue);
                     if (additionResult == ValueAdditionResult.MessageGroupFull) {
+                        // the listener added above must still be released
+                        addOpUUID((OperationUUID)protoPutMG.getUUID());
                         // If we couldn't add this key/value to the current ProtoPutMessageGroup, then we must
                         // create a new message group. Save the current group to the list of groups before that.
                         // First update the message estimate to remove keys/bytes already added.
@@ -241,19 +349,20 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
                         assert estimate.getNumKeys() != 0;
                         protoPutMG.addToMessageGroupList(messageGroups);
                         protoPutMG = createProtoPutMG(estimate);
-                        listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, this);
+                        listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, this, this);
                         if (!listenerInserted) {
                             throw new RuntimeException("Can't insert listener to new protoPutMG");
                         }
-                        opUUIDs.add((OperationUUID)protoPutMG.getUUID()); // hold a reference to the uuid to prevent GC
-                        additionResult = protoPutMG.addValue(dhtKey, value);
+                        addOpUUID((OperationUUID)protoPutMG.getUUID());
+                        additionResult = protoPutMG.addValue(dhtKey, value, preparedValue);
                         if (additionResult != ValueAdditionResult.Added) {
                             throw new RuntimeException("Can't add to new protoPutMG");
                         }
                     } else if (additionResult == ValueAdditionResult.ValueNeedsSegmentation) {
+                        // the listener added above must still be released
+                        addOpUUID((OperationUUID)protoPutMG.getUUID());
                         segment(key, messageGroups);
                         continue;
-                        // FIXME - call continue? how to handle the opUUIDs.add() below?
                     }
                 } else {
                     // The existing protoPutMG already had an entry for the given key.
@@ -262,21 +371,21 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
                     estimate.addBytes(-protoPutMG.currentValueBytes());
                     assert estimate.getNumKeys() != 0;
                     protoPutMG.addToMessageGroupList(messageGroups);
-                    protoPutMG = createProtoPutMG(estimate, DHTClient.getValueCreator().getBytes());
-                    opUUIDs.add((OperationUUID)protoPutMG.getUUID()); // hold a reference to the uuid to prevent GC
-                    listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, this);
+                    protoPutMG = createProtoPutMG(estimate, creator);
+                    listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, this, this);
                     if (!listenerInserted) {
                         throw new RuntimeException("Can't insert listener to new protoPutMG");
                     }
+                    addOpUUID((OperationUUID)protoPutMG.getUUID());
                     if (debug) {
                         System.out.println("add2\t"+ dhtKey +"\t"+ resolvedVersion +"\t"+ protoPutMG.getVersion());
                     }
-                    additionResult = protoPutMG.addValue(dhtKey, value);
+                    additionResult = protoPutMG.addValue(dhtKey, value, preparedValue);
                     if (additionResult != ValueAdditionResult.Added) {
                         throw new RuntimeException("Can't add to new protoPutMG");
                     }
                 }
-                opUUIDs.add((OperationUUID)protoPutMG.getUUID()); // hold a reference to the uuid to prevent GC
+                addOpUUID((OperationUUID)protoPutMG.getUUID());
                 //protoPutMG.addResultListener(dhtKey, this);
             }
         }
@@ -327,7 +436,7 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
             Compressor  compressor;
             byte[]      compressedValue;
             
-            compressor = CodecProvider.getCompressor(compression);
+            compressor = CodecProvider.getCompressor(compression, context.contextAsLong());
             try {
                 compressedValue = compressor.compress(buf.array(), buf.position(), buf.remaining());
                 buf = ByteBuffer.wrap(compressedValue);
@@ -382,11 +491,11 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
             byte[]  segmentChecksum;
             
             protoPutMG = createProtoPutMG(new PutMessageEstimate(1, subBufs[i].limit()));
-            opUUIDs.add((OperationUUID)protoPutMG.getUUID()); // hold a reference to the uuid to prevent GC            
-            listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), subKeys[i], segmentedPutValue);
+            listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), subKeys[i], segmentedPutValue, this);
             if (!listenerInserted) {
                 throw new RuntimeException("Panic: Unable to insert listener into dedicated segment protoPutMG");
             }
+            addOpUUID((OperationUUID)protoPutMG.getUUID());
             if (debugSegmentation) {
                 System.out.printf("segmentation listener: %s\t%s\t%s\n", 
                 protoPutMG.getUUID(), subKeys[i], subBufs[i]);
@@ -403,11 +512,11 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         // Now add the index key/value
         // indicate segmentation by storing segmentationBytes in the creator field 
         protoPutMG = createProtoPutMG(new PutMessageEstimate(1, SegmentationUtil.segmentedValueBufferLength), MetaDataConstants.segmentationBytes);
-        opUUIDs.add((OperationUUID)protoPutMG.getUUID()); // hold a reference to the uuid to prevent GC
-        listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, segmentedPutValue);
+        listenerInserted = activePutListeners.addListener(protoPutMG.getUUID(), dhtKey, segmentedPutValue, this);
         if (!listenerInserted) {
             throw new RuntimeException("Panic: Unable to add index key/value into dedicated protoPutMG");
         }
+        addOpUUID((OperationUUID)protoPutMG.getUUID());
         if (debug) {
             System.out.printf("added index listener %s %s\n", protoPutMG.getUUID(), new SimpleKey(dhtKey));
         }
@@ -496,6 +605,47 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         }
     }
 
+    @Override
+    protected void cleanup() {
+        releaseOpUUIDs();
+    }
+    
+    /**
+     * Record that this operation has added a listener to the given message. Must be called after
+     * each call to activePutListeners.addListener() that adds a listener.
+     */
+    private void addOpUUID(OperationUUID opUUID) {
+        boolean released;
+        
+        synchronized (opUUIDs) {
+            // listeners are added to a message consecutively; only record each message once
+            if (opUUIDs.isEmpty() || opUUIDs.get(opUUIDs.size() - 1) != opUUID) {
+                opUUIDs.add(opUUID);
+            }
+            released = opUUIDsReleased;
+        }
+        if (released) {
+            // a listener was added after this operation completed
+            activePutListeners.release(opUUID, this);
+        }
+    }
+    
+    /**
+     * Release all listeners added by this operation
+     */
+    private void releaseOpUUIDs() {
+        List<OperationUUID> _opUUIDs;
+        
+        synchronized (opUUIDs) {
+            opUUIDsReleased = true;
+            _opUUIDs = new ArrayList<>(opUUIDs);
+            opUUIDs.clear();
+        }
+        for (OperationUUID opUUID : _opUUIDs) {
+            activePutListeners.release(opUUID, this);
+        }
+    }
+
     @Override
     public void resultReceived(DHTKey key, OpResult result) {
         if (debug) {
@@ -522,13 +672,13 @@ class AsyncPutOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         */
         /**/
         for (OperationUUID opUUID : opUUIDs) {
-            ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>>   keyMap;
+            Map<DHTKey,ActiveKeyedOperationResultListener<OpResult>>   keyMap;
             
             System.out.println("opUUID:\t"+ opUUID);
             //keyMap = activePutListeners.get(opUUID);
             keyMap = activePutListeners.getKeyMap(opUUID);
             for (DHTKey key : keyMap.keySet()) {
-                if (keyMap.get(key).get() == this) {
+                if (keyMap.get(key) == this) {
                     OpResult    result;
                     
                     result = opResults.get(key);
@@ -1,11 +1,9 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -47,13 +45,17 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
     private final VersionConstraint     resolvedVC;
     private final OpSender              retrievalSender; // for requesting segments or retries
     
-    private final List<OperationUUID>   opUUIDs;
+    private final List<OperationUUID>   opUUIDs; // messages this operation has added listeners to
+    private boolean opUUIDsReleased; // protected by opUUIDs
     private List<SegmentedRetrievalValue<K,V>>    segmentedRetrievalValues;
     //private final AtomicReference<Set<DHTKey>> latestStoredReturnedRef;
     private final ConcurrentSkipListSet<DHTKey> latestStoredReturned;
     
     private final ConcurrentMap<K, RetrievalResultBase<V>> results;
     private final ActiveRetrievalListeners  activeRetrievalListeners;
+    private final NearCache             nearCache; // non-null if results of this operation may be cached
+    private final int                   nearCacheHits;
+    private final boolean               reassembleSegments;
     
     private static final int    opConcurrencyLevel = 4;
     private static final int    capacityFactor = 2;
@@ -67,11 +69,28 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
     
     public AsyncRetrievalOperationImpl(RetrievalOperation<K> retrievalOperation, ClientNamespace namespace,
             NamespacePerspectiveOptionsImpl<K, V> nspoImpl, long curTime, byte[] originator) {
+        this(retrievalOperation, namespace, nspoImpl, curTime, originator, true);
+    }
+    
+    /**
+     * @param reassembleSegments if false, segmented values are not reassembled. The result for a 
+     * segmented value is its index as written by the segmenting put.
+     */
+    AsyncRetrievalOperationImpl(RetrievalOperation<K> retrievalOperation, ClientNamespace namespace,
+            NamespacePerspectiveOptionsImpl<K, V> nspoImpl, long curTime, byte[] originator, 
+            boolean reassembleSegments) {
         super(retrievalOperation, namespace, nspoImpl, curTime, originator);
         this.retrievalOperation = retrievalOperation;
+        this.reassembleSegments = reassembleSegments;
         this.retrievalSender = namespace.getRetrievalSender();
         
         activeRetrievalListeners = namespace.getActiveRetrievalListeners();
+        // must be set before checkForCompletion() as completion releases opUUIDs
+        opUUIDs = new ArrayList<>();
+        opUUIDsReleased = false;
+        //latestStoredReturnedRef = new AtomicReference<>();
+        // FUTURE - avoid eager construction?
+        latestStoredReturned = new ConcurrentSkipListSet<>();
         
         int retrievalOperationSize;
         
@@ -86,19 +105,65 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         } else {
             resolvedVC = retrievalOperation.retrievalOptions().getVersionConstraint();
         }
-        if (retrievalOperation.size() == 0) {
+        if (namespace.getNearCache() != null && NearCache.canCache(retrievalOperation.retrievalOptions())) {
+            nearCache = namespace.getNearCache();
+            if (NearCache.canAnswer(retrievalOperation.retrievalOptions())) {
+                nearCacheHits = retrieveFromNearCache();
+            } else {
+                nearCacheHits = 0;
+            }
+        } else {
+            nearCache = null;
+            nearCacheHits = 0;
+        }
+        if (retrievalOperation.size() == 0 || (nearCacheHits > 0 && nearCacheHits >= size)) {
             checkForCompletion();
         }
-        opUUIDs = new LinkedList<>();
-        //latestStoredReturnedRef = new AtomicReference<>();
-        // FUTURE - avoid eager construction?
-        latestStoredReturned = new ConcurrentSkipListSet<>();
     }
 
     RetrievalOptions retrievalOptions() {
         return retrievalOperation.retrievalOptions();
     }
     
+    /**
+     * Set results for all keys found in the near cache
+     * @return the number of keys found
+     */
+    private int retrieveFromNearCache() {
+        int hits;
+        
+        hits = 0;
+        for (K key : getKeys()) {
+            ByteBuffer  storedValue;
+            
+            storedValue = nearCache.get(keyToDHTKey.get(key));
+            if (storedValue != null) {
+                RawRetrievalResult  rawResult;
+                
+                rawResult = new RawRetrievalResult(retrievalOperation.retrievalOptions().getRetrievalType());
+                try {
+                    rawResult.setStoredValue(storedValue, false, 
+                                            !retrievalOperation.retrievalOptions().getReturnInvalidations(), 
+                                            nspoImpl.getNSPOptions().getEncrypterDecrypter());
+                } catch (CorruptValueException cve) {
+                    // the cached value was verified when it was received; retrieve it from the server
+                    continue;
+                }
+                results.put(key, new RetrievalResult<>(rawResult, nspoImpl.getValueDeserializer()));
+                resultsReceived.incrementAndGet();
+                hits++;
+            }
+        }
+        return hits;
+    }
+    
+    /**
+     * @return true if this operation was completed entirely from the near cache, and need not be sent
+     */
+    boolean completedFromNearCache() {
+        return nearCacheHits > 0 && nearCacheHits >= size;
+    }
+    
     @Override 
 	protected NonExistenceResponse getNonExistenceResponse() {
     	return retrievalOperation.retrievalOptions().getNonExistenceResponse();
@@ -189,11 +254,48 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
     
     @Override
     protected void cleanup() {
+        releaseOpUUIDs();
+    }
+    
+    /**
+     * Record that this operation has added a listener to the given message. Must be called after
+     * each call to activeRetrievalListeners.addListener().
+     */
+    private void addOpUUID(OperationUUID opUUID) {
+        boolean released;
+        
+        synchronized (opUUIDs) {
+            // listeners are added to a message consecutively; only record each message once
+            if (opUUIDs.isEmpty() || opUUIDs.get(opUUIDs.size() - 1) != opUUID) {
+                opUUIDs.add(opUUID);
+            }
+            released = opUUIDsReleased;
+        }
+        if (released) {
+            // a listener was added after this operation completed
+            activeRetrievalListeners.release(opUUID, this);
+        }
+    }
+    
+    /**
+     * Release all listeners added by this operation
+     */
+    private void releaseOpUUIDs() {
+        List<OperationUUID> _opUUIDs;
+        
+        synchronized (opUUIDs) {
+            opUUIDsReleased = true;
+            _opUUIDs = new ArrayList<>(opUUIDs);
+            opUUIDs.clear();
+        }
+        for (OperationUUID opUUID : _opUUIDs) {
+            activeRetrievalListeners.release(opUUID, this);
+        }
     }
 
     @Override
     void addToEstimate(MessageEstimate estimate) {
-        ((KeyedMessageEstimate)estimate).addKeys(size);
+        ((KeyedMessageEstimate)estimate).addKeys(size - nearCacheHits);
     }
 
     @Override
@@ -250,15 +352,19 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         
         // now fill in keys and values
         for (K key : getKeys()) {
+            if (nearCacheHits > 0 && !getSent() && results.containsKey(key)) {
+                // answered from the near cache
+                continue;
+            }
             if (!getSent() || OpResult.isIncompleteOrNull(getOpResult(key))) {
                 DHTKey  dhtKey;
 
                 dhtKey = keyToDHTKey.get(key);
                 //System.out.printf("%d\t%d %d\n", keysRemaining, pmgRetrievals, maxRetrievalsPerMessageGroup);
-                if (activeRetrievalListeners.addListener(protoMG.getUUID(), dhtKey, this)) {
+                if (activeRetrievalListeners.addListener(protoMG.getUUID(), dhtKey, this, this)) {
                     protoMG.addKey(dhtKey);
                 }                
-                opUUIDs.add((OperationUUID)protoMG.getUUID()); // hold a reference to the uuid to prevent GC
+                addOpUUID((OperationUUID)protoMG.getUUID());
                 
                 ++pmgRetrievals;
                 --keysRemaining;
@@ -398,7 +504,7 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
                 System.out.printf("SEGMENTED RESULT\n");
             }
             buf = rawResult.getValue();
-            if (retrievalOperation.retrievalOptions().getRetrievalType().hasValue()) {
+            if (retrievalOperation.retrievalOptions().getRetrievalType().hasValue() && reassembleSegments) {
                 DHTKey[]    segmentKeys;
                 int         numSegments;
      
@@ -414,22 +520,23 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
                     
                 //not using below since the internal checksum should handle this
                 //if (SegmentationUtil.checksumSegmentMetaDataBuffer(buf, nspoImpl.getNSPOptions().getChecksumType())) {
-                    setComplete = false;
                     storedLength = SegmentationUtil.getStoredLength(buf);
                     if (storedLength < 0) {
-                        System.out.println(StringUtil.byteBufferToHexString(buf));
-                        System.out.println(SegmentationUtil.getMetaData(rawResult, buf));
-                        System.exit(-1);
-                        numSegments = 1;
+                        // streamed values that exceed the maximum array size can only be streamed
+                        Log.warning("Segmented value too large for retrieval; requires a streaming get: ", dhtKey);
+                        setComplete = true;
+                        rawResult.setOpResult(OpResult.ERROR, true);
+                        opResult = OpResult.ERROR;
                     } else {
+                        setComplete = false;
                         numSegments = SegmentationUtil.getNumSegments(storedLength, SegmentationUtil.maxValueSegmentSize);
+                        segmentsCreated += numSegments;
+                        if (debugSegmentation) {
+                            System.out.printf("NUM SEGMENTS\t%d\n", numSegments);
+                        }
+                        segmentKeys = keyCreator.createSubKeys(dhtKey, numSegments);
+                        retrieveSegments(dhtKey, segmentKeys, SegmentationUtil.getMetaData(rawResult, buf));
                     }
-                    segmentsCreated += numSegments;
-                    if (debugSegmentation) {
-                        System.out.printf("NUM SEGMENTS\t%d\n", numSegments);
-                    }
-                    segmentKeys = keyCreator.createSubKeys(dhtKey, numSegments);
-                    retrieveSegments(dhtKey, segmentKeys, SegmentationUtil.getMetaData(rawResult, buf));
                 } else {
                     setComplete = true;
                     rawResult.setOpResult(OpResult.CORRUPT, true);
@@ -458,6 +565,9 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
             newResult = new RetrievalResult<>(rawResult, nspoImpl.getValueDeserializer());
             prev = results.putIfAbsent(dhtKeyToKey.get(dhtKey), newResult);
             if (prev == null) {
+                if (nearCache != null && rawResult.getOpResult() == OpResult.SUCCEEDED && !segmented) {
+                    nearCache.put(dhtKey, entry.getValue());
+                }
             	if (resultsReceived.incrementAndGet() >= size) {
 	                checkForCompletion();
 	                // FUTURE - this doesn't work for multi valued since we don't know how many we are getting...
@@ -524,16 +634,15 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         for (DHTKey segmentKey: segmentKeys) {
             ProtoRetrievalMessageGroup  protoRetrievalMG;
             boolean listenerInserted;
-            List<WeakReference<ActiveKeyedOperationResultListener<MessageGroupRetrievalResponseEntry>>> listeners;
             
             protoRetrievalMG = createProtoRetrievalMG(new KeyedMessageEstimate(1), false);
-            listenerInserted = activeRetrievalListeners.addListener(protoRetrievalMG.getUUID(), segmentKey, segmentedRetrievalValue);
+            listenerInserted = activeRetrievalListeners.addListener(protoRetrievalMG.getUUID(), segmentKey, segmentedRetrievalValue, this);
             if (!listenerInserted) {
                 throw new RuntimeException("Duplicate listener insertion");
             }
             protoRetrievalMG.addKey(segmentKey);
             protoRetrievalMG.addToMessageGroupList(messageGroups);
-            opUUIDs.add((OperationUUID)protoRetrievalMG.getUUID()); // hold a reference to the uuid to prevent GC
+            addOpUUID((OperationUUID)protoRetrievalMG.getUUID());
             segmentedRetrievalValues.add(segmentedRetrievalValue);
         }
         for (MessageGroup messageGroup : messageGroups) {
@@ -546,12 +655,12 @@ public class AsyncRetrievalOperationImpl<K,V> extends AsyncKVOperationImpl<K,V>
         boolean listenerInserted;
         
         protoRetrievalMG = createProtoRetrievalMG(new KeyedMessageEstimate(1), true);
-        listenerInserted = activeRetrievalListeners.addListener(protoRetrievalMG.getUUID(), key, this);
+        listenerInserted = activeRetrievalListeners.addListener(protoRetrievalMG.getUUID(), key, this, this);
         if (!listenerInserted) {
             throw new RuntimeException("Duplicate listener insertion");
         }
         protoRetrievalMG.addKey(key);
-        opUUIDs.add((OperationUUID)protoRetrievalMG.getUUID()); // hold a reference to the uuid to prevent GC
+        addOpUUID((OperationUUID)protoRetrievalMG.getUUID());
         
         retrievalSender.send(protoRetrievalMG.toMessageGroup());
     }
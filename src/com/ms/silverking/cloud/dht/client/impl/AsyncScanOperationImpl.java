@@ -0,0 +1,112 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.List;
+
+import com.ms.silverking.cloud.dht.NonExistenceResponse;
+import com.ms.silverking.cloud.dht.client.OperationException;
+import com.ms.silverking.cloud.dht.common.Context;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.OpResult;
+import com.ms.silverking.cloud.dht.net.ForwardingMode;
+import com.ms.silverking.cloud.dht.net.MessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoMessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoScanMessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoScanResponseMessageGroup;
+
+/**
+ * A single page of a key scan.
+ */
+class AsyncScanOperationImpl extends AsyncNamespaceOperationImpl {
+    private final ScanOperation scanOperation;
+    private volatile List<DHTKey>   keys;
+    private volatile long           maxCoordinate;
+    
+    private static final int    deadlineRelativeMillis = 2 * 60 * 1000;
+
+    AsyncScanOperationImpl(ScanOperation scanOperation, Context context, long curTime, byte[] originator) {
+        super(scanOperation, context, curTime, originator);
+        this.scanOperation = scanOperation;
+    }
+    
+    @Override 
+    protected NonExistenceResponse getNonExistenceResponse() {
+        return null;
+    }
+
+    @Override
+    public void waitForCompletion() throws OperationException {
+        super._waitForCompletion();
+    }
+    
+    @Override
+    protected void throwFailedException() throws OperationException {
+        throw new ScanExceptionImpl(getFailureCause().toString());
+    }
+
+    @Override
+    protected int opWorkItems() {
+        return 1;
+    }
+    
+    void receivedScanResponse(MessageGroup message) {
+        OpResult    result;
+        
+        result = ProtoScanResponseMessageGroup.getResult(message);
+        if (result == OpResult.SUCCEEDED) {
+            keys = ProtoScanResponseMessageGroup.getKeys(message);
+            maxCoordinate = ProtoScanResponseMessageGroup.getMaxCoordinate(message);
+        }
+        setResult(result);
+    }
+    
+    ScanOperation getScanOperation() {
+        return scanOperation;
+    }
+    
+    /**
+     * @return keys returned by this page; only valid once this operation has succeeded
+     */
+    List<DHTKey> getKeys() {
+        return keys;
+    }
+    
+    /**
+     * @return the maximum coordinate covered by this page; only valid once this operation has succeeded
+     */
+    long getMaxCoordinate() {
+        return maxCoordinate;
+    }
+
+    @Override
+    void addToEstimate(MessageEstimate estimate) {
+    }
+
+    @Override
+    MessageEstimate createMessageEstimate() {
+        return null;
+    }
+
+    @Override
+    ProtoMessageGroup createProtoMG(MessageEstimate estimate) {
+        return new ProtoScanMessageGroup(operation.getUUID(), context.contextAsLong(), 
+                    scanOperation.getMinCoordinate(), ProtoScanMessageGroup.maxScanCoordinate, 
+                    scanOperation.getAfterKey(), scanOperation.getMaxKeys(), originator, 
+                    deadlineRelativeMillis, ForwardingMode.FORWARD);
+    }
+
+    @Override
+    ProtoMessageGroup createMessagesForIncomplete(ProtoMessageGroup protoMG, List<MessageGroup> messageGroups,
+            MessageEstimate estimate) {
+        ((ProtoScanMessageGroup)protoMG).setNonEmpty();
+        protoMG.addToMessageGroupList(messageGroups);
+        return createProtoMG(estimate);
+    }
+    
+    /**
+     * Each page is sent in its own message
+     */
+    @Override
+    public boolean canBeGroupedWith(AsyncOperationImpl asyncOperationImpl) {
+        return false;
+    }
+}
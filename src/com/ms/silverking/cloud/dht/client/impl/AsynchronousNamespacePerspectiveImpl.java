@@ -13,6 +13,7 @@ import com.ms.silverking.cloud.dht.PutOptions;
 import com.ms.silverking.cloud.dht.RetrievalOptions;
 import com.ms.silverking.cloud.dht.WaitOptions;
 import com.ms.silverking.cloud.dht.client.AsyncInvalidation;
+import com.ms.silverking.cloud.dht.client.AsyncKeyScan;
 import com.ms.silverking.cloud.dht.client.AsyncOperation;
 import com.ms.silverking.cloud.dht.client.AsyncPut;
 import com.ms.silverking.cloud.dht.client.AsyncRetrieval;
@@ -96,6 +97,18 @@ class AsynchronousNamespacePerspectiveImpl<K,V> extends BaseNamespacePerspective
 		return (AsyncSingleValueRetrieval<K,V>)waitFor(key, nspoImpl.getDefaultWaitOptions());
 	}
 
+	// scans
+	
+	@Override
+	public AsyncKeyScan scanKeys(int batchSize) {
+		return new AsyncKeyScanImpl(clientNamespace, batchSize);
+	}
+	
+	@Override
+	public AsyncKeyScan scanKeys() {
+		return scanKeys(AsyncKeyScanImpl.defaultBatchSize);
+	}
+
 	// puts
 	
 	@Override
@@ -101,7 +101,9 @@ class BaseNamespacePerspectiveImpl<K, V> implements BaseNamespacePerspective<K,V
                                             clientNamespace, nspoImpl, 
                                             clientNamespace.getAbsMillisTimeSource().absTimeMillis(),
                                             clientNamespace.getOriginator());
-        clientNamespace.startOperation(opImpl, opLWTMode);
+        if (!opImpl.completedFromNearCache()) {
+            clientNamespace.startOperation(opImpl, opLWTMode);
+        }
         return opImpl;
 	}
 
@@ -43,6 +43,7 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
     private final SerializationRegistry serializationRegistry;
     private final Namespace         parent;
     private final NamespaceLinkMeta nsLinkMeta;
+    private final NearCache         nearCache;
     
     protected enum OpLWTMode {AllowUserThreadUsage, DisallowUserThreadUsage;
 
@@ -71,9 +72,19 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
                 SerializationRegistry serializationRegistry,
                 AbsMillisTimeSource absMillisTimeSource, AddrAndPort server, 
                 Namespace parent, NamespaceLinkMeta nsLinkMeta) {
-        MessageGroupBase  mgBase;
-        
-        mgBase = session.getMessageGroupBase();
+        this(session, session.getMessageGroupBase(), session.getReplicaRouter(), name, nsOptions, 
+             serializationRegistry, absMillisTimeSource, server, parent, nsLinkMeta, NearCache.create(nsOptions));
+    }
+    
+    /**
+     * @param session may be null for a namespace that is not used through a session, e.g. in tests
+     * @param replicaRouter may be null, in which case all operations are sent to the server
+     * @param nearCache may be null, in which case no values are cached
+     */
+    ClientNamespace(DHTSessionImpl session, MessageGroupBase mgBase, ReplicaRouter replicaRouter, String name, 
+                NamespaceOptions nsOptions, SerializationRegistry serializationRegistry,
+                AbsMillisTimeSource absMillisTimeSource, AddrAndPort server, 
+                Namespace parent, NamespaceLinkMeta nsLinkMeta, NearCache nearCache) {
         this.session = session;
         this.name = name;
         this.nsOptions = nsOptions;
@@ -82,11 +93,12 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
         context = new SimpleNamespaceCreator().createNamespace(name);
         activeOpTable = new ActiveClientOperationTable();
         opSender = new OpSender(server, mgBase);
-        putSender = new OpSender(server, mgBase);
-        retrievalSender = new OpSender(server, mgBase);
+        putSender = new OpSender(server, mgBase, replicaRouter);
+        retrievalSender = new OpSender(server, mgBase, replicaRouter);
         originator = mgBase.getMyID();
         this.parent = parent;
         this.nsLinkMeta = nsLinkMeta;
+        this.nearCache = nearCache;
         if (nsOptions.getVersionMode() != NamespaceVersionMode.SINGLE_VERSION || !nsOptions.getAllowLinks()) {
             assert nsLinkMeta == null;
         }
@@ -163,10 +175,21 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
         return activeOpTable.getActiveVersionedBasicOperations();
     }
     
+    ActiveScanOperations getActiveScanOperations() {
+        return activeOpTable.getActiveScanOperations();
+    }
+    
     OpSender getRetrievalSender() {
         return retrievalSender;
     }
     
+    /**
+     * @return the near cache for this namespace, or null if values in this namespace are not cached
+     */
+    NearCache getNearCache() {
+        return nearCache;
+    }
+    
     @Override
     public void queueAboveLimit() {
         putSender.pause();
@@ -182,9 +205,22 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
     // operation
     
     public <K, V> void startOperation(AsyncOperationImpl opImpl, OpLWTMode opLWTMode) {
+        OpTimeoutWheel  opTimeoutWheel;
+        
+        opTimeoutWheel = OpTimeoutWheel.getInstance();
         switch (opImpl.getType()) {
-        case RETRIEVE: retrievalSender.addWorkForGrouping(opImpl, opLWTMode.getDirectCallDepth()); break;
-        case PUT: putSender.addWorkForGrouping(opImpl, opLWTMode.getDirectCallDepth()); break;
+        case RETRIEVE:
+            if (opTimeoutWheel != null) {
+                opTimeoutWheel.schedule(opImpl, retrievalSender, absMillisTimeSource);
+            }
+            retrievalSender.addWorkForGrouping(opImpl, opLWTMode.getDirectCallDepth());
+            break;
+        case PUT:
+            if (opTimeoutWheel != null) {
+                opTimeoutWheel.schedule(opImpl, putSender, absMillisTimeSource);
+            }
+            putSender.addWorkForGrouping(opImpl, opLWTMode.getDirectCallDepth());
+            break;
         default: opSender.addWorkForGrouping(opImpl, 0); break; // FIXME - don't group
         }
     }
@@ -208,6 +244,9 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
         case OP_RESPONSE:
             activeOpTable.getActiveVersionedBasicOperations().receivedOpResponse(message);
             break;
+        case SCAN_RESPONSE:
+            activeOpTable.getActiveScanOperations().receivedScanResponse(message);
+            break;
         case CHECKSUM_TREE: // FUTURE - for testing, consider removing
             activeOpTable.receivedChecksumTree(message); // FUTURE - for testing, consider removing
             break;
@@ -217,6 +256,9 @@ public class ClientNamespace implements QueueingConnectionLimitListener, Namespa
     
     void checkForTimeouts(long curTimeMillis) {
         Log.info("checkForTimeouts: ", name);
+        if (nearCache != null) {
+            Log.info("nearCache: ", name +" "+ nearCache);
+        }
         activeOpTable.checkForTimeouts(curTimeMillis, opSender, putSender, retrievalSender);
     }
     
@@ -4,5 +4,5 @@ package com.ms.silverking.cloud.dht.client.impl;
  * Type of client operation.
  */
 enum ClientOpType {
-	PUT, RETRIEVE, PING, SNAPSHOT, SYNC_REQUEST
+	PUT, RETRIEVE, PING, SNAPSHOT, SYNC_REQUEST, SCAN
 }
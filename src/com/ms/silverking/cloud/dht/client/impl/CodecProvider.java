@@ -1,31 +1,77 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import com.ms.silverking.cloud.dht.client.Compression;
 import com.ms.silverking.compression.BZip2;
 import com.ms.silverking.compression.Compressor;
 import com.ms.silverking.compression.Decompressor;
+import com.ms.silverking.compression.DictionaryZip;
 import com.ms.silverking.compression.LZ4;
 import com.ms.silverking.compression.Snappy;
 import com.ms.silverking.compression.Zip;
 
+/**
+ * Provides codecs for each Compression. Codecs hold no per-instance state (per-thread
+ * codec state is held by the codec classes) so a single shared instance is returned.
+ * ZIP_DICTIONARY compressors are specific to a namespace's dictionary; ZIP_DICTIONARY
+ * decompressors can decompress values compressed with any registered dictionary.
+ */
 public class CodecProvider {
+    private static final LZ4    lz4 = new LZ4();
+    private static final Snappy snappy = new Snappy();
+    private static final Zip    zip = new Zip();
+    private static final BZip2  bzip2 = new BZip2();
+    private static final DictionaryZip  zipDictionary = new DictionaryZip();
+    
+    private static final ConcurrentMap<Long,DictionaryZip>  namespaceDictionaryCompressors = new ConcurrentHashMap<>();
+    
     public static Compressor getCompressor(Compression compression) {
         switch (compression) {
-        case LZ4: return new LZ4();
-        case SNAPPY: return new Snappy();
-        case ZIP: return new Zip();
-        case BZIP2: return new BZip2();
+        case LZ4: return lz4;
+        case SNAPPY: return snappy;
+        case ZIP: return zip;
+        case BZIP2: return bzip2;
+        case ZIP_DICTIONARY: return zipDictionary;
         case NONE: return null;
         default: throw new RuntimeException("No compressor for "+ compression);
         }
     }
     
+    /**
+     * @param compression
+     * @param namespace namespace context
+     * @return the compressor for the given namespace
+     */
+    public static Compressor getCompressor(Compression compression, long namespace) {
+        if (compression == Compression.ZIP_DICTIONARY) {
+            DictionaryZip   compressor;
+            
+            compressor = namespaceDictionaryCompressors.get(namespace);
+            return compressor != null ? compressor : zipDictionary;
+        } else {
+            return getCompressor(compression);
+        }
+    }
+    
+    /**
+     * Set the dictionary used for ZIP_DICTIONARY compression in the given namespace, and register
+     * it for decompression. 
+     * @param namespace namespace context
+     * @param dictionary
+     */
+    public static void setNamespaceDictionary(long namespace, byte[] dictionary) {
+        namespaceDictionaryCompressors.put(namespace, new DictionaryZip(dictionary));
+    }
+    
     public static Decompressor getDecompressor(Compression compression) {
         switch (compression) {
-        case LZ4: return new LZ4();
-        case SNAPPY: return new Snappy();
-        case ZIP: return new Zip();
-        case BZIP2: return new BZip2();
+        case LZ4: return lz4;
+        case SNAPPY: return snappy;
+        case ZIP: return zip;
+        case BZIP2: return bzip2;
+        case ZIP_DICTIONARY: return zipDictionary;
         case NONE: return null;
         default: throw new RuntimeException("No decompressor for "+ compression);
         }
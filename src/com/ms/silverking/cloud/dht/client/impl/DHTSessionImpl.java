@@ -1,6 +1,9 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.List;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,6 +20,7 @@ import com.ms.silverking.cloud.dht.PutOptions;
 import com.ms.silverking.cloud.dht.WaitOptions;
 import com.ms.silverking.cloud.dht.client.AsynchronousNamespacePerspective;
 import com.ms.silverking.cloud.dht.client.ClientDHTConfiguration;
+import com.ms.silverking.cloud.dht.client.Compression;
 import com.ms.silverking.cloud.dht.client.DHTSession;
 import com.ms.silverking.cloud.dht.client.Namespace;
 import com.ms.silverking.cloud.dht.client.NamespaceCreationException;
@@ -39,12 +43,16 @@ import com.ms.silverking.cloud.dht.net.MessageGroup;
 import com.ms.silverking.cloud.dht.net.MessageGroupBase;
 import com.ms.silverking.cloud.dht.net.MessageGroupConnection;
 import com.ms.silverking.cloud.dht.net.MessageGroupReceiver;
+import com.ms.silverking.compression.DictionaryZip;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.net.AddrAndPort;
 import com.ms.silverking.net.IPAddrUtil;
+import com.ms.silverking.net.IPAndPort;
+import com.ms.silverking.net.InetAddressUtil;
 import com.ms.silverking.net.async.QueueingConnectionLimitListener;
 import com.ms.silverking.thread.lwt.BaseWorker;
 import com.ms.silverking.time.AbsMillisTimeSource;
+import com.ms.silverking.util.PropertiesHelper;
 
 /**
  * Concrete implementation of DHTSession. 
@@ -55,13 +63,20 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
 	//private final ServerPool		serverPool;
 	private final ConcurrentMap<Long,ClientNamespace>  clientNamespaces;
     private final List<ClientNamespace> clientNamespaceList;
+    private volatile ClientNamespace    lastReceiveNamespace; // avoids boxing the context in the common case
     private final byte[]            myIPAndPort;
     private final AbsMillisTimeSource   absMillisTimeSource;
     private final SerializationRegistry serializationRegistry;
     private final Worker            worker;
     private final NamespaceCreator  namespaceCreator;
     private final NamespaceOptionsClient    nsOptionsClient;
+    private final ReplicaRouter     replicaRouter;
     private NamespaceLinkMeta nsLinkMeta;
+    // compression dictionaries that have been looked up by namespace context
+    private final ConcurrentMap<Long,byte[]>    compressionDictionaries;
+    private final CompressionDictionaryLoader   compressionDictionaryLoader;
+    
+    private static final byte[] noCompressionDictionary = new byte[0];
     
     private static final Class<String>	defaultKeyClass = String.class;
     private static final Class<byte[]>	defaultValueClass = byte[].class;
@@ -99,7 +114,12 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
 	
 	private static final int   connectionQueueLimit = 0;
 	
-	private static final int   numSelectorControllers = 1;
+	// more than one selector controller allows connections to a peer to be spread over
+	// multiple selector threads (see PersistentAsyncServer.connectionsPerPeerProperty)
+	private static final String numSelectorControllersProperty = DHTSessionImpl.class.getPackage().getName() + ".NumSelectorControllers";
+	private static final int   defaultNumSelectorControllers = 1;
+	private static final int   numSelectorControllers = PropertiesHelper.systemHelper.getInt(numSelectorControllersProperty, 
+	                                                                                         defaultNumSelectorControllers);
     private static final String selectorControllerClass = "DHTSessionImpl";
 	
 	public DHTSessionImpl(ClientDHTConfiguration dhtConfig, 
@@ -117,6 +137,9 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
 		//serverPool = new ServerPool(dhtConfig, preferredServer);
 		myIPAndPort = IPAddrUtil.createIPAndPort(IPAddrUtil.localIP(), mgBase.getPort());
         Log.info("Session IP:Port ", IPAddrUtil.addrAndPortToString(myIPAndPort));
+        if (MessageGroupBase.unixDomainSocketsEnabled()) {
+            useUnixDomainSocketIfLocal(dhtConfig, preferredServer);
+        }
 		
 		clientNamespaces = new ConcurrentHashMap<>();  
         clientNamespaceList = new CopyOnWriteArrayList<>();
@@ -138,14 +161,59 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
 											  serverOrderIntervalMillis);
 											  */
         //Runtime.getRuntime().addShutdownHook(new ShutdownHook());
+        if (ReplicaRouter.replicaRoutingEnabled) {
+            replicaRouter = createReplicaRouter(dhtConfig, preferredServer);
+        } else {
+            replicaRouter = null;
+        }
 		namespaceCreator = new SimpleNamespaceCreator();
         nsOptionsClient = new NamespaceOptionsClient(this, dhtConfig, timeoutController);
+        compressionDictionaries = new ConcurrentHashMap<>();
+        compressionDictionaryLoader = new CompressionDictionaryLoader();
+        DictionaryZip.addDictionaryLoader(compressionDictionaryLoader);
+	}
+	
+	/**
+	 * When the preferred server is on this host and is listening on a unix domain socket, connect to it
+	 * over that socket rather than TCP loopback. The server may also be reached by the address of
+	 * this host (e.g. by the ReplicaRouter), so that address is mapped to the socket as well.
+	 */
+	private void useUnixDomainSocketIfLocal(ClientDHTConfiguration dhtConfig, AddrAndPort preferredServer) {
+	    try {
+	        InetSocketAddress  serverAddr;
+	        File   path;
+	        
+	        serverAddr = preferredServer.toInetSocketAddress();
+	        if (InetAddressUtil.isLocalHostIP(serverAddr.getAddress())) {
+	            path = MessageGroupBase.unixDomainSocketPath(dhtConfig.getName(), serverAddr.getPort());
+	            if (path.exists()) {
+	                Log.info("Using unix domain socket ", path);
+	                mgBase.setUnixDomainSocketPath(preferredServer, path);
+	                mgBase.setUnixDomainSocketPath(new IPAndPort(IPAddrUtil.localIP(), serverAddr.getPort()), path);
+	            }
+	        }
+	    } catch (UnknownHostException uhe) {
+	        Log.logErrorWarning(uhe, "Unable to resolve "+ preferredServer +". Using TCP.");
+	    }
+	}
+	
+	private static ReplicaRouter createReplicaRouter(ClientDHTConfiguration dhtConfig, AddrAndPort server) {
+	    try {
+	        return new ReplicaRouter(dhtConfig, server.toInetSocketAddress().getPort());
+	    } catch (Exception e) {
+	        Log.logErrorWarning(e, "Unable to create ReplicaRouter. Sending all operations to "+ server);
+	        return null;
+	    }
 	}
 	
 	MessageGroupBase getMessageGroupBase() {
 	    return mgBase;
 	}
 	
+	ReplicaRouter getReplicaRouter() {
+	    return replicaRouter;
+	}
+	
 	@Override
 	public NamespaceCreationOptions getNamespaceCreationOptions() {
 	    return nsOptionsClient.getNamespaceCreationOptions();
@@ -271,11 +339,70 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
                     Log.info("Created client namespace: "+ namespace +" "+ context);
                 }
                 clientNamespaceList.add(clientNamespace);
+                if (nsOptions.getDefaultPutOptions().getCompression() == Compression.ZIP_DICTIONARY) {
+                    if (loadCompressionDictionary(namespace, context.contextAsLong()) == null) {
+                        Log.warning("No compression dictionary found for "+ namespace);
+                    }
+                }
             }
         }
         return clientNamespace;
     }
     
+    /**
+     * Look up the compression dictionary of the given namespace. A dictionary that is found is used
+     * for compression in the namespace and registered for decompression. Each namespace's dictionary
+     * is looked up at most once; failed lookups are retried on the next call.
+     * @param namespace
+     * @param context
+     * @return the namespace's dictionary, or null if it has none or the lookup failed
+     */
+    private byte[] loadCompressionDictionary(String namespace, long context) {
+        byte[]  dictionary;
+        
+        dictionary = compressionDictionaries.get(context);
+        if (dictionary == null) {
+            synchronized (compressionDictionaries) {
+                dictionary = compressionDictionaries.get(context);
+                if (dictionary == null) {
+                    try {
+                        dictionary = nsOptionsClient.getCompressionDictionary(context);
+                        if (dictionary != null) {
+                            CodecProvider.setNamespaceDictionary(context, dictionary);
+                        } else {
+                            dictionary = noCompressionDictionary;
+                        }
+                        compressionDictionaries.put(context, dictionary);
+                    } catch (RetrievalException re) {
+                        Log.logErrorWarning(re, "Unable to retrieve compression dictionary for "+ namespace);
+                        return null;
+                    }
+                }
+            }
+        }
+        return dictionary != noCompressionDictionary ? dictionary : null;
+    }
+    
+    /**
+     * Finds the dictionary of a ZIP_DICTIONARY value that is retrieved before its dictionary has been
+     * loaded, e.g. when the namespace's default put compression is not ZIP_DICTIONARY. Looks up the
+     * dictionaries of this session's namespaces until one with the given id is found.
+     */
+    class CompressionDictionaryLoader implements DictionaryZip.DictionaryLoader {
+        @Override
+        public void loadDictionary(int dictionaryID) {
+            for (ClientNamespace clientNamespace : clientNamespaceList) {
+                byte[]  dictionary;
+                
+                dictionary = loadCompressionDictionary(clientNamespace.getName(), 
+                                                       clientNamespace.getContext().contextAsLong());
+                if (dictionary != null && DictionaryZip.getDictionaryID(dictionary) == dictionaryID) {
+                    break;
+                }
+            }
+        }
+    }
+    
     @Override
     public Namespace createNamespace(String namespace) throws NamespaceCreationException {
         return createNamespace(namespace, getNamespaceCreationOptions().getDefaultNamespaceOptions());
@@ -367,6 +494,10 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
 
 	@Override
 	public void close() {
+	    DictionaryZip.removeDictionaryLoader(compressionDictionaryLoader);
+	    if (replicaRouter != null) {
+	        replicaRouter.close();
+	    }
 	    mgBase.shutdown();
 	    // FUTURE - consider additional actions
 	}
@@ -402,7 +533,13 @@ public class DHTSessionImpl implements DHTSession, MessageGroupReceiver, Queuein
 	    ClientNamespace    clientNamespace;
 	    
 	    Log.fine("received from ", connection);
-	    clientNamespace = clientNamespaces.get(message.getContext());
+	    clientNamespace = lastReceiveNamespace;
+	    if (clientNamespace == null || clientNamespace.getContext().contextAsLong() != message.getContext()) {
+	        clientNamespace = clientNamespaces.get(message.getContext());
+	        if (clientNamespace != null) {
+	            lastReceiveNamespace = clientNamespace;
+	        }
+	    }
 	    if (clientNamespace != null) {
 	        clientNamespace.receive(message, connection);
 	    } else {
@@ -13,4 +13,11 @@ public interface KeyCreator<K> {
      */
     public DHTKey createKey(K key);
     public DHTKey[] createSubKeys(DHTKey key, int numSubKeys);
+    /**
+     * Create a single subkey. Equal to createSubKeys(key, n)[subKeyIndex] for any n > subKeyIndex.
+     * @param key
+     * @param subKeyIndex
+     * @return the subkey
+     */
+    public DHTKey createSubKey(DHTKey key, int subKeyIndex);
 }
@@ -0,0 +1,226 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.id.UUIDBase;
+
+/**
+ * Maps the (msb, lsb) of message UUIDs to the MessageListenerTable of each message. Tables are
+ * created when the first listener for a message is added, and are removed explicitly when every
+ * operation that added a listener has released the message; no reliance is placed on GC.
+ *
+ * The map is striped; each stripe is an open-addressed table of primitive UUID halves protected by
+ * the stripe's monitor. Lookups do not allocate.
+ */
+final class MessageListenerRegistry {
+    private final Stripe[]  stripes;
+
+    private static final int    numStripes = 64;
+    private static final int    stripeShift = 26; // use hash bits above those used for slots
+    private static final int    initialStripeCapacity = 64;
+
+    MessageListenerRegistry() {
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(int hash) {
+        return stripes[(hash >>> stripeShift) & (numStripes - 1)];
+    }
+
+    /**
+     * Add a listener for a key of the given message.
+     * @return the result of MessageListenerTable.addListener(); never TABLE_REMOVED
+     */
+    int addListener(UUIDBase uuid, DHTKey key, Object listener, boolean allowMultiple, AsyncOperationImpl owner) {
+        long    msl;
+        long    lsl;
+        int     hash;
+
+        msl = uuid.getMostSignificantBits();
+        lsl = uuid.getLeastSignificantBits();
+        hash = MessageListenerTable.hash(msl, lsl);
+        while (true) {
+            int result;
+
+            result = getStripe(hash).getOrCreate(msl, lsl, hash).addListener(key, listener, allowMultiple, owner);
+            if (result != MessageListenerTable.TABLE_REMOVED) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * @return the table for the given message, or null if there is none
+     */
+    MessageListenerTable get(long msl, long lsl) {
+        int hash;
+
+        hash = MessageListenerTable.hash(msl, lsl);
+        return getStripe(hash).get(msl, lsl, hash);
+    }
+
+    /**
+     * Release the given owner's interest in a message. The message's table is removed once all owners have
+     * released it.
+     */
+    void release(UUIDBase uuid, AsyncOperationImpl owner) {
+        MessageListenerTable    table;
+        long    msl;
+        long    lsl;
+        int     hash;
+
+        msl = uuid.getMostSignificantBits();
+        lsl = uuid.getLeastSignificantBits();
+        hash = MessageListenerTable.hash(msl, lsl);
+        table = getStripe(hash).get(msl, lsl, hash);
+        if (table != null && table.release(owner)) {
+            getStripe(hash).remove(msl, lsl, hash, table);
+        }
+    }
+
+    List<MessageListenerTable> getTables() {
+        List<MessageListenerTable>  tables;
+
+        tables = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.getTables(tables);
+        }
+        return tables;
+    }
+
+    int size() {
+        int _size;
+
+        _size = 0;
+        for (Stripe stripe : stripes) {
+            _size += stripe.size();
+        }
+        return _size;
+    }
+
+    private static final class Stripe {
+        private long[]  msls;
+        private long[]  lsls;
+        private MessageListenerTable[]  tables;
+        private int     size;
+
+        Stripe() {
+            allocate(initialStripeCapacity);
+        }
+
+        private void allocate(int capacity) {
+            msls = new long[capacity];
+            lsls = new long[capacity];
+            tables = new MessageListenerTable[capacity];
+        }
+
+        private int find(long msl, long lsl, int hash) {
+            int mask;
+            int index;
+
+            mask = tables.length - 1;
+            index = hash & mask;
+            while (tables[index] != null && (msls[index] != msl || lsls[index] != lsl)) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        synchronized MessageListenerTable get(long msl, long lsl, int hash) {
+            return tables[find(msl, lsl, hash)];
+        }
+
+        synchronized MessageListenerTable getOrCreate(long msl, long lsl, int hash) {
+            MessageListenerTable    table;
+            int index;
+
+            index = find(msl, lsl, hash);
+            table = tables[index];
+            if (table == null || table.isRemoved()) {
+                // a removed table may not yet have been taken out of the stripe; replace it
+                table = new MessageListenerTable();
+                if (tables[index] == null) {
+                    if ((size + 1) * 2 > tables.length) {
+                        grow();
+                        index = find(msl, lsl, hash);
+                    }
+                    size++;
+                }
+                msls[index] = msl;
+                lsls[index] = lsl;
+                tables[index] = table;
+            }
+            return table;
+        }
+
+        /**
+         * Remove the given table if it is still the current table for the message.
+         */
+        synchronized void remove(long msl, long lsl, int hash, MessageListenerTable table) {
+            int mask;
+            int index;
+            int next;
+
+            index = find(msl, lsl, hash);
+            if (tables[index] != table) {
+                return;
+            }
+            // backward shift deletion
+            mask = tables.length - 1;
+            next = (index + 1) & mask;
+            while (tables[next] != null) {
+                int home;
+
+                home = MessageListenerTable.hash(msls[next], lsls[next]) & mask;
+                // move next into the hole at index if its home does not lie cyclically in (index, next]
+                if (((next - home) & mask) >= ((next - index) & mask)) {
+                    msls[index] = msls[next];
+                    lsls[index] = lsls[next];
+                    tables[index] = tables[next];
+                    index = next;
+                }
+                next = (next + 1) & mask;
+            }
+            tables[index] = null;
+            size--;
+        }
+
+        private void grow() {
+            long[]  oldMSLs;
+            long[]  oldLSLs;
+            MessageListenerTable[]  oldTables;
+
+            oldMSLs = msls;
+            oldLSLs = lsls;
+            oldTables = tables;
+            allocate(oldTables.length * 2);
+            for (int i = 0; i < oldTables.length; i++) {
+                if (oldTables[i] != null) {
+                    int index;
+
+                    index = find(oldMSLs[i], oldLSLs[i], MessageListenerTable.hash(oldMSLs[i], oldLSLs[i]));
+                    msls[index] = oldMSLs[i];
+                    lsls[index] = oldLSLs[i];
+                    tables[index] = oldTables[i];
+                }
+            }
+        }
+
+        synchronized void getTables(List<MessageListenerTable> tableList) {
+            for (MessageListenerTable table : tables) {
+                if (table != null) {
+                    tableList.add(table);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ms.silverking.cloud.dht.NonExistenceResponse;
+import com.ms.silverking.cloud.dht.client.OpSizeBasedTimeoutController;
+import com.ms.silverking.cloud.dht.client.OpTimeoutController;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.OpResult;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.cloud.dht.net.MessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoMessageGroup;
+import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.thread.lwt.LWTPoolProvider;
+
+/**
+ * Compares the MessageListenerRegistry used by ActivePutListeners with the weak reference maps that it
+ * replaced. Operations are grouped into messages as OpSender groups them; listeners are added for each
+ * key, a response is dispatched for each key, and the operations then complete. The registry releases
+ * each message explicitly; the weak maps rely on GC. Reports throughput, bytes allocated per key by
+ * registration and by dispatch, and GC counts and times.
+ *
+ * Usage: MessageListenerRegistryBenchmark [registry|weak] [keysPerOp] [opsPerMessage]
+ */
+public class MessageListenerRegistryBenchmark {
+    private final boolean   useRegistry;
+    private final int       keysPerOp;
+    private final int       opsPerMessage;
+    private final MessageListenerRegistry   registry;
+    private final Map<UUIDBase,ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>>>  weakMaps;
+    private long    resultsReceived;
+
+    private static final int    messagesPerBatch = 1000;
+    private static final int    warmupBatches = 200;
+    private static final int    measuredBatches = 1000;
+    private static final OpTimeoutController    timeoutController = new OpSizeBasedTimeoutController();
+
+    public MessageListenerRegistryBenchmark(boolean useRegistry, int keysPerOp, int opsPerMessage) {
+        this.useRegistry = useRegistry;
+        this.keysPerOp = keysPerOp;
+        this.opsPerMessage = opsPerMessage;
+        registry = new MessageListenerRegistry();
+        weakMaps = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    private BenchmarkOp[] createOps(int batch) {
+        BenchmarkOp[]   ops;
+
+        ops = new BenchmarkOp[messagesPerBatch * opsPerMessage];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = new BenchmarkOp(batch, i, keysPerOp);
+        }
+        return ops;
+    }
+
+    private OperationUUID[] register(BenchmarkOp[] ops) {
+        OperationUUID[] uuids;
+
+        uuids = new OperationUUID[messagesPerBatch];
+        for (int i = 0; i < messagesPerBatch; i++) {
+            OperationUUID   uuid;
+
+            uuid = new OperationUUID();
+            uuids[i] = uuid;
+            if (!useRegistry) {
+                weakMaps.put(uuid, new ConcurrentHashMap<>());
+            }
+            for (int j = 0; j < opsPerMessage; j++) {
+                BenchmarkOp op;
+
+                op = ops[i * opsPerMessage + j];
+                op.uuid = uuid;
+                for (DHTKey key : op.keys) {
+                    if (useRegistry) {
+                        registry.addListener(uuid, key, op, false, op);
+                    } else {
+                        weakMaps.get(uuid).putIfAbsent(key, new WeakReference<>(op));
+                    }
+                }
+            }
+        }
+        return uuids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(BenchmarkOp[] ops, OperationUUID[] uuids) {
+        for (int i = 0; i < messagesPerBatch; i++) {
+            if (useRegistry) {
+                MessageListenerTable    table;
+
+                table = registry.get(uuids[i].getMostSignificantBits(), uuids[i].getLeastSignificantBits());
+                for (int j = 0; j < opsPerMessage; j++) {
+                    for (DHTKey key : ops[i * opsPerMessage + j].responseKeys) {
+                        ActiveKeyedOperationResultListener<OpResult>    listener;
+
+                        listener = (ActiveKeyedOperationResultListener<OpResult>)table.getListener(key.getMSL(), key.getLSL());
+                        listener.resultReceived(table.getKey(key.getMSL(), key.getLSL()), OpResult.SUCCEEDED);
+                    }
+                }
+            } else {
+                ConcurrentMap<DHTKey,WeakReference<ActiveKeyedOperationResultListener<OpResult>>>   listenerMap;
+
+                listenerMap = weakMaps.get(uuids[i]);
+                for (int j = 0; j < opsPerMessage; j++) {
+                    for (DHTKey key : ops[i * opsPerMessage + j].responseKeys) {
+                        listenerMap.get(key).get().resultReceived(key, OpResult.SUCCEEDED);
+                    }
+                }
+            }
+        }
+    }
+
+    private void complete(BenchmarkOp[] ops) {
+        if (useRegistry) {
+            for (BenchmarkOp op : ops) {
+                registry.release(op.uuid, op);
+            }
+        }
+    }
+
+    public void run() {
+        long    registrationBytes;
+        long    dispatchBytes;
+        long    gcCount0;
+        long    gcMillis0;
+        long    t0;
+        double  seconds;
+        long    numKeys;
+
+        for (int i = 0; i < warmupBatches; i++) {
+            runBatch(i, null);
+        }
+        System.gc();
+        registrationBytes = 0;
+        dispatchBytes = 0;
+        gcCount0 = gcCount();
+        gcMillis0 = gcMillis();
+        t0 = System.nanoTime();
+        for (int i = 0; i < measuredBatches; i++) {
+            long[]  bytes;
+
+            bytes = new long[2];
+            runBatch(warmupBatches + i, bytes);
+            registrationBytes += bytes[0];
+            dispatchBytes += bytes[1];
+        }
+        seconds = (double)(System.nanoTime() - t0) / 1e9;
+        numKeys = (long)measuredBatches * messagesPerBatch * opsPerMessage * keysPerOp;
+        System.out.printf("%s keysPerOp %d opsPerMessage %d  %.2f M keys/s  register %.1f B/key  dispatch %.1f B/key  "
+                          +"GCs %d  GC ms %d  tables remaining %d\n",
+                useRegistry ? "registry" : "weak", keysPerOp, opsPerMessage, numKeys / seconds / 1e6,
+                (double)registrationBytes / numKeys, (double)dispatchBytes / numKeys,
+                gcCount() - gcCount0, gcMillis() - gcMillis0, useRegistry ? registry.size() : weakMaps.size());
+        if (resultsReceived == 0) {
+            throw new RuntimeException("No results received");
+        }
+    }
+
+    private void runBatch(int batch, long[] bytes) {
+        com.sun.management.ThreadMXBean threadMXBean;
+        long            threadId;
+        BenchmarkOp[]   ops;
+        OperationUUID[] uuids;
+        long    a0;
+        long    a1;
+        long    a2;
+
+        threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        threadId = Thread.currentThread().getId();
+        ops = createOps(batch);
+        a0 = threadMXBean.getThreadAllocatedBytes(threadId);
+        uuids = register(ops);
+        a1 = threadMXBean.getThreadAllocatedBytes(threadId);
+        dispatch(ops, uuids);
+        a2 = threadMXBean.getThreadAllocatedBytes(threadId);
+        complete(ops);
+        for (BenchmarkOp op : ops) {
+            resultsReceived += op.results;
+        }
+        if (bytes != null) {
+            bytes[0] = a1 - a0;
+            bytes[1] = a2 - a1;
+        }
+    }
+
+    private static long gcCount() {
+        long    count;
+
+        count = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gcBean.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long    millis;
+
+        millis = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gcBean.getCollectionTime();
+        }
+        return millis;
+    }
+
+    /**
+     * Minimal operation that counts the results it receives.
+     */
+    private static class BenchmarkOp extends AsyncOperationImpl implements ActiveKeyedOperationResultListener<OpResult> {
+        final List<DHTKey>  keys;
+        final List<DHTKey>  responseKeys; // keys as they would be read from a response
+        OperationUUID   uuid;
+        int     results;
+
+        BenchmarkOp(int batch, int index, int numKeys) {
+            super(new BenchmarkOperation(), 0, new byte[0]);
+            keys = new ArrayList<>(numKeys);
+            responseKeys = new ArrayList<>(numKeys);
+            for (int i = 0; i < numKeys; i++) {
+                long    msl;
+                long    lsl;
+
+                msl = ((long)batch << 32) | index;
+                lsl = (long)i * 0x9E3779B97F4A7C15L;
+                keys.add(new SimpleKey(msl, lsl));
+                responseKeys.add(new SimpleKey(msl, lsl));
+            }
+        }
+
+        @Override
+        public void resultReceived(DHTKey key, OpResult result) {
+            results++;
+        }
+
+        @Override
+        protected NonExistenceResponse getNonExistenceResponse() {
+            return NonExistenceResponse.NULL_VALUE;
+        }
+
+        @Override
+        protected int opWorkItems() {
+            return keys.size();
+        }
+
+        @Override
+        protected void throwFailedException() {
+        }
+
+        @Override
+        public void waitForCompletion() {
+        }
+
+        @Override
+        void addToEstimate(MessageEstimate estimate) {
+        }
+
+        @Override
+        MessageEstimate createMessageEstimate() {
+            return null;
+        }
+
+        @Override
+        ProtoMessageGroup createProtoMG(MessageEstimate estimate) {
+            return null;
+        }
+
+        @Override
+        ProtoMessageGroup createMessagesForIncomplete(ProtoMessageGroup protoMG, List<MessageGroup> messageGroups,
+                                                      MessageEstimate estimate) {
+            return null;
+        }
+    }
+
+    private static class BenchmarkOperation extends Operation {
+        BenchmarkOperation() {
+            super(ClientOpType.PUT, null);
+        }
+
+        @Override
+        OpTimeoutController getTimeoutController() {
+            return timeoutController;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            boolean useRegistry;
+            int     keysPerOp;
+            int     opsPerMessage;
+
+            useRegistry = args.length == 0 || !args[0].equals("weak");
+            keysPerOp = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+            opsPerMessage = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+            LWTPoolProvider.createDefaultWorkPools();
+            new MessageListenerRegistryBenchmark(useRegistry, keysPerOp, opsPerMessage).run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+
+/**
+ * The listeners for the keys of a single message, stored in flat open-addressed arrays, together with
+ * the operations that registered them. Keys are never removed from a table; instead, the whole table
+ * is removed from its MessageListenerRegistry once every owning operation has released it.
+ *
+ * Each key maps either to a single listener or, if multiple operations in the message share the key,
+ * to an Object[] of listeners. Lookups do not allocate.
+ */
+final class MessageListenerTable {
+    private long[]      msls;
+    private long[]      lsls;
+    private DHTKey[]    keys;
+    private Object[]    listeners;
+    private int         size;
+    private AsyncOperationImpl[]    owners;
+    private int         numOwners;
+    private volatile boolean    removed;
+
+    static final int    ADDED_NEW_KEY = 0;
+    static final int    ADDED_EXISTING_KEY = 1;
+    static final int    NOT_ADDED = 2;
+    static final int    TABLE_REMOVED = 3;
+
+    private static final int    initialCapacity = 8;
+    private static final int    initialOwnerCapacity = 2;
+
+    MessageListenerTable() {
+        allocate(initialCapacity);
+        owners = new AsyncOperationImpl[initialOwnerCapacity];
+    }
+
+    private void allocate(int capacity) {
+        msls = new long[capacity];
+        lsls = new long[capacity];
+        keys = new DHTKey[capacity];
+        listeners = new Object[capacity];
+    }
+
+    static int hash(long msl, long lsl) {
+        long    h;
+
+        h = (msl ^ Long.rotateLeft(lsl, 32)) * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * Add a listener for the given key, and record the owner of the listener.
+     * @param key
+     * @param listener
+     * @param allowMultiple if false, a listener is not added for a key that already has one
+     * @param owner the operation that must release this table when it no longer needs the listener
+     * @return ADDED_NEW_KEY, ADDED_EXISTING_KEY, NOT_ADDED if allowMultiple is false and the key already has
+     * a listener, or TABLE_REMOVED if this table has been released by all owners and must not be used
+     */
+    synchronized int addListener(DHTKey key, Object listener, boolean allowMultiple, AsyncOperationImpl owner) {
+        int index;
+        int result;
+
+        if (removed) {
+            return TABLE_REMOVED;
+        }
+        index = find(key.getMSL(), key.getLSL());
+        if (keys[index] == null) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+                index = find(key.getMSL(), key.getLSL());
+            }
+            msls[index] = key.getMSL();
+            lsls[index] = key.getLSL();
+            keys[index] = key;
+            listeners[index] = listener;
+            size++;
+            result = ADDED_NEW_KEY;
+        } else if (allowMultiple) {
+            Object  existing;
+            Object[]    multiple;
+
+            existing = listeners[index];
+            if (existing instanceof Object[]) {
+                // copy on write so that readers may use the array outside of the lock
+                multiple = Arrays.copyOf((Object[])existing, ((Object[])existing).length + 1);
+            } else {
+                multiple = new Object[2];
+                multiple[0] = existing;
+            }
+            multiple[multiple.length - 1] = listener;
+            listeners[index] = multiple;
+            result = ADDED_EXISTING_KEY;
+        } else {
+            return NOT_ADDED;
+        }
+        addOwner(owner);
+        return result;
+    }
+
+    private void addOwner(AsyncOperationImpl owner) {
+        for (int i = 0; i < numOwners; i++) {
+            if (owners[i] == owner) {
+                return;
+            }
+        }
+        if (numOwners == owners.length) {
+            owners = Arrays.copyOf(owners, owners.length * 2);
+        }
+        owners[numOwners++] = owner;
+    }
+
+    /**
+     * Release the given owner's interest in this table.
+     * @param owner
+     * @return true if no owners remain, in which case the table is marked as removed
+     */
+    synchronized boolean release(AsyncOperationImpl owner) {
+        for (int i = 0; i < numOwners; i++) {
+            if (owners[i] == owner) {
+                owners[i] = owners[--numOwners];
+                owners[numOwners] = null;
+                break;
+            }
+        }
+        if (numOwners == 0) {
+            removed = true;
+        }
+        return removed;
+    }
+
+    /**
+     * @return the listener for the given key, an Object[] of listeners, or null if the key has no listener
+     */
+    synchronized Object getListener(long msl, long lsl) {
+        return listeners[find(msl, lsl)];
+    }
+
+    /**
+     * @return the key instance registered with the listener for the given key, or null if there is none
+     */
+    synchronized DHTKey getKey(long msl, long lsl) {
+        return keys[find(msl, lsl)];
+    }
+
+    synchronized void getOwners(Collection<AsyncOperationImpl> ownerCollection) {
+        for (int i = 0; i < numOwners; i++) {
+            ownerCollection.add(owners[i]);
+        }
+    }
+
+    /**
+     * For debugging only.
+     */
+    synchronized Map<DHTKey,Object> toMap() {
+        Map<DHTKey,Object>  map;
+
+        map = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                map.put(keys[i], listeners[i]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return the index of the given key, or the empty slot at which it should be inserted
+     */
+    private int find(long msl, long lsl) {
+        int mask;
+        int index;
+
+        mask = keys.length - 1;
+        index = hash(msl, lsl) & mask;
+        while (keys[index] != null && (msls[index] != msl || lsls[index] != lsl)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+        DHTKey[]    oldKeys;
+        Object[]    oldListeners;
+
+        oldKeys = keys;
+        oldListeners = listeners;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index;
+
+                index = find(oldKeys[i].getMSL(), oldKeys[i].getLSL());
+                msls[index] = oldKeys[i].getMSL();
+                lsls[index] = oldKeys[i].getLSL();
+                keys[index] = oldKeys[i];
+                listeners[index] = oldListeners[i];
+            }
+        }
+    }
+}
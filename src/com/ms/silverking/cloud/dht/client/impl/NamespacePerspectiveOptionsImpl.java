@@ -9,6 +9,7 @@ import com.ms.silverking.cloud.dht.PutOptions;
 import com.ms.silverking.cloud.dht.WaitOptions;
 import com.ms.silverking.cloud.dht.client.KeyDigestType;
 import com.ms.silverking.cloud.dht.client.serialization.BufferDestSerializer;
+import com.ms.silverking.cloud.dht.client.serialization.BufferSerDes;
 import com.ms.silverking.cloud.dht.client.serialization.BufferSourceDeserializer;
 import com.ms.silverking.cloud.dht.client.serialization.SerializationRegistry;
 import com.ms.silverking.cloud.dht.client.serialization.internal.ArrayMD5KeyCreator;
@@ -43,6 +44,19 @@ class NamespacePerspectiveOptionsImpl<K,V> {
         }
     }
 
+    /**
+     * Construct with explicitly specified key creation and value serialization. For internal
+     * perspectives only; the default option modifiers below are not supported.
+     */
+    NamespacePerspectiveOptionsImpl(NamespacePerspectiveOptions<K,V> nspOptions, KeyCreator<K> keyCreator,
+                                    BufferSerDes<V> valueSerDes) {
+        this.nspOptions = nspOptions;
+        this.serializationRegistry = null;
+        this.keyCreator = keyCreator;
+        valueSerializer = valueSerDes;
+        valueDeserializer = valueSerDes;
+    }
+
     public NamespacePerspectiveOptions<K, V> getNSPOptions() {
         return nspOptions;
     }
@@ -0,0 +1,169 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ms.silverking.cloud.dht.NamespaceOptions;
+import com.ms.silverking.cloud.dht.NamespaceVersionMode;
+import com.ms.silverking.cloud.dht.RetrievalOptions;
+import com.ms.silverking.cloud.dht.RevisionMode;
+import com.ms.silverking.cloud.dht.VersionConstraint;
+import com.ms.silverking.cloud.dht.WaitMode;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Client-side cache of stored values (data + metadata) for write-once namespaces.
+ *
+ * In a SINGLE_VERSION namespace that does not allow revisions, the value associated with a key
+ * cannot change once it has been stored. Cached values are therefore never stale with respect
+ * to puts. (Values removed by the namespace's retention policy may continue to be served from
+ * the cache.)
+ *
+ * The cache is bounded by the number of bytes of cached values, and evicts the least recently
+ * used entries when this bound is exceeded.
+ */
+class NearCache {
+    private final long  maxBytes;
+    private final LinkedHashMap<DHTKey,ByteBuffer>  storedValues;
+    private long        curBytes;
+    private final AtomicLong    hits;
+    private final AtomicLong    misses;
+    private final AtomicLong    evictions;
+
+    static final String nearCacheMBProperty = NearCache.class.getPackage().getName() + ".NearCacheMB";
+    static final int    defaultNearCacheMB = 0;
+    static final int    nearCacheMB;
+
+    static {
+        nearCacheMB = PropertiesHelper.systemHelper.getInt(nearCacheMBProperty, defaultNearCacheMB);
+    }
+
+    NearCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        storedValues = new LinkedHashMap<>(16, 0.75f, true);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    /**
+     * Create a NearCache for the given namespace if near caching is enabled and the namespace is write-once
+     * @param nsOptions
+     * @return the new NearCache, or null if no cache should be used
+     */
+    static NearCache create(NamespaceOptions nsOptions) {
+        if (nearCacheMB > 0 && nsOptions != null
+                && nsOptions.getVersionMode() == NamespaceVersionMode.SINGLE_VERSION
+                && nsOptions.getRevisionMode() == RevisionMode.NO_REVISIONS) {
+            return new NearCache((long)nearCacheMB * 1024 * 1024);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Determine whether a retrieval with the given options may be answered from the cache
+     */
+    static boolean canAnswer(RetrievalOptions retrievalOptions) {
+        return retrievalOptions.getRetrievalType().hasValue()
+                && retrievalOptions.getWaitMode() == WaitMode.GET
+                && retrievalOptions.getVersionConstraint().equals(VersionConstraint.defaultConstraint);
+    }
+
+    /**
+     * Determine whether the result of a retrieval with the given options may be added to the cache
+     */
+    static boolean canCache(RetrievalOptions retrievalOptions) {
+        return retrievalOptions.getRetrievalType().hasValue();
+    }
+
+    /**
+     * @param key
+     * @return a private copy of the stored value for the given key, or null if it is not cached
+     */
+    ByteBuffer get(DHTKey key) {
+        ByteBuffer  storedValue;
+
+        synchronized (this) {
+            storedValue = storedValues.get(key);
+        }
+        if (storedValue != null) {
+            hits.incrementAndGet();
+            return copy(storedValue);
+        } else {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Add a stored value to the cache. The value is copied.
+     * @param key
+     * @param storedValue the complete stored value (data + metadata) from position to limit
+     */
+    void put(DHTKey key, ByteBuffer storedValue) {
+        ByteBuffer  _storedValue;
+
+        if (storedValue.remaining() > maxBytes) {
+            return;
+        }
+        _storedValue = copy(storedValue);
+        synchronized (this) {
+            ByteBuffer  prev;
+
+            prev = storedValues.put(new SimpleKey(key), _storedValue);
+            curBytes += _storedValue.capacity();
+            if (prev != null) {
+                curBytes -= prev.capacity();
+            }
+            if (curBytes > maxBytes) {
+                Iterator<Map.Entry<DHTKey,ByteBuffer>>  iterator;
+
+                iterator = storedValues.entrySet().iterator();
+                while (curBytes > maxBytes && iterator.hasNext()) {
+                    curBytes -= iterator.next().getValue().capacity();
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer storedValue) {
+        ByteBuffer  _storedValue;
+
+        _storedValue = ByteBuffer.allocate(storedValue.remaining());
+        _storedValue.put(storedValue.duplicate());
+        _storedValue.flip();
+        return _storedValue;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    synchronized long getCurBytes() {
+        return curBytes;
+    }
+
+    @Override
+    public String toString() {
+        long    _hits;
+        long    _misses;
+
+        _hits = hits.get();
+        _misses = misses.get();
+        return String.format("hits %d misses %d hitRate %.3f evictions %d bytes %d maxBytes %d",
+                _hits, _misses, _hits + _misses == 0 ? 0.0 : (double)_hits / (double)(_hits + _misses),
+                evictions.get(), getCurBytes(), maxBytes);
+    }
+}
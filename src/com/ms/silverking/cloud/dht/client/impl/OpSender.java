@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.ms.silverking.cloud.dht.net.MessageGroup;
@@ -19,6 +20,7 @@ import com.ms.silverking.util.PropertiesHelper;
 class OpSender extends GroupingPausingBaseWorker<AsyncOperationImpl> implements QueueingConnectionLimitListener {
     private final MessageGroupBase  mgBase;
     private final AddrAndPort       dest;
+    private final ReplicaRouter     replicaRouter;
     private final AtomicLong        doWorkCalls;
     private final AtomicLong        doGroupedWorkCalls;
     
@@ -50,11 +52,21 @@ class OpSender extends GroupingPausingBaseWorker<AsyncOperationImpl> implements
     }
     
     OpSender(AddrAndPort dest, MessageGroupBase mgBase) {
+        this(dest, mgBase, null);
+    }
+    
+    /**
+     * @param dest the proxy server
+     * @param mgBase
+     * @param replicaRouter if non-null, used to send messages directly to replicas when possible
+     */
+    OpSender(AddrAndPort dest, MessageGroupBase mgBase, ReplicaRouter replicaRouter) {
         super(senderPool, true, Integer.MAX_VALUE, idleThreadsThreshold);
         //super(senderPool, true, 0, LWTConstants.defaultIdleThreadThreshold);
         //super(senderPool, true, LWTConstants.defaultMaxDirectCallDepth, LWTConstants.defaultIdleThreadThreshold);
         this.dest = dest;
         this.mgBase = mgBase;
+        this.replicaRouter = replicaRouter;
         doWorkCalls = new AtomicLong();
         doGroupedWorkCalls = new AtomicLong();
     }
@@ -227,11 +239,16 @@ class OpSender extends GroupingPausingBaseWorker<AsyncOperationImpl> implements
                 System.out.printf("Calling create with %s\tfor%s\n", protoMG.getUUID(), asyncOpImpls[i].objectToString());
             }
             protoMG = asyncOpImpls[i].createMessagesForIncomplete(protoMG, messageGroups, estimate);
+            // Send completed MessageGroups now so that sending overlaps with the creation
+            // of messages for subsequent operations
+            sendAll(messageGroups);
         }
         // Add the final protoMG to the list if it is non-empty
         protoMG.addToMessageGroupList(messageGroups);
-        // Send all MessageGroups
-        // FUTURE - consider sending sooner, in creation loop
+        sendAll(messageGroups);
+    }
+    
+    private void sendAll(List<MessageGroup> messageGroups) {
         for (MessageGroup messageGroup : messageGroups) {
             if (debug) {
                 System.out.println("OpSender sending:");
@@ -240,9 +257,23 @@ class OpSender extends GroupingPausingBaseWorker<AsyncOperationImpl> implements
             }
             send(messageGroup);
         }
+        messageGroups.clear();
     }
     
     void send(MessageGroup messageGroup) {
-        mgBase.send(messageGroup, dest);
+        Map<AddrAndPort,MessageGroup>   routedMessageGroups;
+        
+        if (replicaRouter != null) {
+            routedMessageGroups = replicaRouter.route(messageGroup);
+        } else {
+            routedMessageGroups = null;
+        }
+        if (routedMessageGroups == null) {
+            mgBase.send(messageGroup, dest);
+        } else {
+            for (Map.Entry<AddrAndPort,MessageGroup> entry : routedMessageGroups.entrySet()) {
+                mgBase.send(entry.getValue(), entry.getKey());
+            }
+        }
     }
 }
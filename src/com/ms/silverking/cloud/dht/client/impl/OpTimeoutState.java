@@ -47,6 +47,13 @@ class OpTimeoutState {
                                + timeoutController.getRelativeTimeoutMillisForAttempt(op, curAttemptIndex);
     }
     
+    /**
+     * @return the time after which the current attempt has timed out
+     */
+    long getAttemptDeadlineMillis() {
+        return attemptStartTimeMillis + timeoutController.getRelativeTimeoutMillisForAttempt(op, curAttemptIndex);
+    }
+    
     void newAttempt(long curTimeMillis) {
         ++curAttemptIndex;
         attemptStartTimeMillis = curTimeMillis;
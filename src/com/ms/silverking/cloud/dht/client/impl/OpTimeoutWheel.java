@@ -0,0 +1,215 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ms.silverking.cloud.dht.client.OperationState;
+import com.ms.silverking.log.Log;
+import com.ms.silverking.thread.ThreadUtil;
+import com.ms.silverking.time.AbsMillisTimeSource;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Fires attempt timeouts for retrievals and puts from a TimingWheel rather than by periodically
+ * scanning all active operations. Each operation registers its current attempt deadline when it is
+ * started. When the deadline passes, the attempt is either retried or the operation is timed out,
+ * and a retried operation registers the deadline of its new attempt. Completed operations cancel
+ * their registration. The cost of timeout processing is thus proportional to the number of
+ * operations that expire rather than to the number outstanding, and timeouts fire with tickMillis
+ * granularity rather than at the granularity of the session timeout check.
+ *
+ * Registrations and cancellations are queued by any thread and applied to the wheel by a single
+ * wheel thread, which parks while no operations are registered.
+ *
+ * Enabled with the OpTimeoutWheel property. When disabled, getInstance() returns null and timeouts
+ * are found by ActiveClientOperationTable.checkForTimeouts().
+ */
+class OpTimeoutWheel implements Runnable {
+    private final long  tickNanos;
+    private final long  tickMillis;
+    private final long  originNanos;
+    private final TimingWheel<Timeout>  wheel;
+    private final Queue<Timeout>    registrations;
+    private final Queue<Timeout>    cancellations;
+    private volatile Thread     wheelThread;
+    private volatile boolean    idle;
+
+    static final String opTimeoutWheelProperty = OpTimeoutWheel.class.getPackage().getName() + ".OpTimeoutWheel";
+    static final String tickMillisProperty = OpTimeoutWheel.class.getPackage().getName() + ".OpTimeoutWheelTickMillis";
+    static final boolean    defaultOpTimeoutWheel = false;
+    static final int    defaultTickMillis = 1;
+
+    private static final OpTimeoutWheel instance;
+
+    static {
+        if (PropertiesHelper.systemHelper.getBoolean(opTimeoutWheelProperty, defaultOpTimeoutWheel)) {
+            int tickMillis;
+
+            tickMillis = PropertiesHelper.systemHelper.getInt(tickMillisProperty, defaultTickMillis);
+            Log.warningf("%s %d", tickMillisProperty, tickMillis);
+            instance = new OpTimeoutWheel(tickMillis);
+            instance.start();
+        } else {
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the client-wide OpTimeoutWheel, or null if the wheel is disabled
+     */
+    static OpTimeoutWheel getInstance() {
+        return instance;
+    }
+
+    OpTimeoutWheel(int tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be > 0");
+        }
+        this.tickMillis = tickMillis;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        originNanos = System.nanoTime();
+        wheel = new TimingWheel<>(0);
+        registrations = new ConcurrentLinkedQueue<>();
+        cancellations = new ConcurrentLinkedQueue<>();
+    }
+
+    void start() {
+        Thread  thread;
+
+        thread = ThreadUtil.newDaemonThread(this, "OpTimeoutWheel");
+        wheelThread = thread;
+        thread.start();
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - originNanos) / tickNanos;
+    }
+
+    /**
+     * Register the deadline of the current attempt of the given operation.
+     * @param op
+     * @param opSender the sender used to retry the operation
+     * @param timeSource the time source used to start the operation's attempts
+     */
+    void schedule(AsyncOperationImpl op, OpSender opSender, AbsMillisTimeSource timeSource) {
+        Timeout timeout;
+        long    relDeadlineMillis;
+        long    deadlineTick;
+
+        relDeadlineMillis = Math.max(op.getAttemptDeadlineMillis() - timeSource.absTimeMillis(), 0);
+        // attempts time out when the current time is strictly greater than the deadline
+        deadlineTick = currentTick() + (relDeadlineMillis + tickMillis - 1) / tickMillis + 1;
+        timeout = new Timeout(op, opSender, timeSource, deadlineTick);
+        op.setAttemptTimeout(timeout);
+        registrations.add(timeout);
+        // the op may have completed before it could see this registration
+        if (op.getState() != OperationState.INCOMPLETE) {
+            timeout.cancel();
+        }
+        if (idle) {
+            LockSupport.unpark(wheelThread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long    tick;
+
+                applyQueuedChanges();
+                if (wheel.size() == 0) {
+                    idle = true;
+                    if (registrations.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                } else {
+                    tick = currentTick();
+                    wheel.advance(tick, this::expire);
+                    if (registrations.isEmpty() && cancellations.isEmpty()) {
+                        LockSupport.parkNanos(this, (tick + 1) * tickNanos - (System.nanoTime() - originNanos));
+                    }
+                }
+            } catch (Exception e) {
+                Log.logErrorWarning(e);
+                ThreadUtil.pauseAfterException();
+            }
+        }
+    }
+
+    private void applyQueuedChanges() {
+        Timeout timeout;
+
+        if (wheel.size() == 0) {
+            wheel.skipTo(currentTick());
+        }
+        while ((timeout = registrations.poll()) != null) {
+            if (timeout.state == Timeout.INIT) {
+                timeout.entry = wheel.add(timeout.deadlineTick, timeout);
+            }
+        }
+        while ((timeout = cancellations.poll()) != null) {
+            if (timeout.entry != null) {
+                wheel.remove(timeout.entry);
+                timeout.entry = null;
+            }
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        AsyncOperationImpl  op;
+
+        timeout.entry = null;
+        if (stateUpdater.compareAndSet(timeout, Timeout.INIT, Timeout.EXPIRED)) {
+            op = timeout.op;
+            if (op.getState() == OperationState.INCOMPLETE) {
+                long    curTimeMillis;
+
+                curTimeMillis = timeout.timeSource.absTimeMillis();
+                ActiveClientOperationTable.checkOpForTimeouts(curTimeMillis, op, timeout.opSender);
+                if (op.getState() == OperationState.INCOMPLETE) {
+                    // either a new attempt was started, or the coarse time source has not yet
+                    // reached the deadline
+                    schedule(op, timeout.opSender, timeout.timeSource);
+                }
+            }
+        }
+    }
+
+    /**
+     * The registration of a single attempt deadline. Ownership of a registration passes either to
+     * the expiration handler or to cancel() via a CAS of state.
+     */
+    final class Timeout {
+        private final AsyncOperationImpl    op;
+        private final OpSender  opSender;
+        private final AbsMillisTimeSource   timeSource;
+        private final long  deadlineTick;
+        volatile int    state; // not private so that stateUpdater may access it
+        private TimingWheel.Entry<Timeout>  entry; // only accessed by the wheel thread
+
+        private static final int    INIT = 0;
+        private static final int    CANCELLED = 1;
+        private static final int    EXPIRED = 2;
+
+        Timeout(AsyncOperationImpl op, OpSender opSender, AbsMillisTimeSource timeSource, long deadlineTick) {
+            this.op = op;
+            this.opSender = opSender;
+            this.timeSource = timeSource;
+            this.deadlineTick = deadlineTick;
+        }
+
+        void cancel() {
+            if (stateUpdater.compareAndSet(this, INIT, CANCELLED)) {
+                cancellations.add(this);
+            }
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater
+                            = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+}
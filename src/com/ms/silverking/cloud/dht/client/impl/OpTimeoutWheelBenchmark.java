@@ -0,0 +1,140 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.ms.silverking.cloud.dht.client.OpSizeBasedTimeoutController;
+
+/**
+ * Compares the cost of finding timed out attempts with a TimingWheel against the cost of scanning
+ * all outstanding operations as ActiveClientOperationTable.checkForTimeouts() does. Outstanding
+ * attempts have deadlines spread uniformly over spanTicks; half are cancelled (completed) before
+ * the wheel is advanced through the span one tick at a time. Every remaining entry must expire on
+ * exactly its deadline tick.
+ *
+ * Usage: OpTimeoutWheelBenchmark [numOps] [spanTicks]
+ */
+public class OpTimeoutWheelBenchmark {
+    private final int   numOps;
+    private final int   spanTicks;
+
+    private static final int    defaultNumOps = 1000000;
+    private static final int    defaultSpanTicks = 10000;
+    private static final int    scanIterations = 5;
+
+    public OpTimeoutWheelBenchmark(int numOps, int spanTicks) {
+        this.numOps = numOps;
+        this.spanTicks = spanTicks;
+    }
+
+    public void runWheel() {
+        TimingWheel<long[]> wheel;
+        List<TimingWheel.Entry<long[]>> entries;
+        Random  random;
+        long    t0;
+        double  addSeconds;
+        double  cancelSeconds;
+        double  advanceSeconds;
+        long[]  expired; // count, late or early
+        int     cancelled;
+
+        random = new Random(0);
+        wheel = new TimingWheel<>(0);
+        entries = new ArrayList<>(numOps);
+        t0 = System.nanoTime();
+        for (int i = 0; i < numOps; i++) {
+            long    deadlineTick;
+
+            deadlineTick = 1 + random.nextInt(spanTicks);
+            entries.add(wheel.add(deadlineTick, new long[]{deadlineTick}));
+        }
+        addSeconds = (double)(System.nanoTime() - t0) / 1e9;
+
+        t0 = System.nanoTime();
+        cancelled = 0;
+        for (int i = 0; i < numOps; i += 2) {
+            wheel.remove(entries.get(i));
+            cancelled++;
+        }
+        cancelSeconds = (double)(System.nanoTime() - t0) / 1e9;
+        entries = null;
+
+        expired = new long[2];
+        t0 = System.nanoTime();
+        for (long tick = 0; tick <= spanTicks; tick++) {
+            final long  _tick;
+
+            _tick = tick;
+            wheel.advance(tick, deadline -> {
+                expired[0]++;
+                if (deadline[0] != _tick) {
+                    expired[1]++;
+                }
+            });
+        }
+        advanceSeconds = (double)(System.nanoTime() - t0) / 1e9;
+        if (expired[0] != numOps - cancelled || expired[1] != 0 || wheel.size() != 0) {
+            throw new RuntimeException(String.format("Expiration failed: expired %d mistimed %d remaining %d",
+                                                     expired[0], expired[1], wheel.size()));
+        }
+        System.out.printf("wheel  add %.1f ns/op  cancel %.1f ns/op  advance %d ticks %.3f s  %.2f us/tick  %.1f ns/expired\n",
+                addSeconds * 1e9 / numOps, cancelSeconds * 1e9 / cancelled, spanTicks, advanceSeconds,
+                advanceSeconds * 1e6 / spanTicks, advanceSeconds * 1e9 / expired[0]);
+    }
+
+    public void runScan() {
+        List<OpTimeoutState>    ops;
+        OpSizeBasedTimeoutController    timeoutController;
+        Random  random;
+        double  scanSeconds;
+        int     timedOut;
+
+        random = new Random(0);
+        // attempts that started in the first half of the span have timed out at spanTicks
+        timeoutController = new OpSizeBasedTimeoutController(1, 0, 0, spanTicks / 2);
+        ops = new ArrayList<>(numOps);
+        for (int i = 0; i < numOps; i++) {
+            ops.add(new OpTimeoutState(null, timeoutController, random.nextInt(spanTicks)));
+        }
+        scanSeconds = Double.MAX_VALUE;
+        timedOut = 0;
+        for (int i = 0; i < scanIterations; i++) {
+            Set<OpTimeoutState> currentSet;
+            long    t0;
+
+            t0 = System.nanoTime();
+            // as with currentRetrievalSet(), each check copies the active set before scanning it
+            currentSet = ImmutableSet.copyOf(ops);
+            timedOut = 0;
+            for (OpTimeoutState op : currentSet) {
+                if (op.attemptHasTimedOut(spanTicks)) {
+                    timedOut++;
+                }
+            }
+            scanSeconds = Math.min(scanSeconds, (double)(System.nanoTime() - t0) / 1e9);
+        }
+        System.out.printf("scan   %d ops %.3f s/check  (%d timed out)  %.1f s per %d ticks at one check per tick\n",
+                numOps, scanSeconds, timedOut, scanSeconds * spanTicks, spanTicks);
+    }
+
+    public static void main(String[] args) {
+        try {
+            OpTimeoutWheelBenchmark benchmark;
+            int numOps;
+            int spanTicks;
+
+            numOps = args.length > 0 ? Integer.parseInt(args[0]) : defaultNumOps;
+            spanTicks = args.length > 1 ? Integer.parseInt(args[1]) : defaultSpanTicks;
+            benchmark = new OpTimeoutWheelBenchmark(numOps, spanTicks);
+            for (int i = 0; i < 2; i++) {
+                benchmark.runWheel();
+            }
+            benchmark.runScan();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
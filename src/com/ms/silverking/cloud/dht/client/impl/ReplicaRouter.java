@@ -0,0 +1,439 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.collect.ImmutableMap;
+import com.ms.silverking.cloud.common.OwnerQueryMode;
+import com.ms.silverking.cloud.dht.client.ChecksumType;
+import com.ms.silverking.cloud.dht.client.ClientDHTConfiguration;
+import com.ms.silverking.cloud.dht.client.Namespace;
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.MessageType;
+import com.ms.silverking.cloud.dht.meta.DHTMetaReader;
+import com.ms.silverking.cloud.dht.meta.DHTMetaUpdate;
+import com.ms.silverking.cloud.dht.meta.DHTRingCurTargetListener;
+import com.ms.silverking.cloud.dht.meta.DHTRingCurTargetWatcher;
+import com.ms.silverking.cloud.dht.net.ForwardingMode;
+import com.ms.silverking.cloud.dht.net.MessageGroup;
+import com.ms.silverking.cloud.dht.net.MessageGroupKeyEntry;
+import com.ms.silverking.cloud.dht.net.MessageGroupPutEntry;
+import com.ms.silverking.cloud.dht.net.ProtoPutForwardMessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoPutMessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoRetrievalMessageGroup;
+import com.ms.silverking.cloud.dht.net.protocol.KeyValueMessageFormat;
+import com.ms.silverking.cloud.meta.ExclusionSet;
+import com.ms.silverking.cloud.meta.ExclusionZK;
+import com.ms.silverking.cloud.meta.ServerSetExtensionZK;
+import com.ms.silverking.cloud.meta.VersionListener;
+import com.ms.silverking.cloud.meta.VersionWatcher;
+import com.ms.silverking.cloud.toporing.ResolvedReplicaMap;
+import com.ms.silverking.cloud.zookeeper.ZooKeeperConfig;
+import com.ms.silverking.collection.Triple;
+import com.ms.silverking.log.Log;
+import com.ms.silverking.net.AddrAndPort;
+import com.ms.silverking.net.IPAndPort;
+import com.ms.silverking.thread.ThreadUtil;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Routes client put and retrieval messages directly to the primary replica of each key
+ * instead of sending every message to the session's proxy server.
+ *
+ * Messages are split by the primary replica of each key. Each sub-message retains the operation
+ * UUID and the FORWARD forwarding mode so that the receiving replica acts as the proxy for the keys
+ * that it owns: storing or retrieving locally and forwarding to any other replicas. As a result,
+ * routing with a stale ring costs an additional hop, but does not affect correctness.
+ *
+ * Routing is only used while the current and target rings match. While a ring transition is in
+ * progress, or until the ring has been read, route() returns null and the caller falls back to
+ * sending the message to the proxy server.
+ *
+ * As in NodeRingMaster2, replicas in the cloud or instance ExclusionSet are not used. Keys whose
+ * primary replicas are all excluded are sent to the proxy server. Both exclusion sets are watched,
+ * and the routing table is rebuilt when either changes.
+ *
+ * ZooKeeper watcher callbacks only schedule an update; rings and exclusion sets are read by a
+ * single updater thread.
+ */
+class ReplicaRouter implements DHTRingCurTargetListener, VersionListener {
+    private final DHTMetaReader             dhtMetaReader;
+    private final ZooKeeperConfig           zkConfig;
+    private final com.ms.silverking.cloud.dht.meta.MetaClient	dhtMC;
+    private final ExecutorService           updateExecutor;
+    private final AtomicBoolean             updatePending;
+    private final DHTRingCurTargetWatcher   dhtRingCurTargetWatcher;
+    private final VersionWatcher            instanceExclusionWatcher;
+    private final int                       serverPort;
+    private volatile Triple<String,Long,Long>   curRingAndVersionPair;
+    private volatile Triple<String,Long,Long>   targetRingAndVersionPair;
+    private volatile RoutingTable           routingTable;
+    // accessed only by the updater thread
+    private Triple<String,Long,Long>        ringAndVersionPair;
+    private ResolvedReplicaMap              replicaMap;
+    private com.ms.silverking.cloud.meta.MetaClient	cloudMC;
+    private VersionWatcher                  exclusionWatcher;
+
+    private static final int    exclusionCheckInitialIntervalMillis = 0;
+    private static final int    exclusionCheckIntervalMillis = 1 * 60 * 1000;
+
+    public static final String  replicaRoutingEnabledProperty = ReplicaRouter.class.getPackage().getName() + ".ReplicaRoutingEnabled";
+    public static final boolean defaultReplicaRoutingEnabled = false;
+    static final boolean    replicaRoutingEnabled;
+
+    static {
+        replicaRoutingEnabled = PropertiesHelper.systemHelper.getBoolean(replicaRoutingEnabledProperty, defaultReplicaRoutingEnabled);
+    }
+
+    /*
+     * Dynamic namespaces are computed by the receiving node and must not be routed.
+     */
+    private static final Set<Long>  unroutableContexts;
+
+    static {
+        SimpleNamespaceCreator  nsCreator;
+
+        nsCreator = new SimpleNamespaceCreator();
+        unroutableContexts = new HashSet<>();
+        unroutableContexts.add(nsCreator.createNamespace(Namespace.nodeName).contextAsLong());
+        unroutableContexts.add(nsCreator.createNamespace(Namespace.replicasName).contextAsLong());
+        unroutableContexts.add(nsCreator.createNamespace(Namespace.systemName).contextAsLong());
+    }
+
+    /**
+     * @param dhtConfig the DHT configuration
+     * @param serverPort the port used by all servers in the DHT
+     * @throws IOException
+     * @throws KeeperException
+     */
+    ReplicaRouter(ClientDHTConfiguration dhtConfig, int serverPort) throws IOException, KeeperException {
+        this.serverPort = serverPort;
+        zkConfig = dhtConfig.getZKConfig();
+        dhtMetaReader = new DHTMetaReader(zkConfig, dhtConfig.getName(), false);
+        dhtMC = dhtMetaReader.getMetaClient();
+        updateExecutor = Executors.newSingleThreadExecutor(r -> ThreadUtil.newDaemonThread(r, "ReplicaRouterUpdater"));
+        updatePending = new AtomicBoolean();
+        // The watchers deliver the current values shortly after creation; until then we fall back to the proxy
+        dhtRingCurTargetWatcher = new DHTRingCurTargetWatcher(dhtMC, dhtConfig.getName(),
+                                                              dhtMetaReader.getDHTConfig(), this);
+        dhtRingCurTargetWatcher.startTargetRingWatcher();
+        instanceExclusionWatcher = new VersionWatcher(dhtMC, dhtMC.getMetaPaths().getInstanceExclusionsPath(), this, 
+                                                      exclusionCheckIntervalMillis, exclusionCheckInitialIntervalMillis);
+    }
+
+    void close() {
+        dhtRingCurTargetWatcher.stop();
+        instanceExclusionWatcher.stop();
+        try {
+            updateExecutor.execute(() -> {
+                if (exclusionWatcher != null) {
+                    exclusionWatcher.stop();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // already closed
+        }
+        updateExecutor.shutdown();
+    }
+
+    @Override
+    public void newCurRingAndVersion(Triple<String,Long,Long> curRingAndVersionPair) {
+        this.curRingAndVersionPair = curRingAndVersionPair;
+        scheduleUpdate();
+    }
+
+    @Override
+    public void newTargetRingAndVersion(Triple<String,Long,Long> targetRingAndVersionPair) {
+        this.targetRingAndVersionPair = targetRingAndVersionPair;
+        scheduleUpdate();
+    }
+
+    /**
+     * Called when the cloud or instance ExclusionSet changes
+     */
+    @Override
+    public void newVersion(String basePath, long version) {
+        Log.warningf("ReplicaRouter ExclusionSet change detected: %s %d", basePath, version);
+        scheduleUpdate();
+    }
+
+    /**
+     * Schedule an update of the routing table unless one is already pending. Updates read the latest
+     * values when they run, so changes that arrive while an update is pending are not lost.
+     */
+    private void scheduleUpdate() {
+        if (updatePending.compareAndSet(false, true)) {
+            try {
+                updateExecutor.execute(this::updateRoutingTable);
+            } catch (RejectedExecutionException ree) {
+                // closed
+            }
+        }
+    }
+
+    // called only by the updater thread
+    private void updateRoutingTable() {
+        Triple<String,Long,Long>    _curRingAndVersionPair;
+        Triple<String,Long,Long>    _targetRingAndVersionPair;
+
+        updatePending.set(false);
+        _curRingAndVersionPair = curRingAndVersionPair;
+        _targetRingAndVersionPair = targetRingAndVersionPair;
+        if (_curRingAndVersionPair != null && _curRingAndVersionPair.equals(_targetRingAndVersionPair)) {
+            try {
+                ExclusionSet    exclusionSet;
+
+                if (replicaMap == null || !ringAndVersionPair.equals(_curRingAndVersionPair)) {
+                    readRing(_curRingAndVersionPair);
+                }
+                exclusionSet = readExclusionSet();
+                routingTable = new RoutingTable(_curRingAndVersionPair, replicaMap, exclusionSet, serverPort);
+                Log.warningf("ReplicaRouter routing with ring %s exclusions %s", _curRingAndVersionPair, exclusionSet);
+            } catch (Exception e) {
+                routingTable = null;
+                replicaMap = null;
+                Log.logErrorWarning(e, "ReplicaRouter unable to read ring "+ _curRingAndVersionPair
+                                    +". Sending all operations to the proxy.");
+            }
+        } else {
+            if (routingTable != null) {
+                Log.warningf("ReplicaRouter ring transition %s -> %s. Sending all operations to the proxy.",
+                             _curRingAndVersionPair, _targetRingAndVersionPair);
+            }
+            routingTable = null;
+        }
+    }
+
+    /**
+     * Read the given ring, and watch the cloud ExclusionSet of the ring's cloud configuration
+     */
+    private void readRing(Triple<String,Long,Long> _ringAndVersionPair) throws KeeperException, IOException {
+        DHTMetaUpdate       dhtMetaUpdate;
+
+        dhtMetaUpdate = dhtMetaReader.readRing(_ringAndVersionPair);
+        replicaMap = dhtMetaUpdate.getRingTree().getResolvedMap(
+                dhtMetaUpdate.getNamedRingConfiguration().getRingConfiguration().getRingParentName(), null);
+        ringAndVersionPair = _ringAndVersionPair;
+        if (exclusionWatcher != null) {
+            exclusionWatcher.stop();
+        }
+        cloudMC = new com.ms.silverking.cloud.toporing.meta.MetaClient(dhtMetaUpdate.getNamedRingConfiguration(), 
+                                                                      zkConfig).createCloudMC();
+        exclusionWatcher = new VersionWatcher(cloudMC, cloudMC.getMetaPaths().getExclusionsPath(), this, 
+                                              exclusionCheckIntervalMillis, exclusionCheckInitialIntervalMillis);
+    }
+
+    /**
+     * @return the union of the latest cloud and instance ExclusionSets
+     */
+    private ExclusionSet readExclusionSet() {
+        ExclusionSet    exclusionSet;
+        ExclusionSet    instanceExclusionSet;
+
+        try {
+            exclusionSet = new ExclusionZK(cloudMC).readLatestFromZK();
+        } catch (Exception e) {
+            Log.warning("ReplicaRouter found no ExclusionSet. Using empty set.");
+            exclusionSet = ExclusionSet.emptyExclusionSet(0);
+        }
+        try {
+            instanceExclusionSet = new ExclusionSet(new ServerSetExtensionZK<>(dhtMC,
+                                                    dhtMC.getMetaPaths().getInstanceExclusionsPath()).readLatestFromZK());
+        } catch (Exception e) {
+            Log.warning("ReplicaRouter found no instance ExclusionSet. Using empty set.");
+            instanceExclusionSet = ExclusionSet.emptyExclusionSet(0);
+        }
+        return ExclusionSet.union(exclusionSet, instanceExclusionSet);
+    }
+
+    /**
+     * Split the given message by the primary replica of each key
+     * @param messageGroup
+     * @return a map of destination to message, or null if the message should be sent to the proxy
+     */
+    Map<AddrAndPort,MessageGroup> route(MessageGroup messageGroup) {
+        RoutingTable    _routingTable;
+
+        _routingTable = routingTable;
+        if (_routingTable == null || !isRoutable(messageGroup)) {
+            return null;
+        } else {
+            return split(messageGroup, _routingTable);
+        }
+    }
+
+    private static boolean isRoutable(MessageGroup messageGroup) {
+        if (messageGroup.getForwardingMode() != ForwardingMode.FORWARD
+                || unroutableContexts.contains(messageGroup.getContext())) {
+            return false;
+        } else {
+            switch (messageGroup.getMessageType()) {
+            case PUT:
+                // Without a version, each proxy would assign its own
+                return ProtoPutMessageGroup.getPutVersion(messageGroup) != DHTConstants.unspecifiedVersion
+                        && buffersAreSplittable(messageGroup);
+            case RETRIEVE:
+                return true;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /*
+     * MessageGroupKVEntry creates views of values using buffer arrays directly. This is only
+     * valid for buffers that are direct, or that are heap buffers that begin at the start of their array.
+     */
+    private static boolean buffersAreSplittable(MessageGroup messageGroup) {
+        for (ByteBuffer buffer : messageGroup.getBuffers()) {
+            if (!buffer.isDirect() && (!buffer.hasArray() || buffer.arrayOffset() != 0 || buffer.position() != 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Map<AddrAndPort,MessageGroup> split(MessageGroup messageGroup, RoutingTable routingTable) {
+        if (messageGroup.getMessageType() == MessageType.PUT) {
+            return splitPut(messageGroup, routingTable);
+        } else {
+            return splitRetrieval(messageGroup, routingTable);
+        }
+    }
+
+    private static Map<AddrAndPort,MessageGroup> splitPut(MessageGroup messageGroup, RoutingTable routingTable) {
+        Map<AddrAndPort,List<MessageGroupKeyEntry>> destEntries;
+        ChecksumType    checksumType;
+
+        checksumType = ProtoPutMessageGroup.getChecksumType(messageGroup);
+        destEntries = new HashMap<>();
+        for (MessageGroupPutEntry entry : messageGroup.getPutValueKeyIterator(checksumType)) {
+            if (!addEntry(destEntries, routingTable.getPrimaryReplica(entry), entry)) {
+                return null;
+            }
+        }
+        if (destEntries.size() == 1) {
+            return ImmutableMap.of(destEntries.keySet().iterator().next(), messageGroup);
+        } else {
+            Map<AddrAndPort,MessageGroup>   messageGroups;
+            ByteBuffer  optionsByteBuffer;
+
+            optionsByteBuffer = messageGroup.getBuffers()[KeyValueMessageFormat.optionBufferIndex];
+            messageGroups = new HashMap<>();
+            for (Map.Entry<AddrAndPort,List<MessageGroupKeyEntry>> entry : destEntries.entrySet()) {
+                ProtoPutForwardMessageGroup protoMG;
+
+                protoMG = new ProtoPutForwardMessageGroup(messageGroup.getUUID(), messageGroup.getContext(),
+                                messageGroup.getOriginator(), optionsByteBuffer, entry.getValue(), checksumType,
+                                messageGroup.getDeadlineRelativeMillis(), ForwardingMode.FORWARD);
+                messageGroups.put(entry.getKey(), protoMG.toMessageGroup());
+            }
+            return messageGroups;
+        }
+    }
+
+    private static Map<AddrAndPort,MessageGroup> splitRetrieval(MessageGroup messageGroup, RoutingTable routingTable) {
+        Map<AddrAndPort,List<DHTKey>>   destEntries;
+
+        destEntries = new HashMap<>();
+        for (MessageGroupKeyEntry entry : messageGroup.getKeyIterator()) {
+            if (!addEntry(destEntries, routingTable.getPrimaryReplica(entry), entry)) {
+                return null;
+            }
+        }
+        if (destEntries.size() == 1) {
+            return ImmutableMap.of(destEntries.keySet().iterator().next(), messageGroup);
+        } else {
+            Map<AddrAndPort,MessageGroup>   messageGroups;
+
+            messageGroups = new HashMap<>();
+            for (Map.Entry<AddrAndPort,List<DHTKey>> entry : destEntries.entrySet()) {
+                ProtoRetrievalMessageGroup  protoMG;
+
+                protoMG = new ProtoRetrievalMessageGroup(messageGroup.getUUID(), messageGroup.getContext(),
+                                ProtoRetrievalMessageGroup.getRetrievalOptions(messageGroup),
+                                messageGroup.getOriginator(), entry.getValue(),
+                                messageGroup.getDeadlineRelativeMillis(), ForwardingMode.FORWARD);
+                messageGroups.put(entry.getKey(), protoMG.toMessageGroup());
+            }
+            return messageGroups;
+        }
+    }
+
+    /**
+     * @return false if the entry has no replica
+     */
+    private static <T> boolean addEntry(Map<AddrAndPort,List<T>> destEntries, AddrAndPort replica, T entry) {
+        if (replica == null) {
+            return false;
+        } else {
+            List<T> entries;
+
+            entries = destEntries.get(replica);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                destEntries.put(replica, entries);
+            }
+            entries.add(entry);
+            return true;
+        }
+    }
+
+    /**
+     * A ResolvedReplicaMap together with the server address of each non-excluded replica.
+     * ResolvedReplicaMap replicas carry the port of the local daemon, which is not
+     * meaningful in a client, so each replica is mapped to the DHT's server port.
+     */
+    static class RoutingTable {
+        private final Triple<String,Long,Long>  ringAndVersionPair;
+        private final ResolvedReplicaMap        replicaMap;
+        private final Map<IPAndPort,AddrAndPort>    servers;
+
+        RoutingTable(Triple<String,Long,Long> ringAndVersionPair, ResolvedReplicaMap replicaMap, 
+                     ExclusionSet exclusionSet, int serverPort) {
+            Map<IPAndPort,AddrAndPort>  _servers;
+
+            this.ringAndVersionPair = ringAndVersionPair;
+            this.replicaMap = replicaMap;
+            _servers = new HashMap<>();
+            for (IPAndPort replica : exclusionSet.filterByIP(replicaMap.allReplicas())) {
+                _servers.put(replica, new IPAndPort(replica.getIP(), serverPort));
+            }
+            servers = Collections.unmodifiableMap(_servers);
+        }
+
+        Triple<String,Long,Long> getRingAndVersionPair() {
+            return ringAndVersionPair;
+        }
+
+        /**
+         * @return the server address of the key's first non-excluded primary replica, or null if the key 
+         * has no such replica
+         */
+        AddrAndPort getPrimaryReplica(DHTKey key) {
+            for (IPAndPort primaryReplica : replicaMap.getReplicaList(key, OwnerQueryMode.Primary)) {
+                AddrAndPort server;
+
+                server = servers.get(primaryReplica);
+                if (server != null) {
+                    return server;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import com.ms.silverking.cloud.dht.client.ScanException;
+
+class ScanExceptionImpl extends ScanException {
+    private static final long serialVersionUID = 6996543844258614995L;
+
+    public ScanExceptionImpl(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ScanExceptionImpl(String message) {
+        super(message);
+    }
+
+    public ScanExceptionImpl(Throwable cause) {
+        super(cause);
+    }
+
+    public ScanExceptionImpl() {
+        super();
+    }
+
+    @Override
+    public String getDetailedFailureMessage() {
+        return super.getMessage();
+    }
+}
@@ -0,0 +1,43 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import com.ms.silverking.cloud.dht.OperationOptions;
+import com.ms.silverking.cloud.dht.client.OpTimeoutController;
+import com.ms.silverking.cloud.dht.client.SimpleTimeoutController;
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+
+/**
+ * Retrieves a single page of a key scan. See ProtoScanMessageGroup.
+ */
+class ScanOperation extends NamespaceOperation {
+    private final long      minCoordinate;
+    private final DHTKey    afterKey;
+    private final int       maxKeys;
+    
+    // FUTURE - get from ns etc. like put/get
+    private static final OpTimeoutController    opTimeoutController = new SimpleTimeoutController(5, 2 * 60 * 1000); 
+    
+    ScanOperation(ClientNamespace namespace, long minCoordinate, DHTKey afterKey, int maxKeys) {
+        super(ClientOpType.SCAN, namespace, new OperationOptions(opTimeoutController, DHTConstants.noSecondaryTargets));
+        this.minCoordinate = minCoordinate;
+        this.afterKey = afterKey;
+        this.maxKeys = maxKeys;
+    }
+    
+    long getMinCoordinate() {
+        return minCoordinate;
+    }
+    
+    DHTKey getAfterKey() {
+        return afterKey;
+    }
+    
+    int getMaxKeys() {
+        return maxKeys;
+    }
+
+    @Override
+    OpTimeoutController getTimeoutController() {
+        return opTimeoutController;
+    }
+}
@@ -29,6 +29,10 @@ public class SegmentationUtil {
         return (valueSize - 1) / segmentSize + 1;
     }
     
+    static long getNumSegments(long valueSize, int segmentSize) {
+        return valueSize == 0 ? 1 : (valueSize - 1) / segmentSize + 1;
+    }
+    
     static byte[] getCreatorBytes(ByteBuffer buf) {
         byte[]  creatorBytes;
         int     dataStart;
@@ -84,6 +88,39 @@ public class SegmentationUtil {
         return checksum;
     }
     
+    /**
+     * Streamed values are never compressed as a whole, and may exceed the maximum array size. Their
+     * index is a standard index followed by the length of the value as a long. Values that exceed
+     * the maximum array size have a standard index length of -1.
+     * @param buf a segmented value index
+     * @return the length of the value if it was streamed, otherwise the stored length
+     */
+    static long getStreamedLength(ByteBuffer buf) {
+        int streamedLengthOffset;
+        
+        streamedLengthOffset = checksumOffset + getChecksumType(buf).length();
+        if (buf.remaining() >= streamedLengthOffset + NumConversion.BYTES_PER_LONG) {
+            return buf.getLong(buf.position() + streamedLengthOffset);
+        } else {
+            return getStoredLength(buf);
+        }
+    }
+    
+    static ByteBuffer createStreamedSegmentMetaDataBuffer(byte[] creatorBytes, long length,  
+                                                          ChecksumType checksumType, byte[] checksum) {
+        ByteBuffer  indexBuffer;
+        ByteBuffer  segmentMetaDataBuffer;
+        int         indexLength;
+        
+        indexLength = length <= Integer.MAX_VALUE ? (int)length : -1;
+        indexBuffer = createSegmentMetaDataBuffer(creatorBytes, indexLength, indexLength, checksumType, checksum);
+        indexBuffer.flip();
+        segmentMetaDataBuffer = ByteBuffer.allocate(indexBuffer.remaining() + NumConversion.BYTES_PER_LONG);
+        segmentMetaDataBuffer.put(indexBuffer);
+        segmentMetaDataBuffer.putLong(length);
+        return segmentMetaDataBuffer;
+    }
+    
     static ByteBuffer createSegmentMetaDataBuffer(byte[] creatorBytes, int storedLength, int uncompressedLength, 
                                                   ChecksumType checksumType, byte[] checksum) {
         ByteBuffer  segmentMetaDataBuffer;
@@ -1,5 +1,11 @@
 package com.ms.silverking.cloud.dht.client.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 import java.util.Set;
 
@@ -92,6 +98,26 @@ class SynchronousNamespacePerspectiveImpl<K,V> extends BaseNamespacePerspectiveI
 	    }
 	}
 
+	@Override
+	public long get(K key, WritableByteChannel dest, GetOptions getOptions) throws RetrievalException, IOException {
+		return new ValueStreamer<>(clientNamespace, nspoImpl).get(key, dest, getOptions);
+	}
+	
+	@Override
+	public long get(K key, WritableByteChannel dest) throws RetrievalException, IOException {
+		return get(key, dest, nspoImpl.getDefaultGetOptions());
+	}
+	
+	@Override
+	public long get(K key, OutputStream out, GetOptions getOptions) throws RetrievalException, IOException {
+		return get(key, Channels.newChannel(out), getOptions);
+	}
+	
+	@Override
+	public long get(K key, OutputStream out) throws RetrievalException, IOException {
+		return get(key, out, nspoImpl.getDefaultGetOptions());
+	}
+
 	@Override
 	public Map<K, ? extends StoredValue<V>> waitFor(Set<? extends K> keys,
 			WaitOptions waitOptions) throws RetrievalException {
@@ -141,6 +167,26 @@ class SynchronousNamespacePerspectiveImpl<K,V> extends BaseNamespacePerspectiveI
 		put(key, value, nspoImpl.getDefaultPutOptions());
 	}
 	
+	@Override
+	public long put(K key, ReadableByteChannel src, PutOptions putOptions) throws PutException, IOException {
+		return new ValueStreamer<>(clientNamespace, nspoImpl).put(key, src, putOptions);
+	}
+	
+	@Override
+	public long put(K key, ReadableByteChannel src) throws PutException, IOException {
+		return put(key, src, nspoImpl.getDefaultPutOptions());
+	}
+	
+	@Override
+	public long put(K key, InputStream in, PutOptions putOptions) throws PutException, IOException {
+		return put(key, Channels.newChannel(in), putOptions);
+	}
+	
+	@Override
+	public long put(K key, InputStream in) throws PutException, IOException {
+		return put(key, in, nspoImpl.getDefaultPutOptions());
+	}
+	
 	public void invalidate(Set<? extends K> keys, InvalidationOptions invalidationOptions) throws InvalidationException {
 		try {
 			baseInvalidation(keys, invalidationOptions, nspoImpl.getValueSerializer(), opLWTMode).waitForCompletion();
@@ -0,0 +1,230 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed hierarchical timing wheel. Entries are added with an absolute deadline measured in ticks
+ * and are passed to an expiration handler when the wheel is advanced past their deadline.
+ *
+ * The wheel consists of numLevels levels of slotsPerLevel slots. Level 0 slots span a single tick;
+ * each slot of level l spans slotsPerLevel^l ticks. An entry is placed in the lowest level that
+ * can hold its deadline and is cascaded to lower levels as the wheel advances, so that add and
+ * remove are O(1) and advancing the wheel is proportional to the number of ticks advanced plus the
+ * number of entries expired or cascaded. Deadlines beyond the span of the wheel are held in the top
+ * level and re-inserted when their slot is cascaded.
+ *
+ * Not thread safe.
+ */
+class TimingWheel<T> {
+    private final Entry<T>[][]  slots;
+    private long    currentTick; // the next tick to be expired
+    private int     size;
+
+    private static final int    slotBits = 8;
+    private static final int    slotsPerLevel = 1 << slotBits;
+    private static final int    slotMask = slotsPerLevel - 1;
+    private static final int    numLevels = 4;
+    private static final long   maxDelta = (1L << (slotBits * numLevels)) - 1;
+
+    TimingWheel(long currentTick) {
+        @SuppressWarnings("unchecked")
+        Entry<T>[][]    _slots = (Entry<T>[][])new Entry<?>[numLevels][slotsPerLevel];
+
+        slots = _slots;
+        this.currentTick = currentTick;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Move the current tick forward without expiring any entries. Only valid when the wheel is empty.
+     * @param tick
+     */
+    void skipTo(long tick) {
+        if (size != 0) {
+            throw new IllegalStateException("Can't skip a non-empty wheel");
+        }
+        if (tick > currentTick) {
+            currentTick = tick;
+        }
+    }
+
+    /**
+     * Add an entry. Deadlines that have already passed expire on the next advance.
+     * @param deadlineTick
+     * @param value
+     * @return the entry, which may be passed to remove()
+     */
+    Entry<T> add(long deadlineTick, T value) {
+        Entry<T>    entry;
+
+        entry = new Entry<>(deadlineTick, value);
+        insert(entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Remove an entry that has not yet expired. Removal of an expired or removed entry is ignored.
+     * @param entry
+     */
+    void remove(Entry<T> entry) {
+        if (entry.level >= 0) {
+            unlink(entry);
+            size--;
+        }
+    }
+
+    /**
+     * Expire all entries with deadlines <= tick.
+     * @param tick
+     * @param expirationHandler
+     * @return the number of entries expired
+     */
+    int advance(long tick, Consumer<T> expirationHandler) {
+        int expired;
+
+        expired = 0;
+        while (currentTick <= tick) {
+            Entry<T>    entry;
+            long        expiringTick;
+
+            if (size == 0) {
+                currentTick = tick + 1;
+                break;
+            }
+            if ((currentTick & slotMask) == 0) {
+                cascade();
+            }
+            expiringTick = currentTick;
+            entry = detach(0, (int)(expiringTick & slotMask));
+            // advance before handling so that entries added by the handler land in future slots
+            currentTick++;
+            while (entry != null) {
+                Entry<T>    next;
+
+                next = entry.next;
+                entry.next = null;
+                if (entry.deadlineTick <= expiringTick) {
+                    size--;
+                    expired++;
+                    expirationHandler.accept(entry.value);
+                } else {
+                    insert(entry);
+                }
+                entry = next;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Move entries from higher levels into lower levels at a level 0 wrap. A level is cascaded when
+     * the index of every level below it has wrapped.
+     */
+    private void cascade() {
+        for (int level = 1; level < numLevels; level++) {
+            int         index;
+            Entry<T>    entry;
+
+            index = (int)(currentTick >>> (slotBits * level)) & slotMask;
+            entry = detach(level, index);
+            while (entry != null) {
+                Entry<T>    next;
+
+                next = entry.next;
+                entry.next = null;
+                insert(entry);
+                entry = next;
+            }
+            if (index != 0) {
+                break;
+            }
+        }
+    }
+
+    private void insert(Entry<T> entry) {
+        long    delta;
+        long    slotTick;
+        int     level;
+        int     index;
+
+        delta = Math.max(entry.deadlineTick - currentTick, 0);
+        if (delta > maxDelta) {
+            // hold in the top level; re-inserted when cascaded
+            delta = maxDelta;
+        }
+        slotTick = currentTick + delta;
+        level = 0;
+        while (level < numLevels - 1 && delta >= (1L << (slotBits * (level + 1)))) {
+            level++;
+        }
+        index = (int)(slotTick >>> (slotBits * level)) & slotMask;
+        entry.level = (byte)level;
+        entry.index = index;
+        entry.prev = null;
+        entry.next = slots[level][index];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[level][index] = entry;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.level][entry.index] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.level = -1;
+    }
+
+    /**
+     * Remove the list from the given slot. Entries retain their next links so that the list
+     * may be walked.
+     */
+    private Entry<T> detach(int level, int index) {
+        Entry<T>    head;
+
+        head = slots[level][index];
+        slots[level][index] = null;
+        for (Entry<T> entry = head; entry != null; entry = entry.next) {
+            entry.prev = null;
+            entry.level = -1;
+        }
+        return head;
+    }
+
+    static final class Entry<T> {
+        private final long  deadlineTick;
+        private final T     value;
+        private Entry<T>    prev;
+        private Entry<T>    next;
+        private byte        level;
+        private int         index;
+
+        private Entry(long deadlineTick, T value) {
+            this.deadlineTick = deadlineTick;
+            this.value = value;
+        }
+
+        long getDeadlineTick() {
+            return deadlineTick;
+        }
+
+        T getValue() {
+            return value;
+        }
+    }
+}
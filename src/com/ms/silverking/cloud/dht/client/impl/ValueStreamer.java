@@ -0,0 +1,280 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.ms.silverking.cloud.dht.GetOptions;
+import com.ms.silverking.cloud.dht.NamespacePerspectiveOptions;
+import com.ms.silverking.cloud.dht.NonExistenceResponse;
+import com.ms.silverking.cloud.dht.PutOptions;
+import com.ms.silverking.cloud.dht.RetrievalType;
+import com.ms.silverking.cloud.dht.client.ChecksumType;
+import com.ms.silverking.cloud.dht.client.Compression;
+import com.ms.silverking.cloud.dht.client.DHTClient;
+import com.ms.silverking.cloud.dht.client.FailureCause;
+import com.ms.silverking.cloud.dht.client.OperationState;
+import com.ms.silverking.cloud.dht.client.PutException;
+import com.ms.silverking.cloud.dht.client.RetrievalException;
+import com.ms.silverking.cloud.dht.client.StoredValue;
+import com.ms.silverking.cloud.dht.client.impl.ClientNamespace.OpLWTMode;
+import com.ms.silverking.cloud.dht.client.serialization.ByteBufferSerDes;
+import com.ms.silverking.cloud.dht.client.serialization.internal.DHTKeyKeyCreator;
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.MetaDataConstants;
+import com.ms.silverking.util.ArrayUtil;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Streams values to and from the DHT using memory bounded by the number of segments in flight.
+ *
+ * Streamed values use the same format as values segmented by AsyncPutOperationImpl: segments are
+ * stored under the subkeys of the value's key and the index is stored under the key itself. The
+ * index is written only after all segments have been stored. Streams that fit within a single
+ * segment are stored as ordinary values.
+ *
+ * Segments of a streamed value are never compressed since the value is not available as a whole.
+ * Streams consist of the serialized form of values; for byte[] values this is the value itself.
+ */
+class ValueStreamer<K> {
+    private final ClientNamespace   clientNamespace;
+    private final NamespacePerspectiveOptionsImpl<K,?>  nspoImpl;
+    private final NamespacePerspectiveOptionsImpl<DHTKey,ByteBuffer>    segmentNSPOImpl;
+    private final KeyCreator<DHTKey>    segmentKeyCreator;
+
+    private static final OpLWTMode  opLWTMode = OpLWTMode.DisallowUserThreadUsage;
+
+    static final String segmentsInFlightProperty = ValueStreamer.class.getPackage().getName() + ".StreamSegmentsInFlight";
+    static final int    defaultSegmentsInFlight = 4;
+    private static final int    segmentsInFlight;
+
+    static {
+        segmentsInFlight = Math.max(PropertiesHelper.systemHelper.getInt(segmentsInFlightProperty, defaultSegmentsInFlight), 1);
+    }
+
+    ValueStreamer(ClientNamespace clientNamespace, NamespacePerspectiveOptionsImpl<K,?> nspoImpl) {
+        NamespacePerspectiveOptions<K,?>    nspOptions;
+
+        nspOptions = nspoImpl.getNSPOptions();
+        if (nspOptions.getEncrypterDecrypter() != null) {
+            throw new UnsupportedOperationException("Streaming is not supported for encrypted values");
+        }
+        this.clientNamespace = clientNamespace;
+        this.nspoImpl = nspoImpl;
+        segmentKeyCreator = new DHTKeyKeyCreator();
+        segmentNSPOImpl = new NamespacePerspectiveOptionsImpl<>(
+                new NamespacePerspectiveOptions<>(DHTKey.class, ByteBuffer.class, nspOptions.getKeyDigestType(),
+                                                  DHTConstants.standardPutOptions,
+                                                  DHTConstants.standardInvalidationOptions,
+                                                  DHTConstants.standardGetOptions,
+                                                  DHTConstants.standardWaitOptions,
+                                                  nspOptions.getDefaultVersionProvider(), null),
+                segmentKeyCreator, new ByteBufferSerDes());
+    }
+
+    /**
+     * Store the contents of src as the value of key. src is read until end of stream.
+     * @param key
+     * @param src a blocking channel
+     * @param putOptions
+     * @return the number of bytes stored
+     * @throws PutException
+     * @throws IOException
+     */
+    long put(K key, ReadableByteChannel src, PutOptions putOptions) throws PutException, IOException {
+        DHTKey      dhtKey;
+        long        version;
+        ByteBuffer  segment;
+        boolean     endOfStream;
+        PutOptions  segmentPutOptions;
+        Checksum    checksum;
+        byte[]      valueChecksum;
+        Deque<AsyncPutOperationImpl<DHTKey,ByteBuffer>>    inFlight;
+        long        length;
+        int         numSegments;
+        ByteBuffer  index;
+
+        dhtKey = nspoImpl.getKeyCreator().createKey(key);
+        // all segments and the index must share a single version
+        version = putOptions.getVersion();
+        if (version == PutOptions.defaultVersion) {
+            version = nspoImpl.getNSPOptions().getDefaultVersionProvider().getVersion();
+        }
+        putOptions = putOptions.version(version);
+
+        segment = ByteBuffer.allocate(SegmentationUtil.maxValueSegmentSize);
+        endOfStream = fill(src, segment);
+        segment.flip();
+        if (endOfStream) {
+            startPut(dhtKey, segment, putOptions, DHTClient.getValueCreator().getBytes()).waitForCompletion();
+            return segment.limit();
+        }
+
+        segmentPutOptions = putOptions.compression(Compression.NONE);
+        checksum = ChecksumProvider.getChecksum(putOptions.getChecksumType());
+        valueChecksum = new byte[putOptions.getChecksumType().length()];
+        inFlight = new ArrayDeque<>(segmentsInFlight);
+        length = 0;
+        numSegments = 0;
+        while (segment.hasRemaining()) {
+            if (putOptions.getChecksumType() != ChecksumType.NONE) {
+                ArrayUtil.xor(valueChecksum, checksum.checksum(segment.duplicate()));
+            }
+            length += segment.remaining();
+            if (inFlight.size() >= segmentsInFlight) {
+                inFlight.removeFirst().waitForCompletion();
+            }
+            inFlight.addLast(startPut(segmentKeyCreator.createSubKey(dhtKey, numSegments), segment,
+                                      segmentPutOptions, DHTClient.getValueCreator().getBytes()));
+            numSegments++;
+            if (endOfStream) {
+                break;
+            }
+            segment = ByteBuffer.allocate(SegmentationUtil.maxValueSegmentSize);
+            endOfStream = fill(src, segment);
+            segment.flip();
+        }
+        while (!inFlight.isEmpty()) {
+            inFlight.removeFirst().waitForCompletion();
+        }
+
+        index = SegmentationUtil.createStreamedSegmentMetaDataBuffer(DHTClient.getValueCreator().getBytes(),
+                        length, putOptions.getChecksumType(), valueChecksum);
+        index.flip();
+        startPut(dhtKey, index, segmentPutOptions, MetaDataConstants.segmentationBytes).waitForCompletion();
+        return length;
+    }
+
+    /**
+     * Write the value of key to dest.
+     * @param key
+     * @param dest a blocking channel
+     * @param getOptions
+     * @return the number of bytes written, or -1 if no value was found
+     * @throws RetrievalException
+     * @throws IOException
+     */
+    long get(K key, WritableByteChannel dest, GetOptions getOptions) throws RetrievalException, IOException {
+        DHTKey      dhtKey;
+        StoredValue<ByteBuffer> storedIndex;
+        ByteBuffer  index;
+        long        length;
+        long        numSegments;
+        long        nextSegment;
+        GetOptions  segmentGetOptions;
+        Deque<AsyncRetrievalOperationImpl<DHTKey,ByteBuffer>>  inFlight;
+        long        written;
+
+        dhtKey = nspoImpl.getKeyCreator().createKey(key);
+        storedIndex = retrieve(dhtKey, getOptions.retrievalType(RetrievalType.VALUE_AND_META_DATA), false);
+        if (storedIndex == null) {
+            return -1;
+        }
+        if (!Arrays.equals(storedIndex.getMetaData().getCreator().getBytes(), MetaDataConstants.segmentationBytes)) {
+            // not segmented
+            return writeFully(dest, storedIndex.getValue());
+        }
+        index = storedIndex.getValue();
+        if (SegmentationUtil.getStoredLength(index) != SegmentationUtil.getUncompressedLength(index)) {
+            // compressed as a whole by a segmenting put; can only be retrieved as a whole
+            return writeFully(dest, retrieve(dhtKey, getOptions.retrievalType(RetrievalType.VALUE), true).getValue());
+        }
+
+        length = SegmentationUtil.getStreamedLength(index);
+        numSegments = SegmentationUtil.getNumSegments(length, SegmentationUtil.maxValueSegmentSize);
+        segmentGetOptions = getOptions.retrievalType(RetrievalType.VALUE)
+                                      .nonExistenceResponse(NonExistenceResponse.EXCEPTION);
+        inFlight = new ArrayDeque<>(segmentsInFlight);
+        nextSegment = 0;
+        written = 0;
+        for (long i = 0; i < numSegments; i++) {
+            AsyncRetrievalOperationImpl<DHTKey,ByteBuffer>  segmentRetrieval;
+            ByteBuffer  segment;
+            long        expectedSegmentLength;
+
+            while (nextSegment < numSegments && inFlight.size() < segmentsInFlight) {
+                inFlight.addLast(startRetrieval(segmentKeyCreator.createSubKey(dhtKey, (int)nextSegment),
+                                                segmentGetOptions, false));
+                nextSegment++;
+            }
+            segmentRetrieval = inFlight.removeFirst();
+            segmentRetrieval.waitForCompletion();
+            segment = segmentRetrieval.getValue();
+            expectedSegmentLength = Math.min(SegmentationUtil.maxValueSegmentSize, length - written);
+            if (segment == null || segment.remaining() != expectedSegmentLength) {
+                throw new RetrievalExceptionImpl("Segment length mismatch",
+                        ImmutableMap.of(key, OperationState.FAILED),
+                        ImmutableMap.of(key, FailureCause.CORRUPT),
+                        ImmutableMap.of());
+            }
+            written += writeFully(dest, segment);
+        }
+        return written;
+    }
+
+    private AsyncPutOperationImpl<DHTKey,ByteBuffer> startPut(DHTKey key, ByteBuffer value, PutOptions putOptions,
+                                                              byte[] creator) {
+        AsyncPutOperationImpl<DHTKey,ByteBuffer>    opImpl;
+
+        opImpl = new AsyncPutOperationImpl<>(new PutOperation<>(clientNamespace, ImmutableMap.of(key, value), putOptions),
+                                            clientNamespace, segmentNSPOImpl,
+                                            clientNamespace.getAbsMillisTimeSource().absTimeMillis(),
+                                            clientNamespace.getOriginator(),
+                                            segmentNSPOImpl.getNSPOptions().getDefaultVersionProvider(),
+                                            creator);
+        clientNamespace.startOperation(opImpl, opLWTMode);
+        return opImpl;
+    }
+
+    private AsyncRetrievalOperationImpl<DHTKey,ByteBuffer> startRetrieval(DHTKey key, GetOptions getOptions,
+                                                                          boolean reassembleSegments) {
+        AsyncRetrievalOperationImpl<DHTKey,ByteBuffer>  opImpl;
+
+        opImpl = new AsyncRetrievalOperationImpl<>(new RetrievalOperation<>(clientNamespace, ImmutableSet.of(key), getOptions),
+                                            clientNamespace, segmentNSPOImpl,
+                                            clientNamespace.getAbsMillisTimeSource().absTimeMillis(),
+                                            clientNamespace.getOriginator(), reassembleSegments);
+        if (!opImpl.completedFromNearCache()) {
+            clientNamespace.startOperation(opImpl, opLWTMode);
+        }
+        return opImpl;
+    }
+
+    private StoredValue<ByteBuffer> retrieve(DHTKey key, GetOptions getOptions, boolean reassembleSegments)
+                                    throws RetrievalException {
+        AsyncRetrievalOperationImpl<DHTKey,ByteBuffer>  opImpl;
+
+        opImpl = startRetrieval(key, getOptions, reassembleSegments);
+        opImpl.waitForCompletion();
+        return opImpl.getStoredValue(key);
+    }
+
+    /**
+     * @return true if the end of stream was reached
+     */
+    private static boolean fill(ReadableByteChannel src, ByteBuffer dest) throws IOException {
+        while (dest.hasRemaining()) {
+            if (src.read(dest) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int writeFully(WritableByteChannel dest, ByteBuffer src) throws IOException {
+        int written;
+
+        written = 0;
+        while (src.hasRemaining()) {
+            written += dest.write(src);
+        }
+        return written;
+    }
+}
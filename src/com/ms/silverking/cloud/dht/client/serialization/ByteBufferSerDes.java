@@ -0,0 +1,65 @@
+package com.ms.silverking.cloud.dht.client.serialization;
+
+import java.nio.ByteBuffer;
+
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.io.util.BufferUtil;
+
+/**
+ * Serializer/deserializer for ByteBuffer. The remaining bytes of the source buffer are serialized
+ * without modifying its position. No copy of source data is made for put() when the source is
+ * a heap buffer positioned at the start of its backing array. No copy of a single retrieved
+ * buffer is made for get().
+ */
+public final class ByteBufferSerDes implements BufferSerDes<ByteBuffer> {
+    private static final ByteBuffer emptyBuffer = ByteBuffer.wrap(DHTConstants.emptyByteArray);
+    
+    @Override
+    public ByteBuffer serializeToBuffer(ByteBuffer b) {
+        if (b.hasArray() && b.arrayOffset() == 0 && b.position() == 0) {
+            return b.duplicate();
+        } else {
+            ByteBuffer  copy;
+            
+            copy = ByteBuffer.allocate(b.remaining());
+            copy.put(b.duplicate());
+            copy.flip();
+            return copy;
+        }
+    }
+
+    @Override
+    public void serializeToBuffer(ByteBuffer b, ByteBuffer buffer) {
+        buffer.put(b.duplicate());
+    }
+
+    @Override
+    public int estimateSerializedSize(ByteBuffer b) {
+        return b.remaining();
+    }
+
+    @Override
+    public ByteBuffer deserialize(ByteBuffer[] buffers) {
+        ByteBuffer  buffer;
+        
+        if (buffers.length == 1) {
+            return deserialize(buffers[0]);
+        }
+        buffer = ByteBuffer.allocate(BufferUtil.totalRemaining(buffers));
+        for (ByteBuffer b : buffers) {
+            buffer.put(b.duplicate());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer deserialize(ByteBuffer buffer) {
+        return buffer.slice();
+    }
+
+	@Override
+	public ByteBuffer emptyObject() {
+		return emptyBuffer.duplicate();
+	}
+}
@@ -35,8 +35,13 @@ public abstract class BaseKeyCreator<K> implements KeyCreator<K> {
         
         subKeys = new DHTKey[numSubKeys];
         for (int i = 0; i < subKeys.length; i++) {
-            subKeys[i] = md5KeyDigest.computeKey(getSubKeyBytes(key, i));
+            subKeys[i] = createSubKey(key, i);
         }
         return subKeys;
     }
+    
+    @Override
+    public DHTKey createSubKey(DHTKey key, int subKeyIndex) {
+        return md5KeyDigest.computeKey(getSubKeyBytes(key, subKeyIndex));
+    }
 }
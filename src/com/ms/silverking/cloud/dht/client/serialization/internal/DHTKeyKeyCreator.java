@@ -0,0 +1,18 @@
+package com.ms.silverking.cloud.dht.client.serialization.internal;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+
+/**
+ * KeyCreator for keys that are already in DHTKey form. Used internally to operate directly
+ * on subkeys. Subkeys are identical to those created by the other BaseKeyCreators.
+ */
+public class DHTKeyKeyCreator extends BaseKeyCreator<DHTKey> {
+    public DHTKeyKeyCreator() {
+        super();
+    }
+    
+    @Override
+    public DHTKey createKey(DHTKey key) {
+        return key;
+    }
+}
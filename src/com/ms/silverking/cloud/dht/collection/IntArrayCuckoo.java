@@ -1,19 +1,34 @@
 package com.ms.silverking.cloud.dht.collection;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 
 import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.io.util.BufferUtil;
 import com.ms.silverking.numeric.NumConversion;
 
 /**
+ * Writable cuckoo table mapping DHTKeys to ints.
  * 
+ * Tables may be stored on the heap, or off-heap in direct buffers. The memory of an off-heap
+ * table is released when the table is garbage collected, or earlier by free() if the
+ * caller owns the table exclusively.
  */
 public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntry> {
     private final SubTable[]    subTables;
+    private final boolean       offHeap;
         
     private static final int    empty = IntCuckooConstants.empty;
     private static final int[]  extraShiftPerTable = {-1, -1, 32, -1, 16, -1, -1, -1, 8};
+    private static final int    writeChunkBytes = 1024 * 1024;
     
     private static final boolean    debug = false;
     private static final boolean    debugCycle = false;
@@ -23,17 +38,92 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
     // bucketSize - entriesPerBucket
     
     public IntArrayCuckoo(WritableCuckooConfig cuckooConfig) {
+        this(cuckooConfig, false);
+    }
+    
+    /**
+     * @param cuckooConfig
+     * @param offHeap store the table in direct buffers rather than on the heap
+     */
+    public IntArrayCuckoo(WritableCuckooConfig cuckooConfig, boolean offHeap) {
+        this(cuckooConfig, offHeap, true);
+    }
+    
+    private IntArrayCuckoo(WritableCuckooConfig cuckooConfig, boolean offHeap, boolean clear) {
         super(cuckooConfig);
+        this.offHeap = offHeap;
         subTables = new SubTable[numSubTables];
         for (int i = 0; i < subTables.length; i++) {
             subTables[i] = new SubTable(i, cuckooConfig.getNumSubTableBuckets(), entriesPerBucket, 
-                                        extraShiftPerTable[numSubTables] * i);
+                                        extraShiftPerTable[numSubTables] * i, offHeap, clear);
         }
         setSubTables(subTables);
     }
     
-    public int persistedSizeBytes() {
-    	int	total;
+    /**
+     * Create a table from a buffer in the format produced by getAsBytes()
+     * @param cuckooConfig configuration of the persisted table
+     * @param byteBuf buffer positioned at the start of the persisted table
+     */
+    public IntArrayCuckoo(WritableCuckooConfig cuckooConfig, ByteBuffer byteBuf) {
+        this(cuckooConfig, byteBuf, false);
+    }
+    
+    /**
+     * Create a table from a buffer in the format produced by getAsBytes()
+     * @param cuckooConfig configuration of the persisted table
+     * @param byteBuf buffer positioned at the start of the persisted table
+     * @param offHeap store the table in direct buffers rather than on the heap
+     */
+    public IntArrayCuckoo(WritableCuckooConfig cuckooConfig, ByteBuffer byteBuf, boolean offHeap) {
+        this(cuckooConfig, offHeap);
+        
+        int	curOffset;
+        
+        curOffset = byteBuf.position();
+        for (int i = 0; i < subTables.length; i++) {
+        	subTables[i].readFromBuffer(byteBuf, curOffset);
+        	curOffset += subTables[i].persistedSizeBytes();
+        }
+    }
+    
+    /**
+     * Create a table from a file region in the format produced by getAsBytes(). Each sub table is
+     * mapped separately, so the region may exceed the 2GB limit of a single mapping.
+     * @param cuckooConfig configuration of the persisted table
+     * @param channel channel of the file containing the persisted table
+     * @param position position of the persisted table within the file
+     * @param offHeap store the table in direct buffers rather than on the heap
+     * @throws IOException
+     */
+    public IntArrayCuckoo(WritableCuckooConfig cuckooConfig, FileChannel channel, long position, boolean offHeap) 
+            throws IOException {
+        this(cuckooConfig, offHeap, false);
+        
+        long    curPosition;
+        
+        curPosition = position;
+        for (int i = 0; i < subTables.length; i++) {
+            subTables[i].readFromBuffer(channel.map(MapMode.READ_ONLY, curPosition, subTables[i].persistedSizeBytes()), 0);
+            curPosition += subTables[i].persistedSizeBytes();
+        }
+    }
+    
+    /**
+     * @return a copy of this table, stored on or off the heap as this table is
+     */
+    public IntArrayCuckoo copy() {
+        IntArrayCuckoo  copy;
+        
+        copy = new IntArrayCuckoo(getConfig(), offHeap, false);
+        for (int i = 0; i < subTables.length; i++) {
+            copy.subTables[i].copyFrom(subTables[i]);
+        }
+        return copy;
+    }
+    
+    public long persistedSizeBytes() {
+    	long	total;
     	
     	// a bit pedantic since the subtables are identical, but leave for now
     	total = 0;
@@ -47,7 +137,7 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
     	byte[]	b;
     	int		curOffset;
     	
-    	b = new byte[persistedSizeBytes()];
+    	b = new byte[Math.toIntExact(persistedSizeBytes())];
     	curOffset = 0;
         for (int i = 0; i < subTables.length; i++) {
         	subTables[i].getAsBytes(b, curOffset);
@@ -56,6 +146,47 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
         return b;
     }
     
+    /**
+     * Write this table to the given channel in the format produced by getAsBytes(). The table is
+     * converted in bounded chunks rather than as a single array.
+     * @param channel
+     * @throws IOException
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer  chunk;
+        
+        // getAsBytes() uses NumConversion, which is big endian
+        chunk = ByteBuffer.allocateDirect(writeChunkBytes).order(ByteOrder.BIG_ENDIAN);
+        try {
+            for (SubTable subTable : subTables) {
+                subTable.write(channel, chunk);
+            }
+        } finally {
+            BufferUtil.free(chunk);
+        }
+    }
+    
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+    
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+    
+    /**
+     * Release the memory used by an off-heap table. The table must not be used after
+     * this call; callers must ensure that no other thread can be accessing it.
+     * Has no effect for tables stored on the heap.
+     */
+    public void free() {
+        for (SubTable subTable : subTables) {
+            subTable.free();
+        }
+    }
+    
     public int get(DHTKey key) {
         long    msl;
         long    lsl;
@@ -117,51 +248,125 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
     
     class SubTable extends SubTableBase {
         private final int           id;
-        private final long[]        buf;
-        private final int[]         values;
+        private final ByteBuffer    storage; // backs buf and values for off-heap tables
+        private final LongBuffer    buf;
+        private final IntBuffer     values;
         private final int           keyShift;
         
         private static final int   mslOffset = 0;
         private static final int   lslOffset = 1;
         private static final int   _singleEntrySize = 2;
                 
-        SubTable(int id, int numBuckets, int entriesPerBucket, int extraShift) {
+        SubTable(int id, int numBuckets, int entriesPerBucket, int extraShift, boolean offHeap, boolean clear) {
             super(numBuckets, entriesPerBucket, _singleEntrySize);
             //System.out.println("numEntries: "+ numBuckets +"\tentriesPerBucket: "+ entriesPerBucket);
             this.id = id;
-            buf = new long[bufferSizeLongs];
-            values = new int[numBuckets * entriesPerBucket];
+            if (offHeap) {
+                int valuesOffset;
+                
+                valuesOffset = bufferSizeLongs * Long.BYTES;
+                storage = ByteBuffer.allocateDirect(valuesOffset + numBuckets * entriesPerBucket * Integer.BYTES);
+                buf = ((ByteBuffer)storage.duplicate().limit(valuesOffset)).slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+                values = ((ByteBuffer)storage.duplicate().position(valuesOffset)).slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            } else {
+                storage = null;
+                buf = LongBuffer.wrap(new long[bufferSizeLongs]);
+                values = IntBuffer.wrap(new int[numBuckets * entriesPerBucket]);
+            }
             //keyShift = NumUtil.log2OfPerfectPower(bufferCapacity) - 1 + extraShift;
             keyShift = extraShift;
             //System.out.printf("%d\t%x\n", NumUtil.log2OfPerfectPower(bufferCapacity) - 1, bitMask);
             //keyShift = NumUtil.log2OfPerfectPower(bufferCapacity) - 1 + extraShift;            
-            clear();
+            if (clear) {
+                clear();
+            }
+        }
+        
+        void copyFrom(SubTable source) {
+            if (storage != null && source.storage != null) {
+                storage.duplicate().put(source.storage.duplicate());
+            } else {
+                buf.duplicate().put(source.buf.duplicate());
+                values.duplicate().put(source.values.duplicate());
+            }
+        }
+        
+        void write(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+            LongBuffer  srcBuf;
+            IntBuffer   srcValues;
+            
+            srcBuf = buf.duplicate();
+            srcBuf.clear();
+            while (srcBuf.hasRemaining()) {
+                int n;
+                
+                n = Math.min(srcBuf.remaining(), chunk.capacity() / Long.BYTES);
+                chunk.clear();
+                chunk.asLongBuffer().put((LongBuffer)srcBuf.slice().limit(n));
+                chunk.limit(n * Long.BYTES);
+                writeFully(channel, chunk);
+                srcBuf.position(srcBuf.position() + n);
+            }
+            srcValues = values.duplicate();
+            srcValues.clear();
+            while (srcValues.hasRemaining()) {
+                int n;
+                
+                n = Math.min(srcValues.remaining(), chunk.capacity() / Integer.BYTES);
+                chunk.clear();
+                chunk.asIntBuffer().put((IntBuffer)srcValues.slice().limit(n));
+                chunk.limit(n * Integer.BYTES);
+                writeFully(channel, chunk);
+                srcValues.position(srcValues.position() + n);
+            }
         }
         
 		int persistedSizeBytes() {
-        	return buf.length * Long.BYTES + values.length * Integer.BYTES;
+        	return buf.capacity() * Long.BYTES + values.capacity() * Integer.BYTES;
         }
         
         public void getAsBytes(byte[] b, int offset) {
         	int	o;
         	
         	o = offset;
-            for (int i = 0; i < buf.length; i++) {
-                NumConversion.longToBytes(buf[i], b, o);
+            for (int i = 0; i < buf.capacity(); i++) {
+                NumConversion.longToBytes(buf.get(i), b, o);
                 o += Long.BYTES;
             }
-            for (int i = 0; i < values.length; i++) {
-                NumConversion.intToBytes(values[i], b, o);
+            for (int i = 0; i < values.capacity(); i++) {
+                NumConversion.intToBytes(values.get(i), b, o);
                 o += Integer.BYTES;
             }
 		}
         
+        void readFromBuffer(ByteBuffer b, int offset) {
+        	ByteBuffer	_b;
+        	LongBuffer	srcBuf;
+        	IntBuffer	srcValues;
+        	
+        	// getAsBytes() uses NumConversion, which is big endian
+        	_b = ((ByteBuffer)b.duplicate().position(offset)).slice().order(ByteOrder.BIG_ENDIAN);
+        	srcBuf = _b.asLongBuffer();
+        	srcBuf.limit(buf.capacity());
+        	buf.duplicate().put(srcBuf);
+        	_b.position(buf.capacity() * Long.BYTES);
+        	srcValues = _b.slice().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        	srcValues.limit(values.capacity());
+        	values.duplicate().put(srcValues);
+        }
+        
+        void free() {
+            if (storage != null) {
+                BufferUtil.free(storage);
+            }
+        }
+        
         void clear() {
             for (int i = 0; i < bufferSizeLongs; i++) {
-                buf[i] = 0;
+                buf.put(i, 0);
             }
-            for (int i = 0; i < values.length; i++) {
-                values[i] = empty;
+            for (int i = 0; i < values.capacity(); i++) {
+                values.put(i, empty);
             }
         }
         
@@ -245,11 +450,11 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
                 System.out.println(attempt +"\t"+ lsl +"\t"+ bucketIndex);
             }
             baseOffset = getHTEntryIndex(bucketIndex, entryIndex);
-            cuckooPut(buf[baseOffset + mslOffset], buf[baseOffset + lslOffset], getValue(bucketIndex, entryIndex), attempt + 1);
+            cuckooPut(buf.get(baseOffset + mslOffset), buf.get(baseOffset + lslOffset), getValue(bucketIndex, entryIndex), attempt + 1);
             //System.out.println("marking as empty: "+ index +" "+ bucketIndex);
-            values[bucketIndex * entriesPerBucket + entryIndex] = empty;            
-            buf[baseOffset + mslOffset] = 0;
-            buf[baseOffset + lslOffset] = 0;
+            values.put(bucketIndex * entriesPerBucket + entryIndex, empty);            
+            buf.put(baseOffset + mslOffset, 0);
+            buf.put(baseOffset + lslOffset, 0);
         }
         
         private int getBucketIndex(long lsl) {
@@ -282,9 +487,9 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
             int    baseOffset;
             
             baseOffset = getHTEntryIndex(bucketIndex, entryIndex);
-            return ""+ buf[baseOffset + mslOffset]
-                    +"\t"+ buf[baseOffset + lslOffset]
-                    +"\t"+ values[bucketIndex];
+            return ""+ buf.get(baseOffset + mslOffset)
+                    +"\t"+ buf.get(baseOffset + lslOffset)
+                    +"\t"+ values.get(bucketIndex);
         }
         
         protected final boolean isEmpty(int bucketIndex, int entryIndex) {
@@ -300,26 +505,26 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
             //System.out.printf("%x:%x\t%x:%x\n", 
             //        buf[baseOffset + mslOffset], buf[baseOffset + lslOffset],
             //        msl, lsl);
-            return buf[baseOffset + mslOffset] == msl
-                    && buf[baseOffset + lslOffset] == lsl;
+            return buf.get(baseOffset + mslOffset) == msl
+                    && buf.get(baseOffset + lslOffset) == lsl;
         }
         
         int getValue(int bucketIndex, int entryIndex) {
-            return values[bucketIndex * entriesPerBucket + entryIndex];
+            return values.get(bucketIndex * entriesPerBucket + entryIndex);
         }
         
         long getMSL(int bucketIndex, int entryIndex) {
             int    baseOffset;
             
             baseOffset = getHTEntryIndex(bucketIndex, entryIndex);
-            return buf[baseOffset + mslOffset];
+            return buf.get(baseOffset + mslOffset);
         }
         
         long getLSL(int bucketIndex, int entryIndex) {
             int    baseOffset;
             
             baseOffset = getHTEntryIndex(bucketIndex, entryIndex);
-            return buf[baseOffset + lslOffset];
+            return buf.get(baseOffset + lslOffset);
         }
         
         private void putValue(int index, long msl, long lsl, int value, int entryIndex) {
@@ -328,10 +533,10 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
             //System.out.println(index +"\t"+ bucketIndex);
             assert entryIndex < entriesPerBucket;
             baseOffset = getHTEntryIndex(index, entryIndex); 
-            buf[baseOffset + mslOffset] = msl;
+            buf.put(baseOffset + mslOffset, msl);
             //System.out.println("baseOffset: "+ baseOffset +"\tmsl: "+ buf[entrySize * index + mslOffset));
-            buf[baseOffset + lslOffset] = lsl;
-            values[index * entriesPerBucket + entryIndex] = value;
+            buf.put(baseOffset + lslOffset, lsl);
+            values.put(index * entriesPerBucket + entryIndex, value);
         }
     }
     
@@ -366,7 +571,7 @@ public class IntArrayCuckoo extends CuckooBase implements Iterable<DHTKeyIntEntr
     public static IntArrayCuckoo rehash(IntArrayCuckoo oldTable) {
         IntArrayCuckoo  newTable;
         
-        newTable = new IntArrayCuckoo(oldTable.getConfig().doubleEntries());
+        newTable = new IntArrayCuckoo(oldTable.getConfig().doubleEntries(), oldTable.offHeap);
         try {
             for (DHTKeyIntEntry entry : oldTable) {
                 //System.out.println(entry);
@@ -0,0 +1,185 @@
+package com.ms.silverking.cloud.dht.collection.test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import com.ms.silverking.cloud.dht.collection.IntArrayCuckoo;
+import com.ms.silverking.cloud.dht.collection.IntCuckooConstants;
+import com.ms.silverking.cloud.dht.collection.TableFullException;
+import com.ms.silverking.cloud.dht.collection.WritableCuckooConfig;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.time.SimpleStopwatch;
+import com.ms.silverking.time.Stopwatch;
+
+/**
+ * Compares heap and off-heap IntArrayCuckoo tables. Fills a set of tables as a node fills its
+ * segment indexes, then allocates short-lived garbage as request processing does, and reports heap
+ * usage, garbage collection counts and times, and lookup cost. Heap and off-heap tables should
+ * be measured in separate JVMs so that each run sees only its own tables.
+ */
+public class IntArrayCuckooBenchmark {
+    private final boolean   offHeap;
+    private final int       numTables;
+    private final int       entriesPerTable;
+    private final IntArrayCuckoo[]  tables;
+
+    private static final int    initialTotalEntries = 1024;
+    private static final int    numSubTables = 4;
+    private static final int    entriesPerBucket = 4;
+    private static final int    cuckooLimit = 128;
+    private static final int    garbageObjectSize = 1024;
+    private static final int    garbageRetained = 1024;
+
+    public IntArrayCuckooBenchmark(boolean offHeap, int numTables, int entriesPerTable) {
+        this.offHeap = offHeap;
+        this.numTables = numTables;
+        this.entriesPerTable = entriesPerTable;
+        tables = new IntArrayCuckoo[numTables];
+    }
+
+    private void fill() {
+        for (int i = 0; i < numTables; i++) {
+            IntArrayCuckoo  table;
+
+            table = new IntArrayCuckoo(new WritableCuckooConfig(initialTotalEntries, numSubTables, entriesPerBucket, cuckooLimit), offHeap);
+            for (int j = 0; j < entriesPerTable; j++) {
+                try {
+                    table.put(new SimpleKey(i, j), j);
+                } catch (TableFullException tfe) {
+                    IntArrayCuckoo  oldTable;
+
+                    oldTable = table;
+                    table = IntArrayCuckoo.rehashAndAdd(oldTable, new SimpleKey(i, j), j);
+                    oldTable.free();
+                }
+            }
+            tables[i] = table;
+        }
+    }
+
+    private int verify() {
+        int mismatches;
+
+        mismatches = 0;
+        for (int i = 0; i < numTables; i++) {
+            for (int j = 0; j < entriesPerTable; j++) {
+                if (tables[i].get(new SimpleKey(i, j)) != j) {
+                    mismatches++;
+                }
+            }
+            if (tables[i].get(new SimpleKey(i, entriesPerTable)) != IntCuckooConstants.noSuchValue) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private double measureLookups(int numLookups) {
+        Stopwatch   sw;
+        long        sum;
+        SimpleKey[] keys;
+
+        keys = new SimpleKey[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new SimpleKey(i % numTables, (i * 7919) % entriesPerTable);
+        }
+        sum = 0;
+        sw = new SimpleStopwatch();
+        for (int i = 0; i < numLookups; i++) {
+            SimpleKey   key;
+
+            key = keys[i % keys.length];
+            sum += tables[(int)key.getMSL()].get(key);
+        }
+        sw.stop();
+        if (sum == Long.MIN_VALUE) {
+            System.out.println(sum); // prevent elimination of the lookups
+        }
+        return sw.getElapsedSeconds() * 1e9 / (double)numLookups;
+    }
+
+    private static long gcCount() {
+        long    count;
+
+        count = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gcBean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long    millis;
+
+        millis = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gcBean.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+    private static long usedHeapBytes() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void churn(long bytes) {
+        byte[][]    retained;
+
+        retained = new byte[garbageRetained][];
+        for (long i = 0; i < bytes / garbageObjectSize; i++) {
+            retained[(int)(i % garbageRetained)] = new byte[garbageObjectSize];
+        }
+    }
+
+    public void runBenchmark(long churnBytes, int numLookups) {
+        Stopwatch   sw;
+        long        heap0;
+        long        gcCount0;
+        long        gcMillis0;
+
+        heap0 = usedHeapBytes();
+        gcCount0 = gcCount();
+        gcMillis0 = gcMillis();
+        sw = new SimpleStopwatch();
+        fill();
+        sw.stop();
+        System.out.printf("offHeap %s  tables %d  entriesPerTable %d  fillSeconds %f  fillGCs %d  fillGCMillis %d\n",
+                          offHeap, numTables, entriesPerTable, sw.getElapsedSeconds(),
+                          gcCount() - gcCount0, gcMillis() - gcMillis0);
+        System.out.printf("heapBytes %d  mismatches %d\n", usedHeapBytes() - heap0, verify());
+
+        gcCount0 = gcCount();
+        gcMillis0 = gcMillis();
+        sw = new SimpleStopwatch();
+        churn(churnBytes);
+        sw.stop();
+        System.out.printf("churnBytes %d  churnSeconds %f  churnGCs %d  churnGCMillis %d\n",
+                          churnBytes, sw.getElapsedSeconds(), gcCount() - gcCount0, gcMillis() - gcMillis0);
+
+        measureLookups(numLookups); // warm up
+        System.out.printf("get ns/op %f\n", measureLookups(numLookups));
+
+        for (IntArrayCuckoo table : tables) {
+            table.free();
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length != 5) {
+                System.out.println("args: <heap|offHeap> <numTables> <entriesPerTable> <churnMB> <lookups>");
+                System.out.println("e.g.: offHeap 64 500000 8192 10000000");
+                return;
+            } else {
+                IntArrayCuckooBenchmark benchmark;
+
+                benchmark = new IntArrayCuckooBenchmark(args[0].equalsIgnoreCase("offHeap"),
+                                                        Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                benchmark.runBenchmark(Long.parseLong(args[3]) * 1024 * 1024, Integer.parseInt(args[4]));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -55,6 +55,11 @@ public class DHTConstants {
     public static final int                    defaultSecondaryReplicaUpdateTimeoutMillis = 2 * 60 * 1000;
     public static final SegmentIndexLocation   defaultSegmentIndexLocation = SegmentIndexLocation.RAM;
     public static final int					   defaultNSPrereadGB = 0;
+    public static final int					   defaultNSWritePartitions = 1;
+    public static final int					   defaultCompactionBytesPerSecond = 0; // 0 => unlimited
+    public static final int					   defaultRecoveryThreads = 8;
+    public static final int					   defaultIndexCheckpointIntervalSeconds = 60 * 60; // <= 0 => disabled
+    public static final boolean				   defaultOffHeapIndexes = false;
     public static final int					   defaultMinPrimaryUnderFailure = 1;
     
     public static final int noCapacityLimit = -1;
@@ -97,6 +102,16 @@ public class DHTConstants {
 	public static final String	segmentIndexLocationProperty = daemonPackageBase +".SegmentIndexLocation";
 	public static final String	nsPrereadGBVar = "nsPrereadGB";
 	public static final String	nsPrereadGBProperty = daemonPackageBase +".NSPrereadGB";
+	public static final String	nsWritePartitionsVar = "nsWritePartitions";
+	public static final String	nsWritePartitionsProperty = daemonPackageBase +".NSWritePartitions";
+	public static final String	compactionBytesPerSecondVar = "compactionBytesPerSecond";
+	public static final String	compactionBytesPerSecondProperty = daemonPackageBase +".CompactionBytesPerSecond";
+	public static final String	recoveryThreadsVar = "recoveryThreads";
+	public static final String	recoveryThreadsProperty = daemonPackageBase +".RecoveryThreads";
+	public static final String	indexCheckpointIntervalSecondsVar = "indexCheckpointIntervalSeconds";
+	public static final String	indexCheckpointIntervalSecondsProperty = daemonPackageBase +".IndexCheckpointIntervalSeconds";
+	public static final String	offHeapIndexesVar = "offHeapIndexes";
+	public static final String	offHeapIndexesProperty = daemonPackageBase +".OffHeapIndexes";
 	
 	
 	public static final String classpathEnv = "SK_CLASSPATH";
@@ -125,6 +140,11 @@ public class DHTConstants {
 		defMap.put(fileSegmentCacheCapacityVar, Integer.toString(defaultFileSegmentCacheCapacity));
 		defMap.put(segmentIndexLocationVar, defaultSegmentIndexLocation.toString());
 		defMap.put(nsPrereadGBVar, Integer.toString(defaultNSPrereadGB));
+		defMap.put(nsWritePartitionsVar, Integer.toString(defaultNSWritePartitions));
+		defMap.put(compactionBytesPerSecondVar, Integer.toString(defaultCompactionBytesPerSecond));
+		defMap.put(recoveryThreadsVar, Integer.toString(defaultRecoveryThreads));
+		defMap.put(indexCheckpointIntervalSecondsVar, Integer.toString(defaultIndexCheckpointIntervalSeconds));
+		defMap.put(offHeapIndexesVar, Boolean.toString(defaultOffHeapIndexes));
 		defaultDefaultClassVars = new ClassVars(defMap, 0);
 	}
 	
@@ -10,5 +10,6 @@ public enum MessageType {
 	NAMESPACE_REQUEST, NAMESPACE_RESPONSE,
 	SET_CONVERGENCE_STATE, REAP,
 	GLOBAL_COMMAND_NEW, GLOBAL_COMMAND_UPDATE, GLOBAL_COMMAND_RESPONSE,
-	PROGRESS
+	PROGRESS,
+	SCAN, SCAN_RESPONSE
 }
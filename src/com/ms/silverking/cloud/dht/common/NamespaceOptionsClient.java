@@ -21,12 +21,14 @@ import com.ms.silverking.cloud.dht.client.RetrievalException;
 import com.ms.silverking.cloud.dht.client.SessionEstablishmentTimeoutController;
 import com.ms.silverking.cloud.dht.client.StoredValue;
 import com.ms.silverking.cloud.dht.client.SynchronousNamespacePerspective;
+import com.ms.silverking.cloud.dht.client.impl.CodecProvider;
 import com.ms.silverking.cloud.dht.client.impl.SimpleNamespaceCreator;
 import com.ms.silverking.cloud.dht.daemon.storage.NamespaceNotCreatedException;
 import com.ms.silverking.cloud.dht.meta.DHTMetaWatcher;
 import com.ms.silverking.cloud.zookeeper.ZooKeeperConfig;
 import com.ms.silverking.collection.HashedListMap;
 import com.ms.silverking.log.Log;
+import com.ms.silverking.text.StringUtil;
 import com.ms.silverking.thread.lwt.LWTThreadUtil;
 
 public class NamespaceOptionsClient {
@@ -326,6 +328,53 @@ public class NamespaceOptionsClient {
         return nsProperties;
     }
     
+    /**
+     * Store the dictionary used for ZIP_DICTIONARY compression in the given namespace. Values
+     * compressed with a dictionary can only be decompressed with that dictionary; as the meta
+     * namespace is write once, the dictionary of a namespace can be stored only once.
+     * @param namespace
+     * @param dictionary a dictionary built by DictionaryTrainer
+     * @throws PutException if a dictionary has already been stored for the namespace
+     */
+    public void storeCompressionDictionary(String namespace, byte[] dictionary) throws PutException {
+        long    context;
+        
+        context = NamespaceUtil.nameToLong(namespace);
+        LWTThreadUtil.setBlocked();
+        try {
+            syncNSP.put(getCompressionDictionaryKey(context), StringUtil.byteArrayToHexString(dictionary));
+        } finally {
+            LWTThreadUtil.setNonBlocked();
+        }
+        CodecProvider.setNamespaceDictionary(context, dictionary);
+    }
+    
+    /**
+     * @param namespace
+     * @return the dictionary used for ZIP_DICTIONARY compression in the given namespace, 
+     * or null if the namespace has no dictionary
+     * @throws RetrievalException
+     */
+    public byte[] getCompressionDictionary(long namespace) throws RetrievalException {
+        String  def;
+        
+        LWTThreadUtil.setBlocked();
+        try {
+            def = syncNSP.get(getCompressionDictionaryKey(namespace));
+        } finally {
+            LWTThreadUtil.setNonBlocked();
+        }
+        if (def != null) {
+            return StringUtil.hexStringToByteBuffer(def).array();
+        } else {
+            return null;
+        }
+    }
+    
+    private String getCompressionDictionaryKey(long namespace) {
+        return getOptionsKey(namespace) +".compressionDictionary";
+    }
+    
     private void ensureNSCreationOptionsSet() {
         if (debug) {
             Log.warning("ensureNSCreationOptionsSet()");
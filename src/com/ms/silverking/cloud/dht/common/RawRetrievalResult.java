@@ -128,7 +128,9 @@ public class RawRetrievalResult implements StoredValue<ByteBuffer> {
 	                }
 	                try {
 	                    //System.out.println(compression +" "+ decompressor);
-	                    uncompressedData = decompressor.decompress(storedData, dataOffset, compressedLength, uncompressedLength);
+	                    uncompressedData = new byte[uncompressedLength];
+	                    decompressor.decompress(ByteBuffer.wrap(storedData, dataOffset, compressedLength), 
+	                                            ByteBuffer.wrap(uncompressedData));
 	                    if (encrypterDecrypter == null) {
 	                    	dataToVerify = uncompressedData;
 	                    	verifyDataOffset = 0;
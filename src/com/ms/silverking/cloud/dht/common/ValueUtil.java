@@ -10,6 +10,7 @@ import com.ms.silverking.cloud.dht.client.impl.ChecksumProvider;
 import com.ms.silverking.cloud.dht.client.impl.CodecProvider;
 import com.ms.silverking.cloud.dht.client.impl.SystemChecksum;
 import com.ms.silverking.compression.Decompressor;
+import com.ms.silverking.compression.UnknownCompressionDictionaryException;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.text.StringUtil;
 
@@ -52,6 +53,11 @@ public class ValueUtil {
                     uncompressedData = decompressor.decompress(storedData, dataOffset, compressedLength, uncompressedLength);
                     dataToVerify = uncompressedData;
                     verifyDataOffset = 0;
+                } catch (UnknownCompressionDictionaryException ucde) {
+                    // Dictionaries are only loaded by clients. The value can't be verified here,
+                    // but that does not indicate corruption.
+                    Log.fineAsync(ucde.getMessage());
+                    return;
                 } catch (Exception e) {
                     throw new CorruptValueException(e);
                 }
@@ -87,6 +87,10 @@ abstract class ActiveProxyOperation<K extends DHTKey,R extends KeyedResult> impl
         return curTime > absDeadlineMillis;
     }
     
+    public long getAbsDeadlineMillis() {
+        return absDeadlineMillis;
+    }
+    
     protected void setOperation(Operation<K,R> operation) {
         this.operation = operation;
     }
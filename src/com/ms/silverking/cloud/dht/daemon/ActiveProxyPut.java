@@ -13,6 +13,7 @@ import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.common.EnumValues;
 import com.ms.silverking.cloud.dht.common.OpResult;
 import com.ms.silverking.cloud.dht.common.SystemTimeUtil;
+import com.ms.silverking.cloud.dht.daemon.storage.DeferrableKeyedOpResultListener;
 import com.ms.silverking.cloud.dht.daemon.storage.StorageValueAndParameters;
 import com.ms.silverking.cloud.dht.daemon.storage.protocol.OpCommunicator;
 import com.ms.silverking.cloud.dht.daemon.storage.protocol.PutCommunicator;
@@ -139,6 +140,7 @@ class ActiveProxyPut extends ActiveProxyOperation<MessageGroupKeyEntry, PutResul
         if (!useUpdate) {
             List<StorageValueAndParameters> values;
             long    creationTime;
+            LocalPutResultListener  resultListener;
             
             creationTime = SystemTimeUtil.systemTimeSource.absTimeNanos();
             values = new ArrayList<>(_entries.size());
@@ -150,12 +152,14 @@ class ActiveProxyPut extends ActiveProxyOperation<MessageGroupKeyEntry, PutResul
                 }
                 //Log.fine(entry);
             }
+            resultListener = new LocalPutResultListener(pComm);
             getStorage().put(
                         getContext(),
                         values,
                         getUserData(),
-                        pComm);
-            if (forwardingMode.forwards()) {
+                        resultListener);
+            // if storage deferred the results, the local update is made once they are available
+            if (forwardingMode.forwards() && !resultListener.isDeferred()) {
                 for (DHTKey _entry : _entries) {
                     storageOperation.localUpdate(_entry, 
                                                 StorageProtocolUtil.initialStorageStateOrdinal, 
@@ -193,6 +197,62 @@ class ActiveProxyPut extends ActiveProxyOperation<MessageGroupKeyEntry, PutResul
         }
     }
     
+    /**
+     * Passes local put results to the communicator of the initial processing pass. Storage may instead
+     * defer the results until the values are durable; these arrive after the pass has completed, so
+     * the local update is made and the results are sent from here, as for a put response.
+     */
+    private class LocalPutResultListener implements DeferrableKeyedOpResultListener {
+        private final PutCommunicator   pComm;
+        private final MessageGroup  putMessage; // message is cleared once the initial pass completes
+        private volatile boolean    deferred;
+        
+        LocalPutResultListener(PutCommunicator pComm) {
+            this.pComm = pComm;
+            putMessage = message;
+        }
+        
+        boolean isDeferred() {
+            return deferred;
+        }
+        
+        @Override
+        public void sendResult(DHTKey key, OpResult result) {
+            pComm.sendResult(key, result);
+        }
+        
+        @Override
+        public void resultsDeferred() {
+            deferred = true;
+        }
+        
+        @Override
+        public void sendDeferredResults(List<DHTKey> keys, List<OpResult> results) {
+            PutCommunicator dComm;
+            Map<IPAndPort, List<MessageGroupKeyOrdinalEntry>>   rumLists;
+            
+            dComm = new PutCommunicator(ActiveProxyPut.this);
+            for (int i = 0; i < keys.size(); i++) {
+                if (sendResultsDuringStart) {
+                    dComm.sendResult(keys.get(i), results.get(i));
+                }
+                if (forwardingMode.forwards()) {
+                    storageOperation.localUpdate(keys.get(i), 
+                                                StorageProtocolUtil.initialStorageStateOrdinal, 
+                                                OpResult.SUCCEEDED, dComm);
+                }
+            }
+            rumLists = dComm.takeReplicaUpdateMessageLists();
+            if (rumLists.size() > 0) {
+                forwardGroupedEntries(rumLists, optionsByteBuffer, 
+                        new PutUpdateForwardCreator(storageOperation.nextStorageState(storageOperation.initialStorageState())),
+                        dComm);
+            }
+            messageModule.sendPutResults(putMessage, version, connection, dComm.takeResults(), 
+                    StorageProtocolUtil.initialStorageStateOrdinal, putMessage.getDeadlineRelativeMillis());
+        }
+    }
+    
     // ///////////////////
     // handle responses
 
@@ -3,10 +3,16 @@ package com.ms.silverking.cloud.dht.daemon;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableList;
 import com.ms.silverking.cloud.common.OwnerQueryMode;
@@ -39,6 +45,7 @@ import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.net.IPAndPort;
 import com.ms.silverking.text.StringUtil;
+import com.ms.silverking.util.PropertiesHelper;
 
 /**
  * Retrieval executed on behalf of a client.
@@ -50,6 +57,8 @@ public class ActiveProxyRetrieval extends ActiveProxyOperation<DHTKey,RetrievalR
     private final RetrievalOperation        retrievalOperation;
     private final Set<SecondaryTarget>      secondaryTargets;
     private RetrievalCommunicator           rComm;
+    private final ConcurrentMap<IPAndPort,Long> replicaSendTimes; // non-null iff latencies are measured for this op
+    private Map<List<IPAndPort>,List<IPAndPort>> prioritizedReplicaLists;
     
     // FUTURE - combine common functionality between this class
     // and ActiveProxyPut
@@ -58,6 +67,22 @@ public class ActiveProxyRetrieval extends ActiveProxyOperation<DHTKey,RetrievalR
     
     private static final int	resultListInitialSize = 10;
     
+    static final String adaptiveReplicaSelectionProperty = ActiveProxyRetrieval.class.getPackage().getName() + ".AdaptiveReplicaSelection";
+    static final boolean    defaultAdaptiveReplicaSelection = false;
+    static final boolean    adaptiveReplicaSelection;
+    
+    static final String hedgedReadsProperty = ActiveProxyRetrieval.class.getPackage().getName() + ".HedgedReads";
+    static final boolean    defaultHedgedReads = false;
+    static final boolean    hedgedReads;
+    
+    private static final int    minHedgeDelayMillis = 1;
+    private static final int    maxHedgeDelayMillis = 100; // the fixed replica timeout used without hedging
+    
+    static {
+        adaptiveReplicaSelection = PropertiesHelper.systemHelper.getBoolean(adaptiveReplicaSelectionProperty, defaultAdaptiveReplicaSelection);
+        hedgedReads = PropertiesHelper.systemHelper.getBoolean(hedgedReadsProperty, defaultHedgedReads);
+    }
+    
     ActiveProxyRetrieval(MessageGroup message, MessageGroupConnectionProxy connection,
                          MessageModule messageModule,
                          StorageModule storage, InternalRetrievalOptions retrievalOptions,
@@ -68,6 +93,12 @@ public class ActiveProxyRetrieval extends ActiveProxyOperation<DHTKey,RetrievalR
                 message.getDeadlineAbsMillis(messageModule.getAbsMillisTimeSource()), 
                 this, getForwardingMode(message));
         secondaryTargets = retrievalOptions.getRetrievalOptions().getSecondaryTargets();
+        if ((adaptiveReplicaSelection || hedgedReads) && forwardingMode.forwards()
+                && this.retrievalOptions.getWaitMode() == WaitMode.GET) {
+            replicaSendTimes = new ConcurrentHashMap<>();
+        } else {
+            replicaSendTimes = null;
+        }
         super.setOperation(retrievalOperation);
     }
     
@@ -90,20 +121,101 @@ public class ActiveProxyRetrieval extends ActiveProxyOperation<DHTKey,RetrievalR
         }
         rComm = new RetrievalCommunicator();
         super.startOperation(rComm, message.getKeyIterator(), new RetrievalForwardCreator());
+        prioritizedReplicaLists = null;
+        if (hedgedReads && replicaSendTimes != null && !replicaSendTimes.isEmpty() && !getOpResult().isComplete()) {
+            messageModule.scheduleHedge(new Hedge(), getHedgeDelayMillis());
+        }
         //message = null; // free payload for GC        
     }
     
+    /**
+     * The hedge delay is the highest estimated ~95th percentile latency of the replicas
+     * that were sent the initial requests. 
+     */
+    private long getHedgeDelayMillis() {
+        long    maxLatencyNanos;
+        
+        maxLatencyNanos = 0;
+        for (IPAndPort replica : replicaSendTimes.keySet()) {
+            long    latencyNanos;
+            
+            latencyNanos = messageModule.getPeerLatencyTracker().getHighPercentileLatencyNanos(replica);
+            if (latencyNanos < 0) {
+                return maxHedgeDelayMillis;
+            }
+            maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+        }
+        return Math.max(minHedgeDelayMillis, Math.min(maxHedgeDelayMillis, TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos)));
+    }
+    
+    /**
+     * Sends duplicate requests for entries that have not completed by the hedge delay.
+     * Unlike replica timeouts, hedges do not mark replicas as suspect.
+     */
+    private class Hedge extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                if (!getOpResult().isComplete() && !hasTimedOut(messageModule.getAbsMillisTimeSource().absTimeMillis())) {
+                    RetrievalCommunicator   rComm;
+                    Map<IPAndPort, List<DHTKey>>  destEntryMap;
+                    
+                    rComm = new RetrievalCommunicator();
+                    retrievalOperation.sendHedgedRequests(rComm);
+                    destEntryMap = rComm.takeReplicaMessageLists();
+                    if (destEntryMap != null) {
+                        forwardGroupedEntries(destEntryMap, optionsByteBuffer, new RetrievalForwardCreator(), rComm);
+                    }
+                }
+            } catch (Exception e) {
+                Log.logErrorWarning(e, "Exception sending hedged requests");
+            }
+        }
+    }
+    
     protected void processInitialMessageGroupEntry(DHTKey entry, List<IPAndPort> primaryReplicas, 
             List<IPAndPort> secondaryReplicas, OpCommunicator<DHTKey,RetrievalResult> comm) {
         List<IPAndPort> filteredSecondaryReplicas;
         
         filteredSecondaryReplicas = getFilteredSecondaryReplicas(entry, primaryReplicas, secondaryReplicas, 
                                                                  comm, secondaryTargets);
+        if (adaptiveReplicaSelection && replicaSendTimes != null && primaryReplicas.size() > 1) {
+            primaryReplicas = getPrioritizedReplicas(primaryReplicas);
+        }
         super.processInitialMessageGroupEntry(entry, primaryReplicas, filteredSecondaryReplicas, comm);
     }
     
+    /**
+     * Order replicas by health and then by observed latency. Replica lists are shared by all keys 
+     * in a ring region, so each distinct list is only sorted once per operation.
+     */
+    private List<IPAndPort> getPrioritizedReplicas(List<IPAndPort> replicas) {
+        List<IPAndPort> prioritizedReplicas;
+        
+        if (prioritizedReplicaLists == null) {
+            prioritizedReplicaLists = new IdentityHashMap<>();
+        }
+        prioritizedReplicas = prioritizedReplicaLists.get(replicas);
+        if (prioritizedReplicas == null) {
+            prioritizedReplicas = new ArrayList<>(replicas);
+            Collections.sort(prioritizedReplicas, messageModule.getRetrievalReplicaPrioritizer());
+            prioritizedReplicaLists.put(replicas, prioritizedReplicas);
+        }
+        return prioritizedReplicas;
+    }
+    
     protected <L extends DHTKey> void forwardGroupedEntries(Map<IPAndPort, List<L>> destEntryMap,
             ByteBuffer optionsByteBuffer, ForwardCreator<L> forwardCreator, OpCommunicator<DHTKey,RetrievalResult> comm) {
+        if (replicaSendTimes != null) {
+            long    curTimeNanos;
+            
+            curTimeNanos = System.nanoTime();
+            for (IPAndPort replica : destEntryMap.keySet()) {
+                if (!isLocalReplica(replica)) {
+                    replicaSendTimes.putIfAbsent(replica, curTimeNanos);
+                }
+            }
+        }
         super.forwardGroupedEntries(destEntryMap, optionsByteBuffer, forwardCreator, comm);
     }
 
@@ -206,6 +318,16 @@ public class ActiveProxyRetrieval extends ActiveProxyOperation<DHTKey,RetrievalR
         if (debug) {
             System.out.println("handleRetrievalResponse");
         }
+        if (replicaSendTimes != null) {
+            Long    sendTimeNanos;
+            IPAndPort   replica;
+            
+            replica = new IPAndPort(message.getOriginator(), DHTNode.getServerPort());
+            sendTimeNanos = replicaSendTimes.remove(replica);
+            if (sendTimeNanos != null) {
+                messageModule.getPeerLatencyTracker().addSample(replica, System.nanoTime() - sendTimeNanos);
+            }
+        }
         for (MessageGroupRetrievalResponseEntry entry : message.getRetrievalResponseValueKeyIterator()) {
             IPAndPort   replica;
 
@@ -3,6 +3,7 @@ package com.ms.silverking.cloud.dht.daemon;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,6 +27,7 @@ import com.ms.silverking.cloud.dht.common.EnumValues;
 import com.ms.silverking.cloud.dht.common.NamespaceMetaStore.NamespaceOptionsRetrievalMode;
 import com.ms.silverking.cloud.dht.common.NamespaceProperties;
 import com.ms.silverking.cloud.dht.common.OpResult;
+import com.ms.silverking.cloud.dht.daemon.storage.GroupCommitter;
 import com.ms.silverking.cloud.dht.daemon.storage.StorageModule;
 import com.ms.silverking.cloud.dht.daemon.storage.convergence.ConvergenceController2;
 import com.ms.silverking.cloud.dht.daemon.storage.convergence.ConvergencePoint;
@@ -36,6 +38,7 @@ import com.ms.silverking.cloud.dht.daemon.storage.protocol.StorageProtocol;
 //import com.ms.silverking.cloud.dht.gcmd.GlobalCommandServer;
 import com.ms.silverking.cloud.dht.meta.MetaClient;
 import com.ms.silverking.cloud.dht.net.ForwardingMode;
+import com.ms.silverking.cloud.dht.net.IncomingMessageGroup;
 import com.ms.silverking.cloud.dht.net.MessageGroup;
 import com.ms.silverking.cloud.dht.net.MessageGroupBase;
 import com.ms.silverking.cloud.dht.net.MessageGroupConnection;
@@ -52,9 +55,12 @@ import com.ms.silverking.cloud.dht.net.ProtoPingMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoPutResponseMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoPutUpdateMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoRetrievalMessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoScanMessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoScanResponseMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoSnapshotMessageGroup;
 import com.ms.silverking.cloud.dht.net.ProtoVersionedBasicOpMessageGroup;
 import com.ms.silverking.cloud.dht.net.PutResult;
+import com.ms.silverking.cloud.ring.LongRingspace;
 import com.ms.silverking.cloud.ring.RingRegion;
 import com.ms.silverking.cloud.toporing.PrimarySecondaryIPListPair;
 import com.ms.silverking.collection.CollectionUtil;
@@ -69,6 +75,8 @@ import com.ms.silverking.thread.lwt.LWTPool;
 import com.ms.silverking.thread.lwt.LWTPoolParameters;
 import com.ms.silverking.thread.lwt.LWTPoolProvider;
 import com.ms.silverking.time.AbsMillisTimeSource;
+import com.ms.silverking.util.PropertiesHelper;
+import com.ms.silverking.util.SafeTimer;
 
 /**
  * DHTNode message processing module. 
@@ -85,12 +93,16 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
     private final List<IPAndPort> systemNamespaceReplicaList;
     private final Set<IPAndPort>  systemNamespaceReplicas;
     private final PeerHealthMonitor peerHealthMonitor;
+    private final PeerLatencyTracker    peerLatencyTracker;
+    private final ReplicaPrioritizer    retrievalReplicaPrioritizer;
+    private final Timer     hedgeTimer;
     //private final Timer	pingTimer;
     //private final GlobalCommandServer globalCommandServer;
     
     // Note - removal of operations is done only in bulk
     private final ConcurrentMap<UUIDBase,ActiveProxyPut>        activePuts;
     private final ConcurrentMap<UUIDBase,ActiveProxyRetrieval>  activeRetrievals;
+    private final ConcurrentMap<UUIDBase,PendingScan>           activeScans;
     
     private final StorageProtocol consistencyModeToStorageProtocol[];
     private final StorageProtocol localConsistencyModeToStorageProtocol[];
@@ -105,11 +117,12 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
     private static final int    replicaRetryBufferMS = 30;
     private static final int	incomingConnectionBacklog = 4096;
     
-    // FUTURE - add an option to set the number of selector controllers, or the
-    // manner in which this number is selected
     //private static final int    numSelectorControllers = 1;
     //private static final int    numSelectorControllers = Runtime.getRuntime().availableProcessors() / 2;
-    private static final int    numSelectorControllers = Runtime.getRuntime().availableProcessors();
+    private static final String numSelectorControllersProperty = MessageModule.class.getPackage().getName() + ".NumSelectorControllers";
+    private static final int    defaultNumSelectorControllers = Runtime.getRuntime().availableProcessors();
+    private static final int    numSelectorControllers = PropertiesHelper.systemHelper.getInt(numSelectorControllersProperty, 
+                                                                                              defaultNumSelectorControllers);
     private static final String selectorControllerClass = "MessageModule";
     
     private static final int    cleanupPeriodMillis = 2 * 1000;
@@ -118,6 +131,8 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
     
     private static final int    statsPeriodMillis = 10 * 1000;
     
+    private static final String hedgeTimerName = "HedgeTimer";
+    
     private static final int    maxDirectCallDepth = 10;
     
     private static final byte[] emptyIPAndPort = new byte[IPAddrUtil.IPV4_IP_AND_PORT_BYTES];
@@ -138,6 +153,13 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         mgBase = new MessageGroupBase(serverPort, incomingConnectionBacklog, this, absMillisTimeSource, null,
                                      Integer.MAX_VALUE, numSelectorControllers, selectorControllerClass,
                                      ConvergenceController2.mqListener, ConvergenceController2.mqUUID);
+        if (MessageGroupBase.unixDomainSocketsEnabled()) {
+            try {
+                mgBase.listenOnUnixDomainSocket(MessageGroupBase.unixDomainSocketPath(mc.getDHTName(), mgBase.getPort()));
+            } catch (IOException ioe) {
+                Log.logErrorWarning(ioe, "Unable to listen on unix domain socket. Clients will use TCP.");
+            }
+        }
         this.ringMaster = ringMaster;
         this.storage = storage;
         this.absMillisTimeSource = absMillisTimeSource;
@@ -146,6 +168,7 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         //activePuts = new MapMaker().softValues().makeMap();
         activePuts = new ConcurrentHashMap<>();
         activeRetrievals = new ConcurrentHashMap<>();
+        activeScans = new ConcurrentHashMap<>();
         
         myIPAndPort = mgBase._getIPAndPort();
         myIPAndPortArray = new IPAndPort[1];
@@ -159,6 +182,10 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         PeerStateWatcher.setPeerHealthMonitor(peerHealthMonitor);
         mgBase.setPeerHealthMonitor(peerHealthMonitor);
         ringMaster.setPeerHealthMonitor(peerHealthMonitor);
+        peerLatencyTracker = new PeerLatencyTracker();
+        retrievalReplicaPrioritizer = new CompositeReplicaPrioritizer(ImmutableList.of(
+                new ReplicaHealthPrioritizer(peerHealthMonitor), new ReplicaLatencyPrioritizer(peerLatencyTracker)));
+        hedgeTimer = ActiveProxyRetrieval.hedgedReads ? new SafeTimer(hedgeTimerName, true) : null;
         
         storage.setMessageGroupBase(mgBase);
         storage.setActiveRetrievals(activeRetrievals);
@@ -225,7 +252,7 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         } else {
             maxDirectCallDepth = Integer.MAX_VALUE;
         }
-        worker.addWork(new MessageAndConnection(message, createProxyForConnection(connection, message.getDeadlineAbsMillis(absMillisTimeSource), message.getPeer())), maxDirectCallDepth, Integer.MAX_VALUE);
+        worker.addWork(new MessageAndConnection(message, createProxyForConnection(connection, message.getDeadlineAbsMillis(absMillisTimeSource), message.getPeer(), message.getUUID())), maxDirectCallDepth, Integer.MAX_VALUE);
     }
     
     /**
@@ -297,6 +324,12 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
             case SET_CONVERGENCE_STATE:
             	handleSetConvergenceState(message, getConnectionForRemote(connection));
             	break;
+            case SCAN:
+                handleScan(message, connection);
+                break;
+            case SCAN_RESPONSE:
+                handleScanResponse(message, connection);
+                break;
             case REAP:
             	handleReap(message, getConnectionForRemote(connection));
                 /*
@@ -339,7 +372,8 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         return ((MessageGroupConnectionProxyRemote)connection).getConnection();
     }
     
-    private MessageGroupConnectionProxy createProxyForConnection(MessageGroupConnection connection, long deadline, boolean peer) {
+    private MessageGroupConnectionProxy createProxyForConnection(MessageGroupConnection connection, long deadline, boolean peer,
+                                                                 UUIDBase uuid) {
         if (connection == null || connection.getRemoteIPAndPort().equals(myIPAndPort)) {
             return new MessageGroupConnectionProxyLocal(worker);
         } else {
@@ -347,7 +381,7 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         		return new MessageGroupConnectionProxyRemote(connection);
         	} else {
 	        	try {
-	        		return new MessageGroupConnectionProxyRemote(mgBase.getConnection(connection.getRemoteIPAndPort().port(myIPAndPort.getPort()), deadline));
+	        		return new MessageGroupConnectionProxyRemote(mgBase.getConnection(connection.getRemoteIPAndPort().port(myIPAndPort.getPort()), deadline, uuid));
 	        	} catch (ConnectException ce) {
 	        		Log.logErrorWarning(ce, "Reverting to incoming connection for outgoing messages for "+ connection);
 	                return new MessageGroupConnectionProxyRemote(connection);
@@ -360,14 +394,20 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         NamespaceProperties nsProperties;
         NamespaceOptions    nsOptions;
         
-        nsProperties = storage.getNamespaceProperties(message.getContext(), NamespaceOptionsRetrievalMode.FetchRemotely);
-        nsOptions = nsProperties.getOptions();
-        if (message.getForwardingMode().forwards()) {
-            new ActiveProxyPut(message, connection, this, getStorageProtocol(nsOptions), 
-                    message.getDeadlineAbsMillis(absMillisTimeSource), false, nsOptions).startOperation();
-        } else {
-            new ActiveProxyPut(message, connection, this, getLocalStorageProtocol(nsOptions), 
-                    message.getDeadlineAbsMillis(absMillisTimeSource), true, nsOptions).startOperation();
+        try {
+            nsProperties = storage.getNamespaceProperties(message.getContext(), NamespaceOptionsRetrievalMode.FetchRemotely);
+            nsOptions = nsProperties.getOptions();
+            if (message.getForwardingMode().forwards()) {
+                new ActiveProxyPut(message, connection, this, getStorageProtocol(nsOptions), 
+                        message.getDeadlineAbsMillis(absMillisTimeSource), false, nsOptions).startOperation();
+            } else {
+                new ActiveProxyPut(message, connection, this, getLocalStorageProtocol(nsOptions), 
+                        message.getDeadlineAbsMillis(absMillisTimeSource), true, nsOptions).startOperation();
+            }
+        } finally {
+            // Only local puts use pooled receive buffers (see IncomingMessageGroup). These are
+            // stored synchronously above, so the buffers are no longer needed.
+            message.releaseBuffers();
         }
     }
     
@@ -720,6 +760,103 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
         storage.asyncInvocation("handleNamespaceResponse", message, connection);
     }
     
+    /////////////////////////////////
+    
+    /**
+     * Scan requests from clients are resolved to a single region: the region containing the
+     * requested minimum coordinate. Scans of regions that this node owns are served locally;
+     * others are forwarded to a primary replica of the region. Clients proceed to the next
+     * region once a region has been exhausted.
+     */
+    private void handleScan(MessageGroup message, MessageGroupConnectionProxy connection) {
+        long    minCoordinate;
+        long    maxCoordinate;
+        
+        minCoordinate = ProtoScanMessageGroup.getMinCoordinate(message);
+        if (message.getForwardingMode() == ForwardingMode.DO_NOT_FORWARD) {
+            maxCoordinate = ProtoScanMessageGroup.getMaxCoordinate(message);
+            sendScanResponse(message, connection, OpResult.SUCCEEDED, maxCoordinate, scanLocally(message, maxCoordinate));
+        } else {
+            RingRegion      region;
+            Set<IPAndPort>  owners;
+            
+            region = ringMaster.getCurrentRegion(minCoordinate);
+            if (minCoordinate < LongRingspace.start) {
+                // below the ringspace; covered by the last region, which wraps around
+                maxCoordinate = LongRingspace.start - 1;
+            } else if (region.getEnd() == LongRingspace.end) {
+                // the last region also covers all coordinates above the ringspace
+                maxCoordinate = ProtoScanMessageGroup.maxScanCoordinate;
+            } else {
+                maxCoordinate = region.getEnd();
+            }
+            owners = ringMaster.getReplicas(region, OwnerQueryMode.Primary);
+            if (owners.contains(myIPAndPort)) {
+                sendScanResponse(message, connection, OpResult.SUCCEEDED, maxCoordinate, scanLocally(message, maxCoordinate));
+            } else if (owners.isEmpty()) {
+                Log.warning("No owners for scan region: ", region);
+                sendScanResponse(message, connection, OpResult.ERROR, maxCoordinate, ImmutableList.<DHTKey>of());
+            } else {
+                IPAndPort               replica;
+                ProtoScanMessageGroup   protoMG;
+                
+                replica = Collections.min(owners, retrievalReplicaPrioritizer);
+                protoMG = new ProtoScanMessageGroup(message.getUUID(), message.getContext(), minCoordinate, maxCoordinate, 
+                                                    ProtoScanMessageGroup.getAfterKey(message), 
+                                                    ProtoScanMessageGroup.getMaxKeys(message), mgBase.getMyID(), 
+                                                    message.getDeadlineRelativeMillis(), ForwardingMode.DO_NOT_FORWARD);
+                activeScans.put(message.getUUID(), new PendingScan(connection, message.getDeadlineAbsMillis(absMillisTimeSource)));
+                mgBase.send(protoMG.toMessageGroup(), replica);
+            }
+        }
+    }
+    
+    private List<DHTKey> scanLocally(MessageGroup message, long maxCoordinate) {
+        return storage.scanKeys(message.getContext(), ProtoScanMessageGroup.getMinCoordinate(message), maxCoordinate, 
+                                ProtoScanMessageGroup.getAfterKey(message), ProtoScanMessageGroup.getMaxKeys(message));
+    }
+    
+    private void sendScanResponse(MessageGroup message, MessageGroupConnectionProxy connection, OpResult result, 
+                                  long maxCoordinate, List<DHTKey> keys) {
+        ProtoScanResponseMessageGroup   response;
+        
+        response = new ProtoScanResponseMessageGroup(message.getUUID(), message.getContext(), result, maxCoordinate, 
+                                                     keys, mgBase.getMyID());
+        try {
+            connection.sendAsynchronous(response.toMessageGroup(), message.getDeadlineAbsMillis(absMillisTimeSource));
+        } catch (IOException ioe) {
+            Log.logErrorWarning(ioe);
+        }
+    }
+    
+    /**
+     * Relay a scan response from a replica to the client that requested the scan
+     */
+    private void handleScanResponse(MessageGroup message, MessageGroupConnectionProxy connection) {
+        PendingScan pendingScan;
+        
+        pendingScan = activeScans.remove(message.getUUID());
+        if (pendingScan != null) {
+            sendScanResponse(message, pendingScan.connection, ProtoScanResponseMessageGroup.getResult(message), 
+                             ProtoScanResponseMessageGroup.getMaxCoordinate(message), 
+                             ProtoScanResponseMessageGroup.getKeys(message));
+        } else {
+            Log.info("No pending scan for response: ", message.getUUID());
+        }
+    }
+    
+    private static class PendingScan {
+        final MessageGroupConnectionProxy   connection;
+        final long  deadlineAbsMillis;
+        
+        PendingScan(MessageGroupConnectionProxy connection, long deadlineAbsMillis) {
+            this.connection = connection;
+            this.deadlineAbsMillis = deadlineAbsMillis;
+        }
+    }
+    
+    /////////////////////////////////
+    
     private void handleSetConvergenceState(MessageGroup message, MessageGroupConnection connectionForRemote) {
     	storage.handleSetConvergenceState(message, connectionForRemote);
 	}
@@ -807,6 +944,21 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
     MessageGroupBase getMessageGroupBase() {
         return mgBase;
     }
+    
+    PeerLatencyTracker getPeerLatencyTracker() {
+        return peerLatencyTracker;
+    }
+    
+    /**
+     * @return the prioritizer used to order primary replicas for adaptive retrievals
+     */
+    ReplicaPrioritizer getRetrievalReplicaPrioritizer() {
+        return retrievalReplicaPrioritizer;
+    }
+    
+    void scheduleHedge(TimerTask hedge, long delayMillis) {
+        hedgeTimer.schedule(hedge, delayMillis);
+    }
 
     void addActivePut(UUIDBase uuid, ActiveProxyPut activeProxyPut) {
         activePuts.put(uuid, activeProxyPut);
@@ -907,7 +1059,18 @@ public class MessageModule implements MessageGroupReceiver, StorageReplicaProvid
             absTimeMillis = absMillisTimeSource.absTimeMillis();
             cleanupMap(activePuts, absTimeMillis);
             cleanupMap(activeRetrievals, absTimeMillis);
+            for (Map.Entry<UUIDBase,PendingScan> entry : activeScans.entrySet()) {
+                if (entry.getValue().deadlineAbsMillis < absTimeMillis) {
+                    activeScans.remove(entry.getKey());
+                }
+            }
             Log.info("Done cleaning MessageModule maps");
+            if (IncomingMessageGroup.getReceiveBufferPool() != null) {
+                Log.info("Receive buffer pool: ", IncomingMessageGroup.getReceiveBufferPool());
+            }
+            if (GroupCommitter.getInstance() != null) {
+                Log.info("Group commit: ", GroupCommitter.getInstance());
+            }
         }
         
         private void cleanupMap(ConcurrentMap<UUIDBase,? extends ActiveProxyOperation<?, ?>> map,
@@ -517,6 +517,10 @@ public class NodeRingMaster2 implements DHTMetaUpdateListener {
         return curMapState.getResolvedReplicaMap().getEntries(region);
     }
     
+    public RingRegion getCurrentRegion(long coordinate) {
+        return curMapState.getResolvedReplicaMap().getRegion(coordinate);
+    }
+    
     public Set<IPAndPort> getReplicas(RingRegion region, OwnerQueryMode oqm) {
         return curMapState.getResolvedReplicaMap().getOwners(region, oqm);
     }
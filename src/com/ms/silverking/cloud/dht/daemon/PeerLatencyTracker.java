@@ -0,0 +1,129 @@
+package com.ms.silverking.cloud.dht.daemon;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.ms.silverking.net.IPAndPort;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Tracks the response latency of retrievals sent to each peer.
+ * 
+ * For each peer, an exponentially weighted moving average of the latency and of the mean
+ * deviation from that average is maintained as TCP does for round trip times (RFC 6298).
+ * A high percentile of the latency is estimated as the average plus a multiple of the deviation.
+ * 
+ * Estimates that have not been updated recently are treated as unknown so that peers that have 
+ * been avoided because they were slow are eventually tried (and measured) again.
+ */
+public class PeerLatencyTracker {
+    private final ConcurrentMap<IPAndPort,LatencyEstimate>  estimates;
+    
+    private static final int    averageWeightShift = 3; // new samples are weighted 1/8
+    private static final int    deviationWeightShift = 2; // new samples are weighted 1/4
+    private static final int    highPercentileDeviations = 2; // ~95th percentile for normally distributed latencies
+    
+    static final String staleEstimateMillisProperty = PeerLatencyTracker.class.getPackage().getName() + ".StaleLatencyEstimateMillis";
+    static final int    defaultStaleEstimateMillis = 10 * 1000;
+    static final long   staleEstimateNanos;
+    
+    static {
+        staleEstimateNanos = TimeUnit.MILLISECONDS.toNanos(
+                PropertiesHelper.systemHelper.getInt(staleEstimateMillisProperty, defaultStaleEstimateMillis));
+    }
+    
+    public PeerLatencyTracker() {
+        estimates = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Add a latency sample for a peer
+     * @param peer
+     * @param latencyNanos
+     */
+    public void addSample(IPAndPort peer, long latencyNanos) {
+        LatencyEstimate estimate;
+        
+        estimate = estimates.get(peer);
+        if (estimate == null) {
+            LatencyEstimate prev;
+            
+            estimate = new LatencyEstimate();
+            prev = estimates.putIfAbsent(peer, estimate);
+            if (prev != null) {
+                estimate = prev;
+            }
+        }
+        estimate.addSample(latencyNanos, System.nanoTime());
+    }
+    
+    /**
+     * @param peer
+     * @return the average latency for the given peer in nanoseconds, or 0 if no recent estimate exists
+     */
+    public long getAverageLatencyNanos(IPAndPort peer) {
+        LatencyEstimate estimate;
+        
+        estimate = estimates.get(peer);
+        return estimate == null ? 0 : estimate.getAverageNanos(System.nanoTime());
+    }
+    
+    /**
+     * @param peer
+     * @return the estimated ~95th percentile latency for the given peer in nanoseconds, 
+     * or -1 if no recent estimate exists
+     */
+    public long getHighPercentileLatencyNanos(IPAndPort peer) {
+        LatencyEstimate estimate;
+        
+        estimate = estimates.get(peer);
+        return estimate == null ? -1 : estimate.getHighPercentileNanos(System.nanoTime());
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder   sb;
+        long            curTimeNanos;
+        
+        sb = new StringBuilder();
+        curTimeNanos = System.nanoTime();
+        for (Map.Entry<IPAndPort,LatencyEstimate> entry : estimates.entrySet()) {
+            sb.append(String.format("%s:%d:%d ", entry.getKey(), 
+                    entry.getValue().getAverageNanos(curTimeNanos), entry.getValue().getHighPercentileNanos(curTimeNanos)));
+        }
+        return sb.toString();
+    }
+    
+    private static class LatencyEstimate {
+        private long    averageNanos;
+        private long    deviationNanos;
+        private long    lastSampleNanos;
+        private boolean initialized;
+        
+        synchronized void addSample(long latencyNanos, long curTimeNanos) {
+            if (!initialized || curTimeNanos - lastSampleNanos > staleEstimateNanos) {
+                averageNanos = latencyNanos;
+                deviationNanos = latencyNanos >> 1;
+                initialized = true;
+            } else {
+                deviationNanos += (Math.abs(latencyNanos - averageNanos) - deviationNanos) >> deviationWeightShift;
+                averageNanos += (latencyNanos - averageNanos) >> averageWeightShift;
+            }
+            lastSampleNanos = curTimeNanos;
+        }
+        
+        private boolean isCurrent(long curTimeNanos) {
+            return initialized && curTimeNanos - lastSampleNanos <= staleEstimateNanos;
+        }
+        
+        synchronized long getAverageNanos(long curTimeNanos) {
+            return isCurrent(curTimeNanos) ? averageNanos : 0;
+        }
+        
+        synchronized long getHighPercentileNanos(long curTimeNanos) {
+            return isCurrent(curTimeNanos) ? averageNanos + highPercentileDeviations * deviationNanos : -1;
+        }
+    }
+}
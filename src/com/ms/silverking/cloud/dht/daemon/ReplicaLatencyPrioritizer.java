@@ -0,0 +1,20 @@
+package com.ms.silverking.cloud.dht.daemon;
+
+import com.ms.silverking.net.IPAndPort;
+
+/**
+ * Prioritizes replicas with lower observed retrieval latency. Replicas without
+ * a recent latency estimate are tried first so that they are measured.
+ */
+public class ReplicaLatencyPrioritizer implements ReplicaPrioritizer {
+	private final PeerLatencyTracker	peerLatencyTracker;
+	
+	public ReplicaLatencyPrioritizer(PeerLatencyTracker peerLatencyTracker) {
+		this.peerLatencyTracker = peerLatencyTracker;
+	}
+	
+	@Override
+	public int compare(IPAndPort r1, IPAndPort r2) {
+		return Long.compare(peerLatencyTracker.getAverageLatencyNanos(r1), peerLatencyTracker.getAverageLatencyNanos(r2));
+	}
+}
@@ -56,7 +56,7 @@ public final class BufferOffsetList extends OffsetListBase {
             Log.warning("index "+ index);
             Log.warning("entryBaseOffsetBytes(index) "+ entryBaseOffsetBytes(index));
         }
-        return buf.getLong(entryBaseOffsetBytes(index) + storageTimeOffset);
+        return buf.getLong(entryBaseOffsetBytes(index) + storageTimeOffset * NumConversion.BYTES_PER_INT);
     }
     
     protected int getOffset(int index) {
@@ -25,6 +25,16 @@ public class BufferOffsetListStore implements OffsetListStore {
         ensureBufInitialized(); // eager
     }
     
+    /**
+     * @param offsetListsBuf buffer positioned at offset lists in the format produced by RAMOffsetListStore.persist()
+     * @param nsOptions
+     */
+    BufferOffsetListStore(NamespaceOptions nsOptions, ByteBuffer offsetListsBuf) {
+        this.rawHTBuf = null;
+        this.nsOptions = nsOptions;
+        buf = offsetListsBuf.slice().order(ByteOrder.nativeOrder());
+    }
+    
     private void ensureBufInitialized() {
         if (buf == null) {
             int htBufSize;
@@ -37,6 +47,10 @@ public class BufferOffsetListStore implements OffsetListStore {
         }
     }
 
+    public int getNumLists() {
+        return buf.getInt(0);
+    }
+    
     @Override
     public OffsetList newOffsetList() {
         throw new UnsupportedOperationException();
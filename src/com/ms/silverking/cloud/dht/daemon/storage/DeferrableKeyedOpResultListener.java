@@ -0,0 +1,27 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.util.List;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.OpResult;
+
+/**
+ * A KeyedOpResultListener that may also be sent results after the storage operation that produced them
+ * has returned, and from another thread. FILE_SYNC puts use this to send results once the values are
+ * durable (see GroupCommitter). Listeners that do not implement this interface are sent all results
+ * before the operation returns.
+ */
+public interface DeferrableKeyedOpResultListener extends KeyedOpResultListener {
+    /**
+     * Called before the storage operation returns if its results will be sent with sendDeferredResults()
+     * instead of sendResult()
+     */
+    public void resultsDeferred();
+    
+    /**
+     * Send results that were deferred. Must not block.
+     * @param keys
+     * @param results results corresponding to keys
+     */
+    public void sendDeferredResults(List<DHTKey> keys, List<OpResult> results);
+}
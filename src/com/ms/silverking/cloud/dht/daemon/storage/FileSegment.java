@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel.MapMode;
 
 import com.ms.silverking.cloud.dht.NamespaceOptions;
@@ -13,12 +15,14 @@ import com.ms.silverking.cloud.dht.collection.IntArrayCuckoo;
 import com.ms.silverking.cloud.dht.collection.WritableCuckooConfig;
 import com.ms.silverking.cloud.dht.common.DHTConstants;
 import com.ms.silverking.cloud.dht.common.SegmentIndexLocation;
+import com.ms.silverking.io.util.BufferUtil;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.numeric.NumConversion;
 
 public class FileSegment extends WritableSegmentBase {
     private int                 references;
     private RandomAccessFile    raFile;
+    private ByteBuffer          offHeapIndexBuf; // index read into a direct buffer; freed by close()
     
     private static final String    roFileMode = "r";
     private static final String    rwFileMode = "rw";
@@ -96,6 +100,7 @@ public class FileSegment extends WritableSegmentBase {
         ByteBuffer          dataBuf;
         ByteBuffer          rawHTBuf;
         ByteBuffer          htBuf;
+        ByteBuffer          offHeapIndexBuf;
         int                 htBufSize;
         int                 htTotalEntries;
         String              fileOpenMode;
@@ -131,7 +136,17 @@ public class FileSegment extends WritableSegmentBase {
                 forcePreread(dataBuf, dataSegmentSize);
             }
         }
-        if (segmentIndexLocation == SegmentIndexLocation.RAM) {
+        offHeapIndexBuf = null;
+        if (segmentIndexLocation == SegmentIndexLocation.RAM && StoreConfiguration.offHeapIndexes) {
+            offHeapIndexBuf = ByteBuffer.allocateDirect((int)(raFile.length() - dataSegmentSize));
+            while (offHeapIndexBuf.hasRemaining()) {
+                if (raFile.getChannel().read(offHeapIndexBuf, dataSegmentSize + offHeapIndexBuf.position()) < 0) {
+                    throw new IOException("Unexpected end of segment: "+ segmentNumber);
+                }
+            }
+            offHeapIndexBuf.flip();
+            rawHTBuf = offHeapIndexBuf.duplicate();
+        } else if (segmentIndexLocation == SegmentIndexLocation.RAM) {
             byte[]      _htBufArray;
             
             _htBufArray = new byte[(int)(raFile.length() - dataSegmentSize)];
@@ -168,13 +183,21 @@ public class FileSegment extends WritableSegmentBase {
         htTotalEntries = htBufSize / (NumConversion.BYTES_PER_LONG * 2 + NumConversion.BYTES_PER_INT);
         return new FileSegment(nsDir, segmentNumber, raFile, dataBuf, htBuf, 
                                segmentCuckooConfig.newTotalEntries(htTotalEntries), 
-                               new BufferOffsetListStore(rawHTBuf, nsOptions), dataSegmentSize);
+                               new BufferOffsetListStore(rawHTBuf, nsOptions), dataSegmentSize, offHeapIndexBuf);
     }
     
     static File fileForSegment(File nsDir, int segmentNumber) {
         return new File(nsDir, Integer.toString(segmentNumber));
     }
     
+    /**
+     * A segment's file is extended beyond the data segment when its index is persisted.
+     * @return true if the segment's index has been persisted
+     */
+    static boolean isPersisted(File nsDir, int segmentNumber, int dataSegmentSize) {
+        return fileForSegment(nsDir, segmentNumber).length() > dataSegmentSize;
+    }
+    
     public static ByteBuffer getDataSegment(File nsDir, int segmentNumber, int dataSegmentSize) throws IOException {
         RandomAccessFile    raFile;
         ByteBuffer          dataBuf;
@@ -211,10 +234,11 @@ public class FileSegment extends WritableSegmentBase {
     
     // called from openReadOnly
     private FileSegment(File nsDir, int segmentNumber, RandomAccessFile raFile, ByteBuffer dataBuf, ByteBuffer htBuf,
-            WritableCuckooConfig cuckooConfig, BufferOffsetListStore bufferOffsetListStore, int dataSegmentSize) 
-                    throws IOException {
+            WritableCuckooConfig cuckooConfig, BufferOffsetListStore bufferOffsetListStore, int dataSegmentSize,
+            ByteBuffer offHeapIndexBuf) throws IOException {
         super(nsDir, segmentNumber, dataBuf, htBuf, cuckooConfig, bufferOffsetListStore, dataSegmentSize);
         this.raFile = raFile;
+        this.offHeapIndexBuf = offHeapIndexBuf;
     }
 
     // called from open for recovery
@@ -234,6 +258,30 @@ public class FileSegment extends WritableSegmentBase {
         this.raFile = raFile;
     }
     
+    /**
+     * Force data written to this segment to storage. Values are written through the mapped dataBuf,
+     * and FileChannel.force() is not specified to cover writes made through a mapping, so the mapping
+     * itself is forced before the channel. A segment that has been persisted has already been forced,
+     * and is closed; there is nothing further to sync.
+     */
+    void sync() throws IOException {
+        RandomAccessFile    _raFile;
+        ByteBuffer          _dataBuf;
+        
+        _raFile = raFile;
+        _dataBuf = dataBuf;
+        if (_raFile != null) {
+            try {
+                if (_dataBuf instanceof MappedByteBuffer) {
+                    ((MappedByteBuffer)_dataBuf).force();
+                }
+                _raFile.getChannel().force(false);
+            } catch (ClosedChannelException cce) {
+                // persisted concurrently; persist() forces before closing
+            }
+        }
+    }
+    
     public void persist() throws IOException {
         ByteBuffer  htBuf;
         byte[]		ht;
@@ -276,6 +324,10 @@ public class FileSegment extends WritableSegmentBase {
         ((RAMOffsetListStore)offsetListStore).persist(htBuf);
         //((sun.nio.ch.DirectBuffer)htBuf).cleaner().clean();
         
+        if (dataBuf instanceof MappedByteBuffer) {
+            ((MappedByteBuffer)dataBuf).force();
+        }
+        ((MappedByteBuffer)htBuf).force();
         raFile.getChannel().force(true);
         raFile.getFD().sync();
         close();
@@ -329,6 +381,12 @@ public class FileSegment extends WritableSegmentBase {
     
     public void close() {
         // FUTURE - can we close raFile earlier?        
+        synchronized (this) {
+            if (offHeapIndexBuf != null) {
+                BufferUtil.free(offHeapIndexBuf);
+                offHeapIndexBuf = null;
+            }
+        }
         try {
             raFile.close();
             raFile = null;
@@ -15,6 +15,7 @@ import com.ms.silverking.cloud.dht.daemon.storage.FileSegment.SegmentPrereadMode
 import com.ms.silverking.collection.HashedSetMap;
 import com.ms.silverking.collection.Triple;
 import com.ms.silverking.log.Log;
+import com.ms.silverking.util.concurrent.RateLimiter;
 
 public class FileSegmentCompactor {
 	private static final boolean	verbose = false;
@@ -76,7 +77,8 @@ public class FileSegmentCompactor {
 	}
 	
     static FileSegment createCompactedSegment(File nsDir, int segmentNumber, NamespaceOptions nsOptions, int segmentSize,
-    						  				 EntryRetentionCheck retentionCheck, HashedSetMap<DHTKey, Triple<Long, Integer, Long>> removedEntries, boolean includeStorageTime) {
+    						  				 EntryRetentionCheck retentionCheck, HashedSetMap<DHTKey, Triple<Long, Integer, Long>> removedEntries, boolean includeStorageTime, 
+    						  				 RateLimiter rateLimiter) {
         try {
             DataSegmentWalker       dsWalker;
             FileSegment             sourceSegment;
@@ -104,6 +106,9 @@ public class FileSegmentCompactor {
 		                	Log.warning("Retaining:\t", entry.getKey());
 		                }
 		                
+		                if (rateLimiter != null) {
+		                	rateLimiter.acquire(entry.getStoredLength());
+		                }
 		                storageResult = destSegment.putFormattedValue(entry.getKey(), entry.getStoredFormat(), entry.getStorageParameters(), nsOptions);
 		                if (storageResult != SegmentStorageResult.stored) {
 		                	// FUTURE - think about duplicate stores, and the duplicate store WritableSegmentBase
@@ -130,21 +135,56 @@ public class FileSegmentCompactor {
         } catch (IOException ioe) {
             Log.logErrorWarning(ioe, "Unable to compact: "+ segmentNumber);
             throw new RuntimeException(ioe);
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while compacting: "+ segmentNumber, ie);
         }
     }
     
     public static HashedSetMap<DHTKey, Triple<Long, Integer, Long>> compact(File nsDir, int segmentNumber, NamespaceOptions nsOptions, 
 			  				   EntryRetentionCheck retentionCheck) throws IOException {
+    	HashedSetMap<DHTKey, Triple<Long, Integer, Long>>	removedEntries;
+    	
+    	removedEntries = prepareCompactedSegment(nsDir, segmentNumber, nsOptions, retentionCheck, null);
+    	swapCompactedSegment(nsDir, segmentNumber);
+        return removedEntries;
+    }
+    
+    /**
+     * Create and persist a compacted copy of the given segment in the compaction directory. The live segment
+     * is not modified; use swapCompactedSegment() to replace it with the compacted copy.
+     * @param nsDir
+     * @param segmentNumber
+     * @param nsOptions
+     * @param retentionCheck
+     * @param rateLimiter limits the rate (bytes/s) at which data is copied; may be null
+     * @return entries that were removed by compaction
+     * @throws IOException
+     */
+    public static HashedSetMap<DHTKey, Triple<Long, Integer, Long>> prepareCompactedSegment(File nsDir, int segmentNumber, 
+    											NamespaceOptions nsOptions, EntryRetentionCheck retentionCheck, 
+    											RateLimiter rateLimiter) throws IOException {
     	FileSegment	compactedSegment;
-    	File		oldFile;
-    	File		trashFile;
-    	File		newFile;
     	HashedSetMap<DHTKey, Triple<Long, Integer, Long>>	removedEntries;
     	
     	removedEntries = new HashedSetMap<>();
     	compactedSegment = createCompactedSegment(nsDir, segmentNumber, nsOptions, nsOptions.getSegmentSize(), retentionCheck, 
-    											  removedEntries, nsOptions.getRevisionMode() == RevisionMode.UNRESTRICTED_REVISIONS);
+    											  removedEntries, nsOptions.getRevisionMode() == RevisionMode.UNRESTRICTED_REVISIONS, 
+    											  rateLimiter);
     	compactedSegment.persist();
+    	return removedEntries;
+    }
+    
+    /**
+     * Replace the given segment with the compacted copy created by prepareCompactedSegment()
+     * @param nsDir
+     * @param segmentNumber
+     * @throws IOException
+     */
+    public static void swapCompactedSegment(File nsDir, int segmentNumber) throws IOException {
+    	File		oldFile;
+    	File		trashFile;
+    	File		newFile;
+    	
         Log.warning("Swapping to compacted segment: ", segmentNumber);
     	oldFile = FileSegment.fileForSegment(nsDir, segmentNumber);
     	newFile = getCompactionFile(nsDir, segmentNumber);
@@ -152,7 +192,21 @@ public class FileSegmentCompactor {
     	rename(oldFile, trashFile); // Leave old file around for one cycle in case there are references to it
     	rename(newFile, oldFile);
         Log.warning("Done swapping to compacted segment: ", segmentNumber);
-        return removedEntries;
+    }
+    
+    /**
+     * Discard a compacted copy created by prepareCompactedSegment() without swapping it in
+     * @param nsDir
+     * @param segmentNumber
+     * @throws IOException
+     */
+    public static void discardCompactedSegment(File nsDir, int segmentNumber) throws IOException {
+    	File	newFile;
+    	
+    	newFile = getCompactionFile(nsDir, segmentNumber);
+    	if (newFile.exists() && !newFile.delete()) {
+    		throw new IOException("Delete failed: "+ newFile);
+    	}
     }
     
 	public static void delete(File nsDir, int segmentNumber) throws IOException {
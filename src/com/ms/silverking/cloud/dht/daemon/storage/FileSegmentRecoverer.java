@@ -2,6 +2,8 @@ package com.ms.silverking.cloud.dht.daemon.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.ms.silverking.cloud.dht.NamespaceOptions;
 import com.ms.silverking.cloud.dht.NamespaceVersionMode;
@@ -9,6 +11,7 @@ import com.ms.silverking.cloud.dht.RevisionMode;
 import com.ms.silverking.cloud.dht.StorageType;
 import com.ms.silverking.cloud.dht.collection.DHTKeyIntEntry;
 import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.common.KeyUtil;
 import com.ms.silverking.cloud.dht.common.NamespaceProperties;
 import com.ms.silverking.cloud.dht.common.SegmentIndexLocation;
@@ -32,15 +35,39 @@ public class FileSegmentRecoverer {
     
     FileSegment recoverFullSegment(int segmentNumber, NamespaceStore nsStore, 
     							   SegmentIndexLocation segmentIndexLocation, SegmentPrereadMode segmentPrereadMode) {
-    	FileSegment	_segment;
-    	
+    	return recoverFullSegment(segmentNumber, nsStore, segmentIndexLocation, segmentPrereadMode, 0);
+    }
+    
+    FileSegment recoverFullSegment(int segmentNumber, NamespaceStore nsStore, 
+    							   SegmentIndexLocation segmentIndexLocation, SegmentPrereadMode segmentPrereadMode,
+    							   int replayOffset) {
+    	return applyRecoveredSegment(readFullSegmentForRecovery(segmentNumber, nsStore, segmentIndexLocation, segmentPrereadMode,
+    															replayOffset), 
+    								nsStore);
+    }
+    
+    /**
+     * Read the index of a full segment in preparation for recovery. The namespace store is not modified,
+     * so this may be called concurrently for distinct segments. Use applyRecoveredSegment() to
+     * add the result to the namespace store.
+     * @param segmentNumber
+     * @param nsStore
+     * @param segmentIndexLocation
+     * @param segmentPrereadMode
+     * @param replayOffset entries at lower offsets are already reflected in the namespace store and are skipped
+     * @return the recovered segment, or null if the segment could not be read
+     */
+    RecoveredSegment readFullSegmentForRecovery(int segmentNumber, NamespaceStore nsStore, 
+    							   SegmentIndexLocation segmentIndexLocation, SegmentPrereadMode segmentPrereadMode,
+    							   int replayOffset) {
         Log.warningf("Recovering full segment: %d %s", segmentNumber, segmentPrereadMode);
-        _segment = null;
         try {
             FileSegment segment;
             Stopwatch   sw;
+            List<Triple<DHTKey,Long,Long>>	keyVersionAndCreationTimes;
             
             sw = new SimpleStopwatch();
+            keyVersionAndCreationTimes = new ArrayList<>();
             segment = FileSegment.openReadOnly(nsDir, segmentNumber, nsStore.getNamespaceOptions().getSegmentSize(), 
                                                nsStore.getNamespaceOptions(), segmentIndexLocation, segmentPrereadMode);            
             for (DHTKeyIntEntry entry : segment.getPKC()) {
@@ -53,11 +80,12 @@ public class FileSegmentRecoverer {
                     
                     offsetList = segment.offsetListStore.getOffsetList(-offset);
                     for (Triple<Integer,Long,Long> offsetVersionAndStorageTime : offsetList.offsetVersionAndStorageTimeIterable()) {
-                    	creationTime = offsetVersionAndStorageTime.getV3();
-                        nsStore.putSegmentNumberAndVersion(entry.getKey(), segmentNumber, 
-                        		offsetVersionAndStorageTime.getV2(), creationTime);
+                    	if (offsetVersionAndStorageTime.getV1() >= replayOffset) {
+	                    	creationTime = offsetVersionAndStorageTime.getV3();
+	                    	keyVersionAndCreationTimes.add(new Triple<>(entry.getKey(), offsetVersionAndStorageTime.getV2(), creationTime));
+                    	}
                     }
-                } else {
+                } else if (offset >= replayOffset) {
                 	long	version;
                 	
                     if (nsStore.getNamespaceOptions().getVersionMode() == NamespaceVersionMode.SINGLE_VERSION) {
@@ -70,7 +98,7 @@ public class FileSegmentRecoverer {
                     } else {
                         creationTime = 0;
                     }
-                    nsStore.putSegmentNumberAndVersion(entry.getKey(), segmentNumber, version, creationTime);
+                    keyVersionAndCreationTimes.add(new Triple<>(entry.getKey(), version, creationTime));
                 }
             }
             
@@ -85,18 +113,64 @@ public class FileSegmentRecoverer {
             
             if (segmentPrereadMode != SegmentPrereadMode.Preread) {
             	segment.close();
-            } else {
-            	_segment = segment;
+            	segment = null;
             }
             sw.stop();            
             Log.warning("Done recovering full segment: ", segmentNumber +"\t"+ sw.getElapsedSeconds());
+            return new RecoveredSegment(segmentNumber, segment, keyVersionAndCreationTimes);
         } catch (IOException ioe) {
             Log.logErrorWarning(ioe, "Unable to recover: "+ segmentNumber);
+            return null;
         }
-        return _segment;
+    }
+    
+    /**
+     * Add the contents of a segment read by readFullSegmentForRecovery() to the namespace store.
+     * Segments must be applied in ascending segment number order.
+     * @param recoveredSegment
+     * @param nsStore
+     * @return the segment if it was preread, null otherwise
+     */
+    FileSegment applyRecoveredSegment(RecoveredSegment recoveredSegment, NamespaceStore nsStore) {
+    	if (recoveredSegment == null) {
+    		return null;
+    	} else {
+	    	for (Triple<DHTKey,Long,Long> keyVersionAndCreationTime : recoveredSegment.keyVersionAndCreationTimes) {
+	            nsStore.putSegmentNumberAndVersion(keyVersionAndCreationTime.getV1(), recoveredSegment.segmentNumber, 
+	            								keyVersionAndCreationTime.getV2(), keyVersionAndCreationTime.getV3());
+	    	}
+	    	return recoveredSegment.segment;
+    	}
+    }
+    
+    /**
+     * Segment index entries read during recovery, pending application to the namespace store
+     */
+    static class RecoveredSegment {
+    	private final int	segmentNumber;
+    	private final FileSegment	segment;
+    	private final List<Triple<DHTKey,Long,Long>>	keyVersionAndCreationTimes;
+    	
+    	RecoveredSegment(int segmentNumber, FileSegment segment, List<Triple<DHTKey,Long,Long>> keyVersionAndCreationTimes) {
+    		this.segmentNumber = segmentNumber;
+    		this.segment = segment;
+    		this.keyVersionAndCreationTimes = keyVersionAndCreationTimes;
+    	}
     }
     
     FileSegment recoverPartialSegment(int segmentNumber, NamespaceStore nsStore) {
+    	return recoverPartialSegment(segmentNumber, nsStore, 0);
+    }
+    
+    /**
+     * Recover a segment whose index was never persisted from its data
+     * @param segmentNumber
+     * @param nsStore
+     * @param replayOffset entries at lower offsets are already reflected in the namespace store, and are
+     * added only to the segment's own index
+     * @return the recovered segment, or null if the segment could not be read
+     */
+    FileSegment recoverPartialSegment(int segmentNumber, NamespaceStore nsStore, int replayOffset) {
         try {
             DataSegmentWalker       dsWalker;
             FileSegment             fileSegment;
@@ -124,8 +198,10 @@ public class FileSegmentRecoverer {
                     System.out.println("sanity check: "+ fileSegment.getPKC().get(entry.getKey()));
                 }
                 lastEntry = entry;
-                nsStore.putSegmentNumberAndVersion(entry.getKey(), 
-                        segmentNumber, entry.getVersion(), entry.getCreationTime());
+                if (entry.getOffset() >= replayOffset) {
+	                nsStore.putSegmentNumberAndVersion(entry.getKey(), 
+	                        segmentNumber, entry.getVersion(), entry.getCreationTime());
+                }
                 nsStore.addToSizeStats(entry.getUncompressedLength(), entry.getCompressedLength());
             }
             if (lastEntry != null) {
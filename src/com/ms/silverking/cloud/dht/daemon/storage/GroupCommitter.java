@@ -0,0 +1,230 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ms.silverking.log.Log;
+import com.ms.silverking.thread.ThreadUtil;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Group commit for FILE_SYNC namespaces. Writers that have stored values call commit() with the
+ * segments that they wrote to and a listener; commit() does not block. A single committer thread
+ * collects the segments of all writers that have arrived, forces each segment once, and then notifies
+ * the listener of every writer in the group. Writers that arrive while a sync is in progress form the
+ * next group. A positive maxLatencyMicros additionally holds each group open for that long, trading put
+ * latency for larger groups. Writers send their put results from the listener so that a successful
+ * result is never observed before the value is durable, and so that no storage worker waits on a sync.
+ *
+ * Listeners are called on the committer thread and must not block.
+ *
+ * Enabled with the GroupCommit property. When disabled, getInstance() returns null.
+ */
+public class GroupCommitter implements Runnable {
+    private final long  maxLatencyNanos;
+    private final Lock  lock;
+    private final Condition pendingCV;
+    private Commit  currentCommit;
+
+    private final AtomicLong    commits;
+    private final AtomicLong    writers;
+    private final AtomicLong    maxWriters;
+    private final AtomicLong    segmentSyncs;
+    private final AtomicLong    syncFailures;
+    private final AtomicLong    totalSyncNanos;
+    private final AtomicLong    maxSyncNanos;
+
+    public static final String  groupCommitProperty = GroupCommitter.class.getPackage().getName() + ".GroupCommit";
+    public static final String  maxLatencyMicrosProperty = GroupCommitter.class.getPackage().getName() + ".GroupCommitMaxLatencyMicros";
+    static final boolean    defaultGroupCommit = false;
+    static final int    defaultMaxLatencyMicros = 0;
+
+    private static final GroupCommitter instance;
+
+    static {
+        if (PropertiesHelper.systemHelper.getBoolean(groupCommitProperty, defaultGroupCommit)) {
+            int maxLatencyMicros;
+
+            maxLatencyMicros = PropertiesHelper.systemHelper.getInt(maxLatencyMicrosProperty, defaultMaxLatencyMicros);
+            Log.warningf("%s %d", maxLatencyMicrosProperty, maxLatencyMicros);
+            instance = new GroupCommitter(maxLatencyMicros);
+            ThreadUtil.newDaemonThread(instance, "GroupCommitter").start();
+        } else {
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the daemon-wide GroupCommitter, or null if group commit is disabled
+     */
+    public static GroupCommitter getInstance() {
+        return instance;
+    }
+
+    GroupCommitter(int maxLatencyMicros) {
+        maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        lock = new ReentrantLock();
+        pendingCV = lock.newCondition();
+        currentCommit = new Commit();
+        commits = new AtomicLong();
+        writers = new AtomicLong();
+        maxWriters = new AtomicLong();
+        segmentSyncs = new AtomicLong();
+        syncFailures = new AtomicLong();
+        totalSyncNanos = new AtomicLong();
+        maxSyncNanos = new AtomicLong();
+    }
+
+    /**
+     * Force all writes made to the given segments before this call to storage, and then notify the
+     * given listener. Does not block.
+     * @param segments the segments that were written to
+     * @param listener notified once the segments have been forced; may be null
+     */
+    void commit(Collection<FileSegment> segments, CommitListener listener) {
+        lock.lock();
+        try {
+            currentCommit.segments.addAll(segments);
+            if (listener != null) {
+                currentCommit.listeners.add(listener);
+            }
+            currentCommit.numWriters++;
+            if (currentCommit.numWriters == 1) {
+                pendingCV.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Commit  commit;
+                boolean succeeded;
+
+                lock.lock();
+                try {
+                    while (currentCommit.numWriters == 0) {
+                        pendingCV.awaitUninterruptibly();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // allow writers to join this commit for up to the max latency window
+                if (maxLatencyNanos > 0) {
+                    LockSupport.parkNanos(maxLatencyNanos);
+                }
+                lock.lock();
+                try {
+                    commit = currentCommit;
+                    currentCommit = new Commit();
+                } finally {
+                    lock.unlock();
+                }
+                succeeded = false;
+                try {
+                    succeeded = sync(commit);
+                } finally {
+                    commit.complete(succeeded);
+                }
+            } catch (Exception e) {
+                Log.logErrorWarning(e);
+                ThreadUtil.pauseAfterException();
+            }
+        }
+    }
+
+    private boolean sync(Commit commit) {
+        boolean succeeded;
+        long    t0;
+        long    syncNanos;
+
+        succeeded = true;
+        t0 = System.nanoTime();
+        for (FileSegment segment : commit.segments) {
+            try {
+                segment.sync();
+            } catch (IOException ioe) {
+                Log.logErrorWarning(ioe, "GroupCommitter sync failed: "+ segment.getSegmentNumber());
+                syncFailures.incrementAndGet();
+                succeeded = false;
+            }
+        }
+        syncNanos = System.nanoTime() - t0;
+        commits.incrementAndGet();
+        writers.addAndGet(commit.numWriters);
+        updateMax(maxWriters, commit.numWriters);
+        segmentSyncs.addAndGet(commit.segments.size());
+        totalSyncNanos.addAndGet(syncNanos);
+        updateMax(maxSyncNanos, syncNanos);
+        return succeeded;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long    curMax;
+
+        do {
+            curMax = max.get();
+        } while (value > curMax && !max.compareAndSet(curMax, value));
+    }
+
+    @Override
+    public String toString() {
+        long    _commits;
+
+        _commits = commits.get();
+        return String.format("commits %d writers %d meanBatch %.2f maxBatch %d segmentSyncs %d syncFailures %d "
+                            +"meanSyncMicros %.1f maxSyncMicros %d",
+                _commits, writers.get(), _commits > 0 ? (double)writers.get() / (double)_commits : 0.0,
+                maxWriters.get(), segmentSyncs.get(), syncFailures.get(),
+                _commits > 0 ? (double)totalSyncNanos.get() / (double)_commits / 1000.0 : 0.0,
+                TimeUnit.NANOSECONDS.toMicros(maxSyncNanos.get()));
+    }
+
+    /**
+     * Notified when the segments passed to commit() have been forced to storage
+     */
+    interface CommitListener {
+        /**
+         * @param succeeded false if forcing any segment of the commit failed
+         */
+        void commitComplete(boolean succeeded);
+    }
+
+    /**
+     * A group of writers that are released by a single sync. Segments, listeners, and numWriters are
+     * only modified while holding the GroupCommitter lock, and only while the Commit is current.
+     */
+    private static class Commit {
+        final Set<FileSegment>  segments;
+        final List<CommitListener>  listeners;
+        int     numWriters;
+
+        Commit() {
+            segments = new HashSet<>();
+            listeners = new ArrayList<>();
+        }
+
+        void complete(boolean succeeded) {
+            for (CommitListener listener : listeners) {
+                try {
+                    listener.commitComplete(succeeded);
+                } catch (Exception e) {
+                    Log.logErrorWarning(e, "GroupCommitter listener failed");
+                }
+            }
+        }
+    }
+}
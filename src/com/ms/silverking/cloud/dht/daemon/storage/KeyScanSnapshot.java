@@ -0,0 +1,158 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import com.ms.silverking.cloud.dht.collection.DHTKeyIntEntry;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.DHTKeyComparator;
+import com.ms.silverking.cloud.dht.common.KeyUtil;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.util.PropertiesHelper;
+
+/**
+ * Sorted copy of the keys in one coordinate range of a namespace used to serve key scans.
+ * Keys are ordered by ring coordinate and then by key so that a scan may be resumed from
+ * the last key returned. Successive pages of a scan of a region are served from a single
+ * snapshot using binary search rather than by walking the key index for each page.
+ */
+class KeyScanSnapshot {
+    private final long[]    keys; // msl, lsl pairs
+    private final long      minCoordinate;
+    private final long      maxCoordinate;
+    private final long      creationTimeMillis;
+
+    static final Comparator<DHTKey> scanOrderComparator = new ScanOrderComparator();
+
+    static final String snapshotLifetimeMillisProperty = KeyScanSnapshot.class.getPackage().getName() + ".KeyScanSnapshotLifetimeMillis";
+    static final int    defaultSnapshotLifetimeMillis = 30 * 1000;
+    static final int    snapshotLifetimeMillis;
+
+    static {
+        snapshotLifetimeMillis = PropertiesHelper.systemHelper.getInt(snapshotLifetimeMillisProperty, defaultSnapshotLifetimeMillis);
+    }
+
+    private KeyScanSnapshot(long[] keys, long minCoordinate, long maxCoordinate, long creationTimeMillis) {
+        this.keys = keys;
+        this.minCoordinate = minCoordinate;
+        this.maxCoordinate = maxCoordinate;
+        this.creationTimeMillis = creationTimeMillis;
+    }
+
+    /**
+     * Create a snapshot of the keys with coordinates in [minCoordinate, maxCoordinate] from the
+     * given key index entries. Only keys within the range are copied. Caller must prevent
+     * concurrent modification of the underlying index.
+     */
+    static KeyScanSnapshot create(Iterator<DHTKeyIntEntry> entries, long minCoordinate, long maxCoordinate,
+                                  long creationTimeMillis) {
+        List<DHTKey>    keyList;
+        DHTKey[]        sortedKeys;
+        long[]          keys;
+
+        keyList = new ArrayList<>();
+        while (entries.hasNext()) {
+            DHTKey  key;
+            long    coordinate;
+
+            key = entries.next().getKey();
+            coordinate = KeyUtil.keyToCoordinate(key);
+            if (coordinate >= minCoordinate && coordinate <= maxCoordinate) {
+                keyList.add(new SimpleKey(key));
+            }
+        }
+        sortedKeys = keyList.toArray(new DHTKey[keyList.size()]);
+        Arrays.sort(sortedKeys, scanOrderComparator);
+        keys = new long[sortedKeys.length * 2];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            keys[i * 2] = sortedKeys[i].getMSL();
+            keys[i * 2 + 1] = sortedKeys[i].getLSL();
+        }
+        return new KeyScanSnapshot(keys, minCoordinate, maxCoordinate, creationTimeMillis);
+    }
+
+    boolean isExpired(long curTimeMillis) {
+        return curTimeMillis - creationTimeMillis > snapshotLifetimeMillis;
+    }
+
+    /**
+     * @return true if every key with a coordinate in [minCoordinate, maxCoordinate] lies within
+     * the range of this snapshot
+     */
+    boolean covers(long minCoordinate, long maxCoordinate) {
+        return minCoordinate >= this.minCoordinate && maxCoordinate <= this.maxCoordinate;
+    }
+
+    int getNumKeys() {
+        return keys.length / 2;
+    }
+
+    /**
+     * Return keys in scan order with coordinates in [minCoordinate, maxCoordinate] that
+     * follow afterKey.
+     * @param minCoordinate
+     * @param maxCoordinate
+     * @param afterKey if non-null, only keys after this key are returned
+     * @param maxKeys maximum number of keys to return
+     * @return the matching keys in scan order
+     */
+    List<DHTKey> getKeys(long minCoordinate, long maxCoordinate, DHTKey afterKey, int maxKeys) {
+        List<DHTKey>    result;
+        int             index;
+
+        result = new ArrayList<>(Math.min(maxKeys, getNumKeys()));
+        index = firstIndex(minCoordinate, afterKey);
+        while (index < getNumKeys() && result.size() < maxKeys) {
+            DHTKey  key;
+
+            key = new SimpleKey(keys[index * 2], keys[index * 2 + 1]);
+            if (KeyUtil.keyToCoordinate(key) > maxCoordinate) {
+                break;
+            }
+            result.add(key);
+            index++;
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of the first key with a coordinate >= minCoordinate that follows afterKey
+     */
+    private int firstIndex(long minCoordinate, DHTKey afterKey) {
+        int low;
+        int high;
+
+        low = 0;
+        high = getNumKeys();
+        while (low < high) {
+            int     mid;
+            DHTKey  key;
+
+            mid = (low + high) >>> 1;
+            key = new SimpleKey(keys[mid * 2], keys[mid * 2 + 1]);
+            if (KeyUtil.keyToCoordinate(key) < minCoordinate
+                    || (afterKey != null && scanOrderComparator.compare(key, afterKey) <= 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static class ScanOrderComparator implements Comparator<DHTKey> {
+        @Override
+        public int compare(DHTKey k1, DHTKey k2) {
+            int result;
+
+            result = Long.compare(KeyUtil.keyToCoordinate(k1), KeyUtil.keyToCoordinate(k2));
+            if (result == 0) {
+                result = DHTKeyComparator.dhtKeyComparator.compare(k1, k2);
+            }
+            return result;
+        }
+    }
+}
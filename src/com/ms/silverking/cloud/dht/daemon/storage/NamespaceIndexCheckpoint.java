@@ -0,0 +1,398 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import com.ms.silverking.cloud.dht.NamespaceOptions;
+import com.ms.silverking.cloud.dht.collection.CuckooConfig;
+import com.ms.silverking.cloud.dht.collection.IntArrayCuckoo;
+import com.ms.silverking.cloud.dht.collection.WritableCuckooConfig;
+import com.ms.silverking.io.util.BufferUtil;
+import com.ms.silverking.log.Log;
+import com.ms.silverking.numeric.NumConversion;
+
+/**
+ * Checkpoint of a NamespaceStore's key-to-segment index (valueSegments and its offset lists).
+ *
+ * A checkpoint records the high-water mark (the next segment number) and the head segment of
+ * each write partition together with the offset of the next entry in that head. Entries of a
+ * head below the recorded offset, and all entries of other segments below the high-water mark,
+ * are reflected in the checkpoint. Recovery may therefore load the checkpoint and replay only
+ * the remaining entries; see getReplayOffset().
+ *
+ * The index is captured by create() while the caller holds the namespace locks. The capture
+ * is a bulk copy; the copy is converted and written to the file by write() after the locks
+ * have been released. Recovery maps the file rather than reading it onto the heap.
+ */
+class NamespaceIndexCheckpoint {
+	private final int			highWaterMark;
+	private final int			totalKeys;
+	private final int[]			headSegmentNumbers;
+	private final int[]			headOffsets;
+	// created checkpoints hold a copy of the index until it is written
+	private IntArrayCuckoo		valueSegments;
+	private ByteBuffer			offsetLists;
+	// read checkpoints hold the location of the index within the file
+	private final File			file;
+	private final CuckooConfig	cuckooConfig;
+	private final long			htPosition;
+	private final long			htSize;
+	private final long			offsetListsPosition;
+	private final long			offsetListsSize;
+
+	/*
+	 * Persisted format (native byte order):
+	 *      magic				4 bytes
+	 *      format version		4 bytes
+	 *      high-water mark		4 bytes
+	 *      total keys			4 bytes
+	 *      number of heads		4 bytes
+	 *      heads				8 bytes * number of heads
+	 *          segment number		4 bytes
+	 *          offset				4 bytes
+	 *      CuckooConfig		CuckooConfig.BYTES
+	 *      ht size				8 bytes
+	 *      ht					ht size bytes, as IntArrayCuckoo.getAsBytes()
+	 *      offset lists size	8 bytes
+	 *      offset lists		offset lists size bytes, as RAMOffsetListStore.persist()
+	 */
+
+	private static final String	fileName = "indexCheckpoint";
+	private static final String	tmpFileName = fileName +".tmp";
+
+	private static final int	magic = 0x534b4943;
+	private static final int	formatVersion = 2;
+	private static final int	magicOffset = 0;
+	private static final int	formatVersionOffset = magicOffset + NumConversion.BYTES_PER_INT;
+	private static final int	highWaterMarkOffset = formatVersionOffset + NumConversion.BYTES_PER_INT;
+	private static final int	totalKeysOffset = highWaterMarkOffset + NumConversion.BYTES_PER_INT;
+	private static final int	numHeadsOffset = totalKeysOffset + NumConversion.BYTES_PER_INT;
+	private static final int	headsOffset = numHeadsOffset + NumConversion.BYTES_PER_INT;
+	private static final int	headSize = 2 * NumConversion.BYTES_PER_INT;
+	private static final int	maxHeads = 1024;
+
+	private static final int	noReplay = Integer.MAX_VALUE;
+
+	private NamespaceIndexCheckpoint(int highWaterMark, int totalKeys, int[] headSegmentNumbers, int[] headOffsets,
+									IntArrayCuckoo valueSegments, ByteBuffer offsetLists, File file,
+									CuckooConfig cuckooConfig, long htPosition, long htSize,
+									long offsetListsPosition, long offsetListsSize) {
+		this.highWaterMark = highWaterMark;
+		this.totalKeys = totalKeys;
+		this.headSegmentNumbers = headSegmentNumbers;
+		this.headOffsets = headOffsets;
+		this.valueSegments = valueSegments;
+		this.offsetLists = offsetLists;
+		this.file = file;
+		this.cuckooConfig = cuckooConfig;
+		this.htPosition = htPosition;
+		this.htSize = htSize;
+		this.offsetListsPosition = offsetListsPosition;
+		this.offsetListsSize = offsetListsSize;
+	}
+
+	/**
+	 * Capture the given index. The caller must prevent modification of the index and of the head
+	 * segments for the duration of this call. Heads are not sealed; the offset of the next entry
+	 * in each head is recorded instead.
+	 * @param highWaterMark the next segment number
+	 * @param totalKeys
+	 * @param headSegmentNumbers the segment number of each head
+	 * @param headOffsets the offset of the next entry in each head
+	 * @param valueSegments
+	 * @param offsetListStore
+	 * @throws RuntimeException if the offset lists are too large to persist
+	 */
+	static NamespaceIndexCheckpoint create(int highWaterMark, int totalKeys, int[] headSegmentNumbers, int[] headOffsets,
+											IntArrayCuckoo valueSegments, RAMOffsetListStore offsetListStore) {
+		ByteBuffer	offsetLists;
+
+		offsetLists = ByteBuffer.allocateDirect(offsetListStore.persistedSizeBytes()).order(ByteOrder.nativeOrder());
+		offsetListStore.persist(offsetLists);
+		offsetLists.flip();
+		return new NamespaceIndexCheckpoint(highWaterMark, totalKeys, headSegmentNumbers.clone(), headOffsets.clone(),
+											valueSegments.copy(), offsetLists, null,
+											valueSegments.getConfig(), 0, valueSegments.persistedSizeBytes(),
+											0, offsetLists.limit());
+	}
+
+	int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	int getTotalKeys() {
+		return totalKeys;
+	}
+
+	/**
+	 * @param segmentNumber
+	 * @return the offset at and above which entries of the given segment are not reflected in this
+	 * checkpoint and must be replayed; Integer.MAX_VALUE if no entries of the segment need be replayed
+	 */
+	int getReplayOffset(int segmentNumber) {
+		if (segmentNumber >= highWaterMark) {
+			return 0;
+		} else {
+			for (int i = 0; i < headSegmentNumbers.length; i++) {
+				if (headSegmentNumbers[i] == segmentNumber) {
+					return headOffsets[i];
+				}
+			}
+			return noReplay;
+		}
+	}
+
+	/**
+	 * @return true if no entries have been written since this checkpoint was taken, given the
+	 * current next segment number, head segment numbers, and head offsets
+	 */
+	boolean isCurrent(int nextSegmentNumber, int[] curHeadSegmentNumbers, int[] curHeadOffsets) {
+		return highWaterMark == nextSegmentNumber
+				&& Arrays.equals(headSegmentNumbers, curHeadSegmentNumbers)
+				&& Arrays.equals(headOffsets, curHeadOffsets);
+	}
+
+	/**
+	 * Create a table from the index of a checkpoint that has been read. The table is mapped from
+	 * the checkpoint file one sub table at a time.
+	 */
+	IntArrayCuckoo createValueSegments(int cuckooLimit, boolean offHeap) throws IOException {
+		RandomAccessFile	raFile;
+
+		raFile = new RandomAccessFile(file, "r");
+		try {
+			IntArrayCuckoo	_valueSegments;
+
+			_valueSegments = new IntArrayCuckoo(new WritableCuckooConfig(cuckooConfig, cuckooLimit),
+												raFile.getChannel(), htPosition, offHeap);
+			if (_valueSegments.persistedSizeBytes() != htSize) {
+				_valueSegments.free();
+				throw new IOException(String.format("Index checkpoint ht size mismatch %d != %d",
+													_valueSegments.persistedSizeBytes(), htSize));
+			}
+			return _valueSegments;
+		} finally {
+			raFile.close();
+		}
+	}
+
+	void loadOffsetLists(RAMOffsetListStore offsetListStore, NamespaceOptions nsOptions) throws IOException {
+		RandomAccessFile	raFile;
+
+		raFile = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer	buf;
+
+			// the mapping remains valid after the file is closed
+			buf = raFile.getChannel().map(MapMode.READ_ONLY, offsetListsPosition, offsetListsSize);
+			offsetListStore.addAll(new BufferOffsetListStore(nsOptions, buf));
+		} finally {
+			raFile.close();
+		}
+	}
+
+	private static File getFile(File nsDir) {
+		return new File(nsDir, fileName);
+	}
+
+	static boolean isCheckpointFile(String name) {
+		return name.equals(fileName) || name.equals(tmpFileName);
+	}
+
+	private static int headerSize(int numHeads) {
+		return headsOffset + numHeads * headSize + CuckooConfig.BYTES + NumConversion.BYTES_PER_LONG;
+	}
+
+	/**
+	 * Write this checkpoint to the given namespace directory. The checkpoint is written to a temporary
+	 * file and renamed so that a valid checkpoint is never partially overwritten. The namespace locks
+	 * need not be held. The captured index is released whether or not the write succeeds.
+	 */
+	void write(File nsDir) throws IOException {
+		try {
+			File				tmpFile;
+			RandomAccessFile	raFile;
+
+			tmpFile = new File(nsDir, tmpFileName);
+			raFile = new RandomAccessFile(tmpFile, "rw");
+			try {
+				FileChannel	channel;
+				ByteBuffer	header;
+				ByteBuffer	offsetListsHeader;
+
+				raFile.setLength(0);
+				header = ByteBuffer.allocate(headerSize(headSegmentNumbers.length)).order(ByteOrder.nativeOrder());
+				header.putInt(magic);
+				header.putInt(formatVersion);
+				header.putInt(highWaterMark);
+				header.putInt(totalKeys);
+				header.putInt(headSegmentNumbers.length);
+				for (int i = 0; i < headSegmentNumbers.length; i++) {
+					header.putInt(headSegmentNumbers[i]);
+					header.putInt(headOffsets[i]);
+				}
+				cuckooConfig.persist(header, header.position());
+				header.position(header.position() + CuckooConfig.BYTES);
+				header.putLong(htSize);
+				header.flip();
+				channel = raFile.getChannel();
+				writeFully(channel, header);
+				valueSegments.write(channel);
+				offsetListsHeader = ByteBuffer.allocate(NumConversion.BYTES_PER_LONG).order(ByteOrder.nativeOrder());
+				offsetListsHeader.putLong(offsetListsSize);
+				offsetListsHeader.flip();
+				writeFully(channel, offsetListsHeader);
+				writeFully(channel, offsetLists.duplicate());
+				channel.force(true);
+			} finally {
+				raFile.close();
+			}
+			if (!tmpFile.renameTo(getFile(nsDir))) {
+				throw new IOException("Rename failed: "+ tmpFile +" "+ getFile(nsDir));
+			}
+		} finally {
+			releaseIndex();
+		}
+	}
+
+	private void releaseIndex() {
+		if (valueSegments != null) {
+			valueSegments.free();
+			valueSegments = null;
+		}
+		if (offsetLists != null) {
+			BufferUtil.free(offsetLists);
+			offsetLists = null;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer	buf;
+
+		buf = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Read the checkpoint in the given namespace directory. Only the header is read here; the index
+	 * is mapped by createValueSegments() and loadOffsetLists().
+	 * @return the checkpoint, or null if no valid checkpoint exists
+	 */
+	static NamespaceIndexCheckpoint read(File nsDir) {
+		File	file;
+
+		file = getFile(nsDir);
+		if (!file.exists()) {
+			return null;
+		} else {
+			try {
+				RandomAccessFile	raFile;
+
+				raFile = new RandomAccessFile(file, "r");
+				try {
+					FileChannel	channel;
+					long		length;
+					ByteBuffer	buf;
+					int			numHeads;
+					int[]		headSegmentNumbers;
+					int[]		headOffsets;
+					CuckooConfig	cuckooConfig;
+					long		htPosition;
+					long		htSize;
+					long		offsetListsPosition;
+					long		offsetListsSize;
+
+					channel = raFile.getChannel();
+					length = raFile.length();
+					if (length < headerSize(0)) {
+						Log.warning("Ignoring truncated index checkpoint: ", file);
+						return null;
+					}
+					buf = readFully(channel, 0, headsOffset);
+					numHeads = buf.getInt(numHeadsOffset);
+					if (buf.getInt(magicOffset) != magic
+							|| buf.getInt(formatVersionOffset) != formatVersion
+							|| numHeads < 0 || numHeads > maxHeads
+							|| length < headerSize(numHeads)) {
+						Log.warning("Ignoring invalid index checkpoint: ", file);
+						return null;
+					}
+					htPosition = headerSize(numHeads);
+					buf = readFully(channel, 0, (int)htPosition);
+					headSegmentNumbers = new int[numHeads];
+					headOffsets = new int[numHeads];
+					for (int i = 0; i < numHeads; i++) {
+						headSegmentNumbers[i] = buf.getInt(headsOffset + i * headSize);
+						headOffsets[i] = buf.getInt(headsOffset + i * headSize + NumConversion.BYTES_PER_INT);
+					}
+					cuckooConfig = CuckooConfig.read(buf, headsOffset + numHeads * headSize);
+					htSize = buf.getLong(headsOffset + numHeads * headSize + CuckooConfig.BYTES);
+					if (htSize < 0 || htPosition + htSize + NumConversion.BYTES_PER_LONG > length) {
+						Log.warning("Ignoring invalid index checkpoint: ", file);
+						return null;
+					}
+					offsetListsSize = readFully(channel, htPosition + htSize, NumConversion.BYTES_PER_LONG).getLong(0);
+					offsetListsPosition = htPosition + htSize + NumConversion.BYTES_PER_LONG;
+					if (offsetListsSize < 0 || offsetListsSize > Integer.MAX_VALUE
+							|| offsetListsPosition + offsetListsSize != length) {
+						Log.warning("Ignoring invalid index checkpoint: ", file);
+						return null;
+					}
+					return new NamespaceIndexCheckpoint(buf.getInt(highWaterMarkOffset), buf.getInt(totalKeysOffset),
+														headSegmentNumbers, headOffsets, null, null, file,
+														cuckooConfig, htPosition, htSize,
+														offsetListsPosition, offsetListsSize);
+				} finally {
+					raFile.close();
+				}
+			} catch (IOException ioe) {
+				Log.logErrorWarning(ioe, "Ignoring unreadable index checkpoint: "+ file);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Delete any checkpoint in the given namespace directory
+	 */
+	static void delete(File nsDir) throws IOException {
+		File	file;
+
+		file = getFile(nsDir);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to delete index checkpoint: "+ file);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder	sb;
+
+		sb = new StringBuilder();
+		for (int i = 0; i < headSegmentNumbers.length; i++) {
+			sb.append(i == 0 ? "" : ",");
+			sb.append(headSegmentNumbers[i] +":"+ headOffsets[i]);
+		}
+		return String.format("highWaterMark %d totalKeys %d heads [%s] htBytes %d offsetListBytes %d",
+							highWaterMark, totalKeys, sb, htSize, offsetListsSize);
+	}
+}
@@ -26,6 +26,10 @@ public class NamespaceStats {
         return bytesCompressed.get();
     }
     
+    void setTotalKeys(int totalKeys) {
+        this.totalKeys.set(totalKeys);
+    }
+    
     public void incTotalKeys() {
         totalKeys.incrementAndGet();
     }
@@ -3,27 +3,35 @@ package com.ms.silverking.cloud.dht.daemon.storage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.google.common.collect.ImmutableSet;
 import com.ms.silverking.cloud.dht.NamespaceOptions;
 import com.ms.silverking.cloud.dht.NamespaceVersionMode;
 import com.ms.silverking.cloud.dht.NonExistenceResponse;
@@ -46,7 +54,6 @@ import com.ms.silverking.cloud.dht.common.CCSSUtil;
 import com.ms.silverking.cloud.dht.common.CorruptValueException;
 import com.ms.silverking.cloud.dht.common.DHTConstants;
 import com.ms.silverking.cloud.dht.common.DHTKey;
-import com.ms.silverking.cloud.dht.common.DHTKeyComparator;
 import com.ms.silverking.cloud.dht.common.InternalRetrievalOptions;
 import com.ms.silverking.cloud.dht.common.KeyAndInteger;
 import com.ms.silverking.cloud.dht.common.KeyUtil;
@@ -83,6 +90,7 @@ import com.ms.silverking.collection.HashedSetMap;
 import com.ms.silverking.collection.SKImmutableList;
 import com.ms.silverking.collection.Triple;
 import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.io.FileUtil;
 import com.ms.silverking.io.util.BufferUtil;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.net.IPAndPort;
@@ -91,6 +99,7 @@ import com.ms.silverking.time.SimpleStopwatch;
 import com.ms.silverking.time.Stopwatch;
 import com.ms.silverking.time.SystemTimeSource;
 import com.ms.silverking.util.PropertiesHelper;
+import com.ms.silverking.util.concurrent.RateLimiter;
 
 public class NamespaceStore {
     private final long ns;
@@ -102,7 +111,7 @@ public class NamespaceStore {
     private final MessageGroupBase mgBase;
     private final NodeRingMaster2 ringMaster;
     private final ChecksumTreeServer    checksumTreeServer;
-    private volatile WritableSegmentBase headSegment;
+    private final WritePartition[]	writePartitions;
     //private final Lock headCreationLock;
     // private final ConcurrentMap<DHTKey,Integer> valueSegments;
     // maps DHTKeys to the segment that stores an existing entry for that key
@@ -119,20 +128,23 @@ public class NamespaceStore {
     private final ReadWriteLock metaRWLock;
     private final Lock metaReadLock;
     private final Lock metaWriteLock;
-    private final ReadWriteLock rwLock;
-    private final Lock readLock;
-    private final Lock writeLock;
     private long minVersion;
     private long curSnapshot;
     private final ConcurrentMap<UUIDBase, ActiveProxyRetrieval> activeRetrievals;
-    private final ConcurrentMap<DHTKey, Set<PendingWaitFor>> pendingWaitFors;
+    private final PendingWaitForIndex pendingWaitFors;
     private final Map<Integer, FileSegment> recentFileSegments;
     private final Map<Integer, RAMSegment> ramSegments;
     private final NamespaceStats    nsStats;
     private long lastConvergenceVersion;
     private long lastConvergenceTotalKeys;
     protected final SystemTimeSource   systemTimeSource;
-    private final Set<Integer>	deletedSegments;
+    private final Lock	reapLock;
+    private volatile int	compactingSegment;
+    private volatile boolean	compactingSegmentUpdated;
+    private final Set<Integer>	segmentsPendingDeletion;
+    private NamespaceIndexCheckpoint	indexCheckpoint; // protected by reapLock; null if there is no checkpoint
+    private final Map<Long,KeyScanSnapshot>	keyScanSnapshots; // by max coordinate; protected by keyScanSnapshotLock
+    private final Lock	keyScanSnapshotLock;
 
     private final ConcurrentMap<UUIDBase,ActiveRegionSync>	activeRegionSyncs;    
     
@@ -172,6 +184,15 @@ public class NamespaceStore {
     
     private static final int	maxFailedStores = 1000000;
     
+    // Limits the number of segment indexes held in memory awaiting application during recovery
+    private static final int	maxSegmentRecoveryReadAhead = 32;
+    
+    private static final int	noCompactingSegment = -1;
+    private static final int	maxKeyScanSnapshots = 16;
+    private static final int	noWritePartition = -1;
+    private static final int	multipleWritePartitions = -2;
+    private static final String	numWritePartitionsFileName = "writePartitions";
+    
     public enum DirCreationMode {
         CreateNSDir, DoNotCreateNSDir
     };
@@ -183,6 +204,8 @@ public class NamespaceStore {
     
     private static final SegmentIndexLocation segmentIndexLocation;
     private static final int	nsPrereadGB;
+    private static final int	numWritePartitions;
+    private static final RateLimiter	compactionRateLimiter;
     private static final SegmentPrereadMode	readSegmentPrereadMode = SegmentPrereadMode.NoPreread;
     private static final SegmentPrereadMode	updateSegmentPrereadMode = SegmentPrereadMode.NoPreread;
     
@@ -191,6 +214,37 @@ public class NamespaceStore {
     	Log.warningf("segmentIndexLocation: %s", segmentIndexLocation);
     	nsPrereadGB = PropertiesHelper.systemHelper.getInt(DHTConstants.nsPrereadGBProperty, DHTConstants.defaultNSPrereadGB);
     	Log.warningf("nsPrereadGB: %s", nsPrereadGB);
+    	numWritePartitions = PropertiesHelper.systemHelper.getInt(DHTConstants.nsWritePartitionsProperty, DHTConstants.defaultNSWritePartitions);
+    	if (numWritePartitions < 1) {
+    		throw new RuntimeException("Invalid numWritePartitions: "+ numWritePartitions);
+    	}
+    	Log.warningf("numWritePartitions: %s", numWritePartitions);
+    	compactionRateLimiter = new RateLimiter(PropertiesHelper.systemHelper.getInt(DHTConstants.compactionBytesPerSecondProperty, DHTConstants.defaultCompactionBytesPerSecond));
+    	Log.warningf("compactionBytesPerSecond: %s", compactionRateLimiter);
+    }
+    
+    /**
+     * A WritePartition owns a head segment and the lock that serializes writes to it.
+     * Keys are assigned to partitions by hash so that all versions of a given key are
+     * written to segments owned by a single partition. Puts to keys in different partitions
+     * may proceed in parallel; the namespace-wide key to segment mapping is protected
+     * by the meta locks. The update of that mapping (putSegmentNumberAndVersion()) is therefore
+     * still serialized; it is roughly a fifth of the cost of a small put, which bounds the
+     * speedup available from additional partitions.
+     */
+    private static class WritePartition {
+    	final int	index;
+    	volatile WritableSegmentBase headSegment;
+    	final ReadWriteLock rwLock;
+    	final Lock readLock;
+    	final Lock writeLock;
+    	
+    	WritePartition(int index) {
+    		this.index = index;
+    		rwLock = new ReentrantReadWriteLock();
+    		readLock = rwLock.readLock();
+    		writeLock = rwLock.writeLock();
+    	}
     }
     
     public NamespaceStore(long ns, File nsDir, DirCreationMode dirCreationMode, NamespaceProperties nsProperties,
@@ -244,42 +298,21 @@ public class NamespaceStore {
             break;
         default: throw new RuntimeException("Panic");
         }
+        writePartitions = new WritePartition[numWritePartitions];
+        for (int i = 0; i < writePartitions.length; i++) {
+        	writePartitions[i] = new WritePartition(i);
+        }
         if (!isRecovery) {
-            FileSegment.SyncMode    syncMode;
-            
-            syncMode = FileSegment.SyncMode.NoSync;
-            switch (nsOptions.getStorageType()) {
-            case FILE_SYNC:
-                syncMode = FileSegment.SyncMode.Sync;
-                // fall through
-            case FILE:
-                try {
-                    headSegment = FileSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
-                                                     nsOptions.getSegmentSize(), syncMode, nsOptions);
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
-                }
-                break;
-            case RAM:
-                headSegment = RAMSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
-                                                nsOptions.getSegmentSize(), nsOptions);
-                ramSegments.put(headSegment.getSegmentNumber(), (RAMSegment)headSegment);
-                break;
-            default:
-                throw new RuntimeException("panic");
-            }
+        	initHeadSegments();
         }
         //headCreationLock = new ReentrantLock();
         // valueSegments = new ConcurrentHashMap<>();
-        valueSegments = new IntArrayCuckoo(valueSegmentsConfig);
+        valueSegments = new IntArrayCuckoo(valueSegmentsConfig, StoreConfiguration.offHeapIndexes);
         offsetListStore = new RAMOffsetListStore(nsOptions);
         metaRWLock = new ReentrantReadWriteLock();
         metaReadLock = metaRWLock.readLock();
         metaWriteLock = metaRWLock.writeLock();
-        rwLock = new ReentrantReadWriteLock();
-        readLock = rwLock.readLock();
-        writeLock = rwLock.writeLock();
-        pendingWaitFors = new ConcurrentSkipListMap<>(DHTKeyComparator.dhtKeyComparator);
+        pendingWaitFors = new PendingWaitForIndex();
         minVersion = nsProperties.getMinVersion();
         if (minVersion > Long.MIN_VALUE) {
             curSnapshot = minVersion - 1;
@@ -290,7 +323,16 @@ public class NamespaceStore {
         this.activeRetrievals = activeRetrievals;
         systemTimeSource = SystemTimeUtil.systemTimeSource;
         nsStats = new NamespaceStats();
-        deletedSegments = new HashSet<>();
+        reapLock = new ReentrantLock();
+        keyScanSnapshots = new LinkedHashMap<Long,KeyScanSnapshot>(maxKeyScanSnapshots, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long,KeyScanSnapshot> eldest) {
+                return size() > maxKeyScanSnapshots;
+            }
+        };
+        keyScanSnapshotLock = new ReentrantLock();
+        compactingSegment = noCompactingSegment;
+        segmentsPendingDeletion = ConcurrentHashMap.newKeySet();
     }
     
     public NamespaceStore(long ns, File nsDir, DirCreationMode dirCreationMode, NamespaceProperties nsProperties,
@@ -300,9 +342,179 @@ public class NamespaceStore {
     }
     
     private void initRAMSegments() {
-        headSegment = RAMSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
-                nsOptions.getSegmentSize(), nsOptions);
-        ramSegments.put(headSegment.getSegmentNumber(), (RAMSegment)headSegment);
+    	initHeadSegments();
+    }
+    
+    /**
+     * Create a fresh head segment for every write partition
+     */
+    private void initHeadSegments() {
+    	for (WritePartition writePartition : writePartitions) {
+            try {
+            	writePartition.headSegment = createHeadSegment();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+    	}
+    	if (nsOptions.getStorageType().isFileBased()) {
+    		writeNumWritePartitions();
+    	}
+    }
+    
+    /**
+     * Record the number of write partitions that head segments are created for so that recovery
+     * can determine whether recovered head segments may continue as heads
+     */
+    private void writeNumWritePartitions() {
+    	try {
+    		FileUtil.writeToFile(new File(nsDir, numWritePartitionsFileName), Integer.toString(numWritePartitions));
+    	} catch (IOException ioe) {
+    		throw new RuntimeException(ioe);
+    	}
+    }
+    
+    /**
+     * @return the number of write partitions last used by this store, or noWritePartition if unknown
+     */
+    private int readNumWritePartitions() {
+    	File	file;
+    	
+    	file = new File(nsDir, numWritePartitionsFileName);
+    	if (!file.exists()) {
+    		return noWritePartition;
+    	}
+    	try {
+    		return Integer.parseInt(FileUtil.readFileAsString(file).trim());
+    	} catch (IOException | NumberFormatException e) {
+    		Log.logErrorWarning(e, "Unable to read "+ file);
+    		return noWritePartition;
+    	}
+    }
+    
+    private WritableSegmentBase createHeadSegment() throws IOException {
+        FileSegment.SyncMode    syncMode;
+
+        syncMode = FileSegment.SyncMode.NoSync;
+        switch (nsOptions.getStorageType()) {
+        case FILE_SYNC:
+            syncMode = FileSegment.SyncMode.Sync;
+            // fall through
+        case FILE:
+            return FileSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
+                                      nsOptions.getSegmentSize(), syncMode, nsOptions);
+        case RAM:
+            RAMSegment  ramSegment;
+            
+            ramSegment = RAMSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
+                                           nsOptions.getSegmentSize(), nsOptions);
+            ramSegments.put(ramSegment.getSegmentNumber(), ramSegment);
+            return ramSegment;
+        default: throw new RuntimeException("panic");
+        }
+    }
+    
+    private WritePartition writePartitionFor(DHTKey key) {
+    	if (writePartitions.length == 1) {
+    		return writePartitions[0];
+    	} else {
+    		return writePartitions[(int)((key.getLSL() & Long.MAX_VALUE) % writePartitions.length)];
+    	}
+    }
+    
+    private int[][] indicesByWritePartition(List<? extends DHTKey> keys) {
+    	int[]	keyPartitions;
+    	
+    	keyPartitions = new int[keys.size()];
+    	for (int i = 0; i < keyPartitions.length; i++) {
+    		keyPartitions[i] = writePartitionFor(keys.get(i)).index;
+    	}
+    	return indicesByWritePartition(keyPartitions);
+    }
+    
+    private int[][] svpIndicesByWritePartition(List<StorageValueAndParameters> values) {
+    	int[]	keyPartitions;
+    	
+    	keyPartitions = new int[values.size()];
+    	for (int i = 0; i < keyPartitions.length; i++) {
+    		keyPartitions[i] = writePartitionFor(values.get(i).getKey()).index;
+    	}
+    	return indicesByWritePartition(keyPartitions);
+    }
+    
+    /**
+     * Group key indices by write partition. 
+     * @param keyPartitions the write partition of each key
+     * @return an array indexed by partition; null entries indicate partitions with no keys
+     */
+    private int[][] indicesByWritePartition(int[] keyPartitions) {
+    	int[]	partitionSizes;
+    	int[][]	indices;
+    	
+    	partitionSizes = new int[writePartitions.length];
+    	for (int i = 0; i < keyPartitions.length; i++) {
+    		partitionSizes[keyPartitions[i]]++;
+    	}
+    	indices = new int[writePartitions.length][];
+    	for (int i = 0; i < keyPartitions.length; i++) {
+    		int	p;
+    		
+    		p = keyPartitions[i];
+    		if (indices[p] == null) {
+    			indices[p] = new int[partitionSizes[p]];
+    			partitionSizes[p] = 0;
+    		}
+    		indices[p][partitionSizes[p]++] = i;
+    	}
+    	return indices;
+    }
+    
+    /**
+     * @param segmentNumber
+     * @return the head segment with the given number or null if no head segment has that number
+     */
+    private WritableSegmentBase headSegmentFor(int segmentNumber) {
+    	for (WritePartition writePartition : writePartitions) {
+    		WritableSegmentBase	headSegment;
+    		
+    		headSegment = writePartition.headSegment;
+    		if (headSegment != null && headSegment.getSegmentNumber() == segmentNumber) {
+    			return headSegment;
+    		}
+    	}
+    	return null;
+    }
+    
+    private boolean isHeadSegment(AbstractSegment segment) {
+    	for (WritePartition writePartition : writePartitions) {
+    		if (writePartition.headSegment == segment) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    private void readLockAll() {
+    	for (WritePartition writePartition : writePartitions) {
+    		writePartition.readLock.lock();
+    	}
+    }
+    
+    private void readUnlockAll() {
+    	for (int i = writePartitions.length - 1; i >= 0; i--) {
+    		writePartitions[i].readLock.unlock();
+    	}
+    }
+    
+    private void writeLockAll() {
+    	for (WritePartition writePartition : writePartitions) {
+    		writePartition.writeLock.lock();
+    	}
+    }
+    
+    private void writeUnlockAll() {
+    	for (int i = writePartitions.length - 1; i >= 0; i--) {
+    		writePartitions[i].writeLock.unlock();
+    	}
     }
     
     public void startWatches(ZooKeeperExtended zk, String nsLinkBasePath, LinkCreationListener linkCreationListener) {        
@@ -358,20 +570,131 @@ public class NamespaceStore {
         try {
             valueSegments.put(key, value);
         } catch (TableFullException tfe) {
+            IntArrayCuckoo	oldValueSegments;
+            
             Log.warningAsync(String.format("valueSegments full %x. Creating new table.", ns));
-            valueSegments = IntArrayCuckoo.rehashAndAdd(valueSegments, key, value);
+            oldValueSegments = valueSegments;
+            valueSegments = IntArrayCuckoo.rehashAndAdd(oldValueSegments, key, value);
+            // An off-heap old table is left to the garbage collector rather than freed, as
+            // not every reader of valueSegments holds metaReadLock (e.g. the checksum iterators)
         }
     }
 
     // used by recovery. no lock needed in recovery
-    private void setHeadSegment(FileSegment segment) {
-        Log.warning("Setting head segment: ", segment.getSegmentNumber());
-        this.headSegment = segment;
-        nextSegmentID.set(segment.getSegmentNumber() + 1);
+    /**
+     * Called at the end of recovery with the segments that were recovered as partial segments; i.e.
+     * the head segments at the time that the store was last used. A segment continues as the head of
+     * the write partition that its keys belong to only if the number of write partitions is unchanged
+     * since the store was last used, and if the segment is the highest numbered segment that holds
+     * data of that partition. New versions of a key are thereby always stored in a segment numbered
+     * above the segments that hold its older versions. All other recovered segments, including empty
+     * segments, are sealed. Partitions left without a head are given a fresh head numbered above
+     * every existing segment.
+     * @param segments the recovered segments in ascending segment number order
+     * @param maxSegmentNumber the highest numbered segment in the store
+     */
+    private void setHeadSegments(List<FileSegment> segments, int maxSegmentNumber) {
+    	int	storedNumWritePartitions;
+    	int[]	maxSegmentNumbers;
+    	
+        nextSegmentID.set(maxSegmentNumber + 1);
+        storedNumWritePartitions = readNumWritePartitions();
+        if (storedNumWritePartitions == numWritePartitions) {
+        	maxSegmentNumbers = maxSegmentNumbersByWritePartition();
+        } else {
+        	Log.warningf("ns %x numWritePartitions %d stored %d. Sealing recovered head segments.", 
+        				ns, numWritePartitions, storedNumWritePartitions);
+        	maxSegmentNumbers = null;
+        }
+        // newest first so that a partition continues in its most recent head
+        for (int i = segments.size() - 1; i >= 0; i--) {
+        	FileSegment	segment;
+        	int			partition;
+        	
+        	segment = segments.get(i);
+        	partition = maxSegmentNumbers != null ? writePartitionOfKeys(segment) : noWritePartition;
+        	if (partition >= 0 && writePartitions[partition].headSegment == null
+        			&& segment.getSegmentNumber() == maxSegmentNumbers[partition]) {
+        		setHeadSegment(writePartitions[partition], segment);
+        	} else {
+        		sealRecoveredSegment(segment);
+        	}
+        }
+        for (WritePartition writePartition : writePartitions) {
+        	if (writePartition.headSegment == null) {
+                try {
+                	writePartition.headSegment = createHeadSegment();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+        	}
+        }
+        writeNumWritePartitions();
+    }
+    
+    /**
+     * @return for each write partition, the highest segment number that holds a value of a key in
+     * that partition, or noWritePartition if the partition holds no values
+     */
+    private int[] maxSegmentNumbersByWritePartition() {
+    	int[]	maxSegmentNumbers;
+    	
+    	maxSegmentNumbers = new int[numWritePartitions];
+    	Arrays.fill(maxSegmentNumbers, noWritePartition);
+    	for (DHTKeyIntEntry entry : valueSegments) {
+    		int	partition;
+    		int	rawSegmentNumber;
+    		
+    		partition = writePartitionFor(entry.getKey()).index;
+    		rawSegmentNumber = entry.getValue();
+    		if (rawSegmentNumber >= 0) {
+    			maxSegmentNumbers[partition] = Math.max(maxSegmentNumbers[partition], rawSegmentNumber);
+    		} else {
+    			for (int segmentNumber : offsetListStore.getOffsetList(-rawSegmentNumber)) {
+    				maxSegmentNumbers[partition] = Math.max(maxSegmentNumbers[partition], segmentNumber);
+    			}
+    		}
+    	}
+    	return maxSegmentNumbers;
+    }
+    
+    private void setHeadSegment(WritePartition writePartition, FileSegment segment) {
+        Log.warningf("Setting head segment: %d partition %d", segment.getSegmentNumber(), writePartition.index);
+        writePartition.headSegment = segment;
+    }
+    
+    private void sealRecoveredSegment(FileSegment segment) {
+        Log.warning("Persisting recovered segment: ", segment.getSegmentNumber());
+    	try {
+			segment.persist();
+		} catch (IOException ioe) {
+			throw new RuntimeException("Segment persist failed for recovered segment " + segment.getSegmentNumber(), ioe);
+		}
+    }
+    
+    /**
+     * @return the index of the write partition of all keys in the segment, noWritePartition if the segment
+     * is empty, or multipleWritePartitions if its keys belong to more than one partition
+     */
+    private int writePartitionOfKeys(WritableSegmentBase segment) {
+    	int	partition;
+    	
+    	partition = noWritePartition;
+    	for (DHTKeyIntEntry entry : segment.getPKC()) {
+    		int	keyPartition;
+    		
+    		keyPartition = writePartitionFor(entry.getKey()).index;
+    		if (partition == noWritePartition) {
+    			partition = keyPartition;
+    		} else if (partition != keyPartition) {
+    			return multipleWritePartitions;
+    		}
+    	}
+    	return partition;
     }
 
-    // writeLock must be held
-    private void newHeadSegment() {
+    // partition writeLock must be held
+    private void newHeadSegment(WritePartition writePartition) {
         WritableSegmentBase oldHead;
 
         // headCreationLock is currently redundant since we already have a write lock
@@ -379,29 +702,10 @@ public class NamespaceStore {
         //headCreationLock.lock();
         try {
             WritableSegmentBase newHead;
-            FileSegment.SyncMode    syncMode;
-
-            syncMode = FileSegment.SyncMode.NoSync;
-            switch (nsOptions.getStorageType()) {
-            case FILE_SYNC:
-                syncMode = FileSegment.SyncMode.Sync;
-                // fall through
-            case FILE:
-                newHead = FileSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
-                                             nsOptions.getSegmentSize(), syncMode, nsOptions);
-                break;
-            case RAM:
-                RAMSegment  ramSegment;
-                
-                ramSegment = RAMSegment.create(nsDir, nextSegmentID.getAndIncrement(), 
-                                               nsOptions.getSegmentSize(), nsOptions);
-                ramSegments.put(ramSegment.getSegmentNumber(), ramSegment);
-                newHead = ramSegment;
-                break;
-            default: throw new RuntimeException();
-            }
-            oldHead = headSegment;
-            headSegment = newHead;
+
+            newHead = createHeadSegment();
+            oldHead = writePartition.headSegment;
+            writePartition.headSegment = newHead;
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         //} finally {
@@ -481,6 +785,7 @@ public class NamespaceStore {
     // write lock must be held
     private long newestVersion(DHTKey key) {
         Integer newestSegment;
+        WritableSegmentBase	headSegment;
     
         newestSegment = newestSegment(key);
         if (debugVersion) {
@@ -490,6 +795,7 @@ public class NamespaceStore {
         if (newestSegment != null && newestSegment >= 0) {
             long[] segmentNewestVersionAndStorageTime;
     
+            headSegment = writePartitionFor(key).headSegment;
             if (newestSegment != headSegment.getSegmentNumber()) {
                 segmentNewestVersionAndStorageTime = segmentNewestVersion(newestSegment, key);
             } else {
@@ -501,27 +807,50 @@ public class NamespaceStore {
         }
     }
 
-    // write lock must be held
-    private Set<Waiter> checkPendingWaitFors(DHTKey key) {
+    /**
+     * Add the given key to the list of keys to check for pending wait fors if the key may have any.
+     * Called with a write partition lock held; mayHaveWaiters() neither locks nor allocates.
+     * @return the list of keys to check, or null if there are none
+     */
+    private List<DHTKey> addWaitForCandidate(List<DHTKey> waitForKeys, DHTKey key) {
+        if (pendingWaitFors.mayHaveWaiters(key)) {
+            if (waitForKeys == null) {
+                waitForKeys = new ArrayList<>();
+            }
+            waitForKeys.add(key);
+        }
+        return waitForKeys;
+    }
+
+    /**
+     * Trigger the pending wait fors that can now be satisfied for the given keys. Called after the
+     * write partition lock has been released so that the retrievals and waiter updates made here do
+     * not hold up other writers.
+     * @param keys keys that may have pending wait fors
+     * @return any triggered waiters, or null if none were triggered
+     */
+    private Set<Waiter> checkPendingWaitFors(List<DHTKey> keys) {
+        Set<Waiter> triggeredWaiters;
+
         if (debugWaitFor) {
             System.out.println("checkPendingWaitFors");
             System.out.printf("pendingWaitFors.size() %d\n", pendingWaitFors.size());
         }
-        if (pendingWaitFors.size() > 0) {
-            Set<Waiter> triggeredWaiters;
-            Collection<PendingWaitFor> pendingWaitForCollection;
+        triggeredWaiters = null;
+        for (DHTKey key : keys) {
+            PendingWaitFor[]    keyWaitFors;
 
-            triggeredWaiters = null;
-            pendingWaitForCollection = pendingWaitFors.get(key);
-            if (pendingWaitForCollection != null) {
-                for (PendingWaitFor pendingWaitFor : pendingWaitForCollection) {
+            keyWaitFors = pendingWaitFors.get(key);
+            if (keyWaitFors != null) {
+                for (PendingWaitFor pendingWaitFor : keyWaitFors) {
                     ByteBuffer result;
 
                     if (debugWaitFor) {
                     	System.out.printf("pendingWaitFor %s options %s\n", pendingWaitFor, pendingWaitFor.getOptions());
                     }
                     result = _retrieve(key, pendingWaitFor.getOptions());
-                    if (result != null) {
+                    // concurrent puts of this key may both find a result; only the remover triggers
+                    if (result != null && pendingWaitFors.remove(pendingWaitFor)) {
                         Waiter waiter;
 
                         // we have a result, now we need to send it back...
@@ -546,7 +875,6 @@ public class NamespaceStore {
                                 System.out.printf("No waiter found for %s\n", pendingWaitFor.getOpUUID());
                             }
                         }
-                        pendingWaitForCollection.remove(pendingWaitFor);
                     } else {
                         if (debugWaitFor) {
                             System.out.printf("No result found for %s\n", KeyUtil.keyToString(key));
@@ -555,13 +883,11 @@ public class NamespaceStore {
                 }
             } else {
                 if (debugWaitFor) {
-                    System.out.println("pendingWaitForCollection not found");
+                    System.out.println("pendingWaitFors not found");
                 }
             }
-            return triggeredWaiters;
-        } else {
-            return null;
         }
+        return triggeredWaiters;
     }
 
     private void handleTriggeredWaitFors(Set<Waiter> triggeredWaitFors) {
@@ -573,50 +899,158 @@ public class NamespaceStore {
         }
     }
     
+    /**
+     * Store the given values. For FILE_SYNC namespaces with group commit enabled, every head segment
+     * written to is forced by a single GroupCommitter commit once all partitions have been written.
+     * If the result listener is a DeferrableKeyedOpResultListener, results are sent from the commit
+     * callback; otherwise they are sent as values are stored.
+     */
     public void put(List<StorageValueAndParameters> values, byte[] userData, KeyedOpResultListener resultListener) {
-        Set<Waiter> triggeredWaitFors;
+        List<DHTKey>    waitForKeys;
         NamespaceVersionMode    nsVersionMode;
-        boolean	locked;
+        GroupCommitter	groupCommitter;
+        Set<FileSegment>	commitSegments;
+        OpResult[]	deferredResults;
 
-        triggeredWaitFors = null;
-        
         nsVersionMode = nsOptions.getVersionMode();
-        
+        groupCommitter = nsOptions.getStorageType() == StorageType.FILE_SYNC ? GroupCommitter.getInstance() : null;
+        if (groupCommitter != null) {
+        	commitSegments = new HashSet<>();
+        	if (resultListener instanceof DeferrableKeyedOpResultListener) {
+        		deferredResults = new OpResult[values.size()];
+        		((DeferrableKeyedOpResultListener)resultListener).resultsDeferred();
+        	} else {
+        		deferredResults = null;
+        	}
+        } else {
+        	commitSegments = null;
+        	deferredResults = null;
+        }
+        if (writePartitions.length == 1) {
+        	waitForKeys = put(writePartitions[0], values, null, userData, resultListener, nsVersionMode, 
+        					commitSegments, deferredResults);
+        } else {
+        	int[][]	partitionIndices;
+        	
+        	waitForKeys = null;
+        	partitionIndices = svpIndicesByWritePartition(values);
+        	for (int i = 0; i < partitionIndices.length; i++) {
+        		if (partitionIndices[i] != null) {
+                    List<DHTKey>    _waitForKeys;
+        			
+                    _waitForKeys = put(writePartitions[i], values, partitionIndices[i], userData, resultListener, 
+                    						nsVersionMode, commitSegments, deferredResults);
+                    if (_waitForKeys != null) {
+                        if (waitForKeys == null) {
+                            waitForKeys = _waitForKeys;
+                        } else {
+                        	waitForKeys.addAll(_waitForKeys);
+                        }
+                    }
+        		}
+        	}
+        }
+        if (groupCommitter != null) {
+        	commit(groupCommitter, commitSegments, values, deferredResults, resultListener);
+        }
+        if (waitForKeys != null) {
+            Set<Waiter> triggeredWaitFors;
+
+            triggeredWaitFors = checkPendingWaitFors(waitForKeys);
+            if (triggeredWaitFors != null) {
+                handleTriggeredWaitFors(triggeredWaitFors);
+            }
+        }
+    }
+    
+    /**
+     * Store values in a single write partition
+     * @param writePartition
+     * @param values
+     * @param indices indices of the values that belong to this partition, or null if all values belong to it
+     * @param userData
+     * @param resultListener
+     * @param nsVersionMode
+     * @param commitSegments if non-null, the head segment written to is added for a group commit
+     * @param deferredResults if non-null, results are stored here by value index instead of being sent
+     * @return keys stored that may have pending wait fors, or null if there are none. Wait fors are
+     * checked by the caller after the write lock has been released.
+     */
+    private List<DHTKey> put(WritePartition writePartition, List<StorageValueAndParameters> values, int[] indices, 
+    						byte[] userData, KeyedOpResultListener resultListener, NamespaceVersionMode nsVersionMode, 
+    						Set<FileSegment> commitSegments, OpResult[] deferredResults) {
+        List<DHTKey>    waitForKeys;
+        int	numValues;
+
+        waitForKeys = null;
+        numValues = indices == null ? values.size() : indices.length;
         //LWTThreadUtil.setBlocked();
-        writeLock.lock();
+        writePartition.writeLock.lock();
         try {
             // System.out.printf("NamespaceStore.put() group size: %d\n", values.size());
-            for (StorageValueAndParameters value : values) {
+            for (int i = 0; i < numValues; i++) {
+            	StorageValueAndParameters	value;
                 OpResult storageResult;
 
+                value = values.get(indices == null ? i : indices[i]);
                 storageResult = _put(value.getKey(), value.getValue(), value, userData, nsVersionMode);
                 //if (storageResult != OpResult.SUCCEEDED) Log.warningf("fail _put %s %s %d", KeyUtil.keyToString(value.getKey()), storageResult, value.getVersion()); // for debugging
-                resultListener.sendResult(value.getKey(), storageResult);
+                if (deferredResults == null) {
+                    resultListener.sendResult(value.getKey(), storageResult);
+                } else {
+                    deferredResults[indices == null ? i : indices[i]] = storageResult;
+                }
                 if (storageResult == OpResult.SUCCEEDED) {
-                    Set<Waiter> _triggeredWaitFors;
-
-                    _triggeredWaitFors = checkPendingWaitFors(value.getKey());
-                    if (_triggeredWaitFors != null) {
-                        if (triggeredWaitFors == null) {
-                            triggeredWaitFors = new HashSet<>();
-                        }
-                        triggeredWaitFors.addAll(_triggeredWaitFors);
-                    }
+                    checksumTreeServer.keyChanged(value.getKey());
+                    waitForKeys = addWaitForCandidate(waitForKeys, value.getKey());
                 }
             }
+            if (commitSegments != null) {
+                // segments replaced during this put were forced by persist(); only the head remains
+                commitSegments.add((FileSegment)writePartition.headSegment);
+            }
         } finally {
-            writeLock.unlock();
+        	writePartition.writeLock.unlock();
             //LWTThreadUtil.setNonBlocked();
         }
-        if (triggeredWaitFors != null) {
-            handleTriggeredWaitFors(triggeredWaitFors);
+        return waitForKeys;
+    }
+    
+    /**
+     * Request a single group commit of every head segment written to by a put. Deferred results are
+     * sent when the commit completes; a successful result becomes an error only if the sync failed.
+     */
+    private void commit(GroupCommitter groupCommitter, Set<FileSegment> commitSegments, 
+                        List<StorageValueAndParameters> values, OpResult[] deferredResults, 
+                        KeyedOpResultListener resultListener) {
+        if (deferredResults == null) {
+            groupCommitter.commit(commitSegments, null);
+        } else {
+            groupCommitter.commit(commitSegments, succeeded -> {
+                List<DHTKey>	keys;
+                List<OpResult>	results;
+                
+                keys = new ArrayList<>(values.size());
+                results = new ArrayList<>(values.size());
+                for (int i = 0; i < deferredResults.length; i++) {
+                    OpResult	result;
+                    
+                    result = deferredResults[i];
+                    if (!succeeded && result == OpResult.SUCCEEDED) {
+                        result = OpResult.ERROR;
+                    }
+                    keys.add(values.get(i).getKey());
+                    results.add(result);
+                }
+                ((DeferrableKeyedOpResultListener)resultListener).sendDeferredResults(keys, results);
+            });
         }
     }
     
     /*
      * 
-     * The PendingPut implementation is currently commented out. It's utility is yet to be determined. A more pressing optimization is to 
-     * allow a per-thread NamespaceStore so that RAM stores may be lockless.
+     * The PendingPut implementation is currently commented out. It's utility is yet to be determined. 
+     * Write partitions (see WritePartition) now allow puts to distinct keys to proceed in parallel.
     
     private static class PendingPut {
     	final List<StorageValueAndParameters> values;
@@ -811,6 +1245,7 @@ public class NamespaceStore {
         WritableSegmentBase     storageSegment;
         SegmentStorageResult    storageResult;
         VersionCheckResult      versionCheckResult;
+        WritePartition			writePartition;
 
         if (testStorageCorruption && !isDynamic() && ns != NamespaceUtil.metaInfoNamespace.contextAsLong()) {
             MetaDataUtil.testCorruption(value, storageCorruptionProbability, value.limit() - 2);
@@ -855,7 +1290,8 @@ public class NamespaceStore {
                 System.out.printf("fall through after checkForDuplicateStore\n");
             }
         case Valid:
-            storageSegment = headSegment;
+        	writePartition = writePartitionFor(key);
+            storageSegment = writePartition.headSegment;
             try {
                 storageResult = storageSegment.put(key, value, storageParams, userData, nsOptions);
             } catch (TableFullException tfe) {
@@ -864,13 +1300,13 @@ public class NamespaceStore {
                 // of flipping to a new segment
             }
             while (storageResult.callerShouldRetry()) {
-                if (value.remaining() > headSegment.getDataSegmentSize()) {
+                if (value.remaining() > storageSegment.getDataSegmentSize()) {
                     throw new RuntimeException("value > segment size");
                     // FIXME - we don't support values > segment size
                     // client needs to enforce this
                 }
-                newHeadSegment();
-                storageSegment = headSegment;
+                newHeadSegment(writePartition);
+                storageSegment = writePartition.headSegment;
                 storageResult = storageSegment.put(key, value, storageParams, userData, nsOptions);
             }
             if (storageResult == SegmentStorageResult.stored) {
@@ -1013,65 +1449,109 @@ public class NamespaceStore {
     }    
 
     public List<OpResult> putUpdate(List<? extends DHTKey> updates, long version) {
-        List<OpResult>  results;
-        Set<Waiter>     triggeredWaitFors;
+        OpResult[]		results;
+        List<DHTKey>    waitForKeys;
         
-        triggeredWaitFors = null;
-        results = new ArrayList<>(updates.size());
-        writeLock.lock();
+        results = new OpResult[updates.size()];
+        if (writePartitions.length == 1) {
+        	waitForKeys = putUpdate(writePartitions[0], updates, null, version, results);
+        } else {
+        	int[][]	partitionIndices;
+        	
+        	waitForKeys = null;
+        	partitionIndices = indicesByWritePartition(updates);
+        	for (int i = 0; i < partitionIndices.length; i++) {
+        		if (partitionIndices[i] != null) {
+                    List<DHTKey>    _waitForKeys;
+        			
+                    _waitForKeys = putUpdate(writePartitions[i], updates, partitionIndices[i], version, results);
+                    if (_waitForKeys != null) {
+                        if (waitForKeys == null) {
+                            waitForKeys = _waitForKeys;
+                        } else {
+                        	waitForKeys.addAll(_waitForKeys);
+                        }
+                    }
+        		}
+        	}
+        }
+        if (waitForKeys != null) {
+            Set<Waiter> triggeredWaitFors;
+
+            triggeredWaitFors = checkPendingWaitFors(waitForKeys);
+            if (triggeredWaitFors != null) {
+                handleTriggeredWaitFors(triggeredWaitFors);
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
+    // returns keys that may have pending wait fors, or null; see put(WritePartition, ...)
+    private List<DHTKey> putUpdate(WritePartition writePartition, List<? extends DHTKey> updates, int[] indices, 
+    							long version, OpResult[] results) {
+        List<DHTKey>    waitForKeys;
+        int	numUpdates;
+        
+        waitForKeys = null;
+        numUpdates = indices == null ? updates.size() : indices.length;
+        writePartition.writeLock.lock();
         try {
-            for (DHTKey update : updates) {
+            for (int i = 0; i < numUpdates; i++) {
                 MessageGroupKeyOrdinalEntry entry;
                 OpResult    result;
+                int			index;
                 
-                entry = (MessageGroupKeyOrdinalEntry)update;
+                index = indices == null ? i : indices[i];
+                entry = (MessageGroupKeyOrdinalEntry)updates.get(index);
                 result = _putUpdate(entry, version, entry.getOrdinal());
-                results.add(result);
+                results[index] = result;
+                if (result == OpResult.SUCCEEDED) {
+                    checksumTreeServer.keyChanged(entry);
+                }
                 if (result == OpResult.SUCCEEDED 
                         && StorageProtocolUtil.storageStateValidForRead(
                                 nsOptions.getConsistencyProtocol(), entry.getOrdinal())) {
-                    Set<Waiter> _triggeredWaitFors;
-
-                    _triggeredWaitFors = checkPendingWaitFors(update);
-                    if (_triggeredWaitFors != null) {
-                        if (triggeredWaitFors == null) {
-                            triggeredWaitFors = new HashSet<>();
-                        }
-                        triggeredWaitFors.addAll(_triggeredWaitFors);
-                    }
+                    waitForKeys = addWaitForCandidate(waitForKeys, entry);
                 }
             }
         } finally {
-            writeLock.unlock();
-        }
-        if (triggeredWaitFors != null) {
-            handleTriggeredWaitFors(triggeredWaitFors);
+        	writePartition.writeLock.unlock();
         }
-        return results;
+        return waitForKeys;
     }
     
     public OpResult putUpdate(DHTKey key, long version, byte storageState) {
         OpResult    result;
-        Set<Waiter> triggeredWaitFors;
+        List<DHTKey>    waitForKeys;
+        WritePartition	writePartition;
         
         if (debug) {
             System.out.println("Single key putUpdate()");
         }
-        triggeredWaitFors = null;
-        writeLock.lock();
+        waitForKeys = null;
+        writePartition = writePartitionFor(key);
+        writePartition.writeLock.lock();
         try {
             result = _putUpdate(key, version, storageState);
             //if (result != OpResult.SUCCEEDED) Log.warningf("fail putUpdate %s %s %d", KeyUtil.keyToString(key), result, version); // for debugging
+            if (result == OpResult.SUCCEEDED) {
+                checksumTreeServer.keyChanged(key);
+            }
             if (result == OpResult.SUCCEEDED 
                     && StorageProtocolUtil.storageStateValidForRead(
                             nsOptions.getConsistencyProtocol(), storageState)) {
-                triggeredWaitFors = checkPendingWaitFors(key);
+                waitForKeys = addWaitForCandidate(waitForKeys, key);
             }
         } finally {
-            writeLock.unlock();
+        	writePartition.writeLock.unlock();
         }
-        if (triggeredWaitFors != null) {
-            handleTriggeredWaitFors(triggeredWaitFors);
+        if (waitForKeys != null) {
+            Set<Waiter> triggeredWaitFors;
+
+            triggeredWaitFors = checkPendingWaitFors(waitForKeys);
+            if (triggeredWaitFors != null) {
+                handleTriggeredWaitFors(triggeredWaitFors);
+            }
         }
         return result;
     }
@@ -1079,6 +1559,7 @@ public class NamespaceStore {
     private OpResult _putUpdate(DHTKey key, long version, byte storageState) {
         OpResult result;
         int segmentNumber;
+        WritableSegmentBase	headSegment;
 
         if (debugVersion) {
             System.out.println("putUpdate:\t" + key);
@@ -1094,6 +1575,7 @@ public class NamespaceStore {
             return OpResult.ERROR;
             //return OpResult.INVALID_VERSION;
         } else {
+        	headSegment = writePartitionFor(key).headSegment;
             if (headSegment.getSegmentNumber() == segmentNumber) {
                 if (debugSegments) {
                     Log.warning("PutUpdate, head segment");
@@ -1131,6 +1613,7 @@ public class NamespaceStore {
                             Log.warning("Read from file segment");
                         }
                         result = segment.putUpdate(key, version, storageState);
+                        noteSegmentUpdate(segmentNumber);
                         if (debugSegments) {
                             Log.warning("Done read from file segment");
                             Log.warning("result: " + result);
@@ -1438,22 +1921,17 @@ public class NamespaceStore {
     }
 
     private void addPendingWaitFor(DHTKey key, RetrievalOptions options, UUIDBase opUUID) {
-        Set<PendingWaitFor> pendingWaitForSet;
+        ActiveProxyRetrieval    waiter;
+        long    absDeadlineMillis;
 
         if (debugWaitFor) {
             System.out.printf("addPendingWaitFor %s %s %s\n", key, options, opUUID);
         }
-        pendingWaitForSet = pendingWaitFors.get(key);
-        if (pendingWaitForSet == null) {
-            Set<PendingWaitFor> prev;
-
-            pendingWaitForSet = new ConcurrentSkipListSet<>();
-            prev = pendingWaitFors.putIfAbsent(key, pendingWaitForSet);
-            if (prev != null) {
-                pendingWaitForSet = prev;
-            }
-        }
-        pendingWaitForSet.add(new PendingWaitFor(key, options, opUUID));
+        // The pending wait for lives as long as its active retrieval. If there is none, the
+        // wait for can never be relayed, so let the next cleanup remove it.
+        waiter = activeRetrievals.get(opUUID);
+        absDeadlineMillis = waiter != null ? waiter.getAbsDeadlineMillis() : systemTimeSource.absTimeMillis();
+        pendingWaitFors.add(new PendingWaitFor(key, options, opUUID, absDeadlineMillis));
     }
 
     protected ByteBuffer _retrieve(DHTKey key, RetrievalOptions options) {
@@ -1630,8 +2108,14 @@ public class NamespaceStore {
 	        if (segmentNumber == IntCuckooConstants.noSuchValue) {
 	            return null;
 	        } else {
-	            readLock.lock();
+	        	WritePartition	writePartition;
+	        	
+	        	writePartition = writePartitionFor(key);
+	            writePartition.readLock.lock();
 	            try {
+	            	WritableSegmentBase	headSegment;
+	            	
+	            	headSegment = writePartition.headSegment;
 		            if (headSegment.getSegmentNumber() == segmentNumber) {
 	                    // return getValueEntry(key).retrieve(options);
 	                    if (debugSegments) {
@@ -1657,7 +2141,7 @@ public class NamespaceStore {
 		                        }
 		                    } finally {
 		                        if (nsOptions.getStorageType() == StorageType.FILE) {
-		                        	if (segment != headSegment) {
+		                        	if (!isHeadSegment(segment)) {
 		                        		((FileSegment)segment).removeReference();
 		                        	}
 		                        }
@@ -1668,7 +2152,7 @@ public class NamespaceStore {
 		                }
 		            }
 	            } finally {
-	                readLock.unlock();
+	                writePartition.readLock.unlock();
 	            }
 	            
 	            if (result != null) {
@@ -1730,11 +2214,14 @@ public class NamespaceStore {
                 results[i] = null;
             }
         }
-        readLock.lock();
+        readLockAll();
         try {
             for (int i = 0; i < keysSegmentNumbersAndIndices.length; i++) {
                 if (keysSegmentNumbersAndIndices[i].getV2() != IntCuckooConstants.noSuchValue) {
-		            if (headSegment.getSegmentNumber() == keysSegmentNumbersAndIndices[i].getV2()) {
+                	WritableSegmentBase	headSegment;
+                	
+                	headSegment = headSegmentFor(keysSegmentNumbersAndIndices[i].getV2());
+		            if (headSegment != null) {
 		                if (debugSegments) {
 		                    Log.warning("Read from head segment");
 		                }
@@ -1760,7 +2247,7 @@ public class NamespaceStore {
 		                    	// Not optimizing this as we do not expect to use it at present
 		                    	// (we're using the map everything approach at present)
 		                        if (nsOptions.getStorageType() == StorageType.FILE) {
-		                        	if (segment != headSegment) {
+		                        	if (!isHeadSegment(segment)) {
 		                        		((FileSegment)segment).removeReference();
 		                        	}
 		                        }
@@ -1773,7 +2260,7 @@ public class NamespaceStore {
                 }
             }
         } finally {
-            readLock.unlock();
+            readUnlockAll();
         }
         
         for (int i = 0; i < results.length; i++) {
@@ -1827,27 +2314,20 @@ public class NamespaceStore {
                 	MetaDataUtil.getStorageState(result, 0));
 	}
 
+	/**
+	 * Remove pending wait fors whose active retrievals have passed their deadlines, and pending wait
+	 * fors that no longer have an active retrieval. The default wait for timeout is NO_TIMEOUT, so
+	 * the latter are usually only removed by the sweep.
+	 */
 	public void cleanupPendingWaitFors() {
-        if (debugWaitFor) {
-        	System.out.println("Cleaning pending waitfors");
-        }
-        for (Map.Entry<DHTKey, Set<PendingWaitFor>> entry : pendingWaitFors.entrySet()) {
-            for (PendingWaitFor pendingWaitFor : entry.getValue()) {
-                ActiveProxyRetrieval waiter;
+        int expired;
+        int orphaned;
 
-                waiter = activeRetrievals.get(pendingWaitFor.getOpUUID());
-                if (waiter == null) {
-                    if (debugWaitFor) {
-                    	System.out.printf("No active retrieval for %s\n", pendingWaitFor.getKey());
-                    } else {
-                    	System.out.printf("Found active retrieval for %s\n", pendingWaitFor.getKey());
-                    }
-                    entry.getValue().remove(pendingWaitFor);
-                }
-            }
-            if (entry.getValue().size() == 0) {
-                pendingWaitFors.remove(entry.getKey());
-            }
+        expired = pendingWaitFors.removeExpired(systemTimeSource.absTimeMillis());
+        orphaned = pendingWaitFors.removeIf(pendingWaitFor -> activeRetrievals.get(pendingWaitFor.getOpUUID()) == null);
+        if (debugWaitFor) {
+        	System.out.printf("Cleaned %d expired and %d orphaned pending waitfors. %d remain\n", 
+        	                  expired, orphaned, pendingWaitFors.size());
         }
     }
 
@@ -1923,7 +2403,7 @@ public class NamespaceStore {
                 */
             } finally {
                 if (nsOptions.getStorageType() == StorageType.FILE) {
-                	if (segment != headSegment) {
+                	if (!isHeadSegment(segment)) {
                 		((FileSegment)segment).removeReference();
                 	}
                 }
@@ -1958,7 +2438,10 @@ public class NamespaceStore {
     }
 
     private WritableSegmentBase getSegment(int segmentNumber, SegmentPrereadMode segmentPrereadMode) throws IOException {
-    	if (segmentNumber == headSegment.getSegmentNumber()) {
+    	WritableSegmentBase	headSegment;
+    	
+    	headSegment = headSegmentFor(segmentNumber);
+    	if (headSegment != null) {
     		return headSegment;
     	} else {
 	        switch (nsOptions.getStorageType()) {
@@ -1970,7 +2453,10 @@ public class NamespaceStore {
     }
     
     private WritableSegmentBase getSegmentChecked(int segmentNumber) throws IOException {
-    	if (headSegment != null && segmentNumber == headSegment.getSegmentNumber()) {
+    	WritableSegmentBase	headSegment;
+    	
+    	headSegment = headSegmentFor(segmentNumber);
+    	if (headSegment != null) {
     		return headSegment;
     	} else {
 	        switch (nsOptions.getStorageType()) {
@@ -1982,24 +2468,14 @@ public class NamespaceStore {
     }
     
     private boolean segmentExists(int segmentNumber) {
-    	if (deletedSegments.contains(segmentNumber)) {
-    		return false;
+    	if (segmentNumber < nextSegmentID.get()) {
+	        switch (nsOptions.getStorageType()) {
+	        case RAM: return true;
+	        case FILE: return fileSegmentExists(segmentNumber);
+	        default: throw new RuntimeException("Panic");
+	        }
     	} else {
-	    	if (segmentNumber < nextSegmentID.get()) {
-	    		boolean	exists;
-	    		
-		        switch (nsOptions.getStorageType()) {
-		        case RAM: exists = true; break;
-		        case FILE: exists = fileSegmentExists(segmentNumber); break;
-		        default: throw new RuntimeException("Panic");
-		        }
-		        if (!exists) {
-		        	deletedSegments.add(segmentNumber);
-		        }
-		        return exists;
-	    	} else {
-	    		return false;
-	    	}
+    		return false;
     	}
     }
     
@@ -2160,12 +2636,12 @@ public class NamespaceStore {
     static NamespaceStore recoverExisting(long ns, File nsDir, NamespaceStore parent, StoragePolicy storagePolicy, 
             MessageGroupBase mgBase,
             NodeRingMaster2 ringMaster, ConcurrentMap<UUIDBase, ActiveProxyRetrieval> activeRetrievals,
-            ZooKeeperExtended zk, String nsLinkBasePath, LinkCreationListener linkCreationListener) {
+            ZooKeeperExtended zk, String nsLinkBasePath, LinkCreationListener linkCreationListener,
+            ExecutorService segmentRecoveryExecutor) {
         NamespaceStore nsStore;
         NamespaceProperties nsProperties;
         int	numSegmentsToPreread;
         int	numSegmentsToSkipPreread;
-        int	segmentsPrereadSkipped;
 
         if (ns == NamespaceUtil.metaInfoNamespace.contextAsLong()) {
             nsProperties = NamespaceUtil.metaInfoNamespaceProperties;
@@ -2185,70 +2661,86 @@ public class NamespaceStore {
 	        if (segmentFiles != null) {
 	            FileSegmentRecoverer fsr;
 	            List<Integer> segmentNumbers;
-	            int headSegmentNumber;
+	            Set<Integer> partialSegmentNumbers;
+	            int maxSegmentNumber;
+	            NamespaceIndexCheckpoint checkpoint;
+	            List<FileSegment> partialSegments;
 	
 	            fsr = new FileSegmentRecoverer(nsDir);
 	            segmentNumbers = new ArrayList<>();
 	            for (String segmentFile : segmentFiles) {
-	                try {
-	                    int segmentNumber;
-	
-	                    segmentNumber = Integer.parseInt(segmentFile);
-	                    if (segmentNumber >= 0) {
-	                        segmentNumbers.add(segmentNumber);
-	                    } else {
-	                        Log.warning("Ignoring bad segment number: ", segmentNumber);
-	                    }
-	                } catch (NumberFormatException nfe) {
-	                    Log.warning("Recovery ignoring bad segment number: ", segmentFile);
-	                }
+	            	if (!NamespaceIndexCheckpoint.isCheckpointFile(segmentFile)) {
+		                try {
+		                    int segmentNumber;
+		
+		                    segmentNumber = Integer.parseInt(segmentFile);
+		                    if (segmentNumber >= 0) {
+		                        segmentNumbers.add(segmentNumber);
+		                    } else {
+		                        Log.warning("Ignoring bad segment number: ", segmentNumber);
+		                    }
+		                } catch (NumberFormatException nfe) {
+		                    Log.warning("Recovery ignoring bad segment number: ", segmentFile);
+		                }
+	            	}
+	            }
+	            if (segmentNumbers.size() == 0) {
+	            	nsStore.initHeadSegments();
+	            	return nsStore;
 	            }
 	            Collections.sort(segmentNumbers);
-	            {
-		            int headSegmentNumberIndex;
-		            
-		            headSegmentNumberIndex = segmentNumbers.size() - 1;
-		            headSegmentNumber = segmentNumbers.get(headSegmentNumberIndex); 
-		            segmentNumbers.remove(headSegmentNumberIndex);
+	            maxSegmentNumber = segmentNumbers.get(segmentNumbers.size() - 1);
+	            // Segments that were never persisted were head segments, and must be recovered from their data.
+	            // With multiple write partitions, there may be one for each partition.
+	            partialSegmentNumbers = new HashSet<>();
+	            for (int segmentNumber : segmentNumbers) {
+	            	if (!FileSegment.isPersisted(nsDir, segmentNumber, nsProperties.getOptions().getSegmentSize())) {
+	            		partialSegmentNumbers.add(segmentNumber);
+	            	}
 	            }
+	            if (partialSegmentNumbers.size() == 0) {
+	            	partialSegmentNumbers.add(maxSegmentNumber);
+	            }
+	            Log.warningf("ns %x partial segments %s", ns, partialSegmentNumbers);
 	            
-	            numSegmentsToPreread = (int)((long)nsPrereadGB * (1024L * 1024L * 1024L) / (long)(nsProperties.getOptions().getSegmentSize()));
-	            numSegmentsToSkipPreread = segmentNumbers.size() - numSegmentsToPreread; 
-	            segmentsPrereadSkipped = 0;
-	            Log.warningf("segmentsToPreread: %d", numSegmentsToPreread);
-	            
-	            for (int i : segmentNumbers) {
-            		FileSegment	segment;
-    	            SegmentPrereadMode	segmentPrereadMode;
-            		
-    	            segmentPrereadMode = segmentsPrereadSkipped < numSegmentsToSkipPreread ? SegmentPrereadMode.NoPreread : SegmentPrereadMode.Preread;
-            		segment = null;
-	            	try {
-	            		segment = fsr.recoverFullSegment(i, nsStore, segmentIndexLocation, segmentPrereadMode);
-	            	} catch (Exception e) {
-	            		Log.logErrorWarning(e, "Error recovering full segment "+ i);
-	            		Log.warningf("Attempting partial segment recovery of segment: %d %s", i, segmentPrereadMode);
-	            		segment = fsr.readPartialSegment(i, false);
-	            		Log.warning("Successfully read segment as partial segment: "+ i);
-	            		Log.warning("Persisting segment: "+ i);
+	            checkpoint = NamespaceIndexCheckpoint.read(nsDir);
+	            if (checkpoint != null) {
+	            	if (checkpoint.getHighWaterMark() > maxSegmentNumber + 1) {
+	            		Log.warningf("ns %x ignoring index checkpoint beyond last segment %d: %s", ns, maxSegmentNumber, checkpoint);
+	            		checkpoint = null;
+	            	} else {
+		            	Stopwatch	sw;
+		            	
+		            	sw = new SimpleStopwatch();
 	            		try {
-	            			segment.persist();
-	            		} catch (IOException ioe) {
-	            			throw new RuntimeException("Segment persists failed for recovered segment" + i, ioe);
+	            			nsStore.loadIndexCheckpoint(checkpoint);
+	            			segmentNumbers = segmentNumbersToReplay(nsStore, segmentNumbers, partialSegmentNumbers);
+	            			sw.stop();
+	            			Log.warningf("ns %x loaded index checkpoint %s elapsed %f", ns, checkpoint, sw.getElapsedSeconds());
+	            		} catch (IOException | RuntimeException e) {
+	            			Log.logErrorWarning(e, String.format("ns %x ignoring index checkpoint %s", ns, checkpoint));
+	            			checkpoint = null;
+	            	        nsStore = new NamespaceStore(ns, nsDir, NamespaceStore.DirCreationMode.DoNotCreateNSDir, 
+	                                					nsProperties, parent, mgBase, ringMaster, true, activeRetrievals);
 	            		}
-	            		Log.warning("Persisted segment: "+ i);
-	            		Log.warning("Resuming full segment recovery: "+ i);
-	            		segment = fsr.recoverFullSegment(i, nsStore, segmentIndexLocation, segmentPrereadMode);
 	            	}
-	            	if (segmentPrereadMode == SegmentPrereadMode.Preread && segment != null) {
-	            		nsStore.addRecentFileSegment(i, segment);
+	            }
+	            if (checkpoint == null) {
+	            	try {
+	            		NamespaceIndexCheckpoint.delete(nsDir);
+	            	} catch (IOException ioe) {
+	            		Log.logErrorWarning(ioe);
 	            	}
-	            	segmentsPrereadSkipped++;
 	            }
-	            // Check for partial recovery on last
+	            
+	            numSegmentsToPreread = (int)((long)nsPrereadGB * (1024L * 1024L * 1024L) / (long)(nsProperties.getOptions().getSegmentSize()));
+	            numSegmentsToSkipPreread = segmentNumbers.size() - numSegmentsToPreread; 
+	            Log.warningf("segmentsToPreread: %d", numSegmentsToPreread);
+	            
+	            partialSegments = recoverSegments(nsStore, fsr, segmentNumbers, partialSegmentNumbers, 
+	            									numSegmentsToSkipPreread, segmentRecoveryExecutor);
 	            // FUTURE - Check for corruption
-	            // FUTURE - If full, then do full recovery?
-	            nsStore.setHeadSegment(fsr.recoverPartialSegment(headSegmentNumber, nsStore));
+	            nsStore.setHeadSegments(partialSegments, maxSegmentNumber);
 	        }
         } else {
         	nsStore.initRAMSegments();
@@ -2256,6 +2748,149 @@ public class NamespaceStore {
         return nsStore;
     }
     
+    /**
+     * @return the segments with entries that are not reflected in the loaded index checkpoint, together
+     * with all partial segments, which must be recovered in order to become head segments
+     */
+    private static List<Integer> segmentNumbersToReplay(NamespaceStore nsStore, List<Integer> sortedSegmentNumbers, 
+    													Set<Integer> partialSegmentNumbers) {
+    	List<Integer>	segmentNumbers;
+    	
+    	segmentNumbers = new ArrayList<>();
+    	for (int segmentNumber : sortedSegmentNumbers) {
+    		if (partialSegmentNumbers.contains(segmentNumber) 
+    				|| nsStore.getReplayOffset(segmentNumber) != Integer.MAX_VALUE) {
+    			segmentNumbers.add(segmentNumber);
+    		}
+    	}
+    	return segmentNumbers;
+    }
+    
+    /**
+     * Used by recovery.
+     * @return the offset at and above which entries of the given segment must be replayed into the index
+     */
+    private int getReplayOffset(int segmentNumber) {
+    	return indexCheckpoint == null ? 0 : indexCheckpoint.getReplayOffset(segmentNumber);
+    }
+    
+    /**
+     * Recover the given segments. Full segments have their indexes read in parallel using the
+     * given executor (or in the calling thread if the executor is null). Partial segments (those
+     * whose indexes were never persisted) are recovered from their data. All segments are applied
+     * to this store in ascending segment number order so that the result is identical to
+     * a sequential recovery. Entries that are reflected in a loaded index checkpoint are skipped. The number of segments read ahead of the segment being applied
+     * is bounded to limit memory usage.
+     * @return the recovered partial segments in ascending segment number order
+     */
+    private static List<FileSegment> recoverSegments(NamespaceStore nsStore, FileSegmentRecoverer fsr, List<Integer> segmentNumbers, 
+    										Set<Integer> partialSegmentNumbers,
+    										int numSegmentsToSkipPreread, ExecutorService segmentRecoveryExecutor) {
+    	Deque<Future<FileSegmentRecoverer.RecoveredSegment>>	pendingReads;
+    	int		nextRead;
+    	Stopwatch	sw;
+    	double	applySeconds;
+    	List<FileSegment>	partialSegments;
+    	
+    	sw = new SimpleStopwatch();
+    	applySeconds = 0.0;
+    	pendingReads = new ArrayDeque<>();
+    	nextRead = 0;
+    	partialSegments = new ArrayList<>();
+        for (int index = 0; index < segmentNumbers.size(); index++) {
+    		FileSegment	segment;
+            SegmentPrereadMode	segmentPrereadMode;
+            int		i;
+            Stopwatch	applySW;
+    		
+            while (nextRead < segmentNumbers.size() && nextRead - index < maxSegmentRecoveryReadAhead) {
+            	if (partialSegmentNumbers.contains(segmentNumbers.get(nextRead))) {
+            		pendingReads.addLast(CompletableFuture.completedFuture(null));
+            	} else {
+	            	pendingReads.addLast(readFullSegmentForRecovery(nsStore, fsr, segmentNumbers.get(nextRead), 
+	            								getRecoveryPrereadMode(nextRead, numSegmentsToSkipPreread), 
+	            								nsStore.getReplayOffset(segmentNumbers.get(nextRead)), segmentRecoveryExecutor));
+            	}
+            	nextRead++;
+            }
+            i = segmentNumbers.get(index);
+            if (partialSegmentNumbers.contains(i)) {
+            	pendingReads.removeFirst();
+            	segment = fsr.recoverPartialSegment(i, nsStore, nsStore.getReplayOffset(i));
+            	if (segment != null) {
+            		partialSegments.add(segment);
+            	}
+            	continue;
+            }
+            segmentPrereadMode = getRecoveryPrereadMode(index, numSegmentsToSkipPreread);
+    		segment = null;
+        	try {
+        		FileSegmentRecoverer.RecoveredSegment	recoveredSegment;
+        		
+        		try {
+        			recoveredSegment = pendingReads.removeFirst().get();
+        		} catch (ExecutionException ee) {
+        			if (ee.getCause() instanceof Exception) {
+        				throw (Exception)ee.getCause();
+        			} else {
+        				throw ee;
+        			}
+        		}
+        		applySW = new SimpleStopwatch();
+        		segment = fsr.applyRecoveredSegment(recoveredSegment, nsStore);
+        		applySW.stop();
+        		applySeconds += applySW.getElapsedSeconds();
+        	} catch (InterruptedException ie) {
+        		throw new RuntimeException("Interrupted during recovery of segment "+ i, ie);
+        	} catch (Exception e) {
+        		Log.logErrorWarning(e, "Error recovering full segment "+ i);
+        		Log.warningf("Attempting partial segment recovery of segment: %d %s", i, segmentPrereadMode);
+        		segment = fsr.readPartialSegment(i, false);
+        		Log.warning("Successfully read segment as partial segment: "+ i);
+        		Log.warning("Persisting segment: "+ i);
+        		try {
+        			segment.persist();
+        		} catch (IOException ioe) {
+        			throw new RuntimeException("Segment persists failed for recovered segment" + i, ioe);
+        		}
+        		Log.warning("Persisted segment: "+ i);
+        		Log.warning("Resuming full segment recovery: "+ i);
+        		segment = fsr.recoverFullSegment(i, nsStore, segmentIndexLocation, segmentPrereadMode, 
+        										nsStore.getReplayOffset(i));
+        	}
+        	if (segmentPrereadMode == SegmentPrereadMode.Preread && segment != null) {
+        		nsStore.addRecentFileSegment(i, segment);
+        	}
+        }
+        sw.stop();
+        Log.warningf("ns %x segment recovery: segments %d partial %d elapsed %f apply %f", 
+        			nsStore.getNamespace(), segmentNumbers.size(), partialSegments.size(), sw.getElapsedSeconds(), applySeconds);
+        return partialSegments;
+    }
+    
+    private static SegmentPrereadMode getRecoveryPrereadMode(int index, int numSegmentsToSkipPreread) {
+    	return index < numSegmentsToSkipPreread ? SegmentPrereadMode.NoPreread : SegmentPrereadMode.Preread;
+    }
+    
+    private static Future<FileSegmentRecoverer.RecoveredSegment> readFullSegmentForRecovery(final NamespaceStore nsStore, 
+    											final FileSegmentRecoverer fsr, final int segmentNumber,
+    											final SegmentPrereadMode segmentPrereadMode, final int replayOffset, 
+    											ExecutorService segmentRecoveryExecutor) {
+    	Callable<FileSegmentRecoverer.RecoveredSegment>	read;
+    	
+    	read = () -> fsr.readFullSegmentForRecovery(segmentNumber, nsStore, segmentIndexLocation, segmentPrereadMode, 
+    												replayOffset);
+    	if (segmentRecoveryExecutor != null) {
+    		return segmentRecoveryExecutor.submit(read);
+    	} else {
+    		FutureTask<FileSegmentRecoverer.RecoveredSegment>	task;
+    		
+    		task = new FutureTask<>(read);
+    		task.run();
+    		return task;
+    	}
+    }
+    
     private void addRecentFileSegment(int segmentNumber, FileSegment fileSegment) {
         fileSegment.addReferences(2); // 1 for the map, 1 for the returned reference
         recentFileSegments.put(segmentNumber, fileSegment);
@@ -2263,7 +2898,7 @@ public class NamespaceStore {
 
     // FUTURE - Consider deco
     public OpResult snapshot(long version) {
-        writeLock.lock();
+        writeLockAll();
         try {
             if (version >= curSnapshot) {
                 curSnapshot = version;
@@ -2272,10 +2907,63 @@ public class NamespaceStore {
                 return OpResult.INVALID_VERSION;
             }
         } finally {
-            writeLock.unlock();
+            writeUnlockAll();
         }
     }
 
+    ////////////////
+    // key scans
+    
+    /**
+     * Return keys stored in this namespace in scan order (ring coordinate, then key).
+     * Pages are served from a sorted snapshot of the keys in the requested region that
+     * is shared by all scans of the region and is periodically recreated. Keys stored
+     * after the snapshot was created may therefore be missed, and keys removed since
+     * may be returned.
+     * @param minCoordinate minimum coordinate of returned keys
+     * @param maxCoordinate maximum coordinate of returned keys
+     * @param afterKey if non-null, only keys that follow this key are returned
+     * @param maxKeys maximum number of keys to return
+     * @return the matching keys in scan order
+     */
+    public List<DHTKey> scanKeys(long minCoordinate, long maxCoordinate, DHTKey afterKey, int maxKeys) {
+        return getKeyScanSnapshot(minCoordinate, maxCoordinate).getKeys(minCoordinate, maxCoordinate, afterKey, maxKeys);
+    }
+    
+    /**
+     * Snapshots are keyed by the end of the region scanned. Successive pages of a region
+     * share the region end and advance the minimum coordinate, so a snapshot created for
+     * the first page covers the remaining pages.
+     * 
+     * Only the index of keys to segments is read, so only metaReadLock is held while
+     * the snapshot is created; writes to the partitions proceed.
+     * 
+     * FUTURE - return values and metadata with keys; create snapshots from an index
+     * ordered by coordinate rather than walking the full key index for each region
+     */
+    private KeyScanSnapshot getKeyScanSnapshot(long minCoordinate, long maxCoordinate) {
+        KeyScanSnapshot	snapshot;
+        long	curTimeMillis;
+        
+        keyScanSnapshotLock.lock();
+        try {
+            curTimeMillis = systemTimeSource.absTimeMillis();
+            snapshot = keyScanSnapshots.get(maxCoordinate);
+            if (snapshot == null || snapshot.isExpired(curTimeMillis) || !snapshot.covers(minCoordinate, maxCoordinate)) {
+                metaReadLock.lock();
+                try {
+                    snapshot = KeyScanSnapshot.create(valueSegments.iterator(), minCoordinate, maxCoordinate, curTimeMillis);
+                } finally {
+                    metaReadLock.unlock();
+                }
+                keyScanSnapshots.put(maxCoordinate, snapshot);
+            }
+        } finally {
+            keyScanSnapshotLock.unlock();
+        }
+        return snapshot;
+    }
+    
     ////////////////
     // convergence
     
@@ -2419,33 +3107,9 @@ public class NamespaceStore {
             _next = null;
             while (_next == null && valueSegmentEntries.hasNext()) {
                 DHTKeyIntEntry 	vsEntry;
-                long			checksum;
-                boolean			validChecksum;
                 
                 vsEntry = valueSegmentEntries.next();
-                if (nsProperties.getOptions().isWriteOnce()) {
-                	checksum = 0;
-                	validChecksum = true;
-                } else {
-                	MultiVersionChecksum	_checksum;
-                	
-                	try {
-                		_checksum = getVersionChecksum(vsEntry.getKey());
-                	} catch (RuntimeException re) {
-                		re.printStackTrace();
-                		_checksum = null;
-                	}
-                	if (_checksum != null) {
-                		checksum = _checksum.getLongChecksum();
-                    	validChecksum = true;
-                	} else {
-                		checksum = 0;
-                    	validChecksum = false;
-                	}
-                }
-                if (validChecksum) {
-                	_next = new KeyAndVersionChecksum(vsEntry.getKey(), checksum);
-                }
+                _next = keyAndVersionChecksum(vsEntry.getKey());
                 /*
                 ByteBuffer result;
                 long checksum;
@@ -2488,6 +3152,47 @@ public class NamespaceStore {
         }
     }
     
+    /**
+     * readLock() must be held while this is in use
+     * @param key
+     * @return the KeyAndVersionChecksum that convergence uses for the given key, or null if the key
+     * is not stored or if no checksum can be computed for it
+     */
+    public KeyAndVersionChecksum getKeyAndVersionChecksum(DHTKey key) {
+    	if (valueSegments.get(key) == IntCuckooConstants.noSuchValue) {
+    		return null;
+    	} else {
+    		return keyAndVersionChecksum(key);
+    	}
+    }
+    
+    private KeyAndVersionChecksum keyAndVersionChecksum(DHTKey key) {
+        long			checksum;
+        boolean			validChecksum;
+        
+        if (nsProperties.getOptions().isWriteOnce()) {
+        	checksum = 0;
+        	validChecksum = true;
+        } else {
+        	MultiVersionChecksum	_checksum;
+        	
+        	try {
+        		_checksum = getVersionChecksum(key);
+        	} catch (RuntimeException re) {
+        		re.printStackTrace();
+        		_checksum = null;
+        	}
+        	if (_checksum != null) {
+        		checksum = _checksum.getLongChecksum();
+            	validChecksum = true;
+        	} else {
+        		checksum = 0;
+            	validChecksum = false;
+        	}
+        }
+        return validChecksum ? new KeyAndVersionChecksum(key, checksum) : null;
+    }
+    
     private MultiVersionChecksum getVersionChecksum(DHTKey key) {
     	int		segmentNumber;
     	
@@ -2512,7 +3217,7 @@ public class NamespaceStore {
 				latestVersion = segment.getVersion(offset);
     		} finally {
                 if (nsOptions.getStorageType() == StorageType.FILE) {
-                	if (segment != headSegment) {
+                	if (!isHeadSegment(segment)) {
                 		((FileSegment)segment).removeReference();
                 	}
                 }
@@ -2545,13 +3250,92 @@ public class NamespaceStore {
     }
     
     public void readLock() {
-        readLock.lock();
+        readLockAll();
         metaReadLock.lock();
     }
     
     public void readUnlock() {
         metaReadLock.unlock();
-        readLock.unlock();
+        readUnlockAll();
+    }
+    
+    ////////////////////
+    // Index checkpoint
+    
+    /**
+     * Checkpoint the key-to-segment index so that recovery need only replay entries written
+     * after the checkpoint. Puts are locked out only while the index is copied and the position
+     * of each head is recorded; heads are not sealed. The copy is written without holding the
+     * namespace locks.
+     */
+    public void checkpointIndex() {
+    	if (nsOptions.getStorageType().isFileBased()) {
+    		reapLock.lock();
+    		try {
+    			NamespaceIndexCheckpoint	checkpoint;
+    			Stopwatch	sw;
+    			double		copySeconds;
+    			
+    			sw = new SimpleStopwatch();
+    			writeLockAll();
+    			metaWriteLock.lock();
+    			try {
+    				int[]	headSegmentNumbers;
+    				int[]	headOffsets;
+    				
+    				headSegmentNumbers = new int[writePartitions.length];
+    				headOffsets = new int[writePartitions.length];
+    				for (int i = 0; i < writePartitions.length; i++) {
+    					headSegmentNumbers[i] = writePartitions[i].headSegment.getSegmentNumber();
+    					headOffsets[i] = writePartitions[i].headSegment.getNextFree();
+    				}
+    				if (indexCheckpoint != null 
+    						&& indexCheckpoint.isCurrent(nextSegmentID.get(), headSegmentNumbers, headOffsets)) {
+    					checkpoint = null;
+    				} else {
+    					checkpoint = NamespaceIndexCheckpoint.create(nextSegmentID.get(), nsStats.getTotalKeys(), 
+    																headSegmentNumbers, headOffsets, 
+    																valueSegments, (RAMOffsetListStore)offsetListStore);
+    				}
+    			} finally {
+    		    	metaWriteLock.unlock();
+    		    	writeUnlockAll();
+    			}
+    			copySeconds = sw.getSplitSeconds();
+    			if (checkpoint != null) {
+    				checkpoint.write(nsDir);
+    				indexCheckpoint = checkpoint;
+    				sw.stop();
+    				Log.warningAsyncf("ns %x index checkpoint %s copy %f elapsed %f", ns, checkpoint, 
+    								copySeconds, sw.getElapsedSeconds());
+    			}
+    		} catch (IOException | RuntimeException e) {
+    			Log.logErrorWarning(e, String.format("ns %x index checkpoint failed", ns));
+    		} finally {
+    			reapLock.unlock();
+    		}
+    	}
+    }
+    
+    /**
+     * Called before a segment is deleted or compacted. Segments with entries reflected in the
+     * checkpoint must not change, so the checkpoint must be discarded before they are modified.
+     * reapLock must be held.
+     */
+    private void invalidateIndexCheckpoint(int segmentNumber) throws IOException {
+    	if (indexCheckpoint != null && indexCheckpoint.getReplayOffset(segmentNumber) > 0) {
+    		NamespaceIndexCheckpoint.delete(nsDir);
+    		indexCheckpoint = null;
+    		Log.warningAsyncf("ns %x index checkpoint invalidated by segment %d", ns, segmentNumber);
+    	}
+    }
+    
+    // used by recovery. no lock needed in recovery
+    private void loadIndexCheckpoint(NamespaceIndexCheckpoint checkpoint) throws IOException {
+    	valueSegments = checkpoint.createValueSegments(vsCuckooLimit, StoreConfiguration.offHeapIndexes);
+    	checkpoint.loadOffsetLists((RAMOffsetListStore)offsetListStore, nsOptions);
+    	nsStats.setTotalKeys(checkpoint.getTotalKeys());
+    	indexCheckpoint = checkpoint;
     }
     
     ////////////////////
@@ -2563,14 +3347,15 @@ public class NamespaceStore {
     	vrp = nsOptions.getValueRetentionPolicy();
     	Log.warningAsyncf("reap ns %x %s %s", ns, vrp, leaveTrash);
     	if (vrp != null) {
-    		if (!leaveTrash) {
-    			FileSegmentCompactor.emptyTrashAndCompaction(nsDir);
-    		}
-	    	writeLock.lock();
-	    	metaWriteLock.lock();
-	    	try {
+    		reapLock.lock();
+    		try {
 	        	long	curTimeNanos;
 	        	
+	        	// Reaping removes keys, which incrementally maintained checksum trees do not track
+	        	checksumTreeServer.invalidateIncrementalTrees();
+	    		if (!leaveTrash) {
+	    			FileSegmentCompactor.emptyTrashAndCompaction(nsDir);
+	    		}
 	        	curTimeNanos = systemTimeSource.absTimeNanos();
 		    	switch (vrp.getImplementationType()) {
 		    	case SingleReverseSegmentWalk:
@@ -2580,24 +3365,34 @@ public class NamespaceStore {
 		    		break;
 				default: throw new RuntimeException("Unsupported ValueRetentionPolicy ImplementationType: "+ vrp.getImplementationType());
 		    	}
-	    	} finally {
-		    	metaWriteLock.unlock();
-		    	writeLock.unlock();
-	    	}
-    		if (!leaveTrash) {
-    			FileSegmentCompactor.emptyTrashAndCompaction(nsDir);
+	    		if (!leaveTrash) {
+	    			FileSegmentCompactor.emptyTrashAndCompaction(nsDir);
+	    		}
+	        	checksumTreeServer.invalidateIncrementalTrees();
+    		} finally {
+    			reapLock.unlock();
     		}
     	}
     }
     
+    /**
+     * Walk segments from newest to oldest, deleting or compacting each segment as required.
+     * 
+     * Segments are processed one at a time. Retention checks and construction of compacted segments
+     * take place without holding the namespace locks; only the swap of each segment and the
+     * associated offset list update are performed with puts and retrievals locked out.
+     * Compaction I/O is limited to compactionBytesPerSecond.
+     * 
+     * Segments with no valid entries are deleted together once the walk is complete so that
+     * the offset lists are updated in a single pass. A segment that is updated in place before
+     * then is retained.
+     */
 	public <T extends ValueRetentionState> void singleReverseSegmentWalk(ValueRetentionPolicy<T> vrp, T valueRetentionState, long curTimeNanos) {
-		Set<Integer>			deletedSegments;
-		HashedSetMap<DHTKey,Triple<Long,Integer,Long>>	removedEntries;
+		Map<Integer,WritableSegmentBase>	segmentsToDelete;
 		
-		removedEntries = new HashedSetMap<>();
-		deletedSegments = new HashSet<>();
-        for (int i = headSegment.getSegmentNumber() - 1; i >= 0; i--) {
-        	if (segmentExists(i)) {
+		segmentsToDelete = new HashMap<>();
+        for (int i = nextSegmentID.get() - 1; i >= 0; i--) {
+        	if (headSegmentFor(i) == null && segmentExists(i)) {
         		Triple<CompactionCheckResult,Set<Integer>,Set<Integer>>	result; 
         		WritableSegmentBase		segment;
         		CompactionCheckResult	ccr;
@@ -2606,58 +3401,133 @@ public class NamespaceStore {
                 	Stopwatch	sw;
                 	
                 	sw = new SimpleStopwatch();
-        			if (nsOptions.getStorageType() == StorageType.RAM) {
-        				segment = getSegment(i, SegmentPrereadMode.Preread);
-        			} else {
-        				segment = getSegment(i, SegmentPrereadMode.Preread);
-        				//segment = FileSegment.openReadOnly(nsDir, i, nsOptions.getSegmentSize(), nsOptions, SegmentIndexLocation.RAM, SegmentPrereadMode.Preread);
-        			}
+                	// track updates from before the retention check so that none is missed
+                	segmentsPendingDeletion.add(i);
+    				segment = getSegment(i, SegmentPrereadMode.Preread);
 					try {
 						result = segment.singleReverseSegmentWalk(vrp, valueRetentionState, curTimeNanos, ringMaster);
 						ccr = result.getV1();
 		    		} finally {
 		                if (nsOptions.getStorageType() == StorageType.FILE) {
-		                	if (segment.getSegmentNumber() != headSegment.getSegmentNumber()) {
+		                	if (!isHeadSegment(segment)) {
 		                		((FileSegment)segment).removeReference();
 		                	}
 		                }
 		    		}
 					Log.warningAsyncf("Segment %3d CompactionCheckResult:\t%s", i, ccr.toString());
-					if (segment.getSegmentNumber() == headSegment.getSegmentNumber()) {
+					if (isHeadSegment(segment)) {
+						segmentsPendingDeletion.remove(i);
 						Log.warningAsyncf("Retaining head segment");
+					} else if (ccr.getValidEntries() == 0) {
+						segmentsToDelete.put(i, segment);
 					} else {
-						if (ccr.getValidEntries() == 0) {
-			            	try {
-			            		recentFileSegments.remove(i);
-			            		FileSegmentCompactor.delete(nsDir, i);
-			            		deletedSegments.add(i);
-			            		if (FileSegment.mapEverything) {
-			                		((FileSegment)segment).close();
-			            		}
-			            	} catch (IOException ioe) {
-			            		Log.logErrorWarning(ioe, "Failed to delete segment: "+ i);
-			            	}
-						} else if (ccr.getInvalidFraction() >= compactionThreshold) {
-			            	try {
-								HashedSetMap<DHTKey,Triple<Long,Integer,Long>>	segmentRemovedEntries;
-								
-			            		recentFileSegments.remove(i);
-			            		segmentRemovedEntries = FileSegmentCompactor.compact(nsDir, i, nsOptions, new RetainedOffsetMapCheck(result.getV2(), result.getV3()));
-			            		removedEntries.addAll(segmentRemovedEntries);
-			            	} catch (IOException ioe) {
-			            		Log.logErrorWarning(ioe, "IOException compacting segment: "+ i);
-			            	}
+						segmentsPendingDeletion.remove(i);
+						if (ccr.getInvalidFraction() >= compactionThreshold) {
+							compactSegment(i, new RetainedOffsetMapCheck(result.getV2(), result.getV3()));
 						}
 					}
 					sw.stop();
 					Log.warningAsyncf("\t\t%d %f", i, sw.getElapsedSeconds());
 				} catch (Exception e) {
+					segmentsPendingDeletion.remove(i);
 					Log.logErrorWarning(e, "Skipping segment "+ i +" due to Exception");
 				}
         	}
         }
-        updateOffsetLists(deletedSegments, removedEntries);
+        if (segmentsToDelete.size() > 0) {
+        	deleteSegments(segmentsToDelete);
+        }
     }
+	
+	/**
+	 * Delete the given segments and update the offset lists for all of them in one pass.
+	 */
+	private void deleteSegments(Map<Integer,WritableSegmentBase> segments) {
+		Set<Integer>	deletedSegments;
+		
+		deletedSegments = new HashSet<>();
+    	writeLockAll();
+    	metaWriteLock.lock();
+    	try {
+    		for (Map.Entry<Integer,WritableSegmentBase> entry : segments.entrySet()) {
+    			int	segmentNumber;
+    			
+    			segmentNumber = entry.getKey();
+    			if (!segmentsPendingDeletion.remove(segmentNumber)) {
+    				Log.warningAsyncf("Segment %d updated during reap. Retaining segment.", segmentNumber);
+    				continue;
+    			}
+	    		try {
+		    		invalidateIndexCheckpoint(segmentNumber);
+		    		recentFileSegments.remove(segmentNumber);
+		    		FileSegmentCompactor.delete(nsDir, segmentNumber);
+		    		if (FileSegment.mapEverything) {
+		        		((FileSegment)entry.getValue()).close();
+		    		}
+		    		deletedSegments.add(segmentNumber);
+		    	} catch (IOException ioe) {
+		    		Log.logErrorWarning(ioe, "Failed to delete segment: "+ segmentNumber);
+		    	}
+    		}
+    		if (deletedSegments.size() > 0) {
+    			updateOffsetLists(deletedSegments, new HashedSetMap<DHTKey,Triple<Long,Integer,Long>>());
+    		}
+    	} finally {
+	    	metaWriteLock.unlock();
+	    	writeUnlockAll();
+    	}
+	}
+	
+	private void compactSegment(int segmentNumber, EntryRetentionCheck retentionCheck) {
+		HashedSetMap<DHTKey,Triple<Long,Integer,Long>>	segmentRemovedEntries;
+		
+		// Build the compacted segment to the side without holding the namespace locks.
+		// putUpdate() may modify the segment in place while this is in progress; such
+		// updates are detected, and the compacted segment is discarded if any occurred.
+		compactingSegment = segmentNumber;
+		compactingSegmentUpdated = false;
+		try {
+        	try {
+        		segmentRemovedEntries = FileSegmentCompactor.prepareCompactedSegment(nsDir, segmentNumber, nsOptions, 
+        																			retentionCheck, compactionRateLimiter);
+        	} catch (IOException ioe) {
+        		Log.logErrorWarning(ioe, "IOException compacting segment: "+ segmentNumber);
+        		return;
+        	}
+        	writeLockAll();
+        	metaWriteLock.lock();
+        	try {
+        		if (compactingSegmentUpdated) {
+        			Log.warningAsyncf("Segment %d updated during compaction. Discarding compacted segment.", segmentNumber);
+        			FileSegmentCompactor.discardCompactedSegment(nsDir, segmentNumber);
+        		} else {
+	        		invalidateIndexCheckpoint(segmentNumber);
+	        		// updateOffsetLists() must see the uncompacted segment, so it precedes the swap
+	        		updateOffsetLists(ImmutableSet.<Integer>of(), segmentRemovedEntries);
+	        		recentFileSegments.remove(segmentNumber);
+	        		FileSegmentCompactor.swapCompactedSegment(nsDir, segmentNumber);
+        		}
+        	} catch (IOException ioe) {
+        		Log.logErrorWarning(ioe, "IOException swapping compacted segment: "+ segmentNumber);
+        	} finally {
+    	    	metaWriteLock.unlock();
+    	    	writeUnlockAll();
+        	}
+		} finally {
+			compactingSegment = noCompactingSegment;
+		}
+	}
+	
+	/**
+	 * Called when a non-head segment is modified in place. Must be called with the
+	 * write lock of a write partition held.
+	 */
+	private void noteSegmentUpdate(int segmentNumber) {
+		if (segmentNumber == compactingSegment) {
+			compactingSegmentUpdated = true;
+		}
+		segmentsPendingDeletion.remove(segmentNumber);
+	}
 
     private void updateOffsetLists(Set<Integer> deletedSegments, HashedSetMap<DHTKey, Triple<Long, Integer, Long>> removedEntries) {
     	RAMOffsetListStore	ols;
@@ -0,0 +1,177 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.ms.silverking.cloud.dht.ConsistencyProtocol;
+import com.ms.silverking.cloud.dht.NamespaceOptions;
+import com.ms.silverking.cloud.dht.RetrievalType;
+import com.ms.silverking.cloud.dht.StorageType;
+import com.ms.silverking.cloud.dht.VersionConstraint;
+import com.ms.silverking.cloud.dht.WaitMode;
+import com.ms.silverking.cloud.dht.client.ChecksumType;
+import com.ms.silverking.cloud.dht.client.Compression;
+import com.ms.silverking.cloud.dht.common.CCSSUtil;
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.InternalRetrievalOptions;
+import com.ms.silverking.cloud.dht.common.NamespaceProperties;
+import com.ms.silverking.cloud.dht.common.OptionsHelper;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.cloud.dht.common.SimpleValueCreator;
+import com.ms.silverking.cloud.dht.common.SystemTimeUtil;
+import com.ms.silverking.cloud.dht.net.MessageGroupBase;
+import com.ms.silverking.thread.lwt.LWTPoolProvider;
+import com.ms.silverking.time.SimpleStopwatch;
+import com.ms.silverking.time.Stopwatch;
+
+/**
+ * Measures NamespaceStore.put() throughput as a function of the number of writing threads.
+ * Run with -Dcom.ms.silverking.cloud.dht.daemon.NSWritePartitions=<n> to compare
+ * a single write partition with multiple write partitions.
+ */
+public class NamespaceStorePutBenchmark {
+	private final NamespaceStore	nsStore;
+	private final int	numThreads;
+	private final int	keysPerThread;
+	private final int	batchSize;
+	private final ByteBuffer	value;
+	private final byte[]	creator;
+	private final short	ccss;
+
+	private static final long	ns = 0x4e5350424eL;
+	private static final int	queueLimit = 1000;
+	private static final InternalRetrievalOptions	verificationOptions = new InternalRetrievalOptions(
+			OptionsHelper.newRetrievalOptions(RetrievalType.META_DATA, WaitMode.GET, VersionConstraint.greatest));
+
+	public NamespaceStorePutBenchmark(StorageType storageType, int numThreads, int keysPerThread, int valueSize,
+									int batchSize) throws Exception {
+		NamespaceOptions	nsOptions;
+		MessageGroupBase	mgBase;
+		File	nsDir;
+
+		this.numThreads = numThreads;
+		this.keysPerThread = keysPerThread;
+		this.batchSize = batchSize;
+		nsOptions = DHTConstants.defaultNamespaceOptions.storageType(storageType)
+					.consistencyProtocol(ConsistencyProtocol.LOOSE);
+		nsDir = new File(System.getProperty("java.io.tmpdir"), "NamespaceStorePutBenchmark."+ System.currentTimeMillis());
+		mgBase = new MessageGroupBase(0, null, SystemTimeUtil.systemTimeSource, null, queueLimit, 1, "");
+		nsStore = new NamespaceStore(ns, nsDir, NamespaceStore.DirCreationMode.CreateNSDir,
+									new NamespaceProperties(nsOptions), mgBase, null, false,
+									new ConcurrentHashMap<>());
+		value = ByteBuffer.wrap(new byte[valueSize]);
+		creator = SimpleValueCreator.forLocalProcess().getBytes();
+		ccss = CCSSUtil.createCCSS(Compression.NONE, ChecksumType.NONE);
+	}
+
+	private List<List<StorageValueAndParameters>> createBatches(int threadIndex) {
+		List<List<StorageValueAndParameters>>	batches;
+		List<StorageValueAndParameters>	batch;
+		Random	random;
+
+		random = new Random(threadIndex);
+		batches = new ArrayList<>();
+		batch = null;
+		for (int i = 0; i < keysPerThread; i++) {
+			DHTKey	key;
+
+			if (batch == null || batch.size() == batchSize) {
+				batch = new ArrayList<>(batchSize);
+				batches.add(batch);
+			}
+			key = new SimpleKey(random.nextLong(), random.nextLong());
+			batch.add(new StorageValueAndParameters(key, value.duplicate(), DHTConstants.unspecifiedVersion,
+					value.limit(), StorageParameters.compressedSizeNotSet, ccss, DHTConstants.emptyByteArray,
+					creator, SystemTimeUtil.systemTimeSource.absTimeNanos()));
+		}
+		return batches;
+	}
+
+	public void runBenchmark() throws InterruptedException {
+		List<List<List<StorageValueAndParameters>>>	threadBatches;
+		CountDownLatch	startLatch;
+		CountDownLatch	doneLatch;
+		Stopwatch	sw;
+		long	totalKeys;
+		int		missing;
+
+		threadBatches = new ArrayList<>();
+		for (int i = 0; i < numThreads; i++) {
+			threadBatches.add(createBatches(i));
+		}
+		startLatch = new CountDownLatch(1);
+		doneLatch = new CountDownLatch(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			new Thread(new PutWorker(threadBatches.get(i), startLatch, doneLatch)).start();
+		}
+		sw = new SimpleStopwatch();
+		startLatch.countDown();
+		doneLatch.await();
+		sw.stop();
+		totalKeys = (long)numThreads * (long)keysPerThread;
+		System.out.printf("threads %d  keys %d  elapsed %f  puts/s %f\n",
+						numThreads, totalKeys, sw.getElapsedSeconds(), (double)totalKeys / sw.getElapsedSeconds());
+
+		missing = 0;
+		for (List<List<StorageValueAndParameters>> batches : threadBatches) {
+			for (List<StorageValueAndParameters> batch : batches) {
+				for (StorageValueAndParameters svp : batch) {
+					if (nsStore._retrieve(svp.getKey(), verificationOptions) == null) {
+						missing++;
+					}
+				}
+			}
+		}
+		System.out.printf("missing %d\n", missing);
+	}
+
+	private class PutWorker implements Runnable {
+		private final List<List<StorageValueAndParameters>>	batches;
+		private final CountDownLatch	startLatch;
+		private final CountDownLatch	doneLatch;
+
+		PutWorker(List<List<StorageValueAndParameters>> batches, CountDownLatch startLatch, CountDownLatch doneLatch) {
+			this.batches = batches;
+			this.startLatch = startLatch;
+			this.doneLatch = doneLatch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				startLatch.await();
+				for (List<StorageValueAndParameters> batch : batches) {
+					nsStore.put(batch, DHTConstants.emptyByteArray, NullKeyedOpResultListener.instance);
+				}
+			} catch (InterruptedException ie) {
+			} finally {
+				doneLatch.countDown();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			if (args.length != 5) {
+				System.out.println("args: <storageType> <threads> <keysPerThread> <valueSize> <batchSize>");
+				return;
+			} else {
+				NamespaceStorePutBenchmark	benchmark;
+
+				LWTPoolProvider.createDefaultWorkPools();
+				benchmark = new NamespaceStorePutBenchmark(StorageType.valueOf(args[0]), Integer.parseInt(args[1]),
+										Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+				benchmark.runBenchmark();
+				System.exit(0);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
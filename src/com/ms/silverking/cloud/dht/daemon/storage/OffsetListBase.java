@@ -97,27 +97,156 @@ abstract class OffsetListBase implements OffsetList {
     private static final int    linearThreshold = 2;
     
     /*
-     * for newest:
-     * binary search to find the max
-     * 
-     * for oldest:
-     * binary search to find the oldest
-     * 
-     * special case for the most recent
+     * Entries are appended in storage order. Storage times are therefore increasing.
+     * For namespaces that do not support storage time (i.e. that do not allow revisions),
+     * puts must not decrease the version of a key, so versions are non-decreasing as well.
+     * (getLastOffset() relies on this for the newest version.)
      * 
+     * Lookups exploit this ordering:
+     * For version-ordered lists, binary search finds the bounds of the constraint's version 
+     * range, and the search for a valid entry starts at the end of the range corresponding to the mode.
+     * For lists that support storage time, binary search finds the last entry stored before
+     * the constraint's max creation time, and the remaining prefix of the list is searched linearly.
      */
     
     @Override
     public int getOffset(VersionConstraint vc, ValidityVerifier validityVerifier) {
-        // FUTURE - improve efficiency 
         if (vc.equals(VersionConstraint.greatest) && !supportsStorageTime && validityVerifier == null) {
             return getLastOffset();
+        } else if (!supportsStorageTime && size() > linearThreshold) {
+            return getOffset_versionOrdered(vc, validityVerifier);
+        } else {
+            return getOffset_linear(vc, validityVerifier, storageTimeLimit(vc));
+        }
+    }
+    
+    private boolean isValid(int index, ValidityVerifier validityVerifier) {
+        return validityVerifier == null || validityVerifier.isValid(getOffset(index) + DHTKey.BYTES_PER_KEY);
+    }
+    
+    /**
+     * Find the matching offset in a list where versions are non-decreasing. Where multiple 
+     * valid entries share the selected version, the most recently stored entry is selected.
+     */
+    private int getOffset_versionOrdered(VersionConstraint vc, ValidityVerifier validityVerifier) {
+        int matchIndex;
+        
+        matchIndex = Integer.MIN_VALUE;
+        if (vc.getMode() == VersionConstraint.Mode.GREATEST) {
+            // walk back from the last entry <= max
+            for (int i = firstIndexWithVersionAbove(vc.getMax()) - 1; i >= 0 && getVersion(i) >= vc.getMin(); i--) {
+                if (isValid(i, validityVerifier)) {
+                    matchIndex = i;
+                    break;
+                }
+            }
+        } else {
+            int s;
+            
+            s = size();
+            // walk forward from the first entry >= min
+            for (int i = firstIndexWithVersionAtLeast(vc.getMin()); i < s && getVersion(i) <= vc.getMax(); i++) {
+                if (isValid(i, validityVerifier)) {
+                    long    matchVersion;
+                    
+                    // prefer the most recent valid entry for this version
+                    matchIndex = i;
+                    matchVersion = getVersion(i);
+                    for (int j = i + 1; j < s && getVersion(j) == matchVersion; j++) {
+                        if (isValid(j, validityVerifier)) {
+                            matchIndex = j;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        if (debug) {
+            Log.warning("getOffset_versionOrdered: ", vc +" "+ matchIndex);
+        }
+        if (matchIndex < 0) {
+            return NO_MATCH_FOUND;
+        } else {
+            return getOffset(matchIndex);
+        }
+    }
+    
+    /**
+     * @return the index of the first entry with a version >= the given version, or size() if there is no such entry
+     */
+    private int firstIndexWithVersionAtLeast(long version) {
+        int low;
+        int high;
+        
+        low = 0;
+        high = size();
+        while (low < high) {
+            int mid;
+            
+            mid = (low + high) >>> 1;
+            if (getVersion(mid) < version) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * @return the index of the first entry with a version > the given version, or size() if there is no such entry
+     */
+    private int firstIndexWithVersionAbove(long version) {
+        int low;
+        int high;
+        
+        low = 0;
+        high = size();
+        while (low < high) {
+            int mid;
+            
+            mid = (low + high) >>> 1;
+            if (getVersion(mid) <= version) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * @return the number of leading entries that satisfy the max creation time of the given constraint
+     */
+    private int storageTimeLimit(VersionConstraint vc) {
+        if (!supportsStorageTime || vc.getMaxCreationTime() == VersionConstraint.noCreationTimeLimit) {
+            return size();
         } else {
-            return getOffset_linear(vc, validityVerifier);
+            int     low;
+            int     high;
+            long    maxCreationTime;
+            
+            maxCreationTime = vc.getMaxCreationTime();
+            low = 0;
+            high = size();
+            while (low < high) {
+                int mid;
+                
+                mid = (low + high) >>> 1;
+                if (getStorageTime(mid) <= maxCreationTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
     }
     
-    private int getOffset_linear(VersionConstraint vc, ValidityVerifier validityVerifier) {
+    /**
+     * Linear search of (at most) the first limit entries of this list. Makes no assumption regarding version order.
+     */
+    int getOffset_linear(VersionConstraint vc, ValidityVerifier validityVerifier, int limit) {
         long    bestMatchVersion;
         int     bestMatchIndex;
 
@@ -130,27 +259,15 @@ abstract class OffsetListBase implements OffsetList {
         if (debug) {
             Log.warning("getOffset: ", vc);
         }
-        // FUTURE - replace linear search
-        for (int i = 0; i < size(); i++) {
+        for (int i = 0; i < limit; i++) {
             long    curVersion;
             
             // StorageTimes are increasing. Exit this loop if we have exceeded the maxStorageTime.
-            if (debug) {
-                if (supportsStorageTime) {
-                    Log.warning("vc.getMaxStorageTime()\t"+ vc.getMaxCreationTime() 
-                        +" getStorageTime(i) "+ getStorageTime(i));
-                }
-            }
             if (supportsStorageTime 
                     && vc.getMaxCreationTime() != VersionConstraint.noCreationTimeLimit
                     && vc.getMaxCreationTime() < getStorageTime(i)) {
-                if (debug) {
-                    Log.warning("vc.getMaxStorageTime() < getStorageTime(i)\t", 
-                        vc.getMaxCreationTime() +" < "+ getStorageTime(i));
-                }
                 break;
             }
-            
             if (debug) {
                 Log.warning(i +"\t"+ vc +"\t"+ getVersion(i));
                 displayEntry(i);
@@ -160,7 +277,7 @@ abstract class OffsetListBase implements OffsetList {
             if (vc.matches(curVersion)) {
                 if (vc.getMode() == VersionConstraint.Mode.LEAST) {
                     if (curVersion <= bestMatchVersion) { 
-                    	if (validityVerifier == null || validityVerifier.isValid(getOffset(i) + DHTKey.BYTES_PER_KEY)) {
+                    	if (isValid(i, validityVerifier)) {
 	                        bestMatchIndex = i;
 	                        bestMatchVersion = curVersion;
 	                        if (debug) {
@@ -170,7 +287,7 @@ abstract class OffsetListBase implements OffsetList {
                     }
                 } else {
                     if (curVersion >= bestMatchVersion) {                    
-                    	if (validityVerifier == null || validityVerifier.isValid(getOffset(i) + DHTKey.BYTES_PER_KEY)) {
+                    	if (isValid(i, validityVerifier)) {
 	                        bestMatchIndex = i;
 	                        bestMatchVersion = curVersion;
 	                        if (debug) {
@@ -0,0 +1,164 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.ms.silverking.cloud.dht.VersionConstraint;
+import com.ms.silverking.time.SimpleStopwatch;
+import com.ms.silverking.time.Stopwatch;
+
+/**
+ * Measures OffsetList.getOffset() as a function of list size for RAMOffsetList and BufferOffsetList,
+ * and compares it with a linear search. Results of the two searches are verified to be identical.
+ */
+public class OffsetListBenchmark {
+	private final int	listSize;
+	private final boolean	supportsStorageTime;
+	private final int	numLookups;
+	private final RAMOffsetList	ramList;
+	private final BufferOffsetList	bufferList;
+	private final VersionConstraint[]	constraints;
+
+	private static final long	versionStep = 2;
+	private static final long	storageTimeBase = 1000;
+	private static final long	storageTimeStep = 5;
+	private static final int	numConstraints = 1024;
+	private static final int	warmupIterations = 2;
+
+	public OffsetListBenchmark(int listSize, boolean supportsStorageTime, int numLookups) {
+		Random	random;
+		ByteBuffer	buf;
+
+		this.listSize = listSize;
+		this.supportsStorageTime = supportsStorageTime;
+		this.numLookups = numLookups;
+		random = new Random(listSize);
+		ramList = new RAMOffsetList(1, supportsStorageTime);
+		for (int i = 0; i < listSize; i++) {
+			long	version;
+
+			if (supportsStorageTime) {
+				// revisions may store any version
+				version = (long)random.nextInt(listSize) * versionStep;
+			} else {
+				// occasionally repeat a version as happens when a previous store was incomplete
+				version = (long)(i - (random.nextInt(8) == 0 && i > 0 ? 1 : 0)) * versionStep;
+			}
+			ramList.putOffset(version, i, storageTimeBase + (long)i * storageTimeStep);
+		}
+		buf = ByteBuffer.allocate(ramList.persistedSizeBytes()).order(ByteOrder.nativeOrder());
+		ramList.persist(buf);
+		bufferList = new BufferOffsetList(buf, supportsStorageTime);
+		constraints = createConstraints(random);
+	}
+
+	private VersionConstraint[] createConstraints(Random random) {
+		VersionConstraint[]	_constraints;
+		long	maxVersion;
+
+		maxVersion = (long)listSize * versionStep;
+		_constraints = new VersionConstraint[numConstraints];
+		for (int i = 0; i < _constraints.length; i++) {
+			long	v;
+			long	maxCreationTime;
+
+			v = (long)random.nextInt((int)maxVersion + 1);
+			if (supportsStorageTime && random.nextBoolean()) {
+				maxCreationTime = storageTimeBase + (long)random.nextInt(listSize) * storageTimeStep;
+			} else {
+				maxCreationTime = VersionConstraint.noCreationTimeLimit;
+			}
+			switch (i % 4) {
+			case 0:
+				_constraints[i] = new VersionConstraint(v, v, VersionConstraint.Mode.GREATEST, maxCreationTime);
+				break;
+			case 1:
+				_constraints[i] = new VersionConstraint(v, Long.MAX_VALUE, VersionConstraint.Mode.LEAST, maxCreationTime);
+				break;
+			case 2:
+				_constraints[i] = new VersionConstraint(Long.MIN_VALUE, v, VersionConstraint.Mode.GREATEST, maxCreationTime);
+				break;
+			case 3:
+				_constraints[i] = new VersionConstraint(v, v + maxVersion / 10, VersionConstraint.Mode.LEAST, maxCreationTime);
+				break;
+			default: throw new RuntimeException("panic");
+			}
+		}
+		return _constraints;
+	}
+
+	private int verify(OffsetListBase list) {
+		int	mismatches;
+
+		mismatches = 0;
+		for (VersionConstraint vc : constraints) {
+			if (list.getOffset(vc, null) != list.getOffset_linear(vc, null, list.size())) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	private double measure(OffsetListBase list, boolean linear) {
+		Stopwatch	sw;
+		long	sum;
+
+		sum = 0;
+		sw = new SimpleStopwatch();
+		for (int i = 0; i < numLookups; i++) {
+			VersionConstraint	vc;
+
+			vc = constraints[i % constraints.length];
+			if (linear) {
+				sum += list.getOffset_linear(vc, null, list.size());
+			} else {
+				sum += list.getOffset(vc, null);
+			}
+		}
+		sw.stop();
+		if (sum == Long.MIN_VALUE) {
+			System.out.println(sum); // prevent elimination of the lookups
+		}
+		return sw.getElapsedSeconds() * 1e9 / (double)numLookups;
+	}
+
+	public void runBenchmark() {
+		for (OffsetListBase list : new OffsetListBase[]{ramList, bufferList}) {
+			double	linearNanos;
+			double	nanos;
+			int		mismatches;
+
+			mismatches = verify(list);
+			linearNanos = 0.0;
+			nanos = 0.0;
+			for (int i = 0; i < warmupIterations + 1; i++) {
+				linearNanos = measure(list, true);
+				nanos = measure(list, false);
+			}
+			System.out.printf("%s  size %d  storageTime %s  linear ns/op %f  getOffset ns/op %f  mismatches %d\n",
+							list.getClass().getSimpleName(), listSize, supportsStorageTime, linearNanos, nanos, mismatches);
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			if (args.length != 2) {
+				System.out.println("args: <listSizes> <lookups>");
+				System.out.println("e.g.: 10,100,1000,10000 1000000");
+				return;
+			} else {
+				int	numLookups;
+
+				numLookups = Integer.parseInt(args[1]);
+				for (String listSize : args[0].split(",")) {
+					for (boolean supportsStorageTime : new boolean[]{false, true}) {
+						new OffsetListBenchmark(Integer.parseInt(listSize), supportsStorageTime, numLookups).runBenchmark();
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
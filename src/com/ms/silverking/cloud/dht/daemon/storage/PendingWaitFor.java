@@ -2,20 +2,20 @@ package com.ms.silverking.cloud.dht.daemon.storage;
 
 import com.ms.silverking.cloud.dht.RetrievalOptions;
 import com.ms.silverking.cloud.dht.common.DHTKey;
-import com.ms.silverking.cloud.dht.common.DHTKeyComparator;
 import com.ms.silverking.id.UUIDBase;
 
-class PendingWaitFor implements Comparable<PendingWaitFor> {
+class PendingWaitFor {
     private final DHTKey            key;
     private final RetrievalOptions  options;
     private final UUIDBase          opUUID;
+    private final long              absDeadlineMillis; // deadline of the corresponding active retrieval
+    private volatile boolean        removed; // set once removed from a PendingWaitForIndex
     
-    // No timeout here as this is cleaned up when the corresponding active retrieval is no longer found
-    
-    PendingWaitFor(DHTKey key, RetrievalOptions options, UUIDBase opUUID) {
+    PendingWaitFor(DHTKey key, RetrievalOptions options, UUIDBase opUUID, long absDeadlineMillis) {
         this.key = key;
         this.options = options;
         this.opUUID = opUUID;
+        this.absDeadlineMillis = absDeadlineMillis;
     }
     
     public DHTKey getKey() {
@@ -30,6 +30,18 @@ class PendingWaitFor implements Comparable<PendingWaitFor> {
         return opUUID;
     }
     
+    public long getAbsDeadlineMillis() {
+        return absDeadlineMillis;
+    }
+    
+    void markRemoved() {
+        removed = true;
+    }
+    
+    boolean isRemoved() {
+        return removed;
+    }
+    
     @Override
     public String toString() {
         return key +":"+ options +":"+ opUUID;
@@ -47,16 +59,4 @@ class PendingWaitFor implements Comparable<PendingWaitFor> {
         oWaitFor = (PendingWaitFor)other;
         return key.equals(oWaitFor.key) && options.equals(oWaitFor.options) && opUUID.equals(oWaitFor.opUUID);
     }
-
-    @Override
-    public int compareTo(PendingWaitFor o) {
-        int val;
-        
-        val = DHTKeyComparator.dhtKeyComparator.compare(key, o.key);
-        if (val == 0) {
-            return opUUID.compareTo(o.opUUID);
-        } else {
-            return val;
-        }
-    }
 }
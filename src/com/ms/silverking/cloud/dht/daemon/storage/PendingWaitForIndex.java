@@ -0,0 +1,384 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+
+/**
+ * The pending wait fors of a NamespaceStore. Pending wait fors are hashed by the (msl, lsl) of their
+ * keys into striped open-addressed tables. Each key maps to a copy-on-write array of its pending wait
+ * fors so that triggering may iterate over the array without holding any lock.
+ *
+ * Puts call mayHaveWaiters() while holding a write partition lock. This check reads the total count of
+ * pending wait fors and a table of counters indexed by key hash; it neither locks nor allocates. The
+ * counter table is allocated when the first wait for is added, so namespaces that never see a wait for
+ * do not pay for it.
+ *
+ * Pending wait fors are also queued in deadline order so that expired entries can be removed without
+ * scanning the index. Entries removed from the index before they expire are marked as removed; they are
+ * discarded from the queue when they reach its head, or when they make up most of the queue.
+ */
+final class PendingWaitForIndex {
+    private final Stripe[]  stripes;
+    private final AtomicInteger size;
+    private volatile AtomicIntegerArray keyHashCounts;
+    private final PriorityQueue<PendingWaitFor> expirationQueue;
+    private int removedInQueue; // protected by expirationQueue
+
+    private static final int    numStripes = 16;
+    private static final int    stripeShift = 26; // use hash bits above those used for slots
+    private static final int    initialStripeCapacity = 16;
+    private static final int    keyHashCountsSize = 1 << 14;
+    private static final int    minQueueCompactionSize = 1024;
+
+    private static final Comparator<PendingWaitFor> deadlineComparator
+            = Comparator.comparingLong(PendingWaitFor::getAbsDeadlineMillis);
+
+    PendingWaitForIndex() {
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        size = new AtomicInteger();
+        expirationQueue = new PriorityQueue<>(deadlineComparator);
+    }
+
+    static int hash(long msl, long lsl) {
+        long    h;
+
+        h = (msl ^ Long.rotateLeft(lsl, 32)) * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private Stripe getStripe(int hash) {
+        return stripes[(hash >>> stripeShift) & (numStripes - 1)];
+    }
+
+    private AtomicIntegerArray getKeyHashCounts() {
+        AtomicIntegerArray  _keyHashCounts;
+
+        _keyHashCounts = keyHashCounts;
+        if (_keyHashCounts == null) {
+            synchronized (this) {
+                _keyHashCounts = keyHashCounts;
+                if (_keyHashCounts == null) {
+                    _keyHashCounts = new AtomicIntegerArray(keyHashCountsSize);
+                    keyHashCounts = _keyHashCounts;
+                }
+            }
+        }
+        return _keyHashCounts;
+    }
+
+    /**
+     * @return the number of pending wait fors
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Cheap check that may be made while holding a write lock.
+     * @param key
+     * @return false if the key has no pending wait fors; true if it may have pending wait fors
+     */
+    boolean mayHaveWaiters(DHTKey key) {
+        AtomicIntegerArray  _keyHashCounts;
+
+        if (size.get() == 0) {
+            return false;
+        } else {
+            _keyHashCounts = keyHashCounts;
+            return _keyHashCounts != null
+                    && _keyHashCounts.get(hash(key.getMSL(), key.getLSL()) & (keyHashCountsSize - 1)) != 0;
+        }
+    }
+
+    /**
+     * Add the given pending wait for unless an equal pending wait for is already present.
+     * @param pendingWaitFor
+     * @return true if the pending wait for was added
+     */
+    boolean add(PendingWaitFor pendingWaitFor) {
+        AtomicIntegerArray  _keyHashCounts;
+        DHTKey  key;
+        int     hash;
+
+        key = pendingWaitFor.getKey();
+        hash = hash(key.getMSL(), key.getLSL());
+        // counts are incremented before the entry is visible so that mayHaveWaiters() never misses it
+        _keyHashCounts = getKeyHashCounts();
+        _keyHashCounts.incrementAndGet(hash & (keyHashCountsSize - 1));
+        size.incrementAndGet();
+        if (getStripe(hash).add(key.getMSL(), key.getLSL(), hash, pendingWaitFor)) {
+            synchronized (expirationQueue) {
+                expirationQueue.add(pendingWaitFor);
+            }
+            return true;
+        } else {
+            _keyHashCounts.decrementAndGet(hash & (keyHashCountsSize - 1));
+            size.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the pending wait fors for the given key, or null if there are none. The returned array
+     * must not be modified.
+     */
+    PendingWaitFor[] get(DHTKey key) {
+        int hash;
+
+        hash = hash(key.getMSL(), key.getLSL());
+        return getStripe(hash).get(key.getMSL(), key.getLSL(), hash);
+    }
+
+    /**
+     * Remove the given pending wait for. When multiple threads attempt to remove the same pending wait
+     * for, exactly one succeeds.
+     * @param pendingWaitFor
+     * @return true if this call removed the pending wait for
+     */
+    boolean remove(PendingWaitFor pendingWaitFor) {
+        if (removeFromTable(pendingWaitFor)) {
+            synchronized (expirationQueue) {
+                removedInQueue++;
+                if (removedInQueue >= minQueueCompactionSize && removedInQueue * 2 > expirationQueue.size()) {
+                    expirationQueue.removeIf(PendingWaitFor::isRemoved);
+                    removedInQueue = 0;
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean removeFromTable(PendingWaitFor pendingWaitFor) {
+        DHTKey  key;
+        int     hash;
+
+        key = pendingWaitFor.getKey();
+        hash = hash(key.getMSL(), key.getLSL());
+        if (getStripe(hash).remove(key.getMSL(), key.getLSL(), hash, pendingWaitFor)) {
+            keyHashCounts.decrementAndGet(hash & (keyHashCountsSize - 1));
+            size.decrementAndGet();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Remove all pending wait fors that match the given predicate. Visits every entry. The predicate is
+     * evaluated without holding any lock.
+     * @param predicate
+     * @return the number of pending wait fors removed
+     */
+    int removeIf(Predicate<PendingWaitFor> predicate) {
+        int removed;
+
+        removed = 0;
+        for (Stripe stripe : stripes) {
+            for (PendingWaitFor pendingWaitFor : stripe.getAll()) {
+                if (predicate.test(pendingWaitFor) && remove(pendingWaitFor)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all pending wait fors with deadlines before the given time.
+     * @param curTimeMillis
+     * @return the number of pending wait fors removed
+     */
+    int removeExpired(long curTimeMillis) {
+        int removed;
+
+        removed = 0;
+        while (true) {
+            PendingWaitFor  pendingWaitFor;
+
+            synchronized (expirationQueue) {
+                pendingWaitFor = expirationQueue.peek();
+                if (pendingWaitFor == null || pendingWaitFor.getAbsDeadlineMillis() >= curTimeMillis) {
+                    break;
+                }
+                expirationQueue.poll();
+                if (pendingWaitFor.isRemoved()) {
+                    removedInQueue--;
+                    continue;
+                }
+            }
+            if (removeFromTable(pendingWaitFor)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static final class Stripe {
+        private long[]  msls;
+        private long[]  lsls;
+        private PendingWaitFor[][]  waitFors;
+        private int     size;
+
+        Stripe() {
+            allocate(initialStripeCapacity);
+        }
+
+        private void allocate(int capacity) {
+            msls = new long[capacity];
+            lsls = new long[capacity];
+            waitFors = new PendingWaitFor[capacity][];
+        }
+
+        private int find(long msl, long lsl, int hash) {
+            int mask;
+            int index;
+
+            mask = waitFors.length - 1;
+            index = hash & mask;
+            while (waitFors[index] != null && (msls[index] != msl || lsls[index] != lsl)) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        synchronized PendingWaitFor[] get(long msl, long lsl, int hash) {
+            return waitFors[find(msl, lsl, hash)];
+        }
+
+        synchronized List<PendingWaitFor> getAll() {
+            List<PendingWaitFor>    all;
+
+            all = new ArrayList<>();
+            for (PendingWaitFor[] keyWaitFors : waitFors) {
+                if (keyWaitFors != null) {
+                    all.addAll(Arrays.asList(keyWaitFors));
+                }
+            }
+            return all;
+        }
+
+        synchronized boolean add(long msl, long lsl, int hash, PendingWaitFor pendingWaitFor) {
+            PendingWaitFor[]    existing;
+            int index;
+
+            index = find(msl, lsl, hash);
+            existing = waitFors[index];
+            if (existing == null) {
+                if ((size + 1) * 2 > waitFors.length) {
+                    grow();
+                    index = find(msl, lsl, hash);
+                }
+                msls[index] = msl;
+                lsls[index] = lsl;
+                waitFors[index] = new PendingWaitFor[]{pendingWaitFor};
+                size++;
+            } else {
+                PendingWaitFor[]    _waitFors;
+
+                for (PendingWaitFor waitFor : existing) {
+                    if (waitFor.equals(pendingWaitFor)) {
+                        return false;
+                    }
+                }
+                // copy on write so that readers may use the array outside of the lock
+                _waitFors = Arrays.copyOf(existing, existing.length + 1);
+                _waitFors[existing.length] = pendingWaitFor;
+                waitFors[index] = _waitFors;
+            }
+            return true;
+        }
+
+        synchronized boolean remove(long msl, long lsl, int hash, PendingWaitFor pendingWaitFor) {
+            PendingWaitFor[]    existing;
+            int index;
+            int position;
+
+            index = find(msl, lsl, hash);
+            existing = waitFors[index];
+            if (existing == null) {
+                return false;
+            }
+            position = -1;
+            for (int i = 0; i < existing.length; i++) {
+                if (existing[i] == pendingWaitFor) {
+                    position = i;
+                    break;
+                }
+            }
+            if (position < 0) {
+                return false;
+            }
+            pendingWaitFor.markRemoved();
+            if (existing.length == 1) {
+                delete(index);
+            } else {
+                PendingWaitFor[]    _waitFors;
+
+                _waitFors = new PendingWaitFor[existing.length - 1];
+                System.arraycopy(existing, 0, _waitFors, 0, position);
+                System.arraycopy(existing, position + 1, _waitFors, position, existing.length - position - 1);
+                waitFors[index] = _waitFors;
+            }
+            return true;
+        }
+
+        private void delete(int index) {
+            int mask;
+            int next;
+
+            // backward shift deletion
+            mask = waitFors.length - 1;
+            next = (index + 1) & mask;
+            while (waitFors[next] != null) {
+                int home;
+
+                home = hash(msls[next], lsls[next]) & mask;
+                // move next into the hole at index if its home does not lie cyclically in (index, next]
+                if (((next - home) & mask) >= ((next - index) & mask)) {
+                    msls[index] = msls[next];
+                    lsls[index] = lsls[next];
+                    waitFors[index] = waitFors[next];
+                    index = next;
+                }
+                next = (next + 1) & mask;
+            }
+            waitFors[index] = null;
+            size--;
+        }
+
+        private void grow() {
+            long[]  oldMSLs;
+            long[]  oldLSLs;
+            PendingWaitFor[][]  oldWaitFors;
+
+            oldMSLs = msls;
+            oldLSLs = lsls;
+            oldWaitFors = waitFors;
+            allocate(oldWaitFors.length * 2);
+            for (int i = 0; i < oldWaitFors.length; i++) {
+                if (oldWaitFors[i] != null) {
+                    int index;
+
+                    index = find(oldMSLs[i], oldLSLs[i], hash(oldMSLs[i], oldLSLs[i]));
+                    msls[index] = oldMSLs[i];
+                    lsls[index] = oldLSLs[i];
+                    waitFors[index] = oldWaitFors[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.DHTKeyComparator;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.id.UUIDBase;
+
+/**
+ * Compares the per put cost of checking for pending wait fors with a PendingWaitForIndex against the
+ * ConcurrentSkipListMap that it replaced, with numWaitFors outstanding wait fors on distinct keys.
+ * Put keys are drawn so that hitFraction of them have a pending wait for. Also compares removing the
+ * wait fors that expire in one cleanup interval against a full scan of the skip list map.
+ *
+ * Usage: PendingWaitForIndexBenchmark [numWaitFors] [numPuts] [hitFraction]
+ */
+public class PendingWaitForIndexBenchmark {
+    private final int       numWaitFors;
+    private final int       numPuts;
+    private final DHTKey[]  waitForKeys;
+    private final DHTKey[]  putKeys;
+
+    private static final int    defaultNumWaitFors = 50000;
+    private static final int    defaultNumPuts = 5000000;
+    private static final double defaultHitFraction = 0.001;
+    private static final int    deadlineSpanMillis = 300 * 1000;
+    private static final int    cleanupIntervalMillis = 2 * 1000; // as MessageModule.Cleaner
+    private static final int    iterations = 5;
+    private static final int    skipListPutLimit = 2000; // size() is O(n) so only a prefix of the puts is checked
+
+    public PendingWaitForIndexBenchmark(int numWaitFors, int numPuts, double hitFraction) {
+        Random  random;
+
+        this.numWaitFors = numWaitFors;
+        this.numPuts = numPuts;
+        random = new Random(0);
+        waitForKeys = new DHTKey[numWaitFors];
+        for (int i = 0; i < numWaitFors; i++) {
+            waitForKeys[i] = new SimpleKey(random.nextLong(), random.nextLong());
+        }
+        putKeys = new DHTKey[numPuts];
+        for (int i = 0; i < numPuts; i++) {
+            if (random.nextDouble() < hitFraction) {
+                DHTKey  key;
+
+                key = waitForKeys[random.nextInt(numWaitFors)];
+                putKeys[i] = new SimpleKey(key.getMSL(), key.getLSL());
+            } else {
+                putKeys[i] = new SimpleKey(random.nextLong(), random.nextLong());
+            }
+        }
+    }
+
+    private PendingWaitFor[] createWaitFors() {
+        PendingWaitFor[]    waitFors;
+        Random  random;
+
+        random = new Random(1);
+        waitFors = new PendingWaitFor[numWaitFors];
+        for (int i = 0; i < numWaitFors; i++) {
+            waitFors[i] = new PendingWaitFor(waitForKeys[i], null, new UUIDBase(), random.nextInt(deadlineSpanMillis));
+        }
+        return waitFors;
+    }
+
+    public void runIndex() {
+        PendingWaitForIndex index;
+        long    t0;
+        double  checkSeconds;
+        double  expireSeconds;
+        int     candidates;
+        int     expired;
+
+        index = new PendingWaitForIndex();
+        for (PendingWaitFor waitFor : createWaitFors()) {
+            index.add(waitFor);
+        }
+        checkSeconds = Double.MAX_VALUE;
+        candidates = 0;
+        for (int i = 0; i < iterations; i++) {
+            t0 = System.nanoTime();
+            candidates = 0;
+            for (DHTKey key : putKeys) {
+                if (index.mayHaveWaiters(key) && index.get(key) != null) {
+                    candidates++;
+                }
+            }
+            checkSeconds = Math.min(checkSeconds, (double)(System.nanoTime() - t0) / 1e9);
+        }
+        t0 = System.nanoTime();
+        expired = index.removeExpired(cleanupIntervalMillis);
+        expireSeconds = (double)(System.nanoTime() - t0) / 1e9;
+        System.out.printf("index     waitFors %d  check %.1f ns/put  (%d with waiters)  expire %d in %.3f ms\n",
+                          numWaitFors, checkSeconds * 1e9 / numPuts, candidates, expired, expireSeconds * 1e3);
+    }
+
+    public void runSkipList() {
+        ConcurrentMap<DHTKey, Set<PendingWaitFor>>  pendingWaitFors;
+        int     checkPuts;
+        long    t0;
+        double  checkSeconds;
+        double  expireSeconds;
+        int     candidates;
+        int     expired;
+
+        pendingWaitFors = new ConcurrentSkipListMap<>(DHTKeyComparator.dhtKeyComparator);
+        for (PendingWaitFor waitFor : createWaitFors()) {
+            Set<PendingWaitFor> set;
+
+            set = new ConcurrentSkipListSet<>((a, b) -> a.getOpUUID().compareTo(b.getOpUUID()));
+            set.add(waitFor);
+            pendingWaitFors.put(waitFor.getKey(), set);
+        }
+        checkPuts = Math.min(numPuts, skipListPutLimit);
+        checkSeconds = Double.MAX_VALUE;
+        candidates = 0;
+        for (int i = 0; i < iterations; i++) {
+            t0 = System.nanoTime();
+            candidates = 0;
+            for (int j = 0; j < checkPuts; j++) {
+                DHTKey  key;
+
+                key = putKeys[j];
+                // as the previous checkPendingWaitFors(); size() is O(n) for a ConcurrentSkipListMap
+                if (pendingWaitFors.size() > 0 && pendingWaitFors.get(key) != null) {
+                    candidates++;
+                }
+            }
+            checkSeconds = Math.min(checkSeconds, (double)(System.nanoTime() - t0) / 1e9);
+        }
+        t0 = System.nanoTime();
+        expired = 0;
+        // as the previous cleanupPendingWaitFors(), which visits every entry
+        for (Map.Entry<DHTKey, Set<PendingWaitFor>> entry : pendingWaitFors.entrySet()) {
+            for (PendingWaitFor waitFor : entry.getValue()) {
+                if (waitFor.getAbsDeadlineMillis() < cleanupIntervalMillis) {
+                    entry.getValue().remove(waitFor);
+                    expired++;
+                }
+            }
+            if (entry.getValue().size() == 0) {
+                pendingWaitFors.remove(entry.getKey());
+            }
+        }
+        expireSeconds = (double)(System.nanoTime() - t0) / 1e9;
+        System.out.printf("skiplist  waitFors %d  check %.1f ns/put  (%d of %d with waiters)  expire %d in %.3f ms\n",
+                          numWaitFors, checkSeconds * 1e9 / checkPuts, candidates, checkPuts, expired,
+                          expireSeconds * 1e3);
+    }
+
+    public static void main(String[] args) {
+        try {
+            PendingWaitForIndexBenchmark    benchmark;
+            int     numWaitFors;
+            int     numPuts;
+            double  hitFraction;
+
+            numWaitFors = args.length > 0 ? Integer.parseInt(args[0]) : defaultNumWaitFors;
+            numPuts = args.length > 1 ? Integer.parseInt(args[1]) : defaultNumPuts;
+            hitFraction = args.length > 2 ? Double.parseDouble(args[2]) : defaultHitFraction;
+            benchmark = new PendingWaitForIndexBenchmark(numWaitFors, numPuts, hitFraction);
+            for (int i = 0; i < 2; i++) {
+                benchmark.runIndex();
+                benchmark.runSkipList();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
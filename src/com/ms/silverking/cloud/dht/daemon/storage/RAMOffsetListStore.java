@@ -6,6 +6,7 @@ import java.util.List;
 
 import com.ms.silverking.cloud.dht.NamespaceOptions;
 import com.ms.silverking.cloud.dht.RevisionMode;
+import com.ms.silverking.collection.Triple;
 import com.ms.silverking.numeric.NumConversion;
 
 /**
@@ -51,13 +52,39 @@ class RAMOffsetListStore implements OffsetListStore {
     	return lists.size();
     }
     
+    /**
+     * Copy all lists from the given store into this store. As lists are appended,
+     * this store must be empty in order for list indices to be preserved.
+     * @param src
+     */
+    void addAll(BufferOffsetListStore src) {
+        int numLists;
+        
+        if (lists.size() != 0) {
+            throw new RuntimeException("RAMOffsetListStore not empty");
+        }
+        numLists = src.getNumLists();
+        for (int i = 1; i <= numLists; i++) {
+            OffsetList  list;
+            
+            list = newOffsetList();
+            for (Triple<Integer,Long,Long> entry : src.getOffsetList(i).offsetVersionAndStorageTimeIterable()) {
+                list.putOffset(entry.getV2(), entry.getV1(), entry.getV3());
+            }
+        }
+    }
+    
     private int headerSizeBytes() {
         // number of lists + the size of each list, stored as ints
         return (1 + lists.size()) * NumConversion.BYTES_PER_INT;
     }
     
+    /**
+     * @return the persisted size of this store
+     * @throws RuntimeException if the persisted size exceeds the limit of the int list offsets
+     */
     public int persistedSizeBytes() {
-        int size;
+        long    size;
         
         // make room for the size integer,
         // and an offset integer for each list
@@ -65,7 +92,10 @@ class RAMOffsetListStore implements OffsetListStore {
         for (OffsetList list : lists) {
             size += ((RAMOffsetList)list).persistedSizeBytes();
         }
-        return size;
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Offset lists too large to persist: "+ size);
+        }
+        return (int)size;
     }
     
     /*
@@ -70,8 +70,6 @@ class StorageFormat {
         Log.fine("offset: ", offset);
         //System.out.println(index +"\t"+ dataSegmentSize);
         if (nextFree.get() < writeLimit) {
-            int         dataLength;
-                        
             // write metadata
             // FUTURE - think about reducing redundancy in stored/compressed/userdata lengths
             
@@ -102,8 +100,7 @@ class StorageFormat {
                 System.out.printf("value %s remaining %d\n", value, value.remaining());
             }
             
-            dataLength = value.remaining();
-            buf.put(value.array(), value.position(), dataLength);
+            buf.put(value.duplicate()); // value may be a direct buffer
             
             // FIXME - enforce userdata length limit
             buf.put(userData, 0, userData.length);
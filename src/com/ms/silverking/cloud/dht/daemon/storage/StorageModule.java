@@ -7,11 +7,16 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -51,6 +56,7 @@ import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.net.IPAndPort;
 import com.ms.silverking.numeric.NumConversion;
+import com.ms.silverking.thread.ThreadUtil;
 import com.ms.silverking.thread.lwt.BaseWorker;
 import com.ms.silverking.thread.lwt.LWTPool;
 import com.ms.silverking.thread.lwt.LWTPoolParameters;
@@ -119,6 +125,8 @@ public class StorageModule implements LinkCreationListener {
     private static final Set<Long>			dynamicNamespaces = new HashSet<>();
     
     private static final RetrievalImplementation	retrievalImplementation;
+    private static final int	recoveryThreads;
+    private static final int	indexCheckpointIntervalMillis;
     
     static {
     	reapPeriodMillis = PropertiesHelper.systemHelper.getInt(DHTConstants.reapIntervalProperty, defaultReapPeriodSeconds) * 1000;
@@ -128,6 +136,14 @@ public class StorageModule implements LinkCreationListener {
     	retrievalImplementation = RetrievalImplementation.valueOf(
     			PropertiesHelper.systemHelper.getString(DHTConstants.retrievalImplementationProperty, DHTConstants.defaultRetrievalImplementation.toString()));
     	Log.warningf("retrievalImplementation: %s", retrievalImplementation);
+    	recoveryThreads = PropertiesHelper.systemHelper.getInt(DHTConstants.recoveryThreadsProperty, DHTConstants.defaultRecoveryThreads);
+    	if (recoveryThreads < 1) {
+    		throw new RuntimeException("Invalid recoveryThreads: "+ recoveryThreads);
+    	}
+    	Log.warningf("recoveryThreads: %d", recoveryThreads);
+    	indexCheckpointIntervalMillis = PropertiesHelper.systemHelper.getInt(DHTConstants.indexCheckpointIntervalSecondsProperty, 
+    																		DHTConstants.defaultIndexCheckpointIntervalSeconds) * 1000;
+    	Log.warningf("indexCheckpointIntervalMillis: %d", indexCheckpointIntervalMillis);
     }
     
     public StorageModule(NodeRingMaster2 ringMaster, String dhtName, Timer timer, ZooKeeperConfig zkConfig, NodeInfoZK nodeInfoZK) {
@@ -196,6 +212,10 @@ public class StorageModule implements LinkCreationListener {
         timer.scheduleAtFixedRate(new Cleaner(), cleanupPeriodMillis, cleanupPeriodMillis);
         // For now, reap must come from external
         //timer.scheduleAtFixedRate(new Reaper(), reapInitialDelayMillis, reapPeriodMillis);        
+        if (indexCheckpointIntervalMillis > 0) {
+        	timer.scheduleAtFixedRate(new IndexCheckpointer(), indexCheckpointIntervalMillis, indexCheckpointIntervalMillis);
+        	Runtime.getRuntime().addShutdownHook(new IndexCheckpointShutdownHook());
+        }
     }
     
     public void initialReap(boolean leaveTrash) {
@@ -232,36 +252,89 @@ public class StorageModule implements LinkCreationListener {
     public void recoverExistingNamespaces() {
         try {
             File[]  files;
+            Stopwatch	sw;
             
+            sw = new SimpleStopwatch();
             files = baseDir.listFiles();
             if (files != null) {
                 List<File>  sortedFiles;
                 
                 sortedFiles = sortNSDirsForRecovery(files);
-                for (File nsDir : sortedFiles) {
-                    recoverExistingNamespace(nsDir);
-                }
+                Log.warningf("Recovering %d namespaces. recoveryThreads %d", sortedFiles.size(), recoveryThreads);
+                recoverExistingNamespaces(sortedFiles);
                 startLinkWatches();
             }
+            sw.stop();
+            Log.warning("Namespace recovery complete: "+ sw);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
     }
     
+    /**
+     * Recover namespaces in parallel. Namespaces are submitted in the order given by sortNSDirsForRecovery(),
+     * and the executor starts tasks in submission order, so a parent's recovery has always started
+     * before any child waits for it.
+     * @param sortedNSDirs
+     */
+    private void recoverExistingNamespaces(List<File> sortedNSDirs) {
+        ExecutorService	nsRecoveryExecutor;
+        ExecutorService	segmentRecoveryExecutor;
+        Map<File,Future<Void>>	nsRecoveries;
+        
+        nsRecoveryExecutor = Executors.newFixedThreadPool(recoveryThreads, 
+        								r -> ThreadUtil.newDaemonThread(r, "NamespaceRecovery"));
+        segmentRecoveryExecutor = Executors.newFixedThreadPool(recoveryThreads, 
+        								r -> ThreadUtil.newDaemonThread(r, "SegmentRecovery"));
+        nsRecoveries = new ConcurrentHashMap<>();
+        try {
+            for (File nsDir : sortedNSDirs) {
+            	nsRecoveries.put(nsDir, nsRecoveryExecutor.submit(() -> {
+            		recoverExistingNamespace(nsDir, nsRecoveries, segmentRecoveryExecutor);
+            		return null;
+            	}));
+            }
+            for (File nsDir : sortedNSDirs) {
+            	awaitNamespaceRecovery(nsRecoveries, nsDir);
+            }
+        } finally {
+        	nsRecoveryExecutor.shutdownNow();
+        	segmentRecoveryExecutor.shutdownNow();
+        }
+    }
+    
+    private void awaitNamespaceRecovery(Map<File,Future<Void>> nsRecoveries, File nsDir) {
+    	Future<Void>	nsRecovery;
+    	
+    	nsRecovery = nsRecoveries.get(nsDir);
+    	if (nsRecovery != null) {
+	    	try {
+	    		nsRecovery.get();
+	    	} catch (InterruptedException ie) {
+	    		throw new RuntimeException("Interrupted waiting for recovery: "+ nsDir, ie);
+	    	} catch (ExecutionException ee) {
+	    		throw new RuntimeException("Recovery failed: "+ nsDir, ee.getCause());
+	    	}
+    	}
+    }
+    
     private void startLinkWatches() {
     	for (NamespaceStore nsStore: namespaces.values()) {
             nsStore.startWatches(zk, nsLinkBasePath, this);                	
     	}
     }
 
-    private void recoverExistingNamespace(File nsDir) throws IOException {
+    private void recoverExistingNamespace(File nsDir, Map<File,Future<Void>> nsRecoveries, 
+    									  ExecutorService segmentRecoveryExecutor) throws IOException {
         try {
             long    ns;
             NamespaceProperties nsProperties;
             NamespaceStore  parent;
             NamespaceStore	nsStore;
+            Stopwatch	sw;
                 
             Log.warning("\t\tRecovering: "+ nsDir.getName());
+            sw = new SimpleStopwatch();
             ns = NumConversion.parseHexStringAsUnsignedLong(nsDir.getName());
             nsProperties = NamespacePropertiesIO.read(nsDir);
             nsMetaStore.setNamespaceProperties(ns, nsProperties);
@@ -269,6 +342,7 @@ public class StorageModule implements LinkCreationListener {
                 long    parentContext;
                 
                 parentContext = new SimpleNamespaceCreator().createNamespace(nsProperties.getParent()).contextAsLong();
+                awaitNamespaceRecovery(nsRecoveries, new File(baseDir, Long.toHexString(parentContext)));
                 parent = namespaces.get(parentContext);
                 if (parent == null) {
                     throw new RuntimeException("Unexpected parent not found: "+ parentContext);
@@ -277,10 +351,11 @@ public class StorageModule implements LinkCreationListener {
                 parent = null;
             }
             nsStore = NamespaceStore.recoverExisting(ns, nsDir, parent, null, mgBase, ringMaster, 
-                    activeRetrievals, zk, nsLinkBasePath, this);
+                    activeRetrievals, zk, nsLinkBasePath, this, segmentRecoveryExecutor);
             namespaces.put(ns, nsStore);
             nsStore.startWatches(zk, nsLinkBasePath, this);            
-            Log.warning("\t\tDone recovering: "+ nsDir.getName());
+            sw.stop();
+            Log.warning("\t\tDone recovering: "+ nsDir.getName() +"\t"+ sw.getElapsedSeconds());
         } catch (NumberFormatException nfe) {
             nfe.printStackTrace();
             Log.warning("Recovery ignoring unexpected nsDir: ", nsDir);
@@ -484,6 +559,20 @@ public class StorageModule implements LinkCreationListener {
         }
     }
     
+    /**
+     * Return keys stored locally for the given namespace in scan order. See NamespaceStore.scanKeys().
+     */
+    public List<DHTKey> scanKeys(long ns, long minCoordinate, long maxCoordinate, DHTKey afterKey, int maxKeys) {
+        NamespaceStore  nsStore;
+        
+        nsStore = getNamespaceStore(ns, NSCreationMode.DoNotCreate);
+        if (nsStore != null) {
+            return nsStore.scanKeys(minCoordinate, maxCoordinate, afterKey, maxKeys);
+        } else {
+            return ImmutableList.of();
+        }
+    }
+    
     public OpResult snapshot(long ns, long version) {
         NamespaceStore  nsStore;
         
@@ -511,6 +600,20 @@ public class StorageModule implements LinkCreationListener {
     	Log.warning("Reap complete: "+ sw);
     }
     
+    public void checkpointIndexes() {
+    	Stopwatch	sw;
+    	
+    	Log.warning("Index checkpoint");
+    	sw = new SimpleStopwatch();
+        for (NamespaceStore ns : namespaces.values()) {
+        	if (!ns.isDynamic()) {
+        		ns.checkpointIndex();
+        	}
+        }
+    	sw.stop();
+    	Log.warning("Index checkpoint complete: "+ sw);
+    }
+    
     /////////////////////////
     // synchronization code
     
@@ -703,6 +806,26 @@ public class StorageModule implements LinkCreationListener {
         }
     }
     
+    class IndexCheckpointer extends TimerTask {
+        IndexCheckpointer() {
+        }
+        
+        @Override
+        public void run() {
+            checkpointIndexes();
+        }
+    }
+    
+    class IndexCheckpointShutdownHook extends Thread {
+        IndexCheckpointShutdownHook() {
+        }
+        
+        @Override
+        public void run() {
+            checkpointIndexes();
+        }
+    }
+    
     class Cleaner extends TimerTask {
         Cleaner() {
         }
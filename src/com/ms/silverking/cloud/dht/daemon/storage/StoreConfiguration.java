@@ -37,9 +37,13 @@ class StoreConfiguration {
     
     static {
     	fileSegmentCacheCapacity = PropertiesHelper.systemHelper.getInt(DHTConstants.fileSegmentCacheCapacityProperty, DHTConstants.defaultFileSegmentCacheCapacity);
+    	offHeapIndexes = PropertiesHelper.systemHelper.getBoolean(DHTConstants.offHeapIndexesProperty, DHTConstants.defaultOffHeapIndexes);
     }
     
     public static final int fileSegmentCacheCapacity;
+    // store segment and namespace key indexes in direct buffers rather than on the heap;
+    // offset lists remain on the heap
+    public static final boolean offHeapIndexes;
     public static final int ramSegmentSizeBytes = 64 * 1024 * 1024;
     public static final int ramSegmentPKCSubTables = 4;
     public static final int ramSegmentPKCEntriesPerBucket = 4;
@@ -85,7 +85,7 @@ abstract class WritableSegmentBase extends AbstractSegment implements ReadableWr
             int dataSegmentSize, NamespaceOptions nsOptions) {
         super(dataBuf, new RAMOffsetListStore(nsOptions));
         this.segmentNumber = segmentNumber;
-        this.keyToOffset = new IntArrayCuckoo(initialCuckooConfig);
+        this.keyToOffset = new IntArrayCuckoo(initialCuckooConfig, StoreConfiguration.offHeapIndexes);
         nextFree = new AtomicInteger(SegmentFormat.headerSize);
         this.nsDir = nsDir;
         this.dataSegmentSize = dataSegmentSize;
@@ -103,6 +103,17 @@ abstract class WritableSegmentBase extends AbstractSegment implements ReadableWr
         return segmentNumber;
     }
     
+    boolean isEmpty() {
+        return nextFree.get() == SegmentFormat.headerSize;
+    }
+    
+    /**
+     * @return the offset at which the next entry will be written
+     */
+    int getNextFree() {
+        return nextFree.get();
+    }
+    
     public CuckooBase getPKC() {
         return keyToOffset;
     }
@@ -151,6 +162,12 @@ abstract class WritableSegmentBase extends AbstractSegment implements ReadableWr
         }
     }
     
+    // An off-heap old table is left to the garbage collector rather than freed, as readers
+    // of head segments may still hold a reference to it.
+    private void rehashAndAdd(DHTKey key, int value) {
+        keyToOffset = IntArrayCuckoo.rehashAndAdd((IntArrayCuckoo)keyToOffset, key, value);
+    }
+    
     public SegmentStorageResult _put(DHTKey key, int offset, long version, byte[] valueCreator, 
     								NamespaceOptions nsOptions) {
         OffsetList  offsetList;
@@ -176,7 +193,7 @@ abstract class WritableSegmentBase extends AbstractSegment implements ReadableWr
 	                }
 	            } catch (TableFullException tfe) {
 	                Log.warning("Segment pkc full. Creating new table");
-	                keyToOffset = IntArrayCuckoo.rehashAndAdd((IntArrayCuckoo)keyToOffset, key, offset);
+	                rehashAndAdd(key, offset);
 	            }
             } else {
                 long    creationTime;
@@ -196,7 +213,7 @@ abstract class WritableSegmentBase extends AbstractSegment implements ReadableWr
                 	keyToOffset.put(key, -((RAMOffsetList)offsetList).getIndex());
 	            } catch (TableFullException tfe) {
 	                Log.warning("Segment pkc full. Creating new table");
-	                keyToOffset = IntArrayCuckoo.rehashAndAdd((IntArrayCuckoo)keyToOffset, key, -((RAMOffsetList)offsetList).getIndex());
+	                rehashAndAdd(key, -((RAMOffsetList)offsetList).getIndex());
 	            }
             }
         } else {
@@ -263,7 +280,7 @@ abstract class WritableSegmentBase extends AbstractSegment implements ReadableWr
                         	keyToOffset.put(key, -((RAMOffsetList)offsetList).getIndex());
 	    	            } catch (TableFullException tfe) {
 	    	                Log.warning("Segment pkc full. Creating new table");
-	    	                keyToOffset = IntArrayCuckoo.rehashAndAdd((IntArrayCuckoo)keyToOffset, key, -((RAMOffsetList)offsetList).getIndex());
+	    	                rehashAndAdd(key, -((RAMOffsetList)offsetList).getIndex());
 	    	            }
                     } else {
                     	ValueCreator	creator;
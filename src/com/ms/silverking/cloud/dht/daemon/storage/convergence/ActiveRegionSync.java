@@ -2,6 +2,7 @@ package com.ms.silverking.cloud.dht.daemon.storage.convergence;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +11,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,6 +43,7 @@ import com.ms.silverking.time.AbsMillisTimeSource;
 import com.ms.silverking.time.SimpleTimer;
 import com.ms.silverking.time.SystemTimeSource;
 import com.ms.silverking.time.Timer;
+import com.ms.silverking.util.PropertiesHelper;
 
 public class ActiveRegionSync implements KeyedOpResultListener {
 	private final UUIDBase	uuid;
@@ -55,6 +58,8 @@ public class ActiveRegionSync implements KeyedOpResultListener {
     private final Map<UUIDBase,SyncRetrievalRequest>	outstandingSyncRetrievalRequests;	
 	private boolean	isComplete;
 	private volatile long	lastUpdateMillis;
+	private final AtomicLong	receivedKeys;
+	private final AtomicLong	receivedBytes;
 
 	
 	public static boolean	debug = false;
@@ -64,15 +69,44 @@ public class ActiveRegionSync implements KeyedOpResultListener {
     private static final int    timeoutCheckMillis = 1 * 60 * 1000;
     private static final int    convergenceRelativeDeadlineMillis = 35 * 60 * 1000;
     private static final long	checksumTreeRequestTimeout = 1 * 60 * 1000;
-    private static final int    retrievalBatchSize = 256;
     private static final byte[] emptyUserData = new byte[0];
-    private static final int	maxInProcess = 2;
+    
+    private static final int    standardRetrievalBatchSize = 256;
+    private static final int	standardMaxInProcess = 2;
+    
+    // Bulk mode moves more keys per sync retrieval and keeps more sync retrievals in flight.
+    // This speeds the repair of regions that are missing much of their data, e.g. on nodes that 
+    // are joining or recovering.
+    // FUTURE - stream segment data for such regions; bulk mode still repairs them key by key
+    static final String	bulkSyncProperty = ActiveRegionSync.class.getPackage().getName() + ".BulkSync";
+    static final boolean	defaultBulkSync = false;
+    static final String	bulkRetrievalBatchSizeProperty = ActiveRegionSync.class.getPackage().getName() + ".BulkRetrievalBatchSize";
+    static final int	defaultBulkRetrievalBatchSize = 4096;
+    static final String	bulkMaxInProcessProperty = ActiveRegionSync.class.getPackage().getName() + ".BulkMaxInProcess";
+    static final int	defaultBulkMaxInProcess = 8;
+    
+    // Sync retrievals are also bounded by the estimated size of their responses. Until a response
+    // has been received, the size of values is unknown, and batches are limited to the standard size.
+    static final String	retrievalBatchBytesProperty = ActiveRegionSync.class.getPackage().getName() + ".RetrievalBatchBytes";
+    static final int	defaultRetrievalBatchBytes = 4 * 1024 * 1024;
+    
+    private static final int    retrievalBatchSize;
+    private static final int	maxInProcess;
+    private static final int	retrievalBatchBytes;
     
     private static final ConcurrentMap<UUIDBase,ActiveRegionSync>	activeRegionSyncs;	
     
     
     static {
     	activeRegionSyncs = new MapMaker().weakValues().makeMap();
+    	if (PropertiesHelper.systemHelper.getBoolean(bulkSyncProperty, defaultBulkSync)) {
+    		retrievalBatchSize = PropertiesHelper.systemHelper.getInt(bulkRetrievalBatchSizeProperty, defaultBulkRetrievalBatchSize);
+    		maxInProcess = PropertiesHelper.systemHelper.getInt(bulkMaxInProcessProperty, defaultBulkMaxInProcess);
+    	} else {
+    		retrievalBatchSize = standardRetrievalBatchSize;
+    		maxInProcess = standardMaxInProcess;
+    	}
+    	retrievalBatchBytes = PropertiesHelper.systemHelper.getInt(retrievalBatchBytesProperty, defaultRetrievalBatchBytes);
     }
 	
 	public ActiveRegionSync(NamespaceStore nsStore, long namespace, ChecksumTreeServer checksumTreeServer, MessageGroupBase mgBase, ChecksumTreeRequest ctr) {
@@ -87,6 +121,8 @@ public class ActiveRegionSync implements KeyedOpResultListener {
 		outstandingSyncRetrievalRequests = new ConcurrentHashMap<>();
 		inprocessSyncRetrievalRequests = new ConcurrentSkipListSet<>();
 		lastUpdateMillis = SystemTimeSource.instance.absTimeMillis();
+		receivedKeys = new AtomicLong();
+		receivedBytes = new AtomicLong();
 	}
 	
 	public ActiveRegionSync(NamespaceStore nsStore, ChecksumTreeServer checksumTreeServer, MessageGroupBase mgBase, ChecksumTreeRequest ctr) {
@@ -239,6 +275,7 @@ public class ActiveRegionSync implements KeyedOpResultListener {
     public void incomingSyncRetrievalResponse(MessageGroup message) {
         List<StorageValueAndParameters> svpList;
         SyncRetrievalRequest	srr;
+        int	numEntries;
         
 		lastUpdateMillis = SystemTimeSource.instance.absTimeMillis();
         srr = outstandingSyncRetrievalRequests.get(message.getUUID());
@@ -252,9 +289,11 @@ public class ActiveRegionSync implements KeyedOpResultListener {
             Log.warning("incomingSyncRetrievalResponse");
         }
         svpList = new ArrayList<>();
+        numEntries = 0;
         for (MessageGroupRetrievalResponseEntry entry : message.getRetrievalResponseValueKeyIterator()) {
             StorageValueAndParameters   svp;
             
+            ++numEntries;
             if (debug) {
                 Log.warningf("%s", entry.toString());
             }
@@ -266,6 +305,10 @@ public class ActiveRegionSync implements KeyedOpResultListener {
                 svpList.add(svp);
             }
         }
+        if (numEntries > 0) {
+            receivedBytes.addAndGet(message.getTotalBytes());
+            receivedKeys.addAndGet(numEntries);
+        }
         if (!svpList.isEmpty()) {
         	if (nsStore != null) {
 	        	// FUTURE - support migration of user data
@@ -301,18 +344,76 @@ public class ActiveRegionSync implements KeyedOpResultListener {
         //return VersionConstraint.newest;
     }
 	
-    private void sendSyncRetrievalRequest(SyncRetrievalRequest srr) {
+    /**
+     * Send the given request unless it has already been sent. Callers may race to send the same
+     * request; only the caller that adds the request to inprocessSyncRetrievalRequests sends it.
+     * @return true if this call sent the request
+     */
+    private boolean sendSyncRetrievalRequest(SyncRetrievalRequest srr) {
         MessageGroup		mg;
         RetrievalOptions    retrievalOptions;
         
+        if (!inprocessSyncRetrievalRequests.add(srr.getUUID())) {
+            return false;
+        }
+        limitBatchSize(srr);
         Log.warningAsyncf("ars %s send srr %s", uuid, srr.getUUID());
-        inprocessSyncRetrievalRequests.add(srr.getUUID());
         retrievalOptions = OptionsHelper.newRetrievalOptions(RetrievalType.VALUE_AND_META_DATA, WaitMode.GET,
                 checksumVersionConstraint(srr.dataVersion));
         mg = new ProtoRetrievalMessageGroup(srr.uuid, namespace, new InternalRetrievalOptions(retrievalOptions),
                 mgBase.getMyID(), srr.outstandingKeys, convergenceRelativeDeadlineMillis).toMessageGroup();
         //outgoingMessages.add(new OutgoingMessage(mg, new IPAndPort(srr.connection.getRemoteSocketAddress())));
         mgBase.send(mg, srr.connection.getRemoteIPAndPort());
+        return true;
+    }
+    
+    /**
+     * @return the maximum number of keys to request in a single sync retrieval given the sizes
+     * of the values received so far
+     */
+    private int getBatchSizeLimit() {
+        long    _receivedKeys;
+        long    bytesPerKey;
+        
+        _receivedKeys = receivedKeys.get();
+        if (_receivedKeys == 0) {
+            return Math.min(retrievalBatchSize, standardRetrievalBatchSize);
+        } else {
+            bytesPerKey = Math.max(receivedBytes.get() / _receivedKeys, 1);
+            return (int)Math.max(Math.min(retrievalBatchBytes / bytesPerKey, retrievalBatchSize), 1);
+        }
+    }
+    
+    /**
+     * Move keys that exceed the batch size limit into a new request that will be sent later. Must
+     * only be called by the sender of the request, before it is sent.
+     */
+    private void limitBatchSize(SyncRetrievalRequest srr) {
+        int limit;
+        
+        limit = getBatchSizeLimit();
+        if (srr.outstandingKeys.size() > limit) {
+            Set<DHTKey>         excessKeys;
+            Iterator<DHTKey>    keys;
+            SyncRetrievalRequest    excessSRR;
+            int     i;
+            
+            excessKeys = new ConcurrentSkipListSet<DHTKey>();
+            keys = srr.outstandingKeys.iterator();
+            i = 0;
+            while (keys.hasNext()) {
+                DHTKey  key;
+                
+                key = keys.next();
+                if (i++ >= limit) {
+                    excessKeys.add(key);
+                    keys.remove();
+                }
+            }
+            excessSRR = new SyncRetrievalRequest(UUIDBase.random(), excessKeys, srr.dataVersion, srr.connection);
+            activeRegionSyncs.put(excessSRR.getUUID(), this);
+            outstandingSyncRetrievalRequests.put(excessSRR.getUUID(), excessSRR);
+        }
     }
     
     //KeyedOpResultListener implementation; only used for ignoring results of puts for now 
@@ -326,17 +427,16 @@ public class ActiveRegionSync implements KeyedOpResultListener {
         if (outstandingSyncRetrievalRequests.isEmpty()) {
         	setComplete();
         } else {
-        	int	inprocessSize;
-        	
-        	inprocessSize = inprocessSyncRetrievalRequests.size();
-        	Log.warningAsyncf("ars progress: %s outstanding %d inprocess %d", uuid, outstandingSyncRetrievalRequests.size(), inprocessSize);
-        	if (inprocessSize < maxInProcess) {
-	        	for (Map.Entry<UUIDBase, SyncRetrievalRequest> e : outstandingSyncRetrievalRequests.entrySet()) {
-	        		if (!inprocessSyncRetrievalRequests.contains(e.getKey())) {
-	        			sendSyncRetrievalRequest(e.getValue());
-	        			break;
-	        		}
-	        	}
+        	Log.warningAsyncf("ars progress: %s outstanding %d inprocess %d", uuid, outstandingSyncRetrievalRequests.size(), 
+        	                   inprocessSyncRetrievalRequests.size());
+        	// keep the pipeline full; sendSyncRetrievalRequest() ignores requests already sent by a concurrent caller
+        	for (SyncRetrievalRequest srr : outstandingSyncRetrievalRequests.values()) {
+        		if (inprocessSyncRetrievalRequests.size() >= maxInProcess) {
+        			break;
+        		}
+        		if (!inprocessSyncRetrievalRequests.contains(srr.getUUID())) {
+        			sendSyncRetrievalRequest(srr);
+        		}
         	}
         }
     }    
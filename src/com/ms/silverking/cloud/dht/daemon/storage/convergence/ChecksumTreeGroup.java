@@ -43,9 +43,9 @@ public class ChecksumTreeGroup {
         return maxVersion;
     }
 
-    //public Map<Long, RegionTreeBuilder> getRegionTreeBuilders() {
-    //    return regionTreeBuilders;
-    //}
+    NavigableMap<Long, RegionTreeBuilder> getRegionTreeBuilders() {
+        return regionTreeBuilders;
+    }
     
     public ChecksumNode getTreeRoot(long regionStart) {
         RegionTreeBuilder   rtb;
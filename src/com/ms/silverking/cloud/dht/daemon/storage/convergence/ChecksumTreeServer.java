@@ -2,8 +2,12 @@ package com.ms.silverking.cloud.dht.daemon.storage.convergence;
 
 import java.io.IOException;
 import java.nio.BufferOverflowException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -13,7 +17,9 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
 import com.ms.silverking.cloud.dht.daemon.NodeRingMaster2;
+import com.ms.silverking.cloud.dht.daemon.storage.KeyAndVersionChecksum;
 import com.ms.silverking.cloud.dht.daemon.storage.NamespaceStore;
 import com.ms.silverking.cloud.dht.net.MessageGroup;
 import com.ms.silverking.cloud.dht.net.MessageGroupConnection;
@@ -24,6 +30,7 @@ import com.ms.silverking.log.Log;
 import com.ms.silverking.numeric.LongInterval;
 import com.ms.silverking.numeric.NumUtil;
 import com.ms.silverking.time.AbsMillisTimeSource;
+import com.ms.silverking.util.PropertiesHelper;
 
 /**
  * Handles requests for checksum trees from remote servers. Computes the checksum tree requested, 
@@ -31,6 +38,12 @@ import com.ms.silverking.time.AbsMillisTimeSource;
  * 
  * As checksum tree computation is expensive, this class ensures that extraneous computation
  * is avoided.
+ * 
+ * When incremental checksum trees are enabled, the keys changed by puts are tracked, and 
+ * the most recently computed ChecksumTreeGroup is updated with only those keys rather than being
+ * recomputed from a full pass over the namespace. A full computation is still performed when the
+ * ring changes, when keys have been removed by reaping, when too many keys have changed, or when
+ * the namespace has grown well beyond the size that the existing trees were built for.
  */
 public class ChecksumTreeServer {
     private final long              ns;
@@ -39,6 +52,13 @@ public class ChecksumTreeServer {
     private final NodeRingMaster2       ringMaster;
     private final Cache<ChecksumTreeKey,CTGAndLock>  checksumTreeGroups;
     
+    private final Lock          incrementalLock;
+    private final Set<DHTKey>   changedKeys;
+    private volatile boolean    incrementalTreesValid;
+    private volatile ChecksumTreeGroup  incrementalBase;
+    private RingIDAndVersionPair        incrementalBaseRingIDAndVersion;
+    private long                incrementalBaseKeys;
+    
     private static final boolean    debug = false;
     private static final boolean    verbose = true;
     
@@ -47,6 +67,21 @@ public class ChecksumTreeServer {
     private static final int    mapMaxSize = 2;
     private static final int    mapExpirationMinutes = 30;
     
+    static final String incrementalChecksumTreesProperty = ChecksumTreeServer.class.getPackage().getName() + ".IncrementalChecksumTrees";
+    static final boolean    defaultIncrementalChecksumTrees = false;
+    static final boolean    incrementalChecksumTrees;
+    
+    static final String maxIncrementalChangedKeysProperty = ChecksumTreeServer.class.getPackage().getName() + ".MaxIncrementalChangedKeys";
+    static final int    defaultMaxIncrementalChangedKeys = 1 << 20;
+    static final int    maxIncrementalChangedKeys;
+    
+    private static final int    maxIncrementalGrowthFactor = 2;
+    
+    static {
+        incrementalChecksumTrees = PropertiesHelper.systemHelper.getBoolean(incrementalChecksumTreesProperty, defaultIncrementalChecksumTrees);
+        maxIncrementalChangedKeys = PropertiesHelper.systemHelper.getInt(maxIncrementalChangedKeysProperty, defaultMaxIncrementalChangedKeys);
+    }
+    
     public ChecksumTreeServer(NamespaceStore nsStore, AbsMillisTimeSource absMillisTimeSource) {
         this.ns = nsStore.getNamespace();
         this.nsStore = nsStore;
@@ -54,6 +89,30 @@ public class ChecksumTreeServer {
         ringMaster = nsStore.getRingMaster();        
         checksumTreeGroups = CacheBuilder.newBuilder().maximumSize(mapMaxSize)
                              .expireAfterAccess(mapExpirationMinutes, TimeUnit.MINUTES).build();
+        incrementalLock = new ReentrantLock();
+        changedKeys = ConcurrentHashMap.newKeySet();
+    }
+    
+    /**
+     * Record that a key has been stored. Called with the key's write partition locked.
+     * @param key
+     */
+    public void keyChanged(DHTKey key) {
+        if (incrementalChecksumTrees && incrementalBase != null) {
+            if (changedKeys.size() < maxIncrementalChangedKeys) {
+                changedKeys.add(new SimpleKey(key));
+            } else {
+                incrementalTreesValid = false;
+            }
+        }
+    }
+    
+    /**
+     * Force the next ChecksumTreeGroup to be computed from a full pass over the namespace.
+     * Must be called when keys are removed from the namespace.
+     */
+    public void invalidateIncrementalTrees() {
+        incrementalTreesValid = false;
     }
     
     private static class ChecksumTreeKey {
@@ -194,12 +253,66 @@ public class ChecksumTreeServer {
             	}
             	System.out.println();
             }
-            return computeChecksumTreeGroup(regions, minVersion, maxVersion, false);
+            if (incrementalChecksumTrees) {
+                return computeChecksumTreeGroupIncrementally(ringIDAndVersion, regions, minVersion, maxVersion);
+            } else {
+                return computeChecksumTreeGroup(regions, minVersion, maxVersion, false);
+            }
         } else {
             return null;
         }
     }
     
+    /**
+     * Computes a new ChecksumTreeGroup by applying the keys changed since the last computation to 
+     * the last ChecksumTreeGroup computed, if possible. Otherwise, computes the group from a full pass.
+     */
+    private ChecksumTreeGroup computeChecksumTreeGroupIncrementally(RingIDAndVersionPair ringIDAndVersion, 
+                                            Collection<RingRegion> regions, long minVersion, long maxVersion) {
+        incrementalLock.lock();
+        try {
+            // Puts are locked out while the read lock is held; hence changedKeys is stable
+            nsStore.readLock();
+            try {
+                ChecksumTreeGroup   ctg;
+                boolean             valid;
+                
+                valid = incrementalTreesValid;
+                incrementalTreesValid = true;
+                if (valid && incrementalBase != null && ringIDAndVersion.equals(incrementalBaseRingIDAndVersion)
+                        && nsStore.getTotalKeys() <= incrementalBaseKeys * maxIncrementalGrowthFactor + entriesPerNode) {
+                    List<KeyAndVersionChecksum> changedChecksums;
+                    
+                    Log.info("updateChecksumTreeGroup ", changedKeys.size());
+                    changedChecksums = new ArrayList<>(changedKeys.size());
+                    for (DHTKey key : changedKeys) {
+                        KeyAndVersionChecksum   kvc;
+                        
+                        kvc = nsStore.getKeyAndVersionChecksum(key);
+                        if (kvc != null) {
+                            changedChecksums.add(kvc);
+                        }
+                    }
+                    ctg = TreeBuilder.update(incrementalBase, changedKeys, changedChecksums, 
+                                             absMillisTimeSource.absTimeMillis(), minVersion, maxVersion);
+                } else {
+                    Log.info("computeChecksumTreeGroup full pass");
+                    incrementalBaseKeys = nsStore.getTotalKeys();
+                    ctg = TreeBuilder.build(regions, nsStore.keyAndVersionChecksumIterator(minVersion, maxVersion), entriesPerNode, 
+                            incrementalBaseKeys, absMillisTimeSource.absTimeMillis(), minVersion, maxVersion, false);
+                }
+                changedKeys.clear();
+                incrementalBaseRingIDAndVersion = ringIDAndVersion;
+                incrementalBase = ctg;
+                return ctg;
+            } finally {
+                nsStore.readUnlock();
+            }
+        } finally {
+            incrementalLock.unlock();
+        }
+    }
+    
     private ChecksumTreeGroup computeChecksumTreeGroup(RingRegion region, long minVersion, long maxVersion) {
         return computeChecksumTreeGroup(ImmutableSet.of(region), minVersion, maxVersion, true);
     }
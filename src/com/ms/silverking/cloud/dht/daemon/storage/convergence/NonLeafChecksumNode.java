@@ -11,6 +11,7 @@ import com.ms.silverking.util.Mutability;
 
 public class NonLeafChecksumNode extends AbstractChecksumNode {
     private final List<? extends ChecksumNode>  children;
+    private ConvergenceChecksum checksum; // computed lazily; children are immutable
     
     public NonLeafChecksumNode(RingRegion ringRegion, List<? extends ChecksumNode> children) {
         super(ringRegion, Mutability.Immutable);
@@ -20,13 +21,17 @@ public class NonLeafChecksumNode extends AbstractChecksumNode {
 
     @Override
     public ConvergenceChecksum getChecksum() {
-        ConvergenceChecksum checksum;
+        ConvergenceChecksum _checksum;
         
-        checksum = children.get(0).getChecksum();
-        for (int i = 1; i < children.size(); i++) {
-            checksum = checksum.xor(children.get(i).getChecksum());
+        _checksum = checksum;
+        if (_checksum == null) {
+            _checksum = children.get(0).getChecksum();
+            for (int i = 1; i < children.size(); i++) {
+                _checksum = _checksum.xor(children.get(i).getChecksum());
+            }
+            checksum = _checksum;
         }
-        return checksum;
+        return _checksum;
     }
 
     @Override
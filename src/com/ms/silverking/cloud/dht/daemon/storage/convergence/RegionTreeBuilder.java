@@ -1,9 +1,16 @@
 package com.ms.silverking.cloud.dht.daemon.storage.convergence;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
+import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.common.KeyUtil;
 import com.ms.silverking.cloud.dht.daemon.storage.KeyAndVersionChecksum;
 import com.ms.silverking.cloud.ring.LongRingspace;
@@ -23,6 +30,7 @@ public class RegionTreeBuilder {
     private final long      leafRegionSize;
     private final LeafChecksumNode[]   leaves;
     private final int       height;
+    private final ChecksumNode[][]  nodes; // rows from root (0) to leaves (height - 1)
     
     private static final boolean    debug = false;
     
@@ -46,7 +54,8 @@ public class RegionTreeBuilder {
             System.out.println(height);
             System.out.println("Leaves:\n"+ leavesToString());
         }
-        root = createInternalNodes(leaves, height, entriesPerNode, estimatedKeys);
+        nodes = createInternalNodes(leaves, height, entriesPerNode, estimatedKeys, null);
+        root = nodes[0][0];
         if (debug) {
             System.out.println(root.getRegion());
             System.out.println(region);
@@ -56,6 +65,22 @@ public class RegionTreeBuilder {
         assert root.getRegion().equals(region);
     }
     
+    /**
+     * Create a builder with the same structure as an existing builder, but with new leaves.
+     * Internal nodes whose subtrees contain only unchanged leaves are shared with the existing builder. 
+     */
+    private RegionTreeBuilder(RegionTreeBuilder base, LeafChecksumNode[] leaves) {
+        region = base.region;
+        entriesPerNode = base.entriesPerNode;
+        estimatedKeys = base.estimatedKeys;
+        numLeaves = base.numLeaves;
+        leafRegionSize = base.leafRegionSize;
+        height = base.height;
+        this.leaves = leaves;
+        nodes = createInternalNodes(leaves, height, entriesPerNode, estimatedKeys, base.nodes);
+        root = nodes[0][0];
+    }
+    
     public static ChecksumNode build(RingRegion region, int entriesPerNode, int estimatedKeys, 
             Iterable<KeyAndVersionChecksum> kvcIterable) {
         RegionTreeBuilder   rtb;
@@ -95,7 +120,8 @@ public class RegionTreeBuilder {
         return leaves;
     }
     
-    private static ChecksumNode createInternalNodes(LeafChecksumNode[] leaves, int height, int entriesPerNode, int estimatedKeys) {
+    private static ChecksumNode[][] createInternalNodes(LeafChecksumNode[] leaves, int height, int entriesPerNode, 
+                                                        int estimatedKeys, ChecksumNode[][] prevNodes) {
         ChecksumNode[][]    nodes;
         
         nodes = new ChecksumNode[height][];
@@ -132,10 +158,14 @@ public class RegionTreeBuilder {
                     
                     i0 = j * childrenPerNode;
                     i1 = Math.min(i0 + childrenPerNode, nextRowChildren);
-                    children = ImmutableList.copyOf(Arrays.copyOfRange(nodes[i + 1], i0, i1));
-                    region = new RingRegion(children.get(0).getRegion().getStart(), 
-                                            children.get(children.size() - 1).getRegion().getEnd());
-                    nodes[i][j] = new NonLeafChecksumNode(region, children);
+                    if (prevNodes != null && sameNodes(nodes[i + 1], prevNodes[i + 1], i0, i1)) {
+                        nodes[i][j] = prevNodes[i][j];
+                    } else {
+                        children = ImmutableList.copyOf(Arrays.copyOfRange(nodes[i + 1], i0, i1));
+                        region = new RingRegion(children.get(0).getRegion().getStart(), 
+                                                children.get(children.size() - 1).getRegion().getEnd());
+                        nodes[i][j] = new NonLeafChecksumNode(region, children);
+                    }
                     if (debug) {
                         System.out.printf("%d %d\t%d %d\t%s\n", i, j, i0, i1, nodes[i][j].getRegion());
                     }
@@ -152,7 +182,79 @@ public class RegionTreeBuilder {
         if (nodes[0].length != 1) {
             throw new RuntimeException("panic");
         }
-        return nodes[0][0];
+        return nodes;
+    }
+    
+    private static boolean sameNodes(ChecksumNode[] nodes, ChecksumNode[] prevNodes, int i0, int i1) {
+        for (int i = i0; i < i1; i++) {
+            if (nodes[i] != prevNodes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Create a builder for a tree that reflects changes to keys in this builder's region.
+     * Only leaves that contain changed keys are rebuilt; all other leaves, and all internal 
+     * nodes above only unchanged leaves, are shared with this builder's tree.
+     * This builder must be frozen.
+     * @param changedKeys keys in this region that have been stored or removed since this tree was built
+     * @param changedChecksums current checksums of the changed keys that are still stored
+     * @return the new builder (frozen)
+     */
+    RegionTreeBuilder update(Collection<DHTKey> changedKeys, Collection<KeyAndVersionChecksum> changedChecksums) {
+        Map<Integer,Set<DHTKey>>    changedKeysByLeaf;
+        Map<Integer,List<KeyAndVersionChecksum>>    changedChecksumsByLeaf;
+        LeafChecksumNode[]  newLeaves;
+        
+        changedKeysByLeaf = new HashMap<>();
+        for (DHTKey key : changedKeys) {
+            int         index;
+            Set<DHTKey> leafKeys;
+            
+            index = leafIndex(KeyUtil.keyToCoordinate(key));
+            leafKeys = changedKeysByLeaf.get(index);
+            if (leafKeys == null) {
+                leafKeys = new HashSet<>();
+                changedKeysByLeaf.put(index, leafKeys);
+            }
+            leafKeys.add(key);
+        }
+        changedChecksumsByLeaf = new HashMap<>();
+        for (KeyAndVersionChecksum kvc : changedChecksums) {
+            int         index;
+            List<KeyAndVersionChecksum> leafChecksums;
+            
+            index = leafIndex(KeyUtil.keyToCoordinate(kvc.getKey()));
+            leafChecksums = changedChecksumsByLeaf.get(index);
+            if (leafChecksums == null) {
+                leafChecksums = new ArrayList<>();
+                changedChecksumsByLeaf.put(index, leafChecksums);
+            }
+            leafChecksums.add(kvc);
+        }
+        
+        newLeaves = leaves.clone();
+        for (Map.Entry<Integer,Set<DHTKey>> entry : changedKeysByLeaf.entrySet()) {
+            LeafChecksumNode    leaf;
+            List<KeyAndVersionChecksum> kvcs;
+            List<KeyAndVersionChecksum> leafChecksums;
+            
+            leaf = leaves[entry.getKey()];
+            kvcs = new ArrayList<>(leaf.estimatedKeys() + entry.getValue().size());
+            for (KeyAndVersionChecksum kvc : leaf.getKeyAndVersionChecksums()) {
+                if (!entry.getValue().contains(kvc.getKey())) {
+                    kvcs.add(kvc);
+                }
+            }
+            leafChecksums = changedChecksumsByLeaf.get(entry.getKey());
+            if (leafChecksums != null) {
+                kvcs.addAll(leafChecksums);
+            }
+            newLeaves[entry.getKey()] = new LeafChecksumNode(leaf.getRegion(), kvcs);
+        }
+        return new RegionTreeBuilder(this, newLeaves);
     }
     
     public void freeze() {
@@ -177,7 +279,8 @@ public class RegionTreeBuilder {
         long    distToStart;
         
         distToStart = LongRingspace.clockwiseDistance(region.getStart(), p);
-        return (int)(distToStart / leafRegionSize);
+        // the last leaf also covers any remainder of the region
+        return (int)Math.min(distToStart / leafRegionSize, numLeaves - 1);
     }
     
     public void addChecksums(Iterable<KeyAndVersionChecksum> kvcIterable) {
@@ -1,7 +1,10 @@
 package com.ms.silverking.cloud.dht.daemon.storage.convergence;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
@@ -53,11 +56,84 @@ public class TreeBuilder {
                        new TreeBuilder(regions, keyIterator, entriesPerNode, estimatedKeys).build(allowRegionNotFound));
     }
             
+    /**
+     * Given a ChecksumTreeGroup and the keys that have changed since it was built, create a 
+     * ChecksumTreeGroup that reflects the changes. Only the portions of the trees that contain 
+     * changed keys are rebuilt; the remainder is shared with the given group.
+     * @param base
+     * @param changedKeys keys that have been stored or removed since base was built
+     * @param changedChecksums current checksums of the changed keys that are still stored
+     * @param creationTimeMillis
+     * @param minVersion
+     * @param maxVersion
+     * @return
+     */
+    public static ChecksumTreeGroup update(ChecksumTreeGroup base, Collection<DHTKey> changedKeys, 
+            Collection<KeyAndVersionChecksum> changedChecksums, long creationTimeMillis, long minVersion, long maxVersion) {
+        NavigableMap<Long,RegionTreeBuilder>    rtBuilders;
+        Map<RegionTreeBuilder,List<DHTKey>>     changedKeysByBuilder;
+        Map<RegionTreeBuilder,List<KeyAndVersionChecksum>>  changedChecksumsByBuilder;
+        
+        rtBuilders = base.getRegionTreeBuilders();
+        changedKeysByBuilder = new HashMap<>();
+        for (DHTKey key : changedKeys) {
+            RegionTreeBuilder   rtb;
+            
+            rtb = getBuilderForKey(rtBuilders, key, true);
+            if (rtb != null) {
+                List<DHTKey>    builderKeys;
+                
+                builderKeys = changedKeysByBuilder.get(rtb);
+                if (builderKeys == null) {
+                    builderKeys = new ArrayList<>();
+                    changedKeysByBuilder.put(rtb, builderKeys);
+                }
+                builderKeys.add(key);
+            }
+        }
+        changedChecksumsByBuilder = new HashMap<>();
+        for (KeyAndVersionChecksum kvc : changedChecksums) {
+            RegionTreeBuilder   rtb;
+            
+            rtb = getBuilderForKey(rtBuilders, kvc.getKey(), true);
+            if (rtb != null) {
+                List<KeyAndVersionChecksum> builderChecksums;
+                
+                builderChecksums = changedChecksumsByBuilder.get(rtb);
+                if (builderChecksums == null) {
+                    builderChecksums = new ArrayList<>();
+                    changedChecksumsByBuilder.put(rtb, builderChecksums);
+                }
+                builderChecksums.add(kvc);
+            }
+        }
+        
+        rtBuilders = new TreeMap<>(rtBuilders);
+        for (Map.Entry<Long,RegionTreeBuilder> entry : rtBuilders.entrySet()) {
+            List<DHTKey>    builderKeys;
+            
+            builderKeys = changedKeysByBuilder.get(entry.getValue());
+            if (builderKeys != null) {
+                List<KeyAndVersionChecksum> builderChecksums;
+                
+                builderChecksums = changedChecksumsByBuilder.get(entry.getValue());
+                entry.setValue(entry.getValue().update(builderKeys, 
+                        builderChecksums != null ? builderChecksums : new ArrayList<KeyAndVersionChecksum>()));
+            }
+        }
+        return new ChecksumTreeGroup(creationTimeMillis, minVersion, maxVersion, rtBuilders);
+    }
+    
     private static int estimateRegionKeys(RingRegion region, long estimatedKeys) {
         return (int)(region.getRingspaceFraction() * (double)estimatedKeys);
     }
     
     private RegionTreeBuilder getBuilderForKey(DHTKey key, boolean allowRegionNotFound) {
+        return getBuilderForKey(rtBuilders, key, allowRegionNotFound);
+    }
+    
+    private static RegionTreeBuilder getBuilderForKey(NavigableMap<Long,RegionTreeBuilder> rtBuilders, DHTKey key, 
+                                                      boolean allowRegionNotFound) {
         long    p;
         RegionTreeBuilder   rtb;
         Map.Entry<Long,RegionTreeBuilder>    floorEntry;
@@ -125,4 +125,32 @@ public abstract class BaseRetrievalOperation<S extends BaseRetrievalEntryState>
         }
         return timedOutReplicas;
     }
+    
+    public void sendHedgedRequests(RetrievalVirtualCommunicator rvComm) {
+        try {
+            for (DHTKey key : opKeys()) {
+                S   entryState;
+                
+                entryState = getEntryState(key);
+                synchronized (entryState) {
+                    if (!entryState.isComplete()) {
+                        IPAndPort   curReplica;
+                        IPAndPort   nextReplica;
+                        
+                        curReplica = entryState.currentReplica();
+                        nextReplica = entryState.nextReplica();
+                        if (nextReplica != null && nextReplica.equals(curReplica)) {
+                            // the first call may return the replica that was sent the initial request
+                            nextReplica = entryState.nextReplica();
+                        }
+                        if (nextReplica != null) {
+                            rvComm.forwardEntry(nextReplica, key);
+                        }
+                    }
+                }
+            }
+        } catch (ConcurrentModificationException cme) {
+            Log.warningAsync("Ignoring concurrent modification in BaseRetrievalOperation.sendHedgedRequests()");
+        }
+    }
 }
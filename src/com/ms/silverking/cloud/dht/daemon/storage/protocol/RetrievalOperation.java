@@ -17,4 +17,10 @@ public interface RetrievalOperation extends Operation<DHTKey,RetrievalResult> {
      */
     public void update(DHTKey key, IPAndPort replica, RetrievalResult update, RetrievalVirtualCommunicator rvComm);
     public Set<IPAndPort> checkForInternalTimeouts(long curTimeMillis, RetrievalVirtualCommunicator rComm);
+    /**
+     * Send a duplicate request for each incomplete entry to its next replica. Outstanding
+     * requests are left in place; the first response received for an entry is used.
+     * @param rvComm
+     */
+    public void sendHedgedRequests(RetrievalVirtualCommunicator rvComm);
 }
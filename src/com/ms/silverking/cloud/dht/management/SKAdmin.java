@@ -350,6 +350,26 @@ public class SKAdmin {
 		return classVars.getVarMap().get(DHTConstants.nsPrereadGBVar);
 	}
 	
+	private String getNSWritePartitions(ClassVars classVars) {
+		return classVars.getVarMap().get(DHTConstants.nsWritePartitionsVar);
+	}
+	
+	private String getCompactionBytesPerSecond(ClassVars classVars) {
+		return classVars.getVarMap().get(DHTConstants.compactionBytesPerSecondVar);
+	}
+	
+	private String getRecoveryThreads(ClassVars classVars) {
+		return classVars.getVarMap().get(DHTConstants.recoveryThreadsVar);
+	}
+	
+	private String getIndexCheckpointIntervalSeconds(ClassVars classVars) {
+		return classVars.getVarMap().get(DHTConstants.indexCheckpointIntervalSecondsVar);
+	}
+	
+	private String getOffHeapIndexes(ClassVars classVars) {
+		return classVars.getVarMap().get(DHTConstants.offHeapIndexesVar);
+	}
+	
 	private String getDHTOptions(SKAdminOptions options, ClassVars classVars) {
 		return "-Dcom.ms.silverking.Log="+ options.logLevel
 				+" -D"+ DHTConstants.dataBasePathProperty +"="+ getDataDir(classVars)
@@ -358,6 +378,11 @@ public class SKAdmin {
 				+" -D"+ DHTConstants.retrievalImplementationProperty +"="+ getRetrievalImplementation(classVars)
 				+" -D"+ DHTConstants.segmentIndexLocationProperty +"="+ getSegmentIndexLocation(classVars)
 				+" -D"+ DHTConstants.nsPrereadGBProperty +"="+ getNSPrereadGB(classVars)
+				+" -D"+ DHTConstants.nsWritePartitionsProperty +"="+ getNSWritePartitions(classVars)
+				+" -D"+ DHTConstants.compactionBytesPerSecondProperty +"="+ getCompactionBytesPerSecond(classVars)
+				+" -D"+ DHTConstants.recoveryThreadsProperty +"="+ getRecoveryThreads(classVars)
+				+" -D"+ DHTConstants.indexCheckpointIntervalSecondsProperty +"="+ getIndexCheckpointIntervalSeconds(classVars)
+				+" -D"+ DHTConstants.offHeapIndexesProperty +"="+ getOffHeapIndexes(classVars)
 				;
 	}
 	
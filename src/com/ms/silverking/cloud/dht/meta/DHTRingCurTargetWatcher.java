@@ -32,6 +32,13 @@ public class DHTRingCurTargetWatcher implements ValueListener {
         targetRingWatcher = new ValueWatcher(mc, MetaPaths.getInstanceTargetRingAndVersionPairPath(dhtName), 
                 this, checkIntervalMillis, initialIntervalMillis);
     }
+    
+    public void stop() {
+        curRingWatcher.stop();
+        if (targetRingWatcher != null) {
+            targetRingWatcher.stop();
+        }
+    }
 
     @Override
     public void newValue(String basePath, byte[] value, Stat stat) {
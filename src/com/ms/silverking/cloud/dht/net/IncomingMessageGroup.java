@@ -8,12 +8,15 @@ import java.nio.channels.SocketChannel;
 import com.ms.silverking.cloud.dht.ValueCreator;
 import com.ms.silverking.cloud.dht.common.EnumValues;
 import com.ms.silverking.cloud.dht.common.MessageType;
+import com.ms.silverking.cloud.dht.net.protocol.KeyValueMessageFormat;
 import com.ms.silverking.cloud.dht.net.protocol.MessageFormat;
 import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.log.Log;
+import com.ms.silverking.net.async.DirectBufferPool;
 import com.ms.silverking.net.async.IncomingData;
 import com.ms.silverking.net.async.ReadResult;
 import com.ms.silverking.numeric.NumConversion;
+import com.ms.silverking.util.PropertiesHelper;
 
 // FUTURE - add header checksums, timeouts on reception
 
@@ -56,6 +59,7 @@ public final class IncomingMessageGroup implements IncomingData {
 	private byte[]              originator;
 	private int                 deadlineRelativeMillis;
 	private ForwardingMode      forward;
+	private DirectBufferPool    bufferPool; // non-null if any buffer of the current message came from the pool
 		
 	private enum ReadState{INIT_PREAMBLE_SEARCH, PREAMBLE_SEARCH, HEADER_LENGTH, BUFFER_LENGTHS, BUFFERS, DONE, CHANNEL_CLOSED};
 	
@@ -69,6 +73,38 @@ public final class IncomingMessageGroup implements IncomingData {
     
 	private static final boolean	debug = false;
 	
+	/*
+	 * Value buffers of local (DO_NOT_FORWARD) puts may be received into pooled direct buffers.
+	 * These are the bulk of the bytes received by a replica, and they are only used until
+	 * the put has been stored. The receiver of such a message must call MessageGroup.releaseBuffers()
+	 * once it is finished with the message. The pool is disabled when the size is zero.
+	 */
+	public static final String	receiveBufferPoolMBProperty = IncomingMessageGroup.class.getPackage().getName() + ".ReceiveBufferPoolMB";
+	public static final int	defaultReceiveBufferPoolMB = 0;
+	private static final int	receiveBufferPoolMinClassSizeLog2 = 10;
+	private static final int	receiveBufferPoolMaxClassSizeLog2 = 24;
+	private static final DirectBufferPool	receiveBufferPool;
+	
+	static {
+		int	receiveBufferPoolMB;
+		
+		receiveBufferPoolMB = PropertiesHelper.systemHelper.getInt(receiveBufferPoolMBProperty, defaultReceiveBufferPoolMB);
+		if (receiveBufferPoolMB > 0) {
+			receiveBufferPool = new DirectBufferPool(receiveBufferPoolMinClassSizeLog2, receiveBufferPoolMaxClassSizeLog2, 
+													(long)receiveBufferPoolMB * 1024 * 1024);
+			Log.warningf("%s %d", receiveBufferPoolMBProperty, receiveBufferPoolMB);
+		} else {
+			receiveBufferPool = null;
+		}
+	}
+	
+	/**
+	 * @return the pool used for received value buffers, or null if pooling is disabled
+	 */
+	public static DirectBufferPool getReceiveBufferPool() {
+		return receiveBufferPool;
+	}
+	
 	public static void setClient() {
 		//isClient = true;
 	}
@@ -118,7 +154,8 @@ public final class IncomingMessageGroup implements IncomingData {
 	    for (ByteBuffer buffer : buffers) {
 	        buffer.flip();
 	    }
-	    return new MessageGroup(messageType, options, uuid, context, buffers, originator, deadlineRelativeMillis, forward);
+	    return new MessageGroup(messageType, options, uuid, context, buffers, originator, deadlineRelativeMillis, forward, 
+	    						bufferPool);
 	}
 	
 	public int getLastNumRead() {
@@ -359,9 +396,12 @@ public final class IncomingMessageGroup implements IncomingData {
 	}
 	
 	private void allocateBuffers() throws IOException {
+		DirectBufferPool	_bufferPool;
+		
 		if (debug) {
 			Log.fine("allocateBuffers ", buffers.length);
 		}
+		_bufferPool = usesReceiveBufferPool() ? receiveBufferPool : null;
 		for (int i = 0; i < buffers.length; i++) {
 			int	size;
 			
@@ -373,13 +413,29 @@ public final class IncomingMessageGroup implements IncomingData {
 				Log.fine("allocating buffer: ", size);
 			}
 			try {
-				buffers[i] = ByteBuffer.allocate(size);
+				if (_bufferPool != null && i >= firstPooledBufferIndex) {
+					buffers[i] = _bufferPool.allocate(size);
+				} else {
+					buffers[i] = ByteBuffer.allocate(size);
+				}
                 //buffers[i] = ByteBuffer.allocateDirect(size);
 			} catch (OutOfMemoryError oome) {
 				Log.warning("OutOfMemoryError caught in buffer allocation");
 				throw new IOException("OutOfMemoryError caught in buffer allocation");
 			}
 		}
+		bufferPool = _bufferPool;
+	}
+	
+	/*
+	 * Only local puts are received into pooled buffers. Forwarded puts may hold references to
+	 * value buffers in messages that are sent asynchronously, and other messages are small or long-lived.
+	 * The key and option buffers are accessed as arrays, and are therefore never pooled.
+	 */
+	private static final int	firstPooledBufferIndex = KeyValueMessageFormat.optionBufferIndex + 1;
+	
+	private boolean usesReceiveBufferPool() {
+		return receiveBufferPool != null && messageType == MessageType.PUT && forward == ForwardingMode.DO_NOT_FORWARD;
 	}
 	
 	public String toString() {
@@ -3,6 +3,7 @@ package com.ms.silverking.cloud.dht.net;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ms.silverking.cloud.dht.ValueCreator;
 import com.ms.silverking.cloud.dht.client.ChecksumType;
@@ -11,6 +12,7 @@ import com.ms.silverking.cloud.dht.common.SimpleValueCreator;
 import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.io.util.BufferUtil;
 import com.ms.silverking.log.Log;
+import com.ms.silverking.net.async.DirectBufferPool;
 import com.ms.silverking.net.async.OutgoingData;
 import com.ms.silverking.numeric.NumConversion;
 import com.ms.silverking.text.StringUtil;
@@ -35,6 +37,8 @@ public final class MessageGroup {
     private final UUIDBase        uuid;
     private final int             deadlineRelativeMillis;
     private final ForwardingMode  forward;
+    private final DirectBufferPool  bufferPool; // non-null if some buffers came from bufferPool
+    private final AtomicInteger     bufferRefCount;
         
     // preamble buffer not visible at this layer
     private static final int    keyBufferIndex = 0;
@@ -52,6 +56,16 @@ public final class MessageGroup {
     
     public MessageGroup(MessageType messageType, int options, UUIDBase uuid, long context, ByteBuffer[] buffers, 
                         byte[] originator, int deadlineRelativeMillis, ForwardingMode forward) {
+        this(messageType, options, uuid, context, buffers, originator, deadlineRelativeMillis, forward, null);
+    }
+    
+    /**
+     * Create a MessageGroup some of whose buffers were obtained from bufferPool. The buffers are
+     * returned to the pool when the last reference is released. See retainBuffers() and releaseBuffers().
+     */
+    public MessageGroup(MessageType messageType, int options, UUIDBase uuid, long context, ByteBuffer[] buffers, 
+                        byte[] originator, int deadlineRelativeMillis, ForwardingMode forward, 
+                        DirectBufferPool bufferPool) {
         this.messageType = messageType;
         this.options = options;
         this.uuid = uuid;
@@ -66,6 +80,8 @@ public final class MessageGroup {
         }
         this.deadlineRelativeMillis = deadlineRelativeMillis;
         this.forward = forward;
+        this.bufferPool = bufferPool;
+        bufferRefCount = bufferPool != null ? new AtomicInteger(1) : null;
         //for (ByteBuffer buffer : buffers) {
             //System.out.println("\t\t"+ buffer);
             //buffer.flip();
@@ -96,6 +112,8 @@ public final class MessageGroup {
         case OP_PING:
         case OP_PING_ACK:
         case SET_CONVERGENCE_STATE:        	
+        case SCAN:
+        case SCAN_RESPONSE:
             bytesPerKeyEntry = 0;
             break;
         default:
@@ -124,6 +142,36 @@ public final class MessageGroup {
         */
     }
     
+    /**
+     * Add a reference to any pooled buffers of this message. Each call must be matched
+     * by a call to releaseBuffers().
+     */
+    public void retainBuffers() {
+        if (bufferPool != null) {
+            bufferRefCount.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Release a reference to any pooled buffers of this message. The creator holds the initial reference.
+     * When the last reference is released, pooled buffers are returned to their pool; neither this message
+     * nor any entry or buffer obtained from it may be used after that.
+     */
+    public void releaseBuffers() {
+        if (bufferPool != null) {
+            int refCount;
+            
+            refCount = bufferRefCount.decrementAndGet();
+            if (refCount == 0) {
+                for (ByteBuffer buffer : buffers) {
+                    bufferPool.release(buffer);
+                }
+            } else if (refCount < 0) {
+                Log.warning("MessageGroup buffers over-released: ", uuid);
+            }
+        }
+    }
+    
     public void setPeer(boolean peer) {
     	if (peer) {
     		options = options | MG_O_peer;
@@ -399,6 +447,29 @@ public final class MessageGroup {
         return new KeyOrdinalIterator();
     }
     
+    // Allocation-free alternatives to getKeyOrdinalIterator()
+    
+    public int getNumKeyOrdinalEntries() {
+        return (buffers[putResponseKeyBufferIndex].limit() - keyBufferMetaDataLength 
+                + MessageGroupKeyOrdinalEntry.bytesPerEntry - 1) / MessageGroupKeyOrdinalEntry.bytesPerEntry;
+    }
+    
+    private int getKeyOrdinalEntryOffset(int index) {
+        return keyBufferMetaDataLength + index * MessageGroupKeyOrdinalEntry.bytesPerEntry;
+    }
+    
+    public long getKeyOrdinalEntryMSL(int index) {
+        return buffers[putResponseKeyBufferIndex].getLong(getKeyOrdinalEntryOffset(index));
+    }
+    
+    public long getKeyOrdinalEntryLSL(int index) {
+        return buffers[putResponseKeyBufferIndex].getLong(getKeyOrdinalEntryOffset(index) + NumConversion.BYTES_PER_LONG);
+    }
+    
+    public byte getKeyOrdinalEntryOrdinal(int index) {
+        return buffers[putResponseKeyBufferIndex].get(getKeyOrdinalEntryOffset(index) + 2 * NumConversion.BYTES_PER_LONG);
+    }
+    
     class KeyOrdinalIterator implements Iterator<MessageGroupKeyOrdinalEntry>, Iterable<MessageGroupKeyOrdinalEntry> {
         private final ByteBuffer    putResponseKeyBuffer; 
         private int curKey;
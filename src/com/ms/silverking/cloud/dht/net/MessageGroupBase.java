@@ -29,7 +29,9 @@ import com.ms.silverking.net.async.MultipleConnectionQueueLengthListener;
 import com.ms.silverking.net.async.PersistentAsyncServer;
 import com.ms.silverking.net.async.QueueingConnectionLimitListener;
 import com.ms.silverking.net.async.SelectorController;
+import com.ms.silverking.net.async.UnixDomainSocketUtil;
 import com.ms.silverking.time.AbsMillisTimeSource;
+import com.ms.silverking.util.PropertiesHelper;
 
 public class MessageGroupBase {
     private final PersistentAsyncServer<MessageGroupConnection>    paServer;
@@ -44,6 +46,30 @@ public class MessageGroupBase {
     
     private static final boolean    debug = false;
     
+    /*
+     * Clients on the same host as their server may connect over a unix domain socket rather than TCP.
+     * This is only used when enabled and when the runtime supports unix domain socket channels (Java 16+).
+     * Servers listen on a socket named for the DHT and port in unixDomainSocketDirProperty; clients use
+     * the socket if it exists, and fall back to TCP otherwise.
+     */
+    public static final String	unixDomainSocketsProperty = MessageGroupBase.class.getPackage().getName() + ".UnixDomainSockets";
+    public static final boolean	defaultUnixDomainSockets = false;
+    public static final String	unixDomainSocketDirProperty = MessageGroupBase.class.getPackage().getName() + ".UnixDomainSocketDir";
+    public static final String	defaultUnixDomainSocketDir = "/tmp/silverking/uds";
+    private static final boolean	unixDomainSocketsEnabled;
+    private static final File	unixDomainSocketDir;
+    
+    static {
+        boolean	unixDomainSockets;
+        
+        unixDomainSockets = PropertiesHelper.systemHelper.getBoolean(unixDomainSocketsProperty, defaultUnixDomainSockets);
+        unixDomainSocketsEnabled = unixDomainSockets && UnixDomainSocketUtil.isAvailable();
+        unixDomainSocketDir = new File(PropertiesHelper.systemHelper.getString(unixDomainSocketDirProperty, defaultUnixDomainSocketDir));
+        if (unixDomainSockets) {
+            Log.warningf("%s %s available %s", unixDomainSocketsProperty, unixDomainSockets, UnixDomainSocketUtil.isAvailable());
+        }
+    }
+    
     public MessageGroupBase(int port, int incomingConnectionBacklog,  
                             MessageGroupReceiver messageGroupReceiver, 
                             AbsMillisTimeSource deadlineTimeSource,
@@ -131,6 +157,44 @@ public class MessageGroupBase {
         return myHostAndPort;
     }
     
+    /**
+     * @return true if unix domain sockets are enabled and supported by this runtime
+     */
+    public static boolean unixDomainSocketsEnabled() {
+        return unixDomainSocketsEnabled;
+    }
+    
+    /**
+     * @param dhtName
+     * @param port
+     * @return the path of the unix domain socket of the server of the given DHT on the given port
+     */
+    public static File unixDomainSocketPath(String dhtName, int port) {
+        return new File(unixDomainSocketDir, dhtName +"."+ port +".sock");
+    }
+    
+    /**
+     * Also accept connections on a unix domain socket at the given path.
+     * @param path
+     * @throws IOException
+     */
+    public void listenOnUnixDomainSocket(File path) throws IOException {
+        paServer.listenOnUnixDomainSocket(path);
+    }
+    
+    /**
+     * Connect to dest over the unix domain socket at the given path.
+     * @param dest
+     * @param path
+     */
+    public void setUnixDomainSocketPath(AddrAndPort dest, File path) {
+        try {
+            paServer.setUnixDomainSocketPath(dest.toInetSocketAddress(), path);
+        } catch (UnknownHostException uhe) {
+            throw new RuntimeException(uhe);
+        }
+    }
+    
     /*
     @Override
     public void receive(MessageGroup message, MessageGroupConnection connection) {
@@ -166,7 +230,8 @@ public class MessageGroupBase {
             	} else {
             		_dest = dest;
             	}
-                paServer.sendAsynchronous(_dest.toInetSocketAddress(), mg, null, null, mg.getDeadlineAbsMillis(deadlineTimeSource));
+                paServer.sendAsynchronous(_dest.toInetSocketAddress(), mg, null, null, mg.getDeadlineAbsMillis(deadlineTimeSource), 
+                                          mg.getUUID());
             } catch (UnknownHostException uhe) {
                 throw new RuntimeException(uhe);
             }
@@ -177,6 +242,13 @@ public class MessageGroupBase {
 		return (MessageGroupConnection)paServer.getConnection(dest, deadline);
 	}
 	
+	/**
+	 * @return the connection to dest used for messages with the given uuid
+	 */
+	public MessageGroupConnection getConnection(AddrAndPort dest, long deadline, UUIDBase uuid) throws ConnectException {
+		return (MessageGroupConnection)paServer.getConnection(dest, deadline, uuid);
+	}
+	
     public void removeAndCloseConnection(MessageGroupConnection connection) {
         paServer.removeAndCloseConnection(connection);
     }
@@ -27,9 +27,8 @@ public class OutgoingMessageGroup extends OutgoingData {
     
     private long    bytesWritten;
     
-    private static final int    numHeaderBuffers = 2;
-    private static final int    leadingBufferIndex = 0;
-    private static final int    bufferLengthsBufferIndex = 1;
+    private static final int    numHeaderBuffers = 1;
+    private static final int    headerBufferIndex = 0;
     
     private static final boolean    displayContentsForDebug = false;
     
@@ -60,23 +59,19 @@ public class OutgoingMessageGroup extends OutgoingData {
     private static ByteBuffer[] createBuffers(MessageGroup messageGroup) {
         ByteBuffer[]    msg;
         ByteBuffer[]    mgBuffers;
-        byte[]          bufferLengthsArray;
         ByteBuffer      leadingBuffer;
         byte[]          originator;
         
-        // FUTURE - think about the use of fewer buffers
-        // for instance, one simple optimization is to combine
-        // the leadingbuffer and buffer lengths buffer
-        
-        // we add two buffers to the buffers in the message group:
-        // 0) leadingBuffer which contains the message header
-        // 1) a buffer lengths buffer containing the length of all
-        // user byte buffers
+        // we add a single header buffer to the buffers in the message group.
+        // The header buffer contains the leading buffer (the message header)
+        // followed by the lengths of all user byte buffers. The message
+        // group's buffers are written directly; they are not copied.
 
         mgBuffers = messageGroup.getBuffers();
         assert mgBuffers.length > 0;
 
-        leadingBuffer = ByteBuffer.allocate(MessageFormat.leadingBufferSize);
+        leadingBuffer = ByteBuffer.allocate(MessageFormat.leadingBufferSize 
+                                            + mgBuffers.length * NumConversion.BYTES_PER_INT);
         leadingBuffer.put(MessageGroupGlobals.preamble);
         leadingBuffer.put(MessageGroupGlobals.protocolVersion);
         leadingBuffer.putInt(mgBuffers.length);
@@ -99,17 +94,15 @@ public class OutgoingMessageGroup extends OutgoingData {
         //        IPAddrUtil.addrAndPortToString(messageGroup.getOriginator()), messageGroup.getDeadlineRelativeMillis());
         leadingBuffer.putInt(messageGroup.getDeadlineRelativeMillis());
         leadingBuffer.put((byte)messageGroup.getForwardingMode().ordinal());
-        leadingBuffer.position(0);
+        leadingBuffer.position(MessageFormat.leadingBufferSize);
         
         msg = new ByteBuffer[numHeaderBuffers + mgBuffers.length];
-        msg[leadingBufferIndex] = leadingBuffer;
-        bufferLengthsArray = new byte[mgBuffers.length * NumConversion.BYTES_PER_INT];
-        msg[bufferLengthsBufferIndex] = ByteBuffer.wrap(bufferLengthsArray);
+        msg[headerBufferIndex] = leadingBuffer;
         for (int i = 0; i < mgBuffers.length; i++) {
-            NumConversion.intToBytes(mgBuffers[i].remaining(), bufferLengthsArray, 
-                                     i * NumConversion.BYTES_PER_INT);
+            leadingBuffer.putInt(mgBuffers[i].remaining());
             msg[numHeaderBuffers + i] = mgBuffers[i];
         }                
+        leadingBuffer.flip();
         // FUTURE - think about whether to create buffers here to pipeline more...
         return msg;
     }    
@@ -19,10 +19,18 @@ public final class ProtoPutForwardMessageGroup extends ProtoValueMessageGroupBas
     public ProtoPutForwardMessageGroup(UUIDBase uuid, long context,
             byte[] originator, ByteBuffer optionsByteBuffer,
             List<MessageGroupKeyEntry> destEntries, ChecksumType checksumType, int deadlineRelativeMillis) {
+        this(uuid, context, originator, optionsByteBuffer, destEntries, checksumType, deadlineRelativeMillis, 
+                ForwardingMode.DO_NOT_FORWARD);
+    }
+    
+    public ProtoPutForwardMessageGroup(UUIDBase uuid, long context,
+            byte[] originator, ByteBuffer optionsByteBuffer,
+            List<MessageGroupKeyEntry> destEntries, ChecksumType checksumType, int deadlineRelativeMillis, 
+            ForwardingMode forward) {
         super(MessageType.PUT, uuid, context, destEntries.size(), 
                 totalLength(destEntries), 
                 (ByteBuffer)optionsByteBuffer.asReadOnlyBuffer(), PutMessageFormat.size(checksumType) - KeyedMessageFormat.baseBytesPerKeyEntry, 
-                originator, deadlineRelativeMillis, ForwardingMode.DO_NOT_FORWARD);
+                originator, deadlineRelativeMillis, forward);
         if (debug) {
             System.out.println("\toptionsByteBuffer "+ optionsByteBuffer +"\t last "+ (bufferList.size() - 1));
         }
@@ -1,6 +1,5 @@
 package com.ms.silverking.cloud.dht.net;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Set;
 
@@ -8,11 +7,9 @@ import com.ms.silverking.cloud.dht.PutOptions;
 import com.ms.silverking.cloud.dht.SecondaryTarget;
 import com.ms.silverking.cloud.dht.ValueCreator;
 import com.ms.silverking.cloud.dht.client.ChecksumType;
-import com.ms.silverking.cloud.dht.client.Compression;
 import com.ms.silverking.cloud.dht.client.crypto.EncrypterDecrypter;
 import com.ms.silverking.cloud.dht.client.impl.Checksum;
 import com.ms.silverking.cloud.dht.client.impl.ChecksumProvider;
-import com.ms.silverking.cloud.dht.client.impl.CodecProvider;
 import com.ms.silverking.cloud.dht.client.impl.SegmentationUtil;
 import com.ms.silverking.cloud.dht.client.serialization.BufferDestSerializer;
 import com.ms.silverking.cloud.dht.common.CCSSUtil;
@@ -20,7 +17,6 @@ import com.ms.silverking.cloud.dht.common.DHTKey;
 import com.ms.silverking.cloud.dht.common.MessageType;
 import com.ms.silverking.cloud.dht.net.protocol.KeyedMessageFormat;
 import com.ms.silverking.cloud.dht.net.protocol.PutMessageFormat;
-import com.ms.silverking.compression.Compressor;
 import com.ms.silverking.id.UUIDBase;
 import com.ms.silverking.io.util.BufferUtil;
 import com.ms.silverking.numeric.NumConversion;
@@ -31,12 +27,9 @@ import com.ms.silverking.util.ArrayUtil;
  */
 public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
     private final BufferDestSerializer<V> bdSerializer;
-    private final Compressor  compressor;
     private final Checksum    checksum;
     private final boolean     checksumCompressedValues;
-    private final EncrypterDecrypter	encrypterDecrypter;
-    
-    private static final byte[] emptyValue = new byte[0];
+    private final PutValuePreparer<V>	valuePreparer;
 
     public ProtoPutMessageGroup(UUIDBase uuid, long context, 
                                 int putOpSize, int valueBytes, 
@@ -54,10 +47,8 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
         
         this.bdSerializer = bdSerializer;
         this.checksum = ChecksumProvider.getChecksum(checksumType);
-        Compression compression = putOptions.getCompression();
-        compressor = CodecProvider.getCompressor(compression);
         optionsByteBuffer.putLong(version);
-        optionsByteBuffer.putShort(CCSSUtil.createCCSS(compression, checksumType));
+        optionsByteBuffer.putShort(CCSSUtil.createCCSS(putOptions.getCompression(), checksumType));
         optionsByteBuffer.put(creator);
         secondaryTargets = putOptions.getSecondaryTargets();
         if (secondaryTargets == null) {
@@ -73,7 +64,8 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
             optionsByteBuffer.put(putOptions.getUserData());
         }
         checksumCompressedValues = putOptions.getChecksumCompressedValues(); 
-        this.encrypterDecrypter = encrypterDecrypter;
+        valuePreparer = new PutValuePreparer<>(bdSerializer, context, putOptions.getCompression(), checksumType, 
+                                               checksumCompressedValues, encrypterDecrypter);
     }
 
     public long getVersion() {
@@ -107,6 +99,19 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
      * @return
      */
     public ValueAdditionResult addValue(DHTKey dhtKey, V value) {
+        return addValue(dhtKey, value, null);
+    }
+    
+    /**
+     * Add a value to this message group.
+     * 
+     * @param dhtKey
+     * @param value
+     * @param preparedValue value prepared by a PutValuePreparer for this group's options, or null to 
+     * prepare the value here
+     * @return
+     */
+    public ValueAdditionResult addValue(DHTKey dhtKey, V value, PutValuePreparer.PreparedValue preparedValue) {
         boolean copyValue;
         int     uncompressedValueSize;
         int     compressedValueSize;
@@ -121,52 +126,19 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
         int		_bufferIndex;
         int     _bufferPosition;
         
-        // FUTURE - in the future offload serialization, compression and/or checksum computation to a worker?
-        // for values over some threshold? or for number of keys over some threshold?
+        // Serialization, compression, and encryption may have been performed ahead of time,
+        // possibly on another thread. See AsyncPutOperationImpl.
+        if (preparedValue == null && valuePreparer.preparationRequired()) {
+            preparedValue = valuePreparer.prepare(value, false);
+        }
         
-        // compression
-        if (compressor != null || encrypterDecrypter != null) {
-            ByteBuffer  serializedBytes;
-            
-            serializedBytes = bdSerializer.serializeToBuffer(value);
-            //System.out.println("serializedBytes: "+ serializedBytes);
-            //System.out.println("serializedBytes: "+ StringUtil.byteBufferToHexString(serializedBytes));
-            
-            bytesToChecksum = serializedBytes.array();
-            bytesToChecksumOffset = serializedBytes.position();
-            bytesToChecksumLength = serializedBytes.remaining();
-            uncompressedValueSize = bytesToChecksumLength;
-            bytesToChecksumBuf = serializedBytes;
-            
-            if (serializedBytes.limit() != 0) {
-                try {
-                	if (compressor != null) {
-                		bytesToStore = compressor.compress(serializedBytes.array(), 
-                                                       serializedBytes.position(), 
-                                                       serializedBytes.remaining());
-	                    if (bytesToStore.length >= bytesToChecksumLength) {
-	                        // If compression is not useful, then use the
-	                        // uncompressed data. Note that NamespaceStore must
-	                        // notice this change in order to correctly set the
-	                        // compression type to NONE since the message will
-	                        // still show the attempted compression type.
-	                        assert serializedBytes.position() == 0;
-	                        bytesToStore = serializedBytes.array();
-	                    }
-                	} else {
-                        bytesToStore = serializedBytes.array();
-                	}
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
-                }
-                if (encrypterDecrypter != null) {
-                	bytesToStore = encrypterDecrypter.encrypt(bytesToStore);
-                	bytesToChecksumBuf = ByteBuffer.wrap(bytesToStore);
-                }
-            } else {
-                //System.out.println("empty serialized bytes");
-                bytesToStore = emptyValue;
-            }
+        if (preparedValue != null) {
+            bytesToStore = preparedValue.getBytesToStore();
+            uncompressedValueSize = preparedValue.getUncompressedValueSize();
+            bytesToChecksumBuf = preparedValue.getBytesToChecksumBuf();
+            bytesToChecksum = bytesToChecksumBuf.array();
+            bytesToChecksumOffset = bytesToChecksumBuf.position();
+            bytesToChecksumLength = bytesToChecksumBuf.remaining();
             bytesToStorePosition = 0;
             bytesToStoreSize = bytesToStore.length;
             //System.out.println("bytesToStore: "+ StringUtil.byteArrayToHexString(bytesToStore));
@@ -265,9 +237,15 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
         checksum.checksum(bytesToChecksumBuf, keyByteBuffer);
         */
         
-        addValueHelper(dhtKey, _bufferIndex, _bufferPosition,
-                uncompressedValueSize, compressedValueSize,
-                bytesToChecksumBuf);
+        if (preparedValue != null && preparedValue.checksumComputed()) {
+            addValueHelper(dhtKey, _bufferIndex, _bufferPosition,
+                    uncompressedValueSize, compressedValueSize,
+                    preparedValue.getChecksum());
+        } else {
+            addValueHelper(dhtKey, _bufferIndex, _bufferPosition,
+                    uncompressedValueSize, compressedValueSize,
+                    bytesToChecksumBuf);
+        }
         
         //_size++;
         return ValueAdditionResult.Added;
@@ -301,12 +279,7 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
     private void addValueHelper(DHTKey dhtKey, int _bufferIndex, int _bufferPosition, 
                           int uncompressedValueSize, int compressedValueSize,
                           ByteBuffer bytesToChecksumBuf) {
-        // key byte buffer update
-        addKey(dhtKey);
-        keyByteBuffer.putInt(_bufferIndex);
-        keyByteBuffer.putInt(_bufferPosition);
-        keyByteBuffer.putInt(uncompressedValueSize);
-        keyByteBuffer.putInt(compressedValueSize);
+        addKeyEntry(dhtKey, _bufferIndex, _bufferPosition, uncompressedValueSize, compressedValueSize);
         
         // append the checksum
         if (uncompressedValueSize <= compressedValueSize || checksumCompressedValues) {
@@ -315,6 +288,29 @@ public final class ProtoPutMessageGroup<V> extends ProtoValueMessageGroupBase {
             checksum.emptyChecksum(keyByteBuffer);
         }
     }
+    
+    // precomputedChecksum is null when the empty checksum is to be used
+    private void addValueHelper(DHTKey dhtKey, int _bufferIndex, int _bufferPosition, 
+                          int uncompressedValueSize, int compressedValueSize,
+                          byte[] precomputedChecksum) {
+        addKeyEntry(dhtKey, _bufferIndex, _bufferPosition, uncompressedValueSize, compressedValueSize);
+        
+        // append the checksum
+        if (precomputedChecksum != null) {
+            keyByteBuffer.put(precomputedChecksum);
+        } else {
+            checksum.emptyChecksum(keyByteBuffer);
+        }
+    }
+    
+    private void addKeyEntry(DHTKey dhtKey, int _bufferIndex, int _bufferPosition, 
+                          int uncompressedValueSize, int compressedValueSize) {
+        addKey(dhtKey);
+        keyByteBuffer.putInt(_bufferIndex);
+        keyByteBuffer.putInt(_bufferPosition);
+        keyByteBuffer.putInt(uncompressedValueSize);
+        keyByteBuffer.putInt(compressedValueSize);
+    }
 
     /////////////////
     
@@ -70,8 +70,13 @@ public class ProtoRetrievalMessageGroup extends ProtoKeyedMessageGroup {
     
     public ProtoRetrievalMessageGroup(UUIDBase uuid, long context, InternalRetrievalOptions retrievalOptions,
             byte[] originator, Collection<DHTKey> keys, int deadlineRelativeMillis) {
+        this(uuid, context, retrievalOptions, originator, keys, deadlineRelativeMillis, ForwardingMode.DO_NOT_FORWARD);
+    }
+    
+    public ProtoRetrievalMessageGroup(UUIDBase uuid, long context, InternalRetrievalOptions retrievalOptions,
+            byte[] originator, Collection<DHTKey> keys, int deadlineRelativeMillis, ForwardingMode forward) {
         this(uuid, context, retrievalOptions, originator, keys.size(), 
-                deadlineRelativeMillis, ForwardingMode.DO_NOT_FORWARD);
+                deadlineRelativeMillis, forward);
         for (DHTKey key : keys) {
             addKey(key);
         }
@@ -0,0 +1,100 @@
+package com.ms.silverking.cloud.dht.net;
+
+import java.nio.ByteBuffer;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.MessageType;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.numeric.NumConversion;
+
+/**
+ * Requests a page of the keys stored in a namespace. Keys are scanned in ring coordinate order.
+ * A page contains keys with coordinates in [minCoordinate, maxCoordinate] that follow afterKey
+ * (if present).
+ *
+ * Clients send requests with ForwardingMode.FORWARD; the receiving node resolves the coordinate
+ * range to a single ring region and either scans locally or forwards the request to a primary
+ * replica of the region with ForwardingMode.DO_NOT_FORWARD.
+ */
+public class ProtoScanMessageGroup extends ProtoMessageGroup {
+    private boolean isNonEmpty;
+
+    // range of KeyUtil.keyToCoordinate()
+    public static final long    minScanCoordinate = Long.MIN_VALUE >> 1;
+    public static final long    maxScanCoordinate = Long.MAX_VALUE >> 1;
+
+    private static final int    dataBufferIndex = 0;
+    private static final int    uuidMSLOffset = 0;
+    private static final int    uuidLSLOffset = uuidMSLOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    minCoordinateOffset = uuidLSLOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    maxCoordinateOffset = minCoordinateOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    afterKeyMSLOffset = maxCoordinateOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    afterKeyLSLOffset = afterKeyMSLOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    maxKeysOffset = afterKeyLSLOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    hasAfterKeyOffset = maxKeysOffset + NumConversion.BYTES_PER_INT;
+    private static final int    dataBufferSize = hasAfterKeyOffset + 1;
+
+    public ProtoScanMessageGroup(UUIDBase uuid, long context, long minCoordinate, long maxCoordinate,
+                                 DHTKey afterKey, int maxKeys, byte[] originator, int deadlineRelativeMillis,
+                                 ForwardingMode forward) {
+        super(MessageType.SCAN, uuid, context, originator, deadlineRelativeMillis, forward);
+
+        ByteBuffer  buffer;
+
+        buffer = ByteBuffer.allocate(dataBufferSize);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putLong(minCoordinate);
+        buffer.putLong(maxCoordinate);
+        buffer.putLong(afterKey != null ? afterKey.getMSL() : 0);
+        buffer.putLong(afterKey != null ? afterKey.getLSL() : 0);
+        buffer.putInt(maxKeys);
+        buffer.put(afterKey != null ? (byte)1 : (byte)0);
+        bufferList.add(buffer);
+    }
+
+    @Override
+    public boolean isNonEmpty() {
+        return isNonEmpty;
+    }
+
+    public void setNonEmpty() {
+        isNonEmpty = true;
+    }
+
+    /////////////////////
+
+    public static long getUUIDMSL(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(uuidMSLOffset);
+    }
+
+    public static long getUUIDLSL(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(uuidLSLOffset);
+    }
+
+    public static long getMinCoordinate(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(minCoordinateOffset);
+    }
+
+    public static long getMaxCoordinate(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(maxCoordinateOffset);
+    }
+
+    /**
+     * @param mg
+     * @return the key that returned keys must follow, or null if there is no such key
+     */
+    public static DHTKey getAfterKey(MessageGroup mg) {
+        if (mg.getBuffers()[dataBufferIndex].get(hasAfterKeyOffset) != 0) {
+            return new SimpleKey(mg.getBuffers()[dataBufferIndex].getLong(afterKeyMSLOffset),
+                                 mg.getBuffers()[dataBufferIndex].getLong(afterKeyLSLOffset));
+        } else {
+            return null;
+        }
+    }
+
+    public static int getMaxKeys(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getInt(maxKeysOffset);
+    }
+}
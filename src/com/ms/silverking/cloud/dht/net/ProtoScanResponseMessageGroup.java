@@ -0,0 +1,89 @@
+package com.ms.silverking.cloud.dht.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.EnumValues;
+import com.ms.silverking.cloud.dht.common.MessageType;
+import com.ms.silverking.cloud.dht.common.OpResult;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.numeric.NumConversion;
+
+/**
+ * Response to a ProtoScanMessageGroup. Contains the keys found and the maximum coordinate
+ * that was scanned. If fewer keys than requested are returned, the scan has covered all
+ * coordinates up to and including maxCoordinate.
+ */
+public class ProtoScanResponseMessageGroup extends ProtoMessageGroup {
+    private static final int    dataBufferIndex = 0;
+    private static final int    uuidMSLOffset = 0;
+    private static final int    uuidLSLOffset = uuidMSLOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    maxCoordinateOffset = uuidLSLOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    numKeysOffset = maxCoordinateOffset + NumConversion.BYTES_PER_LONG;
+    private static final int    resultOffset = numKeysOffset + NumConversion.BYTES_PER_INT;
+    private static final int    keysOffset = resultOffset + 1;
+
+    private static final int    deadlineRelativeMillis = 10 * 60 * 1000;
+
+    public ProtoScanResponseMessageGroup(UUIDBase uuid, long context, OpResult result, long maxCoordinate,
+                                         List<DHTKey> keys, byte[] originator) {
+        super(MessageType.SCAN_RESPONSE, uuid, context, originator, deadlineRelativeMillis, ForwardingMode.FORWARD);
+
+        ByteBuffer  buffer;
+
+        buffer = ByteBuffer.allocate(keysOffset + 2 * NumConversion.BYTES_PER_LONG * keys.size());
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putLong(maxCoordinate);
+        buffer.putInt(keys.size());
+        buffer.put((byte)result.ordinal());
+        for (DHTKey key : keys) {
+            buffer.putLong(key.getMSL());
+            buffer.putLong(key.getLSL());
+        }
+        bufferList.add(buffer);
+    }
+
+    @Override
+    public boolean isNonEmpty() {
+        return true;
+    }
+
+    /////////////////////
+
+    public static long getUUIDMSL(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(uuidMSLOffset);
+    }
+
+    public static long getUUIDLSL(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(uuidLSLOffset);
+    }
+
+    public static long getMaxCoordinate(MessageGroup mg) {
+        return mg.getBuffers()[dataBufferIndex].getLong(maxCoordinateOffset);
+    }
+
+    public static OpResult getResult(MessageGroup mg) {
+        return EnumValues.opResult[mg.getBuffers()[dataBufferIndex].get(resultOffset)];
+    }
+
+    public static List<DHTKey> getKeys(MessageGroup mg) {
+        ByteBuffer      buffer;
+        int             numKeys;
+        List<DHTKey>    keys;
+
+        buffer = mg.getBuffers()[dataBufferIndex];
+        numKeys = buffer.getInt(numKeysOffset);
+        keys = new ArrayList<>(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            int offset;
+
+            offset = keysOffset + i * 2 * NumConversion.BYTES_PER_LONG;
+            keys.add(new SimpleKey(buffer.getLong(offset), buffer.getLong(offset + NumConversion.BYTES_PER_LONG)));
+        }
+        return keys;
+    }
+}
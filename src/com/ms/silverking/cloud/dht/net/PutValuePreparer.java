@@ -0,0 +1,158 @@
+package com.ms.silverking.cloud.dht.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.ms.silverking.cloud.dht.client.ChecksumType;
+import com.ms.silverking.cloud.dht.client.Compression;
+import com.ms.silverking.cloud.dht.client.crypto.EncrypterDecrypter;
+import com.ms.silverking.cloud.dht.client.impl.Checksum;
+import com.ms.silverking.cloud.dht.client.impl.ChecksumProvider;
+import com.ms.silverking.cloud.dht.client.impl.CodecProvider;
+import com.ms.silverking.cloud.dht.client.serialization.BufferDestSerializer;
+import com.ms.silverking.compression.Compressor;
+import com.ms.silverking.compression.ScratchArray;
+
+/**
+ * Serializes, compresses, and encrypts put values prior to their addition to a ProtoPutMessageGroup.
+ * Preparation is independent of any message group, so values may be prepared on any thread and
+ * added later. Values that are neither compressed nor encrypted are serialized directly into the
+ * message group and are not prepared.
+ */
+public final class PutValuePreparer<V> {
+    private final BufferDestSerializer<V> bdSerializer;
+    private final Compressor  compressor;
+    private final Checksum    checksum;
+    private final boolean     checksumCompressedValues;
+    private final EncrypterDecrypter	encrypterDecrypter;
+
+    private static final byte[] emptyValue = new byte[0];
+    
+    private static final ScratchArray   compressionScratch = new ScratchArray(1024 * 1024);
+
+    public PutValuePreparer(BufferDestSerializer<V> bdSerializer, long context, Compression compression, 
+                            ChecksumType checksumType, boolean checksumCompressedValues, 
+                            EncrypterDecrypter encrypterDecrypter) {
+        this.bdSerializer = bdSerializer;
+        compressor = CodecProvider.getCompressor(compression, context);
+        checksum = ChecksumProvider.getChecksum(checksumType);
+        this.checksumCompressedValues = checksumCompressedValues;
+        this.encrypterDecrypter = encrypterDecrypter;
+    }
+
+    /**
+     * @return true if values must be prepared before they are added to a message group
+     */
+    public boolean preparationRequired() {
+        return compressor != null || encrypterDecrypter != null;
+    }
+
+    /**
+     * Serialize, compress, and encrypt the given value.
+     * @param value
+     * @param computeChecksum if true, the checksum is also computed here rather than when
+     * the value is added to a message group
+     * @return the prepared value
+     */
+    public PreparedValue prepare(V value, boolean computeChecksum) {
+        ByteBuffer  serializedBytes;
+        ByteBuffer  bytesToChecksumBuf;
+        byte[]      bytesToStore;
+        int         uncompressedValueSize;
+        byte[]      _checksum;
+
+        serializedBytes = bdSerializer.serializeToBuffer(value);
+        uncompressedValueSize = serializedBytes.remaining();
+        bytesToChecksumBuf = serializedBytes;
+
+        if (serializedBytes.limit() != 0) {
+            try {
+            	if (compressor != null) {
+                    byte[]  compressed;
+                    int     compressedLength;
+                    
+                    // Compress into per-thread scratch space bounded by the uncompressed size so
+                    // that a result is only allocated when compression is useful
+                    compressed = compressionScratch.get(uncompressedValueSize);
+                    compressedLength = compressor.compress(serializedBytes.duplicate(), 
+                                                           ByteBuffer.wrap(compressed, 0, uncompressedValueSize - 1));
+                    if (compressedLength < 0) {
+                        // If compression is not useful, then use the
+                        // uncompressed data. Note that NamespaceStore must
+                        // notice this change in order to correctly set the
+                        // compression type to NONE since the message will
+                        // still show the attempted compression type.
+                        assert serializedBytes.position() == 0;
+                        bytesToStore = serializedBytes.array();
+                    } else {
+                        bytesToStore = Arrays.copyOf(compressed, compressedLength);
+                    }
+            	} else {
+                    bytesToStore = serializedBytes.array();
+            	}
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            if (encrypterDecrypter != null) {
+            	bytesToStore = encrypterDecrypter.encrypt(bytesToStore);
+            	bytesToChecksumBuf = ByteBuffer.wrap(bytesToStore);
+            }
+        } else {
+            bytesToStore = emptyValue;
+        }
+
+        if (computeChecksum) {
+            if (uncompressedValueSize <= bytesToStore.length || checksumCompressedValues) {
+                _checksum = checksum.checksum(bytesToChecksumBuf);
+            } else {
+                _checksum = null;
+            }
+        } else {
+            _checksum = null;
+        }
+        return new PreparedValue(bytesToStore, uncompressedValueSize, bytesToChecksumBuf,
+                                 computeChecksum, _checksum);
+    }
+
+    /**
+     * A serialized, compressed, and encrypted value. If the checksum was computed during
+     * preparation, a null checksum indicates that the empty checksum is to be used.
+     */
+    public static final class PreparedValue {
+        private final byte[]      bytesToStore;
+        private final int         uncompressedValueSize;
+        private final ByteBuffer  bytesToChecksumBuf;
+        private final boolean     checksumComputed;
+        private final byte[]      checksum;
+
+        PreparedValue(byte[] bytesToStore, int uncompressedValueSize, ByteBuffer bytesToChecksumBuf,
+                      boolean checksumComputed, byte[] checksum) {
+            this.bytesToStore = bytesToStore;
+            this.uncompressedValueSize = uncompressedValueSize;
+            this.bytesToChecksumBuf = bytesToChecksumBuf;
+            this.checksumComputed = checksumComputed;
+            this.checksum = checksum;
+        }
+
+        byte[] getBytesToStore() {
+            return bytesToStore;
+        }
+
+        int getUncompressedValueSize() {
+            return uncompressedValueSize;
+        }
+
+        ByteBuffer getBytesToChecksumBuf() {
+            return bytesToChecksumBuf;
+        }
+
+        boolean checksumComputed() {
+            return checksumComputed;
+        }
+
+        byte[] getChecksum() {
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.ms.silverking.cloud.dht.net.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ms.silverking.cloud.dht.common.MessageType;
+import com.ms.silverking.cloud.dht.common.SystemTimeUtil;
+import com.ms.silverking.cloud.dht.net.ForwardingMode;
+import com.ms.silverking.cloud.dht.net.MessageGroup;
+import com.ms.silverking.cloud.dht.net.MessageGroupBase;
+import com.ms.silverking.cloud.dht.net.MessageGroupConnection;
+import com.ms.silverking.cloud.dht.net.MessageGroupReceiver;
+import com.ms.silverking.cloud.dht.net.ProtoPingAckMessageGroup;
+import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.net.IPAndPort;
+import com.ms.silverking.net.async.OutgoingData;
+import com.ms.silverking.net.async.PersistentAsyncServer;
+import com.ms.silverking.thread.ThreadUtil;
+import com.ms.silverking.thread.lwt.LWTPoolProvider;
+import com.ms.silverking.time.SimpleStopwatch;
+import com.ms.silverking.time.Stopwatch;
+
+/**
+ * Two node bulk throughput test for MessageGroupBase. The client keeps a window of messages of
+ * a fixed size outstanding to the server; the server acknowledges each message. Run with
+ * -Dcom.ms.silverking.net.async.ConnectionsPerPeer=n on both nodes to measure striping of
+ * messages over multiple connections, and with numSelectorControllers >= n so that each
+ * connection is served by its own selector thread. Run both nodes on one host with
+ * -Dcom.ms.silverking.cloud.dht.net.UnixDomainSockets=true (Java 16+) to measure a unix domain
+ * socket connection rather than TCP.
+ */
+public class MessageGroupThroughputTest implements MessageGroupReceiver {
+    private final MessageGroupBase  mgBase;
+    private final Mode      mode;
+    private final Semaphore window;
+    private final AtomicLong    messagesAcked;
+    private final AtomicLong    bytesAcked;
+    private final int       messageBytes;
+
+    private enum Mode {client, server};
+
+    private static final int    serverPort = 7631;
+    private static final String selectorControllerClass = "ThroughputTest";
+    private static final String unixDomainSocketName = "ThroughputTest";
+    private static final int    deadlineRelativeMillis = 5 * 60 * 1000;
+    private static final double displayIntervalSeconds = 10.0;
+    private static final double extraSeconds = 60.0;
+    private static final String numSelectorControllersProperty = MessageGroupThroughputTest.class.getName() + ".NumSelectorControllers";
+    private static final int    defaultNumSelectorControllers = 8;
+
+    public MessageGroupThroughputTest(Mode mode, int numSelectorControllers, int windowSize, int messageBytes) throws IOException {
+        this.mode = mode;
+        this.messageBytes = messageBytes;
+        window = new Semaphore(windowSize);
+        messagesAcked = new AtomicLong();
+        bytesAcked = new AtomicLong();
+        mgBase = new MessageGroupBase(mode == Mode.server ? serverPort : 0, this, SystemTimeUtil.systemTimeSource,
+                                      null, Integer.MAX_VALUE, numSelectorControllers, selectorControllerClass);
+        if (mode == Mode.server && MessageGroupBase.unixDomainSocketsEnabled()) {
+            mgBase.listenOnUnixDomainSocket(MessageGroupBase.unixDomainSocketPath(unixDomainSocketName, serverPort));
+        }
+        mgBase.enable();
+    }
+
+    private void runServer(double durationSeconds) {
+        ThreadUtil.sleepSeconds(durationSeconds + extraSeconds);
+    }
+
+    private void runClient(double durationSeconds, IPAndPort server) throws InterruptedException {
+        ByteBuffer  payload;
+        Stopwatch   sw;
+        Stopwatch   displaySW;
+
+        if (MessageGroupBase.unixDomainSocketsEnabled()) {
+            mgBase.setUnixDomainSocketPath(server, MessageGroupBase.unixDomainSocketPath(unixDomainSocketName, server.getPort()));
+        }
+        payload = ByteBuffer.allocateDirect(messageBytes);
+        sw = new SimpleStopwatch();
+        displaySW = new SimpleStopwatch();
+        do {
+            MessageGroup    mg;
+
+            window.acquire();
+            mg = new MessageGroup(MessageType.OP_NOP, 0, new UUIDBase(), 0, new ByteBuffer[]{payload.duplicate()},
+                                  mgBase.getMyID(), deadlineRelativeMillis, ForwardingMode.FORWARD);
+            mgBase.send(mg, server);
+            if (displaySW.getSplitSeconds() > displayIntervalSeconds) {
+                displayStats(sw.getSplitSeconds());
+                displaySW.reset();
+            }
+        } while (sw.getSplitSeconds() < durationSeconds);
+        sw.stop();
+        displayStats(sw.getElapsedSeconds());
+    }
+
+    private void displayStats(double time) {
+        System.out.printf("connectionsPerPeer %s  messages %d  %.1f msgs/s  %.1f MB/s\n",
+                          System.getProperty(PersistentAsyncServer.connectionsPerPeerProperty,
+                                             Integer.toString(PersistentAsyncServer.defaultConnectionsPerPeer)),
+                          messagesAcked.get(), (double)messagesAcked.get() / time,
+                          (double)bytesAcked.get() / time / (1024.0 * 1024.0));
+    }
+
+    @Override
+    public void receive(MessageGroup message, MessageGroupConnection connection) {
+        switch (mode) {
+        case client:
+            messagesAcked.incrementAndGet();
+            bytesAcked.addAndGet(messageBytes);
+            window.release();
+            break;
+        case server:
+            try {
+                MessageGroup    ack;
+
+                ack = new ProtoPingAckMessageGroup(mgBase.getMyID(), message.getUUID()).toMessageGroup();
+                connection.sendAsynchronous(ack, SystemTimeUtil.systemTimeSource.absTimeMillis() + deadlineRelativeMillis);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            break;
+        default: throw new RuntimeException("panic");
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length != 2 && args.length != 5) {
+                System.out.println("server <durationSeconds>");
+                System.out.println("or");
+                System.out.println("client <durationSeconds> <serverIP:port> <messageBytes> <windowSize>");
+                System.out.println("numSelectorControllers is taken from "+ numSelectorControllersProperty);
+            } else {
+                Mode    mode;
+                double  durationSeconds;
+                int     numSelectorControllers;
+                MessageGroupThroughputTest  test;
+
+                LWTPoolProvider.createDefaultWorkPools();
+                OutgoingData.setAbsMillisTimeSource(SystemTimeUtil.systemTimeSource);
+                mode = Mode.valueOf(args[0]);
+                durationSeconds = Double.parseDouble(args[1]);
+                numSelectorControllers = Integer.getInteger(numSelectorControllersProperty, defaultNumSelectorControllers);
+                switch (mode) {
+                case server:
+                    test = new MessageGroupThroughputTest(mode, numSelectorControllers, 0, 0);
+                    test.runServer(durationSeconds);
+                    break;
+                case client:
+                    test = new MessageGroupThroughputTest(mode, numSelectorControllers,
+                                                          Integer.parseInt(args[4]), Integer.parseInt(args[3]));
+                    test.runClient(durationSeconds, new IPAndPort(args[2]));
+                    break;
+                default: throw new RuntimeException("panic");
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+}
@@ -13,7 +13,7 @@ import com.ms.silverking.cloud.management.MetaToolOptions;
 import com.ms.silverking.collection.CollectionUtil;
 import com.ms.silverking.io.IOUtil;
 
-public class ServerSetExtensionZK<M extends MetaPaths> extends MetaToolModuleBase<ServerSet,M> {
+public class ServerSetExtensionZK<M extends MetaPathsBase> extends MetaToolModuleBase<ServerSet,M> {
     private static final char   delimiterChar = '\n';
     private static final String delimiterString = "" + delimiterChar;
     
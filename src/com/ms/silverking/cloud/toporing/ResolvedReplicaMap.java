@@ -27,6 +27,9 @@ import com.ms.silverking.net.IPAndPort;
 public class ResolvedReplicaMap {
     private final NavigableMap<Long,RingEntry>  entryMap;
     private final NavigableMap<Long,MapEntry>   replicaMap;
+    // Flat copy of replicaMap used for key lookups; built by computeReplicaSet()
+    private long[]      lookupCoordinates;
+    private MapEntry[]  lookupEntries;
     private final HashedListMap<IPAndPort,RingEntry>[] replicaEntries;
     private final List<RingRegion>  regions;
     private Set<IPAndPort>    allReplicas;
@@ -84,6 +87,8 @@ public class ResolvedReplicaMap {
         entryMap.put(entry.getRegion().getStart(), entry);
         replicaMap.put(entry.getRegion().getStart(), mapEntry);
         regions.add(entry.getRegion());
+        lookupCoordinates = null;
+        lookupEntries = null;
         
         for (OwnerQueryMode oqm : EnumValues.ownerQueryMode) {
             if (debug) {
@@ -119,7 +124,58 @@ public class ResolvedReplicaMap {
     }
     
     private MapEntry getEntry(DHTKey key) {
-        return replicaMap.floorEntry(KeyUtil.keyToCoordinate(key)).getValue();
+        long[]  _lookupCoordinates;
+        
+        _lookupCoordinates = lookupCoordinates;
+        if (_lookupCoordinates != null) {
+            return lookupEntries[floorIndex(_lookupCoordinates, KeyUtil.keyToCoordinate(key))];
+        } else {
+            return replicaMap.floorEntry(KeyUtil.keyToCoordinate(key)).getValue();
+        }
+    }
+    
+    /**
+     * Find the last coordinate that is <= the given coordinate. The loop body compiles to a
+     * conditional move rather than a branch, so the search does not suffer branch mispredictions.
+     * @param coordinates sorted region start coordinates
+     * @param coordinate
+     * @return index of the region containing the coordinate
+     */
+    static int floorIndex(long[] coordinates, long coordinate) {
+        int base;
+        int n;
+        
+        base = 0;
+        n = coordinates.length;
+        while (n > 1) {
+            int half;
+            
+            half = n >>> 1;
+            base = coordinates[base + half] <= coordinate ? base + half : base;
+            n -= half;
+        }
+        if (coordinates[base] > coordinate) {
+            // the coordinate precedes the first region start; the last region wraps around to cover it
+            base = coordinates.length - 1;
+        }
+        return base;
+    }
+    
+    private void buildLookupTable() {
+        long[]      _lookupCoordinates;
+        MapEntry[]  _lookupEntries;
+        int         i;
+        
+        _lookupCoordinates = new long[replicaMap.size()];
+        _lookupEntries = new MapEntry[replicaMap.size()];
+        i = 0;
+        for (Map.Entry<Long,MapEntry> entry : replicaMap.entrySet()) {
+            _lookupCoordinates[i] = entry.getKey();
+            _lookupEntries[i] = entry.getValue();
+            i++;
+        }
+        lookupEntries = _lookupEntries;
+        lookupCoordinates = _lookupCoordinates;
     }
     
     public List<RingEntry> getReplicaEntries(IPAndPort replica, OwnerQueryMode oqm) {
@@ -313,6 +369,21 @@ public class ResolvedReplicaMap {
     	return null;
     }
 
+    /**
+     * @param coordinate
+     * @return the region containing the given coordinate
+     */
+    public RingRegion getRegion(long coordinate) {
+        Map.Entry<Long,RingEntry>   entry;
+        
+        entry = entryMap.floorEntry(coordinate);
+        if (entry == null) {
+            // the coordinate precedes the first region start; the last region wraps around to cover it
+            entry = entryMap.lastEntry();
+        }
+        return entry.getValue().getRegion();
+    }
+
     public List<RingRegion> getRegions() {
         return regions;
     }
@@ -325,6 +396,9 @@ public class ResolvedReplicaMap {
             _replicaSet.addAll(replicaEntry.keySet());
         }
         this.allReplicas = _replicaSet.build();
+        if (replicaMap.size() > 0) {
+            buildLookupTable();
+        }
     }
     
     public Set<IPAndPort> allReplicas() {
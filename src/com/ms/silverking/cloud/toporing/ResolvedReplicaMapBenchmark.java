@@ -0,0 +1,70 @@
+package com.ms.silverking.cloud.toporing;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.google.caliper.Param;
+import com.google.caliper.Runner;
+import com.google.caliper.SimpleBenchmark;
+import com.ms.silverking.cloud.ring.LongRingspace;
+
+/**
+ * Compares the flat coordinate table used by ResolvedReplicaMap for key lookups
+ * with the TreeMap floorEntry() lookup that it replaces.
+ */
+public class ResolvedReplicaMapBenchmark extends SimpleBenchmark {
+    @Param({"1000", "10000", "100000"})
+    private int numRegions;
+
+    private TreeMap<Long,Integer>   treeMap;
+    private long[]  coordinates;
+    private long[]  queries;
+
+    private static final int    numQueries = 1 << 16;
+
+    @Override
+    protected void setUp() {
+        Random  random;
+        long    regionSize;
+
+        random = new Random(numRegions);
+        regionSize = (LongRingspace.end - LongRingspace.start) / numRegions;
+        treeMap = new TreeMap<>();
+        coordinates = new long[numRegions];
+        for (int i = 0; i < numRegions; i++) {
+            coordinates[i] = LongRingspace.start + regionSize * i;
+            treeMap.put(coordinates[i], i);
+        }
+        queries = new long[numQueries];
+        for (int i = 0; i < numQueries; i++) {
+            queries[i] = LongRingspace.start + (long)(random.nextDouble() * (double)(LongRingspace.end - LongRingspace.start));
+            if (treeMap.floorEntry(queries[i]).getValue() != ResolvedReplicaMap.floorIndex(coordinates, queries[i])) {
+                throw new RuntimeException("Mismatch for "+ queries[i]);
+            }
+        }
+    }
+
+    public int timeTreeMapFloorEntry(int reps) {
+        int sum;
+
+        sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += treeMap.floorEntry(queries[i & (numQueries - 1)]).getValue();
+        }
+        return sum;
+    }
+
+    public int timeFloorIndex(int reps) {
+        int sum;
+
+        sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += ResolvedReplicaMap.floorIndex(coordinates, queries[i & (numQueries - 1)]);
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) {
+        Runner.main(ResolvedReplicaMapBenchmark.class, args);
+    }
+}
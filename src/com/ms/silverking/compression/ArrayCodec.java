@@ -0,0 +1,97 @@
+package com.ms.silverking.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implements the ByteBuffer compression methods for codecs whose underlying implementation operates
+ * on arrays. Heap buffers are passed to the codec in place. Direct buffers are staged through
+ * per-thread scratch arrays.
+ */
+abstract class ArrayCodec implements Compressor, Decompressor {
+    private static final int    maxRetainedScratchLength = 1024 * 1024;
+    
+    private static final ScratchArray   srcScratch = new ScratchArray(maxRetainedScratchLength);
+    private static final ScratchArray   destScratch = new ScratchArray(maxRetainedScratchLength);
+    
+    /**
+     * Compress length bytes of src starting at srcOffset into dest starting at destOffset.
+     * @return the compressed length, or -1 if the compressed value would exceed maxDestLength
+     */
+    abstract int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int maxDestLength) 
+                            throws IOException;
+    
+    /**
+     * Decompress length bytes of src starting at srcOffset into exactly uncompressedLength bytes
+     * of dest starting at destOffset.
+     */
+    abstract void decompress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int uncompressedLength)
+                            throws IOException;
+    
+    @Override
+    public int compress(ByteBuffer src, ByteBuffer dest) throws IOException {
+        byte[]  srcArray;
+        int     srcOffset;
+        int     length;
+        int     compressedLength;
+        
+        length = src.remaining();
+        if (src.hasArray()) {
+            srcArray = src.array();
+            srcOffset = src.arrayOffset() + src.position();
+        } else {
+            srcArray = srcScratch.get(length);
+            srcOffset = 0;
+            src.duplicate().get(srcArray, 0, length);
+        }
+        if (dest.hasArray()) {
+            compressedLength = compress(srcArray, srcOffset, length, 
+                                        dest.array(), dest.arrayOffset() + dest.position(), dest.remaining());
+            if (compressedLength >= 0) {
+                dest.position(dest.position() + compressedLength);
+            }
+        } else {
+            byte[]  destArray;
+            
+            destArray = destScratch.get(dest.remaining());
+            compressedLength = compress(srcArray, srcOffset, length, destArray, 0, dest.remaining());
+            if (compressedLength >= 0) {
+                dest.put(destArray, 0, compressedLength);
+            }
+        }
+        if (compressedLength >= 0) {
+            src.position(src.limit());
+        }
+        return compressedLength;
+    }
+    
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dest) throws IOException {
+        byte[]  srcArray;
+        int     srcOffset;
+        int     length;
+        int     uncompressedLength;
+        
+        length = src.remaining();
+        uncompressedLength = dest.remaining();
+        if (src.hasArray()) {
+            srcArray = src.array();
+            srcOffset = src.arrayOffset() + src.position();
+        } else {
+            srcArray = srcScratch.get(length);
+            srcOffset = 0;
+            src.duplicate().get(srcArray, 0, length);
+        }
+        if (dest.hasArray()) {
+            decompress(srcArray, srcOffset, length, dest.array(), dest.arrayOffset() + dest.position(), uncompressedLength);
+            dest.position(dest.limit());
+        } else {
+            byte[]  destArray;
+            
+            destArray = destScratch.get(uncompressedLength);
+            decompress(srcArray, srcOffset, length, destArray, 0, uncompressedLength);
+            dest.put(destArray, 0, uncompressedLength);
+        }
+        src.position(src.limit());
+    }
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.logging.Level;
 
 import org.apache.hadoop.io.compress.bzip2.CBZip2InputStream;
@@ -12,7 +13,7 @@ import org.apache.hadoop.io.compress.bzip2.CBZip2OutputStream;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.text.StringUtil;
 
-public class BZip2 implements Compressor, Decompressor {
+public class BZip2 extends ArrayCodec {
     private static final int   bzip2InitFactor = 10;	
     
     public BZip2() {
@@ -54,13 +55,21 @@ public class BZip2 implements Compressor, Decompressor {
 	}
 
 	public byte[] decompress(byte[] value, int offset, int length, int uncompressedLength) throws IOException {
+		byte[]				uncompressedValue;
+		
+		uncompressedValue = new byte[uncompressedLength];		
+		decompress(value, offset, length, uncompressedValue, 0, uncompressedLength);
+		return uncompressedValue;
+	}
+	
+    @Override
+	void decompress(byte[] value, int offset, int length, byte[] dest, int destOffset, int uncompressedLength) 
+	                throws IOException {
 		CBZip2InputStream	bzip2is;
 		InputStream 		inStream;
-		byte[]				uncompressedValue;
 		
 		//System.out.println(value.length +" "+ offset +" "+ length);
 		//System.out.println(StringUtil.byteArrayToHexString(value, offset, length));
-		uncompressedValue = new byte[uncompressedLength];		
 		inStream = new ByteArrayInputStream(value, offset, length);
 		try {
 			int		b;
@@ -81,13 +90,12 @@ public class BZip2 implements Compressor, Decompressor {
 				do {
 					int numRead;
 					
-					numRead = bzip2is.read(uncompressedValue, totalRead, uncompressedLength - totalRead);
+					numRead = bzip2is.read(dest, destOffset + totalRead, uncompressedLength - totalRead);
 					if (numRead < 0) {
 						throw new RuntimeException("panic");
 					}
 					totalRead += numRead;
 				} while (totalRead < uncompressedLength);
-				return uncompressedValue;
 			} finally {
 				bzip2is.close();
 			}
@@ -96,6 +104,68 @@ public class BZip2 implements Compressor, Decompressor {
 		}
 	}
 	
+    /**
+     * CBZip2OutputStream state cannot be reset, so a new stream is created for each value. Output
+     * is written directly into dest.
+     */
+    @Override
+    int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int maxDestLength) 
+                throws IOException {
+        BoundedArrayOutputStream    out;
+        CBZip2OutputStream          bzip2os;
+        
+        out = new BoundedArrayOutputStream(dest, destOffset, maxDestLength);
+        try {
+            out.write(0x42);
+            out.write(0x5a);
+            bzip2os = new CBZip2OutputStream(out);
+            bzip2os.write(src, srcOffset, length);
+            bzip2os.close();
+        } catch (DestFullException dfe) {
+            return -1;
+        }
+        return out.getLength();
+    }
+    
+    private static class DestFullException extends IOException {
+        private static final long serialVersionUID = 6214598386530361472L;
+    }
+    
+    private static class BoundedArrayOutputStream extends OutputStream {
+        private final byte[]    dest;
+        private final int       offset;
+        private final int       limit;
+        private int             length;
+        
+        BoundedArrayOutputStream(byte[] dest, int offset, int limit) {
+            this.dest = dest;
+            this.offset = offset;
+            this.limit = limit;
+        }
+        
+        int getLength() {
+            return length;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (length == limit) {
+                throw new DestFullException();
+            }
+            dest[offset + length] = (byte)b;
+            length++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > limit - length) {
+                throw new DestFullException();
+            }
+            System.arraycopy(b, off, dest, offset + length, len);
+            length += len;
+        }
+    }
+	
 	// for unit testing only
 	public static void main(String[] args) {
 		try {
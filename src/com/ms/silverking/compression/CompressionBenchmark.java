@@ -0,0 +1,163 @@
+package com.ms.silverking.compression;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures compression ratio and throughput of each codec on small JSON-like values, and of
+ * DictionaryZip with dictionaries trained on a disjoint set of similar values. Values that a codec
+ * does not shrink are counted at their uncompressed size, as they would be stored.
+ * 
+ * Usage: CompressionBenchmark [valueSize...]
+ */
+public class CompressionBenchmark {
+    private final int   valueSize;
+    private final List<byte[]>  values;
+    private final List<byte[]>  trainingValues;
+    
+    private static final int    numValues = 4000;
+    private static final int    numTrainingValues = 2000;
+    private static final int    iterations = 5;
+    private static final int[]  defaultValueSizes = {128, 512, 2048, 8192};
+    private static final int[]  dictionarySizes = {4 * 1024, 16 * 1024, 32 * 1024};
+    
+    private static final String[]   fieldNames = {"accountId", "symbol", "quantity", "price", "side", "status", 
+                                                  "createdAt", "updatedAt", "venue", "strategy", "trader", "notes"};
+    private static final String[]   symbols = {"IBM", "MSFT", "AAPL", "GOOG", "AMZN", "JPM", "GS", "MS", "C", "BAC"};
+    private static final String[]   statuses = {"NEW", "PARTIALLY_FILLED", "FILLED", "CANCELED", "REJECTED"};
+    private static final String[]   words = {"rebalance", "hedge", "client", "order", "overnight", "risk", "limit", 
+                                             "urgent", "review", "basket"};
+    
+    public CompressionBenchmark(int valueSize) {
+        Random  random;
+        
+        this.valueSize = valueSize;
+        random = new Random(valueSize);
+        values = createValues(numValues, random);
+        trainingValues = createValues(numTrainingValues, random);
+    }
+    
+    private List<byte[]> createValues(int n, Random random) {
+        List<byte[]>    _values;
+        
+        _values = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            _values.add(createValue(random));
+        }
+        return _values;
+    }
+    
+    /**
+     * Create a JSON array of records, truncated to valueSize bytes.
+     */
+    private byte[] createValue(Random random) {
+        StringBuilder   sb;
+        
+        sb = new StringBuilder();
+        sb.append('[');
+        while (sb.length() < valueSize) {
+            sb.append('{');
+            for (String fieldName : fieldNames) {
+                sb.append('"').append(fieldName).append("\":");
+                switch (fieldName) {
+                case "symbol": sb.append('"').append(symbols[random.nextInt(symbols.length)]).append('"'); break;
+                case "status": sb.append('"').append(statuses[random.nextInt(statuses.length)]).append('"'); break;
+                case "side": sb.append(random.nextBoolean() ? "\"BUY\"" : "\"SELL\""); break;
+                case "price": sb.append(String.format("%.2f", random.nextDouble() * 500.0)); break;
+                case "createdAt": 
+                case "updatedAt": sb.append(1500000000000L + random.nextInt(1000000000)); break;
+                case "notes": 
+                    sb.append('"');
+                    for (int i = 0; i < 3; i++) {
+                        sb.append(words[random.nextInt(words.length)]).append(' ');
+                    }
+                    sb.append('"');
+                    break;
+                default: sb.append(random.nextInt(100000)); break;
+                }
+                sb.append(',');
+            }
+            sb.setLength(sb.length() - 1);
+            sb.append("},");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(), valueSize);
+    }
+    
+    private void measure(String name, Compressor compressor, Decompressor decompressor) throws IOException {
+        List<byte[]>    compressedValues;
+        long    storedBytes;
+        double  compressionSeconds;
+        double  decompressionSeconds;
+        
+        compressedValues = new ArrayList<>(values.size());
+        storedBytes = 0;
+        for (byte[] value : values) {
+            byte[]  compressed;
+            
+            compressed = compressor.compress(value, 0, value.length);
+            compressedValues.add(compressed);
+            storedBytes += Math.min(compressed.length, value.length);
+            if (compressed.length < value.length 
+                    && !Arrays.equals(value, decompressor.decompress(compressed, 0, compressed.length, value.length))) {
+                throw new RuntimeException("Round trip failed for "+ name);
+            }
+        }
+        compressionSeconds = Double.MAX_VALUE;
+        decompressionSeconds = Double.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            long    t0;
+            
+            t0 = System.nanoTime();
+            for (byte[] value : values) {
+                compressor.compress(value, 0, value.length);
+            }
+            compressionSeconds = Math.min(compressionSeconds, (double)(System.nanoTime() - t0) / 1e9);
+            t0 = System.nanoTime();
+            for (byte[] compressed : compressedValues) {
+                if (compressed.length < valueSize) {
+                    decompressor.decompress(compressed, 0, compressed.length, valueSize);
+                }
+            }
+            decompressionSeconds = Math.min(decompressionSeconds, (double)(System.nanoTime() - t0) / 1e9);
+        }
+        System.out.printf("%6d  %-16s  ratio %5.2f  compress %8.0f values/s %7.1f MB/s  decompress %8.0f values/s %7.1f MB/s\n",
+                valueSize, name, (double)values.size() * valueSize / (double)storedBytes, 
+                values.size() / compressionSeconds, values.size() * valueSize / compressionSeconds / 1e6,
+                values.size() / decompressionSeconds, values.size() * valueSize / decompressionSeconds / 1e6);
+    }
+    
+    public void run() throws IOException {
+        measure("LZ4", new LZ4(), new LZ4());
+        measure("Snappy", new Snappy(), new Snappy());
+        measure("Zip", new Zip(), new Zip());
+        for (int dictionarySize : dictionarySizes) {
+            DictionaryZip   dictionaryZip;
+            
+            dictionaryZip = new DictionaryZip(new DictionaryTrainer().train(trainingValues, dictionarySize));
+            measure("DictionaryZip"+ (dictionarySize / 1024) +"K", dictionaryZip, dictionaryZip);
+        }
+    }
+    
+    public static void main(String[] args) {
+        try {
+            int[]   valueSizes;
+            
+            if (args.length > 0) {
+                valueSizes = new int[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    valueSizes[i] = Integer.parseInt(args[i]);
+                }
+            } else {
+                valueSizes = defaultValueSizes;
+            }
+            for (int valueSize : valueSizes) {
+                new CompressionBenchmark(valueSize).run();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
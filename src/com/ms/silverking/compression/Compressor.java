@@ -1,7 +1,21 @@
 package com.ms.silverking.compression;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface Compressor {
     public byte[] compress(byte[] rawValue, int offset, int length) throws IOException;
+    
+    /**
+     * Compress the remaining bytes of src into dest. Heap and direct buffers are supported.
+     * On success, src is fully consumed and dest's position is advanced by the compressed length.
+     * Implementations reuse per-thread codec state and do not allocate for heap buffers (except
+     * where noted by the implementation).
+     * @param src the value to compress
+     * @param dest the destination for the compressed value; at most dest.remaining() bytes are written 
+     * @return the compressed length, or -1 if the compressed value does not fit in dest.remaining() 
+     * bytes. Callers that size dest to the uncompressed length may treat -1 as "compression not useful".
+     * @throws IOException
+     */
+    public int compress(ByteBuffer src, ByteBuffer dest) throws IOException;
 }
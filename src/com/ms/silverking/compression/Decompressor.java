@@ -1,8 +1,19 @@
 package com.ms.silverking.compression;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface Decompressor {
     public byte[] decompress(byte[] value, int offset, int length, 
                              int uncompressedLength) throws IOException;
+    
+    /**
+     * Decompress the remaining bytes of src into dest. Heap and direct buffers are supported.
+     * dest.remaining() must be the uncompressed length; on return dest's position is at its
+     * limit and src is fully consumed.
+     * @param src the compressed value
+     * @param dest the destination for the uncompressed value
+     * @throws IOException
+     */
+    public void decompress(ByteBuffer src, ByteBuffer dest) throws IOException;
 }
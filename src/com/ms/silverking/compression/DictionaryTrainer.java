@@ -0,0 +1,236 @@
+package com.ms.silverking.compression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a preset compression dictionary from sample values. The dictionary is assembled from the
+ * sample segments that cover the most frequently occurring content: segments are scored by the
+ * number of samples that contain each of their d-byte substrings (d-mers), and the best segment
+ * from each epoch of the samples is selected. Once a segment is selected, its d-mers no longer
+ * contribute to the score of other segments so that the dictionary is not filled with repeats.
+ * This follows the approach of the "cover" dictionary builder used by Zstandard.
+ * 
+ * Since Zip matches nearer content with shorter codes, the highest scoring segments are placed at
+ * the end of the dictionary.
+ */
+public class DictionaryTrainer {
+    private final int   segmentLength;
+    private final int   dmerLength;
+    
+    public static final int defaultSegmentLength = 64;
+    public static final int defaultDMerLength = 8;
+    // Larger dictionaries improve compression only slightly for small values but slow both
+    // compression and decompression (see CompressionBenchmark)
+    public static final int defaultDictionarySize = 4 * 1024;
+    // zlib uses at most the final 32K of a preset dictionary
+    public static final int maxDictionarySize = 32 * 1024;
+    
+    public DictionaryTrainer(int segmentLength, int dmerLength) {
+        if (dmerLength < 1 || dmerLength > 8) {
+            throw new IllegalArgumentException("dmerLength must be in [1, 8]: "+ dmerLength);
+        }
+        if (segmentLength < dmerLength) {
+            throw new IllegalArgumentException("segmentLength < dmerLength");
+        }
+        this.segmentLength = segmentLength;
+        this.dmerLength = dmerLength;
+    }
+    
+    public DictionaryTrainer() {
+        this(defaultSegmentLength, defaultDMerLength);
+    }
+    
+    /**
+     * Build a dictionary from the given samples.
+     * @param samples representative values
+     * @param dictionarySize maximum dictionary size
+     * @return the dictionary; smaller than dictionarySize if the samples are small
+     */
+    public byte[] train(List<byte[]> samples, int dictionarySize) {
+        byte[]  data;
+        long[]  dmers;
+        boolean[]   validDMer;
+        Map<Long,Integer>   frequencies;
+        List<int[]> segments;
+        int     numEpochs;
+        int     epochLength;
+        int     selectedLength;
+        
+        if (dictionarySize > maxDictionarySize) {
+            throw new IllegalArgumentException("dictionarySize > maxDictionarySize");
+        }
+        data = concatenate(samples);
+        if (data.length <= dictionarySize) {
+            return data;
+        }
+        
+        // Identify the d-mer at each position and count the samples that contain each d-mer
+        dmers = new long[data.length];
+        validDMer = new boolean[data.length];
+        frequencies = new HashMap<>();
+        computeDMers(samples, data, dmers, validDMer, frequencies);
+        
+        // Select the best segment from each epoch
+        numEpochs = Math.max(dictionarySize / segmentLength, 1);
+        epochLength = Math.max(data.length / numEpochs, segmentLength);
+        segments = new ArrayList<>();
+        selectedLength = 0;
+        for (int epochStart = 0; epochStart + segmentLength <= data.length && selectedLength < dictionarySize; 
+                epochStart += epochLength) {
+            int[]   segment;
+            
+            segment = selectSegment(dmers, validDMer, frequencies, epochStart, 
+                                    Math.min(epochStart + epochLength, data.length));
+            if (segment != null) {
+                segments.add(segment);
+                selectedLength += segment[1];
+            }
+        }
+        return assemble(data, segments, dictionarySize);
+    }
+    
+    private static byte[] concatenate(List<byte[]> samples) {
+        byte[]  data;
+        int     length;
+        int     offset;
+        
+        length = 0;
+        for (byte[] sample : samples) {
+            length += sample.length;
+        }
+        data = new byte[length];
+        offset = 0;
+        for (byte[] sample : samples) {
+            System.arraycopy(sample, 0, data, offset, sample.length);
+            offset += sample.length;
+        }
+        return data;
+    }
+    
+    private void computeDMers(List<byte[]> samples, byte[] data, long[] dmers, boolean[] validDMer, 
+                              Map<Long,Integer> frequencies) {
+        int offset;
+        
+        offset = 0;
+        for (byte[] sample : samples) {
+            Map<Long,Boolean>   sampleDMers;
+            
+            sampleDMers = new HashMap<>();
+            for (int i = 0; i + dmerLength <= sample.length; i++) {
+                long    dmer;
+                
+                dmer = 0;
+                for (int j = 0; j < dmerLength; j++) {
+                    dmer = (dmer << 8) | (sample[i + j] & 0xff);
+                }
+                dmers[offset + i] = dmer;
+                validDMer[offset + i] = true;
+                if (sampleDMers.put(dmer, Boolean.TRUE) == null) {
+                    frequencies.merge(dmer, 1, Integer::sum);
+                }
+            }
+            offset += sample.length;
+        }
+    }
+    
+    /**
+     * Find the segment in [start, end) with the greatest score, where the score of a segment is the
+     * sum of the frequencies of the distinct d-mers that it contains. The d-mers of the selected segment
+     * are then removed from consideration.
+     * @return {offset, length, score} of the selected segment, or null if no segment has a positive score
+     */
+    private int[] selectSegment(long[] dmers, boolean[] validDMer, Map<Long,Integer> frequencies, 
+                                int start, int end) {
+        Map<Long,Integer>   activeDMers;
+        long    score;
+        long    bestScore;
+        int     bestStart;
+        int     numDMers;
+        
+        // Slide a window of segmentLength - dmerLength + 1 d-mers (i.e. segmentLength bytes) across the epoch
+        numDMers = segmentLength - dmerLength + 1;
+        activeDMers = new HashMap<>();
+        score = 0;
+        bestScore = 0;
+        bestStart = -1;
+        for (int i = start; i + dmerLength <= end; i++) {
+            int windowStart;
+            
+            if (validDMer[i]) {
+                score += addDMer(activeDMers, frequencies, dmers[i]);
+            }
+            windowStart = i - numDMers + 1;
+            if (windowStart >= start) {
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestStart = windowStart;
+                }
+                if (validDMer[windowStart]) {
+                    score -= removeDMer(activeDMers, frequencies, dmers[windowStart]);
+                }
+            }
+        }
+        if (bestStart < 0) {
+            return null;
+        } else {
+            for (int i = bestStart; i < bestStart + numDMers; i++) {
+                if (validDMer[i]) {
+                    frequencies.put(dmers[i], 0);
+                }
+            }
+            return new int[]{bestStart, segmentLength, (int)Math.min(bestScore, Integer.MAX_VALUE)};
+        }
+    }
+    
+    private static int addDMer(Map<Long,Integer> activeDMers, Map<Long,Integer> frequencies, long dmer) {
+        if (activeDMers.merge(dmer, 1, Integer::sum) == 1) {
+            return frequencies.get(dmer);
+        } else {
+            return 0;
+        }
+    }
+    
+    private static int removeDMer(Map<Long,Integer> activeDMers, Map<Long,Integer> frequencies, long dmer) {
+        int count;
+        
+        count = activeDMers.get(dmer) - 1;
+        if (count == 0) {
+            activeDMers.remove(dmer);
+            return frequencies.get(dmer);
+        } else {
+            activeDMers.put(dmer, count);
+            return 0;
+        }
+    }
+    
+    /**
+     * Concatenate the selected segments, placing the highest scoring segments last.
+     */
+    private static byte[] assemble(byte[] data, List<int[]> segments, int dictionarySize) {
+        byte[]  dictionary;
+        int     length;
+        int     offset;
+        
+        segments.sort((s0, s1) -> Integer.compare(s1[2], s0[2]));
+        length = 0;
+        for (int[] segment : segments) {
+            length += segment[1];
+        }
+        dictionary = new byte[Math.min(length, dictionarySize)];
+        offset = dictionary.length;
+        for (int[] segment : segments) {
+            int copyLength;
+            
+            if (offset == 0) {
+                break;
+            }
+            copyLength = Math.min(segment[1], offset);
+            offset -= copyLength;
+            System.arraycopy(data, segment[0] + segment[1] - copyLength, dictionary, offset, copyLength);
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,156 @@
+package com.ms.silverking.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import com.ms.silverking.log.Log;
+
+/**
+ * Zip compression with a preset dictionary. Small values that compress poorly on their own
+ * compress well when the dictionary contains content that is common across values
+ * (see DictionaryTrainer).
+ * 
+ * Each compressed value records the id of its dictionary (the zlib DICTID, which is the
+ * Adler-32 checksum of the dictionary), so decompression does not need to be told which
+ * dictionary was used; all dictionaries that have been registered in this process are
+ * available to any DictionaryZip instance. A DictionaryZip created without a dictionary
+ * compresses exactly as Zip does.
+ * 
+ * When a value's dictionary has not been registered, each DictionaryLoader is asked to find it
+ * before decompression fails. Dictionaries found by a loader remain registered, so a loader is
+ * only consulted the first time that an unknown dictionary is seen.
+ */
+public class DictionaryZip extends Zip {
+    private final byte[]    dictionary;
+    
+    private static final ConcurrentMap<Integer,byte[]>  dictionaries = new ConcurrentHashMap<>();
+    private static final List<DictionaryLoader>   dictionaryLoaders = new CopyOnWriteArrayList<>();
+    
+    // Bound on the compressed size produced by zlib, including the header, trailer, and dictionary id
+    private static final int    compressionBoundOverhead = 64;
+    
+    private static final ScratchArray   compressionScratch = new ScratchArray(1024 * 1024);
+    
+    /**
+     * @param dictionary the preset dictionary used for compression, or null for no dictionary.
+     * The dictionary is registered for use in decompression.
+     */
+    public DictionaryZip(byte[] dictionary) {
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            registerDictionary(dictionary);
+        }
+    }
+    
+    public DictionaryZip() {
+        this(null);
+    }
+    
+    /**
+     * Make a dictionary available for decompression.
+     * @param dictionary
+     * @return the id of the dictionary
+     */
+    public static int registerDictionary(byte[] dictionary) {
+        int     dictionaryID;
+        byte[]  existing;
+        
+        dictionaryID = getDictionaryID(dictionary);
+        existing = dictionaries.putIfAbsent(dictionaryID, dictionary.clone());
+        if (existing != null && !Arrays.equals(existing, dictionary)) {
+            // Adler-32 collision between distinct dictionaries; values compressed with this
+            // dictionary cannot be decompressed in this process
+            Log.warningf("Ignoring dictionary with conflicting id %x", dictionaryID);
+        }
+        return dictionaryID;
+    }
+    
+    /**
+     * Locates dictionaries that were used to compress values, but that have not been registered
+     */
+    public interface DictionaryLoader {
+        /**
+         * Register (see registerDictionary()) any dictionaries that may have the given id. Called
+         * from the decompression path; may block.
+         * @param dictionaryID id of a dictionary that is not registered
+         */
+        public void loadDictionary(int dictionaryID);
+    }
+    
+    public static void addDictionaryLoader(DictionaryLoader loader) {
+        dictionaryLoaders.add(loader);
+    }
+    
+    public static void removeDictionaryLoader(DictionaryLoader loader) {
+        dictionaryLoaders.remove(loader);
+    }
+    
+    public static int getDictionaryID(byte[] dictionary) {
+        Adler32 adler;
+        
+        adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return (int)adler.getValue();
+    }
+    
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+    
+    @Override
+    public byte[] compress(byte[] rawValue, int offset, int length) throws IOException {
+        byte[]  compressed;
+        int     compressedLength;
+        
+        compressed = compressionScratch.get(length + (length >> 12) + (length >> 14) + compressionBoundOverhead);
+        compressedLength = compress(rawValue, offset, length, compressed, 0, compressed.length);
+        if (compressedLength < 0) {
+            throw new IOException("Compression bound exceeded");
+        }
+        return Arrays.copyOf(compressed, compressedLength);
+    }
+    
+    @Override
+    void setDictionary(Deflater deflater) {
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+    }
+    
+    @Override
+    byte[] getDictionary(int dictionaryID) throws IOException {
+        byte[]  _dictionary;
+        
+        _dictionary = dictionaries.get(dictionaryID);
+        if (_dictionary == null) {
+            _dictionary = loadDictionary(dictionaryID);
+            if (_dictionary == null) {
+                throw new UnknownCompressionDictionaryException(dictionaryID);
+            }
+        }
+        return _dictionary;
+    }
+    
+    private static byte[] loadDictionary(int dictionaryID) {
+        for (DictionaryLoader loader : dictionaryLoaders) {
+            byte[]  _dictionary;
+            
+            try {
+                loader.loadDictionary(dictionaryID);
+            } catch (Exception e) {
+                Log.logErrorWarning(e, "DictionaryLoader failed");
+            }
+            _dictionary = dictionaries.get(dictionaryID);
+            if (_dictionary != null) {
+                return _dictionary;
+            }
+        }
+        return null;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 
 import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FastDecompressor;
 
@@ -13,8 +14,9 @@ import com.ms.silverking.io.FileUtil;
 import com.ms.silverking.time.SimpleStopwatch;
 import com.ms.silverking.time.Stopwatch;
 
-public class LZ4 implements Compressor, Decompressor {
+public class LZ4 extends ArrayCodec {
     private static final LZ4Factory factory = LZ4Factory.fastestInstance();
+    private static final ScratchArray   compressionScratch = new ScratchArray(1024 * 1024);
     
     public LZ4() {
     }
@@ -28,14 +30,23 @@ public class LZ4 implements Compressor, Decompressor {
         
         compressor = factory.fastCompressor();
         maxCompressedLength = compressor.maxCompressedLength(length);
-        compressed = new byte[maxCompressedLength];
-        compressedLength = compressor.compress(rawValue, 0, length, compressed, 0, maxCompressedLength);        
+        compressed = compressionScratch.get(maxCompressedLength);
+        compressedLength = compressor.compress(rawValue, offset, length, compressed, 0, maxCompressedLength);        
         
         buf = new byte[compressedLength];
         System.arraycopy(compressed, 0, buf, 0, compressedLength);
-        // FUTURE - eliminate the copy
         return buf;
     }
+    
+    @Override
+    int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int maxDestLength) {
+        try {
+            return factory.fastCompressor().compress(src, srcOffset, length, dest, destOffset, maxDestLength);
+        } catch (LZ4Exception le) {
+            // maxDestLength is too small
+            return -1;
+        }
+    }
 
     public byte[] decompress(byte[] value, int offset, int length, int uncompressedLength) throws IOException {
         LZ4FastDecompressor decompressor;
@@ -47,6 +58,16 @@ public class LZ4 implements Compressor, Decompressor {
         return restored;
     }
     
+    @Override
+    void decompress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int uncompressedLength) 
+                    throws IOException {
+        try {
+            factory.fastDecompressor().decompress(src, srcOffset, dest, destOffset, uncompressedLength);
+        } catch (LZ4Exception le) {
+            throw new IOException(le);
+        }
+    }
+    
     private static final Pair<Triple<Double,Double,Double>,Pair<Integer,Integer>> compressFile(File file) throws IOException {
     	Stopwatch	readingSW;
     	Stopwatch	compressionSW;
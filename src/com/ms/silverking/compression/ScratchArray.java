@@ -0,0 +1,35 @@
+package com.ms.silverking.compression;
+
+/**
+ * Per-thread scratch array. Allows codecs and their callers to use temporary space without
+ * allocating on each call. Arrays larger than maxRetainedLength are allocated on each call and
+ * are not retained so that threads do not pin large amounts of memory.
+ */
+public final class ScratchArray {
+    private final ThreadLocal<byte[]>   arrays;
+    private final int   maxRetainedLength;
+    
+    public ScratchArray(int maxRetainedLength) {
+        this.maxRetainedLength = maxRetainedLength;
+        arrays = new ThreadLocal<>();
+    }
+    
+    /**
+     * Return an array of at least the given length. Contents are undefined. The array must not be
+     * used after the calling thread calls get() again.
+     * @param minLength
+     * @return an array of at least minLength bytes
+     */
+    public byte[] get(int minLength) {
+        byte[]  array;
+        
+        array = arrays.get();
+        if (array == null || array.length < minLength) {
+            array = new byte[minLength];
+            if (minLength <= maxRetainedLength) {
+                arrays.set(array);
+            }
+        }
+        return array;
+    }
+}
@@ -4,7 +4,7 @@ import java.io.IOException;
 
 import com.ms.silverking.text.StringUtil;
 
-public class Snappy implements Compressor, Decompressor {
+public class Snappy extends ArrayCodec {
     private static final int   snappyInitFactor = 10;
     
     public Snappy() {
@@ -38,6 +38,22 @@ public class Snappy implements Compressor, Decompressor {
     	return value;
     }
     
+    @Override
+    int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int maxDestLength) {
+        // Snappy compression is not currently performed; the value is passed through as above
+        if (length > maxDestLength) {
+            return -1;
+        } else {
+            System.arraycopy(src, srcOffset, dest, destOffset, length);
+            return length;
+        }
+    }
+    
+    @Override
+    void decompress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int uncompressedLength) {
+        System.arraycopy(src, srcOffset, dest, destOffset, uncompressedLength);
+    }
+    
     /**
      * @param args
      */
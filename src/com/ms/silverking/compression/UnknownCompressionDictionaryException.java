@@ -0,0 +1,21 @@
+package com.ms.silverking.compression;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a value was compressed with a preset dictionary that is not known to this process.
+ */
+public class UnknownCompressionDictionaryException extends IOException {
+    private final int   dictionaryID;
+    
+    private static final long serialVersionUID = -3851302742287431640L;
+    
+    public UnknownCompressionDictionaryException(int dictionaryID) {
+        super(String.format("Unknown compression dictionary %x", dictionaryID));
+        this.dictionaryID = dictionaryID;
+    }
+    
+    public int getDictionaryID() {
+        return dictionaryID;
+    }
+}
@@ -1,18 +1,32 @@
 package com.ms.silverking.compression;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.Inflater;
 
 import com.ms.silverking.log.Log;
 import com.ms.silverking.text.StringUtil;
 
-public class Zip implements Compressor, Decompressor {
+public class Zip extends ArrayCodec {
     private static final int   zipInitFactor = 10;	
+    
+    // Deflater and Inflater hold native zlib state; reuse it across calls on each thread
+    private static final ThreadLocal<Deflater>  deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+    private static final ThreadLocal<Inflater>  inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
 
 	public byte[] compress(byte[] rawValue, int offset, int length) throws IOException {
 	    ByteArrayOutputStream 	baos;
@@ -45,36 +59,76 @@ public class Zip implements Compressor, Decompressor {
 	}
 	
 	public byte[] decompress(byte[] value, int offset, int length, int uncompressedLength) throws IOException {
-		InflaterInputStream	zipis;
-		InputStream 		inStream;
 		byte[]				uncompressedValue;
 		
 		uncompressedValue = new byte[uncompressedLength];		
-		inStream = new ByteArrayInputStream(value, offset, length);
-		try {
-			zipis = new InflaterInputStream(inStream);
-			try {
-				int	totalRead;
-				
-				totalRead = 0;
-				do {
-					int numRead;
-					
-					numRead = zipis.read(uncompressedValue, totalRead, uncompressedLength - totalRead);
-					if (numRead < 0) {
-						throw new RuntimeException("panic");
-					}
-					totalRead += numRead;
-				} while (totalRead < uncompressedLength);
-				return uncompressedValue;
-			} finally {
-				zipis.close();
-			}
-		} finally {
-			inStream.close();
-		}
+		decompress(value, offset, length, uncompressedValue, 0, uncompressedLength);
+		return uncompressedValue;
 	}
 	
+    @Override
+    int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int maxDestLength) {
+        Deflater    deflater;
+        int         compressedLength;
+        
+        deflater = deflaters.get();
+        deflater.reset();
+        setDictionary(deflater);
+        deflater.setInput(src, srcOffset, length);
+        deflater.finish();
+        compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == maxDestLength) {
+                return -1;
+            }
+            compressedLength += deflater.deflate(dest, destOffset + compressedLength, maxDestLength - compressedLength);
+        }
+        return compressedLength;
+    }
+    
+    @Override
+    void decompress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int uncompressedLength) 
+                    throws IOException {
+        Inflater    inflater;
+        int         totalInflated;
+        
+        inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, srcOffset, length);
+        totalInflated = 0;
+        try {
+            while (totalInflated < uncompressedLength) {
+                int numInflated;
+                
+                numInflated = inflater.inflate(dest, destOffset + totalInflated, uncompressedLength - totalInflated);
+                if (numInflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(getDictionary(inflater.getAdler()));
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Truncated zip value");
+                    }
+                }
+                totalInflated += numInflated;
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException(dfe);
+        }
+    }
+    
+    /**
+     * Set the preset dictionary (if any) used for compression. Called after the deflater is reset.
+     */
+    void setDictionary(Deflater deflater) {
+    }
+    
+    /**
+     * Return the preset dictionary that a value was compressed with.
+     * @param dictionaryID the zlib dictionary id (the Adler-32 checksum of the dictionary)
+     */
+    byte[] getDictionary(int dictionaryID) throws IOException {
+        throw new UnknownCompressionDictionaryException(dictionaryID);
+    }
+	
 	// for unit testing only
 	public static void main(String[] args) {
 		try {
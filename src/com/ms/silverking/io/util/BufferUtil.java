@@ -1,11 +1,61 @@
 package com.ms.silverking.io.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 
 public class BufferUtil {
+    /*
+     * Direct buffers are freed using sun.misc.Unsafe.invokeCleaner() on Java 9 and later,
+     * and using sun.nio.ch.DirectBuffer.cleaner() on Java 8. Both are reached by reflection.
+     * If neither is available, free() has no effect and the memory is released when the
+     * buffer is garbage collected.
+     */
+    private static final Object	unsafe;
+    private static final Method	invokeCleaner;
+    private static final Method	directBufferCleaner;
+    private static final Method	cleanerClean;
+    
+    static {
+    	Object	_unsafe;
+    	Method	_invokeCleaner;
+    	Method	_directBufferCleaner;
+    	Method	_cleanerClean;
+    	
+    	_unsafe = null;
+    	_invokeCleaner = null;
+    	_directBufferCleaner = null;
+    	_cleanerClean = null;
+    	try {
+    		Class<?>	unsafeClass;
+    		Field		theUnsafe;
+    		
+    		unsafeClass = Class.forName("sun.misc.Unsafe");
+    		_invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    		theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+    		theUnsafe.setAccessible(true);
+    		_unsafe = theUnsafe.get(null);
+    	} catch (ReflectiveOperationException | RuntimeException e) {
+    		// Java 8
+    		_invokeCleaner = null;
+    		try {
+    			_directBufferCleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+    			_cleanerClean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+    		} catch (ReflectiveOperationException | RuntimeException e2) {
+    			_directBufferCleaner = null;
+    			_cleanerClean = null;
+    		}
+    	}
+    	unsafe = _unsafe;
+    	invokeCleaner = _invokeCleaner;
+    	directBufferCleaner = _directBufferCleaner;
+    	cleanerClean = _cleanerClean;
+    }
+    
     public static ByteBuffer[] flip(ByteBuffer[] buffers) {
         for (ByteBuffer buffer : buffers) {
             buffer.flip();
@@ -108,4 +158,34 @@ public class BufferUtil {
     		return convertToArrayBacked(buf);
     	}
     }
+    
+    /**
+     * Release the memory of a direct buffer now rather than when the buffer is garbage collected.
+     * Neither the buffer nor any view of it may be used after this call by any thread; callers must
+     * own the buffer exclusively.
+     * Has no effect for heap buffers, for views (slices, duplicates) of direct buffers, or if the
+     * runtime provides no means of freeing direct buffers.
+     */
+    public static void free(ByteBuffer buf) {
+    	if (buf.isDirect()) {
+    		try {
+	    		if (invokeCleaner != null) {
+	    			invokeCleaner.invoke(unsafe, buf);
+	    		} else if (directBufferCleaner != null) {
+	    			Object	cleaner;
+	    			
+	    			cleaner = directBufferCleaner.invoke(buf);
+	    			if (cleaner != null) {
+	    				cleanerClean.invoke(cleaner);
+	    			}
+	    		}
+    		} catch (InvocationTargetException ite) {
+    			if (!(ite.getCause() instanceof IllegalArgumentException)) { // thrown for views
+    				throw new RuntimeException(ite.getCause());
+    			}
+    		} catch (IllegalAccessException iae) {
+    			// leave the buffer to the garbage collector
+    		}
+    	}
+    }
 }
@@ -6,7 +6,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.GatheringByteChannel;
 
 public class ChannelUtil {
-    private static final int bufferSendLimit = 8;
+    // Older JVMs cached only a few temporary direct buffers per thread for
+    // writes of heap buffers, which made large gathered writes expensive.
+    // Current JVMs cache up to IOV_MAX such buffers.
+    private static final int bufferSendLimit = 64;
 
     private static long totalBytes(ByteBuffer[] buffers) {
         long    total;
@@ -76,33 +79,37 @@ public class ChannelUtil {
     }
     */
     
+    /**
+     * Write the given buffers using gathered writes of at most bufferSendLimit buffers.
+     * Writing continues until all buffers have been written, or until the channel
+     * accepts no more data.
+     * @param buffers
+     * @param channel
+     * @return the number of bytes written
+     * @throws IOException
+     */
     public static long writeBuffersBatched(ByteBuffer[] buffers, GatheringByteChannel channel) 
             throws IOException {
-        if (buffers.length < bufferSendLimit) {
-            return channel.write(buffers);
-        } else {
-            int     startIndex;
-            int     batchSize;
+        long    totalWritten;
+        int     startIndex;
+        
+        totalWritten = 0;
+        startIndex = 0;
+        while (true) {
+            long    written;
             
-            startIndex = 0;
-            while (!buffers[startIndex].hasRemaining()) {
+            while (startIndex < buffers.length && !buffers[startIndex].hasRemaining()) {
                 startIndex++;
             }
-            batchSize = Math.min(buffers.length - startIndex, bufferSendLimit);
-            return channel.write(buffers, startIndex, batchSize);
-            /*
-            while (true) {
-                int     startIndex;
-                int     batchSize;
-                
-                startIndex = 0;
-                while (!buffers[startIndex].hasRemaining()) {
-                    startIndex++;
-                }
-                batchSize = Math.min(buffers.length - startIndex, bufferSendLimit);
-                return channel.write(buffers, startIndex, batchSize);
+            if (startIndex == buffers.length) {
+                return totalWritten;
+            }
+            written = channel.write(buffers, startIndex, Math.min(buffers.length - startIndex, bufferSendLimit));
+            if (written <= 0) {
+                // channel is full
+                return totalWritten;
             }
-            */
+            totalWritten += written;
         }
     }
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
@@ -302,6 +303,34 @@ public class AsyncBase<T extends Connection> {
 		return addConnection(channel, listener);
 	}
 	
+	/**
+	 * Connect to a peer over a unix domain socket. The connection is identified by the given logical
+	 * address of the peer rather than by the socket path.
+	 * @param dest the logical address of the peer
+	 * @param path the path of the peer's unix domain socket
+	 * @param listener
+	 * @return the new connection
+	 * @throws IOException if the connection cannot be established, or if the runtime does not support
+	 * unix domain sockets
+	 */
+	public T newOutgoingUnixDomainConnection(InetSocketAddress dest, File path, ConnectionListener listener) 
+	                                        throws IOException {
+		SocketChannel	channel;
+		
+		channel = UnixDomainSocketUtil.openChannel();
+		LWTThreadUtil.setBlocked();
+		try {
+			channel.connect(UnixDomainSocketUtil.address(path));
+		} catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		} finally {
+			LWTThreadUtil.setNonBlocked();
+		}
+		UnixDomainSocketUtil.setRemoteSocketAddress(channel, dest);
+		return addConnection(channel, listener);
+	}
+	
 	public T addConnection(SocketChannel channel) throws SocketException {
 		return addConnection(channel, null);
 	}
@@ -313,19 +342,35 @@ public class AsyncBase<T extends Connection> {
 		if (logConnections) {
 			Log.warning("AsyncBase addConnection: ", channel);
 		}
-        channel.socket().setTcpNoDelay(tcpNoDelay);
-        channel.socket().setReceiveBufferSize(defReceiveBufferSize);
-        channel.socket().setSendBufferSize(defSendBufferSize);
-        channel.socket().setSoTimeout(defSocketReadTimeout); // Useless for SocketChannel I/O. Remove
 		try {
-			channel.configureBlocking(false);
-		} catch (IOException ioe) {
-			Log.logErrorWarning(ioe);
-			throw new RuntimeException("Unable to configure non-blocking socket");
+			if (UnixDomainSocketUtil.isUnixDomain(channel)) {
+				// unix domain socket channels have no Socket and no TCP options
+				try {
+					channel.setOption(StandardSocketOptions.SO_RCVBUF, defReceiveBufferSize);
+					channel.setOption(StandardSocketOptions.SO_SNDBUF, defSendBufferSize);
+				} catch (IOException ioe) {
+					Log.logErrorWarning(ioe);
+					throw new SocketException("Unable to set unix domain socket buffer sizes");
+				}
+			} else {
+				channel.socket().setTcpNoDelay(tcpNoDelay);
+				channel.socket().setReceiveBufferSize(defReceiveBufferSize);
+				channel.socket().setSendBufferSize(defSendBufferSize);
+				channel.socket().setSoTimeout(defSocketReadTimeout); // Useless for SocketChannel I/O. Remove
+			}
+			try {
+				channel.configureBlocking(false);
+			} catch (IOException ioe) {
+				Log.logErrorWarning(ioe);
+				throw new RuntimeException("Unable to configure non-blocking socket");
+			}
+			selectorController = cscAssigner.assignChannelToSelectorController(channel, selectorControllers);
+			connection = connectionCreator.createConnection(channel, selectorController, 
+															listener, workPool, debug);
+		} finally {
+			// the connection now holds the logical remote address of a unix domain channel
+			UnixDomainSocketUtil.clearRemoteSocketAddress(channel);
 		}
-		selectorController = cscAssigner.assignChannelToSelectorController(channel, selectorControllers);
-		connection = connectionCreator.createConnection(channel, selectorController, 
-														listener, workPool, debug);
 		connection.start();
         if (Connection.statsEnabled) {
             connections.add(connection);
@@ -1,9 +1,13 @@
 package com.ms.silverking.net.async;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ms.silverking.log.Log;
 import com.ms.silverking.thread.lwt.BaseWorker;
@@ -16,9 +20,15 @@ import com.ms.silverking.thread.lwt.LWTPool;
 public class AsyncServer<T extends Connection> extends AsyncBase<T> {
 	private final InetSocketAddress		localSocketAddr;
 	private final ServerSocketChannel	serverChannel;
+	private final int	backlog;
 	private final IncomingConnectionListener<T>	incomingConnectionListener;
     private final boolean    debug;
 	private boolean    enabled;
+	private volatile ServerSocketChannel	unixDomainServerChannel;
+	private File	unixDomainSocketPath;
+	private final AtomicInteger	nextUnixDomainPeerPort;
+	
+	private static final int	maxPort = 65535;
 	
 	public static boolean	verbose = AsyncGlobals.verbose;
 		
@@ -34,6 +44,8 @@ public class AsyncServer<T extends Connection> extends AsyncBase<T> {
 		this.incomingConnectionListener = incomingConnectionListener;
 		this.enabled = enabled;
         this.debug = debug;
+        this.backlog = backlog;
+        nextUnixDomainPeerPort = new AtomicInteger();
         		
         acceptor.setAsyncServer(this);
         
@@ -71,6 +83,47 @@ public class AsyncServer<T extends Connection> extends AsyncBase<T> {
 		//return localSocketAddr.getPort();
 	}
 	
+	/**
+	 * Also accept connections on a unix domain socket at the given path. Any file already at the path
+	 * is assumed to be left over from a previous server and is removed.
+	 * @param path
+	 * @throws IOException if the socket cannot be bound, or if the runtime does not support unix
+	 * domain sockets
+	 */
+	public synchronized void listenOnUnixDomainSocket(File path) throws IOException {
+		ServerSocketChannel	channel;
+		
+		if (unixDomainServerChannel != null) {
+			throw new IOException("Already listening on "+ unixDomainSocketPath);
+		}
+		channel = UnixDomainSocketUtil.openServerChannel();
+		try {
+			if (path.getParentFile() != null) {
+				path.getParentFile().mkdirs();
+			}
+			Files.deleteIfExists(path.toPath());
+			channel.bind(UnixDomainSocketUtil.address(path), backlog);
+		} catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		}
+		unixDomainSocketPath = path;
+		unixDomainServerChannel = channel;
+		addServerChannel(channel);
+		Log.warning("AsyncServer listening on unix domain socket: ", path);
+	}
+	
+	/**
+	 * Unix domain peers have no address of their own. Each is given a distinct loopback
+	 * address so that its connection can be tracked like any other incoming connection.
+	 */
+	private InetSocketAddress nextUnixDomainPeerAddress() {
+		int	port;
+		
+		port = 1 + Math.floorMod(nextUnixDomainPeerPort.getAndIncrement(), maxPort);
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	}
+	
 	//////////////////////////////////////////////////////////////////////
 	
 	public void enable() {
@@ -83,6 +136,16 @@ public class AsyncServer<T extends Connection> extends AsyncBase<T> {
 		} catch (IOException ioe) {
 			Log.logErrorWarning(ioe);
 		}
+		synchronized (this) {
+			if (unixDomainServerChannel != null) {
+				try {
+					unixDomainServerChannel.close();
+					Files.deleteIfExists(unixDomainSocketPath.toPath());
+				} catch (IOException ioe) {
+					Log.logErrorWarning(ioe);
+				}
+			}
+		}
 		super.shutdown();
 	}
 		
@@ -97,6 +160,9 @@ public class AsyncServer<T extends Connection> extends AsyncBase<T> {
 				if (socketChannel != null) {
 					T	connection;
 					
+					if (channel == unixDomainServerChannel) {
+						UnixDomainSocketUtil.setRemoteSocketAddress(socketChannel, nextUnixDomainPeerAddress());
+					}
 					connection = addConnection(socketChannel);
 					incomingConnectionListener.incomingConnection(connection);
 				} else {
@@ -3,7 +3,6 @@ package com.ms.silverking.net.async;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,6 +29,7 @@ public abstract class Connection implements ChannelRegistrationWorker, Comparabl
     protected final SocketChannel 					channel;
 	private SelectionKey	selectionKey;
 	private final InetSocketAddress					remoteSocketAddress;
+	private final boolean	unixDomain;
 	private final SelectorController<? extends Connection>	selectorController;
 	private ConnectionListener				connectionListener;
 	private final ConcurrentMap<UUIDBase,ActiveSend>	activeBlockingSends;
@@ -73,7 +73,8 @@ public abstract class Connection implements ChannelRegistrationWorker, Comparabl
 		this.channel = channel;
 		this.selectorController = selectorController;
 		this.connectionListener = connectionListener;
-		remoteSocketAddress = (InetSocketAddress)channel.socket().getRemoteSocketAddress();
+		remoteSocketAddress = UnixDomainSocketUtil.getRemoteSocketAddress(channel);
+		unixDomain = UnixDomainSocketUtil.isUnixDomain(channel);
 		channelWriteLock = new ReentrantLock();
 		//channelReceiveLock = new ReentrantLock();
 		connectionLock = new ReentrantLock();
@@ -413,14 +414,7 @@ public abstract class Connection implements ChannelRegistrationWorker, Comparabl
 				new KeyChangeRequest(channel, KeyChangeRequest.Type.CANCEL_AND_CLOSE));
 		connectionLock.lock();
 		try {
-			Socket				socket;
-
-			socket = channel.socket();
-			if (socket != null) {
-				remoteAddr = (InetSocketAddress)socket.getRemoteSocketAddress();
-			} else {
-				remoteAddr = null;
-			}
+			remoteAddr = remoteSocketAddress;
 			try {
 				channel.close();
 			} catch (IOException ioe) {
@@ -559,7 +553,7 @@ public abstract class Connection implements ChannelRegistrationWorker, Comparabl
 	//////////////////////////////////////////////////////////////////////
 
 	public String toString() {
-		return "Connection:" + remoteSocketAddress +" "+ channel.socket().getLocalPort();
+		return "Connection:" + remoteSocketAddress +" "+ (unixDomain ? "unix" : channel.socket().getLocalPort());
 	}
 	
 	public String debugString() {
@@ -24,7 +24,7 @@ public class DefaultConnectionCreator implements ConnectionCreator<DefaultConnec
 	//////////////////////////////////////////////////////////////////////
 	
 	private Receiver getReceiver(SocketChannel channel) {
-		return getReceiver((InetSocketAddress)channel.socket().getRemoteSocketAddress());
+		return getReceiver(UnixDomainSocketUtil.getRemoteSocketAddress(channel));
 	}
 	
 	private Receiver getReceiver(InetSocketAddress addr) {		
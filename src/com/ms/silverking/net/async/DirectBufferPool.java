@@ -0,0 +1,140 @@
+package com.ms.silverking.net.async;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of direct ByteBuffers organized into power-of-two size classes.
+ *
+ * allocate() returns a buffer from the smallest class that can hold the requested size,
+ * with the limit set to the requested size. Buffers are returned to the pool with release().
+ * Requests larger than the largest class are satisfied with heap buffers that are not pooled;
+ * release() ignores such buffers. At most maxRetainedBytes of free buffers are retained;
+ * buffers released beyond this limit are left for the garbage collector.
+ */
+public class DirectBufferPool {
+    private final int       minClassSizeLog2;
+    private final int       maxClassSize;
+    private final long      maxRetainedBytes;
+    private final ConcurrentLinkedQueue<ByteBuffer>[]   freeBuffers;
+    private final AtomicLong    retainedBytes;
+    private final AtomicLong    outstandingBytes;
+    private final AtomicLong    hits;
+    private final AtomicLong    misses;
+    private final AtomicLong    oversized;
+
+    public DirectBufferPool(int minClassSizeLog2, int maxClassSizeLog2, long maxRetainedBytes) {
+        if (minClassSizeLog2 < 0 || maxClassSizeLog2 < minClassSizeLog2 || maxClassSizeLog2 > 30) {
+            throw new IllegalArgumentException("Invalid size classes: "+ minClassSizeLog2 +" "+ maxClassSizeLog2);
+        }
+        this.minClassSizeLog2 = minClassSizeLog2;
+        this.maxClassSize = 1 << maxClassSizeLog2;
+        this.maxRetainedBytes = maxRetainedBytes;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<ByteBuffer>[] _freeBuffers =
+                (ConcurrentLinkedQueue<ByteBuffer>[])new ConcurrentLinkedQueue<?>[maxClassSizeLog2 - minClassSizeLog2 + 1];
+        freeBuffers = _freeBuffers;
+        for (int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ConcurrentLinkedQueue<>();
+        }
+        retainedBytes = new AtomicLong();
+        outstandingBytes = new AtomicLong();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        oversized = new AtomicLong();
+    }
+
+    private int classIndex(int size) {
+        return Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1) - minClassSizeLog2);
+    }
+
+    private int classSize(int classIndex) {
+        return 1 << (classIndex + minClassSizeLog2);
+    }
+
+    /**
+     * Allocate a buffer of the given size
+     * @param size number of bytes required
+     * @return a buffer with position 0 and limit size
+     */
+    public ByteBuffer allocate(int size) {
+        if (size > maxClassSize) {
+            oversized.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        } else {
+            int         classIndex;
+            ByteBuffer  buf;
+
+            classIndex = classIndex(size);
+            buf = freeBuffers[classIndex].poll();
+            if (buf != null) {
+                retainedBytes.addAndGet(-buf.capacity());
+                hits.incrementAndGet();
+                buf.clear();
+            } else {
+                misses.incrementAndGet();
+                buf = ByteBuffer.allocateDirect(classSize(classIndex));
+            }
+            outstandingBytes.addAndGet(buf.capacity());
+            buf.limit(size);
+            return buf;
+        }
+    }
+
+    /**
+     * Return a buffer obtained from allocate() to this pool. The caller must not
+     * use the buffer, or any view of it, after this call.
+     * @param buf the buffer to release
+     */
+    public void release(ByteBuffer buf) {
+        if (buf.isDirect()) {
+            int capacity;
+
+            capacity = buf.capacity();
+            outstandingBytes.addAndGet(-capacity);
+            if (retainedBytes.addAndGet(capacity) <= maxRetainedBytes) {
+                freeBuffers[classIndex(capacity)].add(buf);
+            } else {
+                retainedBytes.addAndGet(-capacity);
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long    _hits;
+        long    total;
+
+        _hits = hits.get();
+        total = _hits + misses.get();
+        return total == 0 ? 0.0 : (double)_hits / (double)total;
+    }
+
+    /**
+     * @return number of bytes in pooled buffers that have been allocated but not released
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * @return number of bytes in free buffers held by this pool
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits %d misses %d hitRate %.3f oversized %d outstandingBytes %d retainedBytes %d",
+                hits.get(), misses.get(), getHitRate(), oversized.get(), outstandingBytes.get(), retainedBytes.get());
+    }
+}
@@ -65,7 +65,7 @@ public class LocalGroupingCSCA<T extends Connection> implements ChannelSelectorC
     		    InetSocketAddress socketAddress;
     		    
     		    socketChannel = (SocketChannel)channel;
-    		    socketAddress = (InetSocketAddress)socketChannel.socket().getRemoteSocketAddress();
+    		    socketAddress = UnixDomainSocketUtil.getRemoteSocketAddress(socketChannel);
     		    if (InetAddressUtil.isLocalHostIP(socketAddress.getAddress())) {
     		        //index = localIndex;
     		        isLocal = true;
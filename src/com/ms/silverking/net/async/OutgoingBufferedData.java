@@ -6,6 +6,7 @@ import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 
 import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.io.util.ChannelUtil;
 import com.ms.silverking.log.Log;
 import com.ms.silverking.text.StringUtil;
 
@@ -59,7 +60,7 @@ public class OutgoingBufferedData extends OutgoingData {
 			Log.fine("writeToChannel ", channel);
 			displayForDebug();
 		}
-		bytesWritten += channel.write(buffers);
+		bytesWritten += ChannelUtil.writeBuffersBatched(buffers, channel);
 		if (AsyncGlobals.debug && Log.levelMet(Level.FINE)) {
 			Log.warning("writeToChannel bytesWritten / totalbytes \t"+ bytesWritten +" / "+ totalBytes);
 		}
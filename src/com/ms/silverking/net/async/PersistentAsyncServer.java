@@ -1,10 +1,13 @@
 package com.ms.silverking.net.async;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,15 +20,25 @@ import com.ms.silverking.thread.ThreadUtil;
 import com.ms.silverking.thread.lwt.BaseWorker;
 import com.ms.silverking.thread.lwt.LWTPool;
 import com.ms.silverking.thread.lwt.LWTPoolProvider;
+import com.ms.silverking.util.PropertiesHelper;
 
 /**
  * Maintains persistent TCP connections to other peers
+ * 
+ * Multiple outgoing connections may be maintained to each peer (see connectionsPerPeerProperty).
+ * Messages are striped across these connections by a stripe UUID so that all messages with a given
+ * UUID use the same connection and hence arrive in order. Connections are spread over the
+ * SelectorControllers by the ChannelSelectorControllerAssigner.
+ * 
+ * Peers on the local host may be reached over a unix domain socket instead of TCP
+ * (see setUnixDomainSocketPath()).
  */
 public class PersistentAsyncServer<T extends Connection> 
 							implements IncomingConnectionListener<T>, ConnectionListener {
 	private final AsyncServer<T>	asyncServer;
-	private final ConcurrentMap<InetSocketAddress,T>	connections;
+	private final List<ConcurrentMap<InetSocketAddress,T>>	connections; // indexed by stripe
 	private final ConcurrentMap<InetSocketAddress,ReentrantLock>	newConnectionLocks;
+	private final ConcurrentMap<InetSocketAddress,File>	unixDomainSocketPaths;
 	private final boolean  debug;
 	private final BaseWorker<OutgoingAsyncMessage> asyncConnector;
 	
@@ -44,6 +57,20 @@ public class PersistentAsyncServer<T extends Connection>
 	
 	public static final int    useDefaultBacklog = 0;
 	
+	public static final String	connectionsPerPeerProperty = PersistentAsyncServer.class.getPackage().getName() + ".ConnectionsPerPeer";
+	public static final int	defaultConnectionsPerPeer = 1;
+	private static final int	connectionsPerPeer;
+	
+	static {
+		connectionsPerPeer = PropertiesHelper.systemHelper.getInt(connectionsPerPeerProperty, defaultConnectionsPerPeer);
+		if (connectionsPerPeer < 1) {
+			throw new RuntimeException(connectionsPerPeerProperty +" < 1");
+		}
+		if (connectionsPerPeer != defaultConnectionsPerPeer) {
+			Log.warningf("%s %d", connectionsPerPeerProperty, connectionsPerPeer);
+		}
+	}
+	
 	public PersistentAsyncServer(int port, int backlog,
 								int numSelectorControllers,  
 								String controllerClass, 
@@ -55,8 +82,12 @@ public class PersistentAsyncServer<T extends Connection>
 		                                numSelectorControllers,  
 										controllerClass, connectionCreator, this, lwtPool, 
 										selectionThreadWorkLimit, enabled, debug);
-		connections = new ConcurrentHashMap<InetSocketAddress,T>();
+		connections = new ArrayList<>(connectionsPerPeer);
+		for (int i = 0; i < connectionsPerPeer; i++) {
+			connections.add(new ConcurrentHashMap<InetSocketAddress,T>());
+		}
 		newConnectionLocks = new ConcurrentHashMap<InetSocketAddress,ReentrantLock>();	
+		unixDomainSocketPaths = new ConcurrentHashMap<>();
 		asyncConnector = new AsyncConnector(lwtPool); 
 		if (mqListener != null) {
 			new ConnectionQueueWatcher(mqListener, mqUUID);
@@ -125,8 +156,10 @@ public class PersistentAsyncServer<T extends Connection>
 	}
 	
 	public void shutdown() {
-		for (Connection connection : connections.values()) {
-			connection.close();
+		for (ConcurrentMap<InetSocketAddress,T> stripeConnections : connections) {
+			for (Connection connection : stripeConnections.values()) {
+				connection.close();
+			}
 		}
 		asyncServer.shutdown();
 		ThreadUtil.sleep(shutdownDelayMillis);
@@ -139,6 +172,26 @@ public class PersistentAsyncServer<T extends Connection>
 		return asyncServer.getPort();
 	}
 	
+	/**
+	 * Also accept connections on a unix domain socket at the given path.
+	 * @param path
+	 * @throws IOException
+	 */
+	public void listenOnUnixDomainSocket(File path) throws IOException {
+		asyncServer.listenOnUnixDomainSocket(path);
+	}
+	
+	/**
+	 * Connect to dest using the unix domain socket at the given path rather than TCP. Connections
+	 * are still identified by dest. If a connection over the socket fails, this mapping is dropped
+	 * and TCP is used.
+	 * @param dest
+	 * @param path
+	 */
+	public void setUnixDomainSocketPath(InetSocketAddress dest, File path) {
+		unixDomainSocketPaths.put(dest, path);
+	}
+	
 	public void setSuspectAddressListener(SuspectAddressListener suspectAddressListener) {
 	    this.suspectAddressListener = suspectAddressListener;
 	    asyncServer.setSuspectAddressListener(suspectAddressListener);
@@ -156,20 +209,45 @@ public class PersistentAsyncServer<T extends Connection>
 	
 	//////////////////////////////////////////////////////////////////////
 	
+	/**
+	 * @param stripeUUID
+	 * @return the index of the connection to a peer that is used for the given stripe UUID
+	 */
+	private static int getStripe(UUIDBase stripeUUID) {
+		if (connectionsPerPeer == 1 || stripeUUID == null) {
+			return 0;
+		} else {
+			return Math.floorMod(stripeUUID.hashCode(), connectionsPerPeer);
+		}
+	}
+	
 	public void sendAsynchronous(InetSocketAddress dest, Object data,
 							UUIDBase uuid, AsyncSendListener listener,
 							long deadline) {
+		sendAsynchronous(dest, data, uuid, listener, deadline, uuid);
+	}
+	
+	/**
+	 * Send asynchronously using the connection to dest that is selected by stripeUUID.
+	 * All sends with the same stripeUUID use the same connection.
+	 */
+	public void sendAsynchronous(InetSocketAddress dest, Object data,
+							UUIDBase uuid, AsyncSendListener listener,
+							long deadline, UUIDBase stripeUUID) {
+		int	stripe;
+		
+		stripe = getStripe(stripeUUID);
 		try {
 			Connection	connection;
 	
-			connection = getEstablishedConnection(dest);
+			connection = getEstablishedConnection(dest, stripe);
 			//if (DebugUtil.delayedDebug()) {
 			//    System.out.println("getEstablishedConnection: "+ connection);
 			//}
 			if (connection != null) {
 				connection.sendAsynchronous(data, uuid, listener, deadline);
 			} else {
-				newConnectionSendAsynchronous(dest, data, uuid, listener, deadline);
+				newConnectionSendAsynchronous(dest, stripe, data, uuid, listener, deadline);
 			}
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
@@ -190,20 +268,22 @@ public class PersistentAsyncServer<T extends Connection>
 			UUIDBase uuid, AsyncSendListener listener, long deadline) throws IOException {
 		Connection	connection;
 		RandomBackoff	backoff;
+		int			stripe;
 
 		if (uuid == null) {
 			uuid = new UUIDBase();
 			Log.fine("null send uuid, picking new uuid ", uuid);
 			listener = null;
 		}
+		stripe = getStripe(uuid);
 		backoff = null;
 		while (true) {
-			connection = getConnectionFast(dest, deadline);
+			connection = getConnectionFast(dest, stripe, deadline);
 			try {
 				connection.sendSynchronous(data, uuid, listener, deadline);
 				return;
 			} catch (IOException ioe) {
-				connections.remove(dest);
+				connections.get(stripe).remove(dest);
                 informSuspectAddressListener(dest);
 				Log.warning(ioe +" "+ dest);
 				Log.logErrorWarning(ioe);
@@ -243,29 +323,36 @@ public class PersistentAsyncServer<T extends Connection>
 	
 	//////////////////////////////////////////////////////////////////////
 	
-	private Connection getEstablishedConnection(InetSocketAddress dest) throws ConnectException {
-		return connections.get(dest);
+	private Connection getEstablishedConnection(InetSocketAddress dest, int stripe) throws ConnectException {
+		return connections.get(stripe).get(dest);
 	}
 	
 	public Connection getConnection(AddrAndPort dest, long deadline) throws ConnectException {
+		return getConnection(dest, deadline, null);
+	}
+	
+	/**
+	 * @return the connection to dest that is selected by stripeUUID
+	 */
+	public Connection getConnection(AddrAndPort dest, long deadline, UUIDBase stripeUUID) throws ConnectException {
 		try {
-			return getConnectionFast(dest.toInetSocketAddress(), deadline);
+			return getConnectionFast(dest.toInetSocketAddress(), getStripe(stripeUUID), deadline);
 		} catch (UnknownHostException uhe) {
 			throw new RuntimeException(uhe);
 		}
 	}
 	
-	private Connection getConnectionFast(InetSocketAddress dest, long deadline) throws ConnectException {
+	private Connection getConnectionFast(InetSocketAddress dest, int stripe, long deadline) throws ConnectException {
 		Connection	connection;
 		
-		connection = connections.get(dest);
+		connection = connections.get(stripe).get(dest);
 		if (connection == null) {
-			connection = getConnectionSlow(dest, deadline);
+			connection = getConnectionSlow(dest, stripe, deadline);
 		}
 		return connection;
 	}
 	
-	private Connection getConnectionSlow(InetSocketAddress dest, long deadline) throws ConnectException {
+	private Connection getConnectionSlow(InetSocketAddress dest, int stripe, long deadline) throws ConnectException {
 		Connection		connection;
 		ReentrantLock	destNewConnectionLock;
 		
@@ -276,9 +363,9 @@ public class PersistentAsyncServer<T extends Connection>
 		}
 		destNewConnectionLock.lock();
 		try {
-			connection = connections.get(dest);
+			connection = connections.get(stripe).get(dest);
 			if (connection == null) {
-				connection = createConnection(dest, deadline);
+				connection = createConnection(dest, stripe, deadline);
 			}
 			return connection;
 		} finally {
@@ -286,14 +373,29 @@ public class PersistentAsyncServer<T extends Connection>
 		}
 	}
 	
+	private T newOutgoingConnection(InetSocketAddress dest) throws IOException {
+		File	unixDomainSocketPath;
+		
+		unixDomainSocketPath = unixDomainSocketPaths.get(dest);
+		if (unixDomainSocketPath != null) {
+			try {
+				return asyncServer.newOutgoingUnixDomainConnection(dest, unixDomainSocketPath, this);
+			} catch (IOException ioe) {
+				Log.warning("Unix domain socket connection failed; using TCP: ", dest +" "+ unixDomainSocketPath +" "+ ioe);
+				unixDomainSocketPaths.remove(dest, unixDomainSocketPath);
+			}
+		}
+		return asyncServer.newOutgoingConnection(dest, this);
+	}
+	
 	/**
 	 * only called when the given connection does not exist
 	 * @return
 	 */
-	private Connection createConnection(InetSocketAddress dest, long deadline) throws ConnectException {
+	private Connection createConnection(InetSocketAddress dest, int stripe, long deadline) throws ConnectException {
 		RandomBackoff	backoff;
 
-	    Log.info("createConnection: ", dest);
+	    Log.info("createConnection: ", dest +" "+ stripe);
 		if (addressStatusProvider != null 
 		        && !addressStatusProvider.isAddressStatusProviderThread() 
 				&& !addressStatusProvider.isHealthy(dest)) {
@@ -307,8 +409,8 @@ public class PersistentAsyncServer<T extends Connection>
 			try {
 				T	connection;
 				
-				connection = asyncServer.newOutgoingConnection(dest, this);
-				connections.putIfAbsent(dest, connection);
+				connection = newOutgoingConnection(dest);
+				connections.get(stripe).putIfAbsent(dest, connection);
                 if (suspectAddressListener != null) {
                     suspectAddressListener.removeSuspect(dest);
                 }
@@ -365,7 +467,9 @@ public class PersistentAsyncServer<T extends Connection>
 	
 	@Override
 	public void incomingConnection(T connection) {
-		connections.putIfAbsent(connection.getRemoteSocketAddress(), connection);
+		// incoming connections are keyed by the remote ephemeral port and hence never
+		// used for outgoing sends; they are held in stripe 0 for tracking only
+		connections.get(0).putIfAbsent(connection.getRemoteSocketAddress(), connection);
         connection.setConnectionListener(this);
         if (suspectAddressListener != null) {
             suspectAddressListener.removeSuspect(connection.getRemoteSocketAddress());
@@ -384,7 +488,10 @@ public class PersistentAsyncServer<T extends Connection>
     public void removeAndCloseConnection(Connection connection) {
         Log.warning("removeAndCloseConnection " + connection);
         if (connection.getRemoteSocketAddress() != null) {
-            connections.remove(connection.getRemoteSocketAddress());
+            // all stripes to a peer share an address; remove only this connection
+            for (ConcurrentMap<InetSocketAddress,T> stripeConnections : connections) {
+                stripeConnections.remove(connection.getRemoteSocketAddress(), connection);
+            }
         }
     }
 	
@@ -403,23 +510,25 @@ public class PersistentAsyncServer<T extends Connection>
 		
 	//////////////////////////////////////////////////////////////////////
 	
-	private void newConnectionSendAsynchronous(InetSocketAddress dest, Object data,
+	private void newConnectionSendAsynchronous(InetSocketAddress dest, int stripe, Object data,
 			UUIDBase uuid, AsyncSendListener listener, long deadline) {
-		asyncConnector.addWork(new OutgoingAsyncMessage(dest, data,
+		asyncConnector.addWork(new OutgoingAsyncMessage(dest, stripe, data,
 						       uuid, listener, deadline));
 	}
 	
 	class OutgoingAsyncMessage {
 		private final InetSocketAddress	dest;
+		private final int				stripe;
 		private final Object			data;
 		private final UUIDBase			uuid;
 		private final AsyncSendListener	listener;
 		private final long				deadline;
 		
-		public OutgoingAsyncMessage(InetSocketAddress dest, Object data,
+		public OutgoingAsyncMessage(InetSocketAddress dest, int stripe, Object data,
 				UUIDBase uuid, AsyncSendListener listener,
 				long deadline) {
 			this.dest = dest;
+			this.stripe = stripe;
 			this.data = data;
 			this.uuid = uuid;
 			this.listener = listener;
@@ -439,6 +548,10 @@ public class PersistentAsyncServer<T extends Connection>
 			return dest;
 		}
 		
+		public int getStripe() {
+			return stripe;
+		}
+		
 		public Object getData() {
 			return data;
 		}
@@ -473,7 +586,7 @@ public class PersistentAsyncServer<T extends Connection>
 			try {
 				Connection	connection;
 				
-				connection = getConnectionFast(msg.getDest(), msg.getDeadline());
+				connection = getConnectionFast(msg.getDest(), msg.getStripe(), msg.getDeadline());
 				connection.sendAsynchronous(msg.getData(), msg.getUUID(), msg.getListener(),
 						msg.getDeadline());
             } catch (UnhealthyConnectionAttemptException ucae) {
@@ -502,8 +615,10 @@ public class PersistentAsyncServer<T extends Connection>
         private void debugConnections() {
             System.out.println();
             System.out.println("\nConnections:");
-            for (T connection : connections.values()) {
-                debugConnection(connection);
+            for (ConcurrentMap<InetSocketAddress,T> stripeConnections : connections) {
+                for (T connection : stripeConnections.values()) {
+                    debugConnection(connection);
+                }
             }
             System.out.println();
             LWTPoolProvider.defaultConcurrentWorkPool.debug();
@@ -551,14 +666,16 @@ public class PersistentAsyncServer<T extends Connection>
         	maxQueuedConnection = null;
         	longestQueueLength = 0;
         	totalQueueLength = 0;
-            for (Connection connection : connections.values()) {
-            	long	queueLength;
-            	
-            	queueLength = connection.getQueueLength();
-            	totalQueueLength += queueLength;
-            	if (queueLength > longestQueueLength) {
-            		maxQueuedConnection = connection;
-            	}
+            for (ConcurrentMap<InetSocketAddress,T> stripeConnections : connections) {
+	            for (Connection connection : stripeConnections.values()) {
+	            	long	queueLength;
+	            	
+	            	queueLength = connection.getQueueLength();
+	            	totalQueueLength += queueLength;
+	            	if (queueLength > longestQueueLength) {
+	            		maxQueuedConnection = connection;
+	            	}
+	            }
             }
             listener.queueLength(uuid, totalQueueLength, maxQueuedConnection);
         }
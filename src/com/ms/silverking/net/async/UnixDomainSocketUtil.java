@@ -0,0 +1,132 @@
+package com.ms.silverking.net.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ms.silverking.log.Log;
+
+/**
+ * Access to unix domain socket channels. java.nio provides these from Java 16 onwards; as this code
+ * targets Java 8, they are reached by reflection and are only used when isAvailable() returns true.
+ *
+ * Unix domain socket channels have no InetSocketAddress, but Connections and the PersistentAsyncServer
+ * identify peers by InetSocketAddress. The creator of a unix domain channel therefore registers the
+ * address of the logical peer for the channel before AsyncBase.addConnection() is called. The
+ * registration is removed once the Connection has been created.
+ */
+public final class UnixDomainSocketUtil {
+    private static final ProtocolFamily unixFamily;
+    private static final Method socketChannelOpen;
+    private static final Method serverSocketChannelOpen;
+    private static final Method addressOf;
+    private static final ConcurrentMap<SocketChannel,InetSocketAddress>    logicalRemoteAddresses;
+
+    static {
+        ProtocolFamily  _unixFamily;
+        Method  _socketChannelOpen;
+        Method  _serverSocketChannelOpen;
+        Method  _addressOf;
+
+        try {
+            _unixFamily = StandardProtocolFamily.valueOf("UNIX");
+            _socketChannelOpen = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            _serverSocketChannelOpen = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            _addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            // not supported by this runtime
+            _unixFamily = null;
+            _socketChannelOpen = null;
+            _serverSocketChannelOpen = null;
+            _addressOf = null;
+        }
+        unixFamily = _unixFamily;
+        socketChannelOpen = _socketChannelOpen;
+        serverSocketChannelOpen = _serverSocketChannelOpen;
+        addressOf = _addressOf;
+        logicalRemoteAddresses = new ConcurrentHashMap<>();
+        if (AsyncGlobals.verbose) {
+            Log.warning("UnixDomainSocketUtil.isAvailable(): ", isAvailable());
+        }
+    }
+
+    private UnixDomainSocketUtil() {
+    }
+
+    /**
+     * @return true if the runtime supports unix domain socket channels
+     */
+    public static boolean isAvailable() {
+        return unixFamily != null;
+    }
+
+    private static Object invoke(Method method, Object... args) throws IOException {
+        if (!isAvailable()) {
+            throw new IOException("Unix domain sockets are not supported by this runtime");
+        }
+        try {
+            return method.invoke(null, args);
+        } catch (InvocationTargetException ite) {
+            if (ite.getCause() instanceof IOException) {
+                throw (IOException)ite.getCause();
+            } else {
+                throw new IOException(ite.getCause());
+            }
+        } catch (IllegalAccessException iae) {
+            throw new IOException(iae);
+        }
+    }
+
+    public static SocketChannel openChannel() throws IOException {
+        return (SocketChannel)invoke(socketChannelOpen, unixFamily);
+    }
+
+    public static ServerSocketChannel openServerChannel() throws IOException {
+        return (ServerSocketChannel)invoke(serverSocketChannelOpen, unixFamily);
+    }
+
+    public static SocketAddress address(File path) throws IOException {
+        return (SocketAddress)invoke(addressOf, path.toPath());
+    }
+
+    static void setRemoteSocketAddress(SocketChannel channel, InetSocketAddress logicalRemoteAddress) {
+        logicalRemoteAddresses.put(channel, logicalRemoteAddress);
+    }
+
+    static void clearRemoteSocketAddress(SocketChannel channel) {
+        logicalRemoteAddresses.remove(channel);
+    }
+
+    /**
+     * @return true if the channel has been registered as a unix domain socket channel, and the
+     * registration has not yet been cleared
+     */
+    static boolean isUnixDomain(SocketChannel channel) {
+        return logicalRemoteAddresses.containsKey(channel);
+    }
+
+    /**
+     * @return the registered logical remote address for a unix domain socket channel, or the remote
+     * address of the channel's socket otherwise
+     */
+    public static InetSocketAddress getRemoteSocketAddress(SocketChannel channel) {
+        InetSocketAddress   logicalRemoteAddress;
+
+        logicalRemoteAddress = logicalRemoteAddresses.get(channel);
+        if (logicalRemoteAddress != null) {
+            return logicalRemoteAddress;
+        } else {
+            return (InetSocketAddress)channel.socket().getRemoteSocketAddress();
+        }
+    }
+}
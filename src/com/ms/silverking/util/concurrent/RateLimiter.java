@@ -0,0 +1,76 @@
+package com.ms.silverking.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ms.silverking.time.RelNanosTimeSource;
+import com.ms.silverking.time.SystemTimeSource;
+
+/**
+ * Limits the rate at which units (e.g. bytes) are consumed by callers.
+ * Callers acquire units before using them and are delayed as required to
+ * keep the aggregate rate at or below the configured number of units per second.
+ * A non-positive rate disables limiting.
+ */
+public class RateLimiter {
+    private final long                  unitsPerSecond;
+    private final RelNanosTimeSource    timeSource;
+    private long                        nextFreeNanos;
+
+    private static final long   nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+
+    public RateLimiter(long unitsPerSecond, RelNanosTimeSource timeSource) {
+        this.unitsPerSecond = unitsPerSecond;
+        this.timeSource = timeSource;
+        nextFreeNanos = timeSource.relTimeNanos();
+    }
+
+    public RateLimiter(long unitsPerSecond) {
+        this(unitsPerSecond, SystemTimeSource.instance);
+    }
+
+    public long getUnitsPerSecond() {
+        return unitsPerSecond;
+    }
+
+    public boolean isLimited() {
+        return unitsPerSecond > 0;
+    }
+
+    /**
+     * Reserve the given number of units
+     * @param units number of units to reserve
+     * @return the number of nanoseconds that the caller must wait before using the units
+     */
+    public synchronized long reserve(long units) {
+        if (!isLimited() || units <= 0) {
+            return 0;
+        } else {
+            long    curTimeNanos;
+            long    startNanos;
+
+            curTimeNanos = timeSource.relTimeNanos();
+            startNanos = Math.max(curTimeNanos, nextFreeNanos);
+            nextFreeNanos = startNanos + (long)((double)units * (double)nanosPerSecond / (double)unitsPerSecond);
+            return startNanos - curTimeNanos;
+        }
+    }
+
+    /**
+     * Acquire the given number of units, blocking as required to respect the rate limit
+     * @param units number of units to acquire
+     * @throws InterruptedException
+     */
+    public void acquire(long units) throws InterruptedException {
+        long    waitNanos;
+
+        waitNanos = reserve(units);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(unitsPerSecond);
+    }
+}
@@ -30,6 +30,8 @@ Compression * getCompression(SKCompression::SKCompression compression)
 			return new Compression (Compression::valueOf("SNAPPY")); 
 		case SKCompression::LZ4: 
 			return new Compression (Compression::valueOf("LZ4")); 
+		case SKCompression::ZIP_DICTIONARY: 
+			return new Compression (Compression::valueOf("ZIP_DICTIONARY")); 
 		default: 
 			throw std::exception(); //FIXME:
 	}
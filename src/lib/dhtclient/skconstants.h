@@ -36,7 +36,7 @@ typedef enum SKTimeUnit_t {
 
 namespace SKCompression {
  typedef enum SKCompression_t {
-    NONE, ZIP, BZIP2, SNAPPY, LZ4
+    NONE, ZIP, BZIP2, SNAPPY, LZ4, ZIP_DICTIONARY
  } SKCompression;
 }
 
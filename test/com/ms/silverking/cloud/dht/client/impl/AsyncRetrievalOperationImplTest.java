@@ -0,0 +1,112 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.ms.silverking.cloud.dht.ValueCreator;
+import com.ms.silverking.cloud.dht.client.ChecksumType;
+import com.ms.silverking.cloud.dht.client.Compression;
+import com.ms.silverking.cloud.dht.client.OperationState;
+import com.ms.silverking.cloud.dht.client.serialization.SerializationRegistry;
+import com.ms.silverking.cloud.dht.common.CCSSUtil;
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.MetaDataUtil;
+import com.ms.silverking.cloud.dht.common.SystemTimeUtil;
+import com.ms.silverking.cloud.dht.net.MessageGroupBase;
+import com.ms.silverking.thread.lwt.LWTPoolProvider;
+
+public class AsyncRetrievalOperationImplTest {
+
+	private static MessageGroupBase mgBase;
+
+	private NearCache                                nearCache;
+	private ClientNamespace                          clientNamespace;
+	private NamespacePerspectiveOptionsImpl<String,String> nspoImpl;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		LWTPoolProvider.createDefaultWorkPools();
+		mgBase = new MessageGroupBase(0, null, SystemTimeUtil.systemTimeSource, null, 1000, 1, "");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		SerializationRegistry serializationRegistry = SerializationRegistry.createDefaultRegistry();
+
+		nearCache = new NearCache(1024 * 1024);
+		clientNamespace = new ClientNamespace(null, mgBase, null, "AsyncRetrievalOperationImplTest",
+		                                      DHTConstants.defaultNamespaceOptions, serializationRegistry,
+		                                      SystemTimeUtil.systemTimeSource, null, null, null, nearCache);
+		nspoImpl = new NamespacePerspectiveOptionsImpl<>(clientNamespace.getDefaultNSPOptions(String.class, String.class),
+		                                                 serializationRegistry);
+	}
+
+	private AsyncRetrievalOperationImpl<String,String> createRetrieval(Collection<String> keys) {
+		return new AsyncRetrievalOperationImpl<>(new RetrievalOperation<>(clientNamespace, keys,
+		                                                                  nspoImpl.getNSPOptions().getDefaultGetOptions()),
+		                                         clientNamespace, nspoImpl,
+		                                         SystemTimeUtil.systemTimeSource.absTimeMillis(),
+		                                         clientNamespace.getOriginator());
+	}
+
+	private void addToNearCache(String key, String value) {
+		DHTKey     dhtKey = nspoImpl.getKeyCreator().createKey(key);
+		ByteBuffer valueBuf = nspoImpl.getValueSerializer().serializeToBuffer(value);
+		int        storedLength = MetaDataUtil.computeStoredLength(valueBuf.remaining(), 0, 0);
+		ByteBuffer storedValue = ByteBuffer.allocate(storedLength);
+
+		// uncompressed, unchecksummed stored value without user data; see MetaDataUtil
+		storedValue.putInt(storedLength);
+		storedValue.putInt(valueBuf.remaining());
+		storedValue.putLong(1); // version
+		storedValue.putLong(1); // creation time
+		storedValue.put(new byte[ValueCreator.BYTES]);
+		storedValue.putShort(CCSSUtil.createCCSS(Compression.NONE, ChecksumType.NONE));
+		storedValue.put((byte)0);
+		storedValue.put(valueBuf);
+		storedValue.flip();
+		nearCache.put(dhtKey, storedValue);
+	}
+
+	@Test
+	public void testEmptyRetrieval() throws Exception {
+		AsyncRetrievalOperationImpl<String,String> retrieval = createRetrieval(ImmutableSet.<String>of());
+
+		assertEquals(OperationState.SUCCEEDED, retrieval.getState());
+		assertTrue(retrieval.getValues().isEmpty());
+	}
+
+	@Test
+	public void testNearCacheHit() throws Exception {
+		AsyncRetrievalOperationImpl<String,String> retrieval;
+
+		addToNearCache("k1", "v1");
+		addToNearCache("k2", "v2");
+		retrieval = createRetrieval(ImmutableSet.of("k1", "k2"));
+		assertTrue(retrieval.completedFromNearCache());
+		assertEquals(OperationState.SUCCEEDED, retrieval.getState());
+		assertEquals("v1", retrieval.getValue("k1"));
+		assertEquals("v2", retrieval.getValue("k2"));
+	}
+
+	@Test
+	public void testPartialNearCacheHit() throws Exception {
+		AsyncRetrievalOperationImpl<String,String> retrieval;
+
+		addToNearCache("k1", "v1");
+		retrieval = createRetrieval(ImmutableSet.of("k1", "k2"));
+		assertFalse(retrieval.completedFromNearCache());
+		assertEquals(OperationState.INCOMPLETE, retrieval.getState());
+		assertEquals(OperationState.SUCCEEDED, retrieval.getOperationState("k1"));
+	}
+}
@@ -0,0 +1,238 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ms.silverking.cloud.dht.NonExistenceResponse;
+import com.ms.silverking.cloud.dht.client.OpSizeBasedTimeoutController;
+import com.ms.silverking.cloud.dht.client.OpTimeoutController;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.cloud.dht.net.MessageGroup;
+import com.ms.silverking.cloud.dht.net.ProtoMessageGroup;
+import com.ms.silverking.id.UUIDBase;
+import com.ms.silverking.thread.lwt.LWTPoolProvider;
+
+public class MessageListenerRegistryTest {
+
+	// as MessageListenerRegistry
+	private static final int stripeShift = 26;
+	private static final int numStripes = 64;
+	private static final int initialStripeCapacity = 64;
+
+	private static final OpTimeoutController timeoutController = new OpSizeBasedTimeoutController();
+
+	private MessageListenerRegistry registry;
+	private Random                  random;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		LWTPoolProvider.createDefaultWorkPools();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new MessageListenerRegistry();
+		random = new Random(0);
+	}
+
+	/**
+	 * @return a uuid that hashes to the given stripe and to the given slot of an initial capacity stripe
+	 */
+	private UUIDBase createUUID(int stripe, int slot) {
+		while (true) {
+			long msl = random.nextLong();
+			long lsl = random.nextLong();
+			int  hash = MessageListenerTable.hash(msl, lsl);
+
+			if (((hash >>> stripeShift) & (numStripes - 1)) == stripe && (hash & (initialStripeCapacity - 1)) == slot) {
+				return new UUIDBase(msl, lsl);
+			}
+		}
+	}
+
+	private MessageListenerTable get(UUIDBase uuid) {
+		return registry.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	@Test
+	public void testAddListener() {
+		UUIDBase             uuid = new UUIDBase(1, 2);
+		DHTKey               key = new SimpleKey(3, 4);
+		TestOp               op1 = new TestOp();
+		TestOp               op2 = new TestOp();
+		MessageListenerTable table;
+
+		assertNull(get(uuid));
+		assertEquals(MessageListenerTable.ADDED_NEW_KEY, registry.addListener(uuid, key, op1, false, op1));
+		assertEquals(MessageListenerTable.NOT_ADDED, registry.addListener(uuid, key, op2, false, op2));
+		assertEquals(MessageListenerTable.ADDED_EXISTING_KEY, registry.addListener(uuid, key, op2, true, op2));
+		table = get(uuid);
+		assertNotNull(table);
+		assertArrayEquals(new Object[]{op1, op2}, (Object[])table.getListener(key.getMSL(), key.getLSL()));
+		// the registered key instance is returned for an equal key
+		assertSame(key, table.getKey(3, 4));
+		assertNull(table.getListener(3, 5));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void testRelease() {
+		UUIDBase             uuid = new UUIDBase(1, 2);
+		TestOp               op1 = new TestOp();
+		TestOp               op2 = new TestOp();
+		MessageListenerTable table;
+
+		registry.addListener(uuid, new SimpleKey(1, 1), op1, false, op1);
+		registry.addListener(uuid, new SimpleKey(2, 2), op2, false, op2);
+		table = get(uuid);
+		registry.release(uuid, op1);
+		assertSame(table, get(uuid));
+		registry.release(uuid, op2);
+		assertNull(get(uuid));
+		assertEquals(0, registry.size());
+		// releasing an unknown message is ignored
+		registry.release(uuid, op2);
+
+		// a new table is created for a message that is used again
+		registry.addListener(uuid, new SimpleKey(1, 1), op1, false, op1);
+		assertNotNull(get(uuid));
+		assertNotSame(table, get(uuid));
+		assertEquals(1, registry.size());
+	}
+
+	/**
+	 * Fill the last slot of a stripe and wrap around to its first slots, then release so that backward
+	 * shift deletion must move tables across the end of the stripe.
+	 */
+	@Test
+	public void testWraparoundRelease() {
+		int        lastSlot = initialStripeCapacity - 1;
+		UUIDBase[] uuids = {createUUID(5, lastSlot), createUUID(5, lastSlot), createUUID(5, lastSlot),
+		                    createUUID(5, 0), createUUID(5, 1)};
+		TestOp[]   ops = new TestOp[uuids.length];
+		boolean[]  released = new boolean[uuids.length];
+
+		for (int i = 0; i < uuids.length; i++) {
+			ops[i] = new TestOp();
+			registry.addListener(uuids[i], new SimpleKey(i, i), ops[i], false, ops[i]);
+		}
+		checkPresent(uuids, ops, released);
+		for (int i : new int[]{0, 1, 3, 2}) {
+			registry.release(uuids[i], ops[i]);
+			released[i] = true;
+			checkPresent(uuids, ops, released);
+		}
+		assertEquals(1, registry.size());
+	}
+
+	private void checkPresent(UUIDBase[] uuids, TestOp[] ops, boolean[] released) {
+		for (int i = 0; i < uuids.length; i++) {
+			MessageListenerTable table = get(uuids[i]);
+
+			if (released[i]) {
+				assertNull(table);
+			} else {
+				assertNotNull(table);
+				assertSame(ops[i], table.getListener(i, i));
+			}
+		}
+	}
+
+	@Test
+	public void testGrowth() {
+		int            numMessages = 5000;
+		List<UUIDBase> uuids = new ArrayList<>();
+		TestOp         op = new TestOp();
+
+		for (int i = 0; i < numMessages; i++) {
+			UUIDBase uuid = new UUIDBase(random.nextLong(), random.nextLong());
+
+			uuids.add(uuid);
+			registry.addListener(uuid, new SimpleKey(i, i), op, false, op);
+		}
+		assertEquals(numMessages, registry.size());
+		assertEquals(numMessages, registry.getTables().size());
+		for (int i = 0; i < numMessages; i += 2) {
+			registry.release(uuids.get(i), op);
+		}
+		for (int i = 0; i < numMessages; i++) {
+			if (i % 2 == 0) {
+				assertNull(get(uuids.get(i)));
+			} else {
+				assertSame(op, get(uuids.get(i)).getListener(i, i));
+			}
+		}
+		assertEquals(numMessages / 2, registry.size());
+	}
+
+	/**
+	 * Minimal operation used as a listener owner
+	 */
+	private static class TestOp extends AsyncOperationImpl {
+		TestOp() {
+			super(new TestOperation(), 0, new byte[0]);
+		}
+
+		@Override
+		protected NonExistenceResponse getNonExistenceResponse() {
+			return NonExistenceResponse.NULL_VALUE;
+		}
+
+		@Override
+		protected int opWorkItems() {
+			return 0;
+		}
+
+		@Override
+		protected void throwFailedException() {
+		}
+
+		@Override
+		public void waitForCompletion() {
+		}
+
+		@Override
+		void addToEstimate(MessageEstimate estimate) {
+		}
+
+		@Override
+		MessageEstimate createMessageEstimate() {
+			return null;
+		}
+
+		@Override
+		ProtoMessageGroup createProtoMG(MessageEstimate estimate) {
+			return null;
+		}
+
+		@Override
+		ProtoMessageGroup createMessagesForIncomplete(ProtoMessageGroup protoMG, List<MessageGroup> messageGroups,
+		                                              MessageEstimate estimate) {
+			return null;
+		}
+	}
+
+	private static class TestOperation extends Operation {
+		TestOperation() {
+			super(ClientOpType.PUT, null);
+		}
+
+		@Override
+		OpTimeoutController getTimeoutController() {
+			return timeoutController;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.ms.silverking.cloud.dht.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	// level spans as TimingWheel
+	private static final long level1Span = 1L << 8;
+	private static final long level2Span = 1L << 16;
+	private static final long level3Span = 1L << 24;
+
+	private TimingWheel<Long> wheel;
+	private List<Long>        expired;
+
+	@Before
+	public void setUp() throws Exception {
+		wheel = new TimingWheel<>(0);
+		expired = new ArrayList<>();
+	}
+
+	private void advance(long tick) {
+		wheel.advance(tick, deadline -> {
+			expired.add(deadline);
+		});
+	}
+
+	private void add(long deadline) {
+		wheel.add(deadline, deadline);
+	}
+
+	/**
+	 * Advance one tick at a time and check that each entry expires exactly at its deadline
+	 */
+	private void checkExpiresAtDeadline(long... deadlines) {
+		long maxDeadline = 0;
+		int  numExpired = 0;
+
+		for (long deadline : deadlines) {
+			add(deadline);
+			maxDeadline = Math.max(maxDeadline, deadline);
+		}
+		for (long tick = wheel.getCurrentTick(); tick <= maxDeadline; tick++) {
+			advance(tick);
+			for (long deadline : expired) {
+				assertEquals(tick, deadline);
+			}
+			numExpired += expired.size();
+			expired.clear();
+		}
+		assertEquals(deadlines.length, numExpired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testLevel0Expiry() {
+		checkExpiresAtDeadline(0, 1, 1, 2, 17, level1Span - 1);
+	}
+
+	@Test
+	public void testCascade() {
+		checkExpiresAtDeadline(level1Span, level1Span + 1, 3 * level1Span + 5,
+		                       level2Span - 1, level2Span, level2Span + level1Span + 3,
+		                       level3Span - 1, level3Span, level3Span + 2 * level2Span + 7);
+	}
+
+	@Test
+	public void testCascadeFromNonZeroStart() {
+		wheel = new TimingWheel<>(level2Span - 3);
+		checkExpiresAtDeadline(level2Span - 3, level2Span - 1, level2Span, level2Span + 2, level2Span + level1Span);
+	}
+
+	@Test
+	public void testPastDeadline() {
+		advance(1000);
+		add(10);
+		assertEquals(1, wheel.size());
+		advance(1001);
+		assertEquals(1, expired.size());
+		assertEquals(10L, expired.get(0).longValue());
+	}
+
+	@Test
+	public void testRemove() {
+		TimingWheel.Entry<Long> e1 = wheel.add(5, 5L);
+		TimingWheel.Entry<Long> e2 = wheel.add(level2Span + 1, level2Span + 1);
+
+		wheel.add(6, 6L);
+		wheel.remove(e1);
+		wheel.remove(e2);
+		assertEquals(1, wheel.size());
+		advance(level2Span * 2);
+		assertEquals(1, expired.size());
+		assertEquals(6L, expired.get(0).longValue());
+		// removal of an expired or removed entry is ignored
+		wheel.remove(e1);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testAddFromHandler() {
+		wheel.add(3, 3L);
+		wheel.advance(10, deadline -> {
+			expired.add(deadline);
+			if (deadline == 3) {
+				wheel.add(3, 4L);
+			}
+		});
+		assertEquals(2, expired.size());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSkipNonEmpty() {
+		add(10);
+		wheel.skipTo(20);
+	}
+
+	@Test
+	public void testSkipEmpty() {
+		wheel.skipTo(level2Span);
+		assertEquals(level2Span, wheel.getCurrentTick());
+		checkExpiresAtDeadline(level2Span + 1, level2Span + level1Span);
+	}
+
+	/**
+	 * Advance by random steps and compare against a sorted map of deadlines
+	 */
+	@Test
+	public void testRandomAdvance() {
+		Random              random = new Random(0);
+		TreeMap<Long,Integer> pending = new TreeMap<>();
+		long                tick = 0;
+
+		for (int i = 0; i < 100; i++) {
+			for (int j = 0; j < 100; j++) {
+				long deadline = tick + (long)random.nextInt((int)level2Span * 4);
+
+				add(deadline);
+				pending.merge(deadline, 1, Integer::sum);
+			}
+			tick += random.nextInt((int)level1Span * 16);
+			advance(tick);
+			for (long deadline : expired) {
+				assertTrue(deadline <= tick);
+				assertTrue(pending.containsKey(deadline));
+				if (pending.merge(deadline, -1, Integer::sum) == 0) {
+					pending.remove(deadline);
+				}
+			}
+			expired.clear();
+			assertTrue(pending.isEmpty() || pending.firstKey() > tick);
+			assertEquals(pending.values().stream().mapToInt(Integer::intValue).sum(), wheel.size());
+		}
+	}
+}
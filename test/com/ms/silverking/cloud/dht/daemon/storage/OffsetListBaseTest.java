@@ -0,0 +1,156 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ms.silverking.cloud.dht.ConsistencyProtocol;
+import com.ms.silverking.cloud.dht.VersionConstraint;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.MetaDataUtil;
+
+/**
+ * Checks the binary searches of OffsetListBase.getOffset() against the linear scan that they replaced
+ */
+public class OffsetListBaseTest {
+
+	private static final int  valueStride = 64; // bytes reserved for each value in the verification buffer
+	private static final int  numLists = 200;
+	private static final int  constraintsPerList = 50;
+	private static final byte invalidState = 0; // TwoPhaseStorageState.INITIAL
+	private static final byte validState = 2;   // TwoPhaseStorageState.COMMITTED
+
+	private Random random;
+
+	@Before
+	public void setUp() throws Exception {
+		random = new Random(0);
+	}
+
+	/**
+	 * Create a list of the given size with non-decreasing versions, and runs of equal versions
+	 */
+	private RAMOffsetList createVersionOrderedList(int size) {
+		RAMOffsetList list = new RAMOffsetList(1, false);
+		long          version = random.nextInt(10);
+
+		for (int i = 0; i < size; i++) {
+			list.putOffset(version, i * valueStride, 0);
+			if (random.nextInt(3) != 0) {
+				version += random.nextInt(5);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Create a list of the given size with increasing storage times and unordered versions
+	 */
+	private RAMOffsetList createStorageTimeOrderedList(int size) {
+		RAMOffsetList list = new RAMOffsetList(1, true);
+		long          storageTime = random.nextInt(10);
+
+		for (int i = 0; i < size; i++) {
+			list.putOffset(random.nextInt(4 * size + 1), i * valueStride, storageTime);
+			storageTime += 1 + random.nextInt(3);
+		}
+		return list;
+	}
+
+	/**
+	 * @return a verifier for which each value of the list is valid with probability 1/2
+	 */
+	private ValidityVerifier createValidityVerifier(int size) {
+		ByteBuffer buf = ByteBuffer.allocate((size + 1) * valueStride);
+
+		for (int i = 0; i < size; i++) {
+			MetaDataUtil.updateStorageState(buf, i * valueStride + DHTKey.BYTES_PER_KEY,
+			                                random.nextBoolean() ? validState : invalidState);
+		}
+		return new ValidityVerifier(buf, ConsistencyProtocol.TWO_PHASE_COMMIT);
+	}
+
+	private VersionConstraint createConstraint(long maxVersion, long maxStorageTime) {
+		long                   v1 = random.nextInt((int)maxVersion + 3) - 1;
+		long                   v2 = random.nextInt((int)maxVersion + 3) - 1;
+		VersionConstraint.Mode mode = random.nextBoolean() ? VersionConstraint.Mode.GREATEST
+		                                                   : VersionConstraint.Mode.LEAST;
+		long                   min;
+		long                   maxCreationTime;
+
+		// VersionConstraint only supports a min for GREATEST when it selects a single version
+		if (mode == VersionConstraint.Mode.LEAST) {
+			min = Math.max(Math.min(v1, v2), 0);
+		} else {
+			min = random.nextBoolean() ? Long.MIN_VALUE : Math.max(v1, v2);
+		}
+		if (maxStorageTime < 0 || random.nextBoolean()) {
+			maxCreationTime = VersionConstraint.noCreationTimeLimit;
+		} else {
+			maxCreationTime = random.nextInt((int)maxStorageTime + 2);
+		}
+		return new VersionConstraint(min, Math.max(v1, v2), mode, maxCreationTime);
+	}
+
+	private void checkAgainstLinear(RAMOffsetList list, VersionConstraint vc, ValidityVerifier validityVerifier) {
+		assertEquals(vc.toString(), list.getOffset_linear(vc, validityVerifier, list.size()),
+		             list.getOffset(vc, validityVerifier));
+	}
+
+	private void checkList(RAMOffsetList list, long maxStorageTime) {
+		ValidityVerifier validityVerifier = createValidityVerifier(list.size());
+
+		for (int i = 0; i < constraintsPerList; i++) {
+			VersionConstraint vc = createConstraint(list.getLatestVersion() + 4 * list.size(), maxStorageTime);
+
+			checkAgainstLinear(list, vc, null);
+			checkAgainstLinear(list, vc, validityVerifier);
+		}
+		checkAgainstLinear(list, VersionConstraint.greatest, null);
+		checkAgainstLinear(list, VersionConstraint.greatest, validityVerifier);
+		checkAgainstLinear(list, VersionConstraint.least, null);
+		checkAgainstLinear(list, VersionConstraint.least, validityVerifier);
+	}
+
+	@Test
+	public void testVersionOrdered() {
+		for (int i = 0; i < numLists; i++) {
+			checkList(createVersionOrderedList(1 + random.nextInt(40)), -1);
+		}
+	}
+
+	@Test
+	public void testStorageTimeOrdered() {
+		for (int i = 0; i < numLists; i++) {
+			int size = 1 + random.nextInt(40);
+
+			checkList(createStorageTimeOrderedList(size), 4 * size + 10);
+		}
+	}
+
+	@Test
+	public void testEqualVersions() {
+		RAMOffsetList list = new RAMOffsetList(1, false);
+
+		list.putOffset(5, 0, 0);
+		list.putOffset(7, 1 * valueStride, 0);
+		list.putOffset(7, 2 * valueStride, 0);
+		list.putOffset(7, 3 * valueStride, 0);
+		list.putOffset(9, 4 * valueStride, 0);
+		// the most recently stored entry for the selected version is returned
+		assertEquals(3 * valueStride, list.getOffset(new VersionConstraint(7, 7, VersionConstraint.Mode.GREATEST), null));
+		assertEquals(3 * valueStride,
+		             list.getOffset(new VersionConstraint(Long.MIN_VALUE, 8, VersionConstraint.Mode.GREATEST), null));
+		assertEquals(3 * valueStride, list.getOffset(new VersionConstraint(6, 8, VersionConstraint.Mode.LEAST), null));
+		assertEquals(0, list.getOffset(VersionConstraint.least, null));
+		assertEquals(4 * valueStride, list.getOffset(VersionConstraint.greatest, null));
+		assertEquals(OffsetList.NO_MATCH_FOUND,
+		             list.getOffset(new VersionConstraint(Long.MIN_VALUE, 4, VersionConstraint.Mode.GREATEST), null));
+		assertEquals(OffsetList.NO_MATCH_FOUND,
+		             list.getOffset(new VersionConstraint(10, 20, VersionConstraint.Mode.LEAST), null));
+	}
+}
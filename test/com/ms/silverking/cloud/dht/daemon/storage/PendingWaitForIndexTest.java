@@ -0,0 +1,221 @@
+package com.ms.silverking.cloud.dht.daemon.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ms.silverking.cloud.dht.RetrievalOptions;
+import com.ms.silverking.cloud.dht.common.DHTConstants;
+import com.ms.silverking.cloud.dht.common.DHTKey;
+import com.ms.silverking.cloud.dht.common.SimpleKey;
+import com.ms.silverking.id.UUIDBase;
+
+public class PendingWaitForIndexTest {
+
+	private static final RetrievalOptions options = DHTConstants.standardWaitOptions;
+
+	// as PendingWaitForIndex
+	private static final int stripeShift = 26;
+	private static final int numStripes = 16;
+	private static final int initialStripeCapacity = 16;
+
+	private PendingWaitForIndex index;
+	private Random              random;
+
+	@Before
+	public void setUp() throws Exception {
+		index = new PendingWaitForIndex();
+		random = new Random(0);
+	}
+
+	/**
+	 * @return a key that hashes to the given stripe and to the given slot of an initial capacity stripe
+	 */
+	private DHTKey createKey(int stripe, int slot) {
+		while (true) {
+			long msl = random.nextLong();
+			long lsl = random.nextLong();
+			int  hash = PendingWaitForIndex.hash(msl, lsl);
+
+			if (((hash >>> stripeShift) & (numStripes - 1)) == stripe && (hash & (initialStripeCapacity - 1)) == slot) {
+				return new SimpleKey(msl, lsl);
+			}
+		}
+	}
+
+	private PendingWaitFor createWaitFor(DHTKey key, long absDeadlineMillis) {
+		return new PendingWaitFor(key, options, new UUIDBase(), absDeadlineMillis);
+	}
+
+	@Test
+	public void testAddGetRemove() {
+		DHTKey         key = createKey(0, 0);
+		PendingWaitFor w1 = createWaitFor(key, 0);
+		PendingWaitFor w2 = createWaitFor(key, 0);
+
+		assertFalse(index.mayHaveWaiters(key));
+		assertNull(index.get(key));
+		assertTrue(index.add(w1));
+		assertTrue(index.add(w2));
+		assertTrue(index.mayHaveWaiters(key));
+		assertArrayEquals(new PendingWaitFor[]{w1, w2}, index.get(key));
+		assertEquals(2, index.size());
+
+		assertTrue(index.remove(w1));
+		assertFalse(index.remove(w1));
+		assertArrayEquals(new PendingWaitFor[]{w2}, index.get(key));
+		assertTrue(index.remove(w2));
+		assertNull(index.get(key));
+		assertFalse(index.mayHaveWaiters(key));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testAddDuplicate() {
+		DHTKey         key = createKey(0, 0);
+		PendingWaitFor w1 = createWaitFor(key, 0);
+		PendingWaitFor w2 = new PendingWaitFor(key, options, w1.getOpUUID(), 0);
+
+		assertTrue(index.add(w1));
+		assertFalse(index.add(w2));
+		assertEquals(1, index.size());
+		assertArrayEquals(new PendingWaitFor[]{w1}, index.get(key));
+		assertTrue(index.remove(w1));
+		assertFalse(index.mayHaveWaiters(key));
+		assertEquals(0, index.removeExpired(Long.MAX_VALUE));
+	}
+
+	/**
+	 * Fill the last slot of a stripe and wrap around to its first slots, then delete so that backward
+	 * shift deletion must move entries across the end of the table.
+	 */
+	@Test
+	public void testWraparoundDeletion() {
+		int              lastSlot = initialStripeCapacity - 1;
+		DHTKey[]         keys = {createKey(3, lastSlot), createKey(3, lastSlot), createKey(3, lastSlot),
+		                         createKey(3, 0), createKey(3, 1)};
+		PendingWaitFor[] waitFors = new PendingWaitFor[keys.length];
+
+		// occupies slots 15, 0, 1, 2, 3
+		for (int i = 0; i < keys.length; i++) {
+			waitFors[i] = createWaitFor(keys[i], 0);
+			assertTrue(index.add(waitFors[i]));
+		}
+		checkPresent(keys, waitFors);
+
+		// the hole at 15 must be filled from 0 and 1, and those holes from 2 and 3
+		assertTrue(index.remove(waitFors[0]));
+		waitFors[0] = null;
+		checkPresent(keys, waitFors);
+
+		// slots 15, 0, 1, 2 now hold keys homed at 15, 15, 0, 1; the hole must not move a key before its home
+		assertTrue(index.remove(waitFors[1]));
+		waitFors[1] = null;
+		checkPresent(keys, waitFors);
+
+		assertTrue(index.remove(waitFors[3]));
+		waitFors[3] = null;
+		checkPresent(keys, waitFors);
+
+		assertTrue(index.remove(waitFors[2]));
+		waitFors[2] = null;
+		checkPresent(keys, waitFors);
+		assertEquals(1, index.size());
+	}
+
+	private void checkPresent(DHTKey[] keys, PendingWaitFor[] waitFors) {
+		for (int i = 0; i < keys.length; i++) {
+			if (waitFors[i] != null) {
+				assertArrayEquals(new PendingWaitFor[]{waitFors[i]}, index.get(keys[i]));
+			} else {
+				assertNull(index.get(keys[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testGrowth() {
+		int                  numKeys = 1000;
+		List<PendingWaitFor> waitFors = new ArrayList<>();
+
+		for (int i = 0; i < numKeys; i++) {
+			PendingWaitFor waitFor = createWaitFor(new SimpleKey(random.nextLong(), random.nextLong()), 0);
+
+			waitFors.add(waitFor);
+			assertTrue(index.add(waitFor));
+		}
+		assertEquals(numKeys, index.size());
+		for (int i = 0; i < numKeys; i += 2) {
+			assertTrue(index.remove(waitFors.get(i)));
+		}
+		for (int i = 0; i < numKeys; i++) {
+			PendingWaitFor waitFor = waitFors.get(i);
+
+			if (i % 2 == 0) {
+				assertNull(index.get(waitFor.getKey()));
+			} else {
+				assertArrayEquals(new PendingWaitFor[]{waitFor}, index.get(waitFor.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveExpired() {
+		PendingWaitFor w1 = createWaitFor(createKey(0, 0), 100);
+		PendingWaitFor w2 = createWaitFor(createKey(1, 0), 200);
+		PendingWaitFor w3 = createWaitFor(createKey(2, 0), 300);
+
+		index.add(w3);
+		index.add(w1);
+		index.add(w2);
+		assertEquals(0, index.removeExpired(100));
+		assertEquals(1, index.removeExpired(101));
+		assertNull(index.get(w1.getKey()));
+		// triggered before it expires
+		assertTrue(index.remove(w2));
+		assertEquals(0, index.removeExpired(201));
+		assertEquals(1, index.removeExpired(Long.MAX_VALUE));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testRemoveIf() {
+		PendingWaitFor w1 = createWaitFor(createKey(0, 0), Long.MAX_VALUE);
+		PendingWaitFor w2 = createWaitFor(createKey(0, 0), Long.MAX_VALUE);
+		PendingWaitFor w3 = createWaitFor(createKey(5, 7), Long.MAX_VALUE);
+
+		index.add(w1);
+		index.add(w2);
+		index.add(w3);
+		assertEquals(2, index.removeIf(waitFor -> waitFor != w2));
+		assertArrayEquals(new PendingWaitFor[]{w2}, index.get(w2.getKey()));
+		assertNull(index.get(w3.getKey()));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void testRemoveExpiredAfterQueueCompaction() {
+		int            numWaitFors = 5000;
+		PendingWaitFor pending = createWaitFor(createKey(0, 0), numWaitFors / 2);
+
+		index.add(pending);
+		for (int i = 0; i < numWaitFors; i++) {
+			PendingWaitFor waitFor = createWaitFor(new SimpleKey(random.nextLong(), random.nextLong()), i);
+
+			index.add(waitFor);
+			assertTrue(index.remove(waitFor));
+		}
+		assertEquals(1, index.size());
+		assertEquals(1, index.removeExpired(Long.MAX_VALUE));
+		assertEquals(0, index.size());
+	}
+}
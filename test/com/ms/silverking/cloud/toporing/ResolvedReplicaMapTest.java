@@ -0,0 +1,105 @@
+package com.ms.silverking.cloud.toporing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class ResolvedReplicaMapTest {
+
+	/**
+	 * Reference implementation using the TreeMap lookup that floorIndex() replaced
+	 */
+	private static int expectedFloorIndex(long[] coordinates, long coordinate) {
+		TreeMap<Long,Integer>   indices = new TreeMap<>();
+		Map.Entry<Long,Integer> entry;
+
+		for (int i = 0; i < coordinates.length; i++) {
+			indices.put(coordinates[i], i);
+		}
+		entry = indices.floorEntry(coordinate);
+		if (entry == null) {
+			entry = indices.lastEntry();
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * Check each region start, the coordinates on either side of it, and the ends of the ring
+	 */
+	private void checkBoundaries(long[] coordinates) {
+		checkFloorIndex(coordinates, Long.MIN_VALUE);
+		checkFloorIndex(coordinates, Long.MAX_VALUE);
+		for (long start : coordinates) {
+			checkFloorIndex(coordinates, start);
+			if (start != Long.MIN_VALUE) {
+				checkFloorIndex(coordinates, start - 1);
+			}
+			if (start != Long.MAX_VALUE) {
+				checkFloorIndex(coordinates, start + 1);
+			}
+		}
+	}
+
+	private void checkFloorIndex(long[] coordinates, long coordinate) {
+		assertEquals(Long.toString(coordinate), expectedFloorIndex(coordinates, coordinate),
+		             ResolvedReplicaMap.floorIndex(coordinates, coordinate));
+	}
+
+	@Test
+	public void testSingleRegion() {
+		checkBoundaries(new long[]{0});
+		checkBoundaries(new long[]{Long.MIN_VALUE});
+		checkBoundaries(new long[]{Long.MAX_VALUE});
+		checkBoundaries(new long[]{1000});
+	}
+
+	@Test
+	public void testRingEnds() {
+		checkBoundaries(new long[]{Long.MIN_VALUE, 0});
+		checkBoundaries(new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+		checkBoundaries(new long[]{-1, 0, 1, Long.MAX_VALUE});
+		checkBoundaries(new long[]{Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1, Long.MAX_VALUE});
+	}
+
+	@Test
+	public void testFirstRegionNotAtRingStart() {
+		long[] coordinates = {100, 200, 300};
+
+		// coordinates that precede the first region start belong to the last region, which wraps around
+		assertEquals(2, ResolvedReplicaMap.floorIndex(coordinates, 99));
+		assertEquals(2, ResolvedReplicaMap.floorIndex(coordinates, Long.MIN_VALUE));
+		assertEquals(0, ResolvedReplicaMap.floorIndex(coordinates, 100));
+		assertEquals(0, ResolvedReplicaMap.floorIndex(coordinates, 199));
+		assertEquals(1, ResolvedReplicaMap.floorIndex(coordinates, 200));
+		assertEquals(2, ResolvedReplicaMap.floorIndex(coordinates, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testRandomRegions() {
+		Random random = new Random(0);
+
+		for (int numRegions = 1; numRegions <= 70; numRegions++) {
+			TreeSet<Long> starts = new TreeSet<>();
+			long[]        coordinates;
+			int           i;
+
+			while (starts.size() < numRegions) {
+				starts.add(random.nextLong());
+			}
+			coordinates = new long[numRegions];
+			i = 0;
+			for (long start : starts) {
+				coordinates[i++] = start;
+			}
+			checkBoundaries(coordinates);
+			for (int j = 0; j < 100; j++) {
+				checkFloorIndex(coordinates, random.nextLong());
+			}
+		}
+	}
+}
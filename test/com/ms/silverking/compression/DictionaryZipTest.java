@@ -0,0 +1,155 @@
+package com.ms.silverking.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DictionaryZipTest {
+
+	private static final Random random = new Random(0);
+
+	private List<DictionaryZip.DictionaryLoader> loaders;
+	private byte[]                               value;
+	private byte[]                               dictionary;
+
+	@Before
+	public void setUp() throws Exception {
+		loaders = new ArrayList<>();
+		value = "{\"name\":\"value\",\"id\":12345,\"tags\":[\"a\",\"b\"]}".getBytes();
+		// each test uses a new dictionary, as registered dictionaries are never removed
+		dictionary = new byte[256];
+		random.nextBytes(dictionary);
+		System.arraycopy(value, 0, dictionary, dictionary.length - value.length, value.length);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (DictionaryZip.DictionaryLoader loader : loaders) {
+			DictionaryZip.removeDictionaryLoader(loader);
+		}
+	}
+
+	private void addLoader(DictionaryZip.DictionaryLoader loader) {
+		loaders.add(loader);
+		DictionaryZip.addDictionaryLoader(loader);
+	}
+
+	/**
+	 * Compress with the test dictionary without registering it, as a value stored by another process
+	 */
+	private byte[] compressWithUnregisteredDictionary() {
+		Deflater deflater = new Deflater();
+		byte[]   buf = new byte[1024];
+		int      length;
+
+		deflater.setDictionary(dictionary);
+		deflater.setInput(value);
+		deflater.finish();
+		length = deflater.deflate(buf);
+		deflater.end();
+		return Arrays.copyOf(buf, length);
+	}
+
+	private byte[] decompress(byte[] compressed) throws IOException {
+		return new DictionaryZip().decompress(compressed, 0, compressed.length, value.length);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		DictionaryZip zip = new DictionaryZip(dictionary);
+		byte[]        compressed = zip.compress(value, 0, value.length);
+
+		assertArrayEquals(value, decompress(compressed));
+	}
+
+	@Test
+	public void testUnknownDictionary() {
+		byte[] compressed = compressWithUnregisteredDictionary();
+
+		try {
+			decompress(compressed);
+			fail("Expected UnknownCompressionDictionaryException");
+		} catch (UnknownCompressionDictionaryException ucde) {
+			assertEquals(DictionaryZip.getDictionaryID(dictionary), ucde.getDictionaryID());
+		} catch (IOException ioe) {
+			fail(ioe.toString());
+		}
+	}
+
+	/**
+	 * An unknown dictionary is loaded on first use, and is not loaded again
+	 */
+	@Test
+	public void testLoadUnknownDictionary() throws IOException {
+		byte[] compressed = compressWithUnregisteredDictionary();
+		int[]  loads = new int[1];
+		int[]  loadedIDs = new int[1];
+
+		addLoader(dictionaryID -> {
+			loads[0]++;
+			loadedIDs[0] = dictionaryID;
+			DictionaryZip.registerDictionary(dictionary);
+		});
+		assertArrayEquals(value, decompress(compressed));
+		assertEquals(1, loads[0]);
+		assertEquals(DictionaryZip.getDictionaryID(dictionary), loadedIDs[0]);
+		assertArrayEquals(value, decompress(compressed));
+		assertEquals(1, loads[0]);
+	}
+
+	/**
+	 * Loaders are consulted in turn until one finds the dictionary; a failing loader does not
+	 * prevent the others from being consulted
+	 */
+	@Test
+	public void testMultipleLoaders() throws IOException {
+		byte[] compressed = compressWithUnregisteredDictionary();
+		int[]  loads = new int[3];
+
+		addLoader(dictionaryID -> {
+			loads[0]++;
+			throw new RuntimeException("test loader failure");
+		});
+		addLoader(dictionaryID -> {
+			loads[1]++;
+			DictionaryZip.registerDictionary(dictionary);
+		});
+		addLoader(dictionaryID -> {
+			loads[2]++;
+		});
+		assertArrayEquals(value, decompress(compressed));
+		assertArrayEquals(new int[]{1, 1, 0}, loads);
+	}
+
+	/**
+	 * A dictionary that no loader finds is looked up again by the next decompression
+	 */
+	@Test
+	public void testDictionaryNotFound() throws IOException {
+		byte[] compressed = compressWithUnregisteredDictionary();
+		int[]  loads = new int[1];
+
+		addLoader(dictionaryID -> {
+			loads[0]++;
+		});
+		for (int i = 0; i < 2; i++) {
+			try {
+				decompress(compressed);
+				fail("Expected UnknownCompressionDictionaryException");
+			} catch (UnknownCompressionDictionaryException ucde) {
+			}
+		}
+		assertEquals(2, loads[0]);
+	}
+}
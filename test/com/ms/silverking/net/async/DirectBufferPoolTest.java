@@ -0,0 +1,88 @@
+package com.ms.silverking.net.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectBufferPoolTest {
+
+	private static final int  minClassSizeLog2 = 10;
+	private static final int  maxClassSizeLog2 = 16;
+	private static final long maxRetainedBytes = 4096;
+
+	private DirectBufferPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		pool = new DirectBufferPool(minClassSizeLog2, maxClassSizeLog2, maxRetainedBytes);
+	}
+
+	@Test
+	public void testSizeClasses() {
+		checkAllocation(0,     1024);
+		checkAllocation(1,     1024);
+		checkAllocation(1024,  1024);
+		checkAllocation(1025,  2048);
+		checkAllocation(65536, 65536);
+	}
+
+	private void checkAllocation(int size, int expectedCapacity) {
+		ByteBuffer buf = pool.allocate(size);
+
+		assertTrue(buf.isDirect());
+		assertEquals(0,                buf.position());
+		assertEquals(size,             buf.limit());
+		assertEquals(expectedCapacity, buf.capacity());
+	}
+
+	@Test
+	public void testReuse() {
+		ByteBuffer buf1 = pool.allocate(1500);
+		ByteBuffer buf2;
+
+		buf1.position(100);
+		assertEquals(2048, pool.getOutstandingBytes());
+		pool.release(buf1);
+		assertEquals(0,    pool.getOutstandingBytes());
+		assertEquals(2048, pool.getRetainedBytes());
+
+		buf2 = pool.allocate(2000);
+		assertSame(buf1, buf2);
+		assertEquals(0,    buf2.position());
+		assertEquals(2000, buf2.limit());
+		assertEquals(1,    pool.getHits());
+		assertEquals(1,    pool.getMisses());
+		assertEquals(0.5,  pool.getHitRate(), 0.0);
+		assertEquals(0,    pool.getRetainedBytes());
+	}
+
+	@Test
+	public void testRetentionLimit() {
+		ByteBuffer buf1 = pool.allocate(4096);
+		ByteBuffer buf2 = pool.allocate(1024);
+
+		pool.release(buf1);
+		pool.release(buf2);
+		assertEquals(4096, pool.getRetainedBytes());
+		assertEquals(0,    pool.getOutstandingBytes());
+		pool.allocate(1024);
+		assertEquals(0,    pool.getHits());
+	}
+
+	@Test
+	public void testOversized() {
+		ByteBuffer buf = pool.allocate(65537);
+
+		assertFalse(buf.isDirect());
+		assertEquals(65537, buf.limit());
+		assertEquals(0,     pool.getOutstandingBytes());
+		pool.release(buf);
+		assertEquals(0,     pool.getRetainedBytes());
+	}
+}
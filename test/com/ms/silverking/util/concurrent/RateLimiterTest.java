@@ -0,0 +1,75 @@
+package com.ms.silverking.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ms.silverking.time.RelNanosTimeSource;
+
+public class RateLimiterTest {
+
+	private static final long NANOS_PER_SECOND = 1_000_000_000;
+
+	private ManualTimeSource timeSource;
+
+	private static class ManualTimeSource implements RelNanosTimeSource {
+		private long nanos;
+
+		@Override
+		public long relTimeNanos() {
+			return nanos;
+		}
+
+		void advance(long delta) {
+			nanos += delta;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		timeSource = new ManualTimeSource();
+	}
+
+	@Test
+	public void testUnlimited() {
+		RateLimiter limiter = new RateLimiter(0, timeSource);
+
+		assertFalse(limiter.isLimited());
+		assertEquals(0, limiter.reserve(1_000_000));
+		assertEquals(0, limiter.reserve(1_000_000));
+	}
+
+	@Test
+	public void testReserve() {
+		RateLimiter limiter = new RateLimiter(1000, timeSource);
+
+		assertTrue(limiter.isLimited());
+		assertEquals(0,                    limiter.reserve(500));
+		assertEquals(NANOS_PER_SECOND / 2, limiter.reserve(500));
+		assertEquals(NANOS_PER_SECOND,     limiter.reserve(1000));
+
+		timeSource.advance(NANOS_PER_SECOND);
+		assertEquals(NANOS_PER_SECOND,     limiter.reserve(1));
+	}
+
+	@Test
+	public void testIdleDoesNotAccumulateCredit() {
+		RateLimiter limiter = new RateLimiter(1000, timeSource);
+
+		timeSource.advance(10 * NANOS_PER_SECOND);
+		assertEquals(0,                limiter.reserve(1000));
+		assertEquals(NANOS_PER_SECOND, limiter.reserve(1000));
+	}
+
+	@Test
+	public void testNonPositiveUnits() {
+		RateLimiter limiter = new RateLimiter(1000, timeSource);
+
+		assertEquals(0, limiter.reserve(0));
+		assertEquals(0, limiter.reserve(-1));
+		assertEquals(0, limiter.reserve(1000));
+	}
+}